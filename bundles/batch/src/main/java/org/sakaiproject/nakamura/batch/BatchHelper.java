@@ -94,6 +94,21 @@ public class BatchHelper {
       return;
     }
 
+    writeResults(request, response, batchedRequests);
+  }
+
+  /**
+   * Run the requests one after the other and write the results once they are all done.
+   *
+   * @param request
+   * @param response
+   * @param batchedRequests
+   * @throws IOException
+   * @throws ServletException
+   */
+  protected void writeResults(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests)
+      throws IOException, ServletException {
     // Loop over the requests and handle each one.
     try {
       StringWriter sw = new StringWriter();
@@ -120,6 +135,24 @@ public class BatchHelper {
   private void doRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, RequestInfo requestInfo,
       JSONWriter write) throws JSONException, ServletException {
+    ResponseWrapper responseWrapper = dispatch(request, response, requestInfo);
+    if (responseWrapper != null) {
+      // Write the response (status, headers, body) back to the client.
+      writeResponse(write, responseWrapper, requestInfo);
+    } else {
+      writeFailedRequest(write, requestInfo);
+    }
+  }
+
+  /**
+   * Dispatch a single request on the thread of the batch request.
+   *
+   * @return the captured response, or null if the request failed.
+   * @throws ServletException
+   *           if the request is not allowed.
+   */
+  protected ResponseWrapper dispatch(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, RequestInfo requestInfo) throws ServletException {
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
     // TODO: This is a nasty hack to work around white listing of /system/batch POST
@@ -137,7 +170,7 @@ public class BatchHelper {
 
     // Wrap the request and response.
     RequestWrapper requestWrapper = new RequestWrapper(request, requestInfo);
-    ResponseWrapper responseWrapper = new ResponseWrapper(response);
+    ResponseWrapper responseWrapper = newResponseWrapper(response);
     RequestDispatcher requestDispatcher;
     try {
       // Get the response
@@ -155,16 +188,22 @@ public class BatchHelper {
       } catch (SlingException e) {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
-      // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      return responseWrapper;
     } catch (ServletException e) {
-      writeFailedRequest(write, requestInfo);
+      return null;
     } catch (IOException e) {
-      writeFailedRequest(write, requestInfo);
+      return null;
     }
 
   }
 
+  /**
+   * @return a new wrapper to capture the response of a single request in.
+   */
+  protected ResponseWrapper newResponseWrapper(SlingHttpServletResponse response) {
+    return new ResponseWrapper(response);
+  }
+
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
       RequestInfo requestData) throws JSONException {
     try {
@@ -17,10 +17,20 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -29,11 +39,13 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 
 import java.io.IOException;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@SlingServlet(methods = { "POST" }, generateService = true, paths = { "/system/batch" })
+@Component(metatype = true)
+@SlingServlet(methods = { "POST" }, generateService = true, generateComponent = false, paths = { "/system/batch" })
 @ServiceDocumentation(name = "BatchServlet", okForVersion = "1.2",
     shortDescription = "Bundles multiple requests into a single response.",
     description = "Allows multiple requests to be executed in a single request.",
@@ -41,11 +53,19 @@ import javax.servlet.http.HttpServletResponse;
     methods = {
       @ServiceMethod(name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
-          name = "requests",
-          description = "A JSON string representing a request. <br />Example:" +
-            "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/~admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+        parameters = {
+          @ServiceParameter(
+            name = "requests",
+            description = "A JSON string representing a request. <br />Example:" +
+              "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/~admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
+          ),
+          @ServiceParameter(
+            name = "parallel",
+            description = "If true, GET requests are run concurrently and the results are streamed in request order. " +
+              "Other requests run once everything before them has completed. Bodies of JSON responses are " +
+              "embedded as JSON instead of as strings. Ignored if parallel batches are disabled."
+          )
+        },
         response = {
           @ServiceResponse(code = 200,
             description = {
@@ -63,9 +83,28 @@ public class BatchServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 419598445499567027L;
 
   protected static final String REQUESTS_PARAMETER = "requests";
-  
+
+  protected static final String PARALLEL_PARAMETER = "parallel";
+
+  @Property(intValue = 8, label = "Parallel Threads",
+      description = "Requests run at the same time across all parallel batches, 0 to run every batch serially")
+  protected static final String PARALLEL_THREADS = "batch.parallel.threads";
+
+  @Property(longValue = 30000, label = "Parallel Timeout",
+      description = "Milliseconds to wait for a request in a parallel batch before reporting it as failed")
+  protected static final String PARALLEL_TIMEOUT = "batch.parallel.timeout";
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile SlingRequestProcessor requestProcessor;
+
   private BatchHelper helper = new BatchHelper();
 
+  private volatile ParallelBatchHelper parallelHelper;
+
+  private int parallelThreads;
+
+  private long parallelTimeout;
+
   /**
    * {@inheritDoc}
    *
@@ -126,7 +165,51 @@ public class BatchServlet extends SlingAllMethodsServlet {
       SlingHttpServletResponse response, boolean allowModify) throws IOException, ServletException {
     // Grab the JSON block out of it and convert it to RequestData objects we can use.
     String json = request.getParameter(REQUESTS_PARAMETER);    
-    helper.batchRequest(request, response, json, allowModify);
+    ParallelBatchHelper parallel = getParallelHelper();
+    if (parallel != null && Boolean.parseBoolean(request.getParameter(PARALLEL_PARAMETER))) {
+      parallel.batchRequest(request, response, json, allowModify);
+    } else {
+      helper.batchRequest(request, response, json, allowModify);
+    }
+  }
+
+  private synchronized ParallelBatchHelper getParallelHelper() {
+    if (parallelHelper == null && requestProcessor != null && parallelThreads > 0) {
+      parallelHelper = new ParallelBatchHelper(requestProcessor, parallelThreads, parallelTimeout);
+    }
+    return parallelHelper;
+  }
+
+  private synchronized void shutdownParallelHelper() {
+    if (parallelHelper != null) {
+      parallelHelper.shutdown();
+      parallelHelper = null;
+    }
+  }
+
+  protected void bindRequestProcessor(SlingRequestProcessor requestProcessor) {
+    this.requestProcessor = requestProcessor;
+    shutdownParallelHelper();
+  }
+
+  protected void unbindRequestProcessor(SlingRequestProcessor requestProcessor) {
+    if (this.requestProcessor == requestProcessor) {
+      this.requestProcessor = null;
+      shutdownParallelHelper();
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    parallelThreads = PropertiesUtil.toInteger(props.get(PARALLEL_THREADS), 8);
+    parallelTimeout = PropertiesUtil.toLong(props.get(PARALLEL_TIMEOUT), 30000L);
+    shutdownParallelHelper();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    shutdownParallelHelper();
   }
 
 
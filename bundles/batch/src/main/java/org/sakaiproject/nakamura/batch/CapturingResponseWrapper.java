@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Also captures the locale, redirects and cookies of a request in a parallel batch, so
+ * that nothing reaches the real response, which is shared with the other requests and
+ * has already been streamed to. The cookies are kept one value per cookie.
+ */
+class CapturingResponseWrapper extends ResponseWrapper {
+
+  private final List<String> cookies = new ArrayList<String>();
+  private Locale locale;
+
+  CapturingResponseWrapper(SlingHttpServletResponse wrappedResponse) {
+    super(wrappedResponse);
+  }
+
+  @Override
+  public void setLocale(Locale locale) {
+    this.locale = locale;
+    if (locale != null) {
+      setHeader("Content-Language", locale.toString().replace('_', '-'));
+    }
+  }
+
+  @Override
+  public Locale getLocale() {
+    return locale == null ? super.getLocale() : locale;
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+    setHeader("Location", location);
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(cookie.getName()).append('=').append(cookie.getValue());
+    if (cookie.getPath() != null) {
+      sb.append("; Path=").append(cookie.getPath());
+    }
+    if (cookie.getDomain() != null) {
+      sb.append("; Domain=").append(cookie.getDomain());
+    }
+    if (cookie.getMaxAge() >= 0) {
+      sb.append("; Max-Age=").append(cookie.getMaxAge());
+    }
+    if (cookie.getSecure()) {
+      sb.append("; Secure");
+    }
+    cookies.add(sb.toString());
+  }
+
+  /**
+   * @return the Set-Cookie values of the request, in the order they were added.
+   */
+  List<String> getCookies() {
+    return cookies;
+  }
+}
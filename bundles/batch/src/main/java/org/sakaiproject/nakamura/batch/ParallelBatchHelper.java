@@ -0,0 +1,340 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.JSONTokener;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.RequestWrapper;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+
+/**
+ * Runs the safe requests of a batch concurrently on a bounded pool and streams the
+ * results to the client in request order as they complete. Each concurrent request is
+ * processed with its own resource resolver, cloned from the one of the batch request,
+ * since a resolver and the Sling request state belong to a single thread. Unsafe
+ * requests run on the request thread once everything before them has completed, so a
+ * batch that writes and then reads still sees its own writes. JSON bodies are embedded
+ * as JSON rather than as escaped strings.
+ */
+public class ParallelBatchHelper extends BatchHelper {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParallelBatchHelper.class);
+
+  private final SlingRequestProcessor requestProcessor;
+  private final ThreadPoolExecutor executor;
+  private final long timeout;
+
+  /**
+   * @param requestProcessor
+   *          processes the concurrent requests.
+   * @param threads
+   *          the number of requests processed at the same time across all batches.
+   * @param timeout
+   *          milliseconds to wait for the requests running together before reporting
+   *          those that have not finished as failed.
+   */
+  public ParallelBatchHelper(SlingRequestProcessor requestProcessor, int threads, long timeout) {
+    this.requestProcessor = requestProcessor;
+    this.timeout = timeout;
+    final AtomicInteger threadNumber = new AtomicInteger();
+    // when the queue is full the batch request runs the request itself.
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(threads * 10), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Batch Request " + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.batch.BatchHelper#writeResults(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse, java.util.List)
+   */
+  @Override
+  protected void writeResults(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests)
+      throws IOException, ServletException {
+    // refuse before anything has been streamed.
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      for (RequestInfo r : batchedRequests) {
+        if (!"GET".equals(r.getMethod())) {
+          throw new ServletException("Anon Users may only perform GET operations");
+        }
+      }
+    }
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter writer = response.getWriter();
+    writer.write("{\"results\":[");
+    List<RequestInfo> running = new ArrayList<RequestInfo>();
+    List<Future<ResponseWrapper>> futures = new ArrayList<Future<ResponseWrapper>>();
+    boolean first = true;
+    for (RequestInfo r : batchedRequests) {
+      if (r.isSafe()) {
+        running.add(r);
+        futures.add(executor.submit(new ProcessRequest(request, response, r)));
+      } else {
+        first = drain(running, futures, writer, first);
+        first = write(writer, first, r, dispatch(request, response, r));
+      }
+    }
+    drain(running, futures, writer, first);
+    writer.write("]}");
+    writer.flush();
+  }
+
+  /**
+   * Writes the results of the running requests in order. The requests run at the same
+   * time, so they all share one deadline rather than each getting the full timeout.
+   */
+  private boolean drain(List<RequestInfo> running, List<Future<ResponseWrapper>> futures,
+      PrintWriter writer, boolean first) {
+    long deadline = System.currentTimeMillis() + timeout;
+    for (int i = 0; i < running.size(); i++) {
+      RequestInfo r = running.get(i);
+      Future<ResponseWrapper> future = futures.get(i);
+      ResponseWrapper responseWrapper = null;
+      try {
+        long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+        responseWrapper = future.get(remaining, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        future.cancel(true);
+      } catch (ExecutionException e) {
+        LOGGER.warn("Failed to process {} {} ", r.getUrl(), e.getCause().getMessage());
+      } catch (TimeoutException e) {
+        LOGGER.warn("Gave up on {} after {} ms ", r.getUrl(), timeout);
+        future.cancel(true);
+      }
+      first = write(writer, first, r, responseWrapper);
+    }
+    running.clear();
+    futures.clear();
+    return first;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The real response is shared by the whole batch and is streamed to, so cookies,
+   * redirects and the locale are captured as well.
+   *
+   * @see org.sakaiproject.nakamura.batch.BatchHelper#newResponseWrapper(org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected ResponseWrapper newResponseWrapper(SlingHttpServletResponse response) {
+    return new CapturingResponseWrapper(response);
+  }
+
+  private boolean write(PrintWriter writer, boolean first, RequestInfo requestInfo,
+      ResponseWrapper responseWrapper) {
+    if (!first) {
+      writer.write(',');
+    }
+    writer.write(toJson(requestInfo, responseWrapper));
+    // push each result out as soon as it is ready.
+    writer.flush();
+    return false;
+  }
+
+  /**
+   * @return the result of a request, with a JSON body embedded as it is.
+   */
+  protected String toJson(RequestInfo requestInfo, ResponseWrapper responseWrapper) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"url\":").append(JSONObject.quote(requestInfo.getUrl()));
+    if (responseWrapper == null) {
+      return sb.append(",\"success\":false}").toString();
+    }
+    String body;
+    try {
+      body = responseWrapper.getDataAsString();
+    } catch (UnsupportedEncodingException e) {
+      return sb.append(",\"success\":false}").toString();
+    }
+    sb.append(",\"success\":true,\"status\":").append(responseWrapper.getResponseStatus());
+    sb.append(",\"headers\":{");
+    Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
+    Enumeration<String> keys = headers.keys();
+    while (keys.hasMoreElements()) {
+      String k = keys.nextElement();
+      sb.append(JSONObject.quote(k)).append(':').append(JSONObject.quote(headers.get(k)));
+      if (keys.hasMoreElements()) {
+        sb.append(',');
+      }
+    }
+    if (responseWrapper instanceof CapturingResponseWrapper) {
+      List<String> cookies = ((CapturingResponseWrapper) responseWrapper).getCookies();
+      if (!cookies.isEmpty()) {
+        if (!headers.isEmpty()) {
+          sb.append(',');
+        }
+        // one value per cookie, they can not be joined into a single header.
+        sb.append("\"Set-Cookie\":").append(new JSONArray(cookies));
+      }
+    }
+    sb.append("},\"body\":");
+    if (isJson(responseWrapper.getContentType(), body)) {
+      sb.append(body);
+    } else {
+      sb.append(JSONObject.quote(body));
+    }
+    return sb.append('}').toString();
+  }
+
+  /**
+   * A body is only embedded when it is declared and parses as a single JSON value, a
+   * broken body must not break the whole batch.
+   */
+  private boolean isJson(String contentType, String body) {
+    if (contentType == null || !contentType.startsWith("application/json")) {
+      return false;
+    }
+    try {
+      JSONTokener tokener = new JSONTokener(body);
+      tokener.nextValue();
+      return tokener.nextClean() == 0;
+    } catch (JSONException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Processes a single safe request on a pool thread.
+   */
+  private class ProcessRequest implements Callable<ResponseWrapper> {
+
+    private final SlingHttpServletRequest request;
+    private final SlingHttpServletResponse response;
+    private final RequestInfo requestInfo;
+
+    ProcessRequest(SlingHttpServletRequest request, SlingHttpServletResponse response,
+        RequestInfo requestInfo) {
+      this.request = request;
+      this.response = response;
+      this.requestInfo = requestInfo;
+    }
+
+    public ResponseWrapper call() throws LoginException, ServletException, IOException {
+      Map<String, Object> authInfo = new HashMap<String, Object>();
+      if (request.getRemoteUser() != null) {
+        authInfo.put(ResourceResolverFactory.USER, request.getRemoteUser());
+      }
+      ResourceResolver resourceResolver = request.getResourceResolver().clone(authInfo);
+      try {
+        ResponseWrapper responseWrapper = newResponseWrapper(response);
+        requestProcessor.processRequest(new ThreadRequestWrapper(request, requestInfo),
+            responseWrapper, resourceResolver);
+        return responseWrapper;
+      } finally {
+        resourceResolver.close();
+      }
+    }
+  }
+
+  /**
+   * Keeps the attributes set while processing a request to that request, so that
+   * concurrent requests do not write to the shared batch request.
+   */
+  private static class ThreadRequestWrapper extends RequestWrapper {
+
+    private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+    ThreadRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo) {
+      super(request, requestInfo);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      Object value = attributes.get(name);
+      return value != null ? value : super.getAttribute(name);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Enumeration getAttributeNames() {
+      List<String> names = new ArrayList<String>(attributes.keySet());
+      for (Enumeration<?> e = super.getAttributeNames(); e.hasMoreElements();) {
+        String name = String.valueOf(e.nextElement());
+        if (!attributes.containsKey(name)) {
+          names.add(name);
+        }
+      }
+      return Collections.enumeration(names);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      if (value == null) {
+        attributes.remove(name);
+      } else {
+        attributes.put(name, value);
+      }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      attributes.remove(name);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class ParallelBatchHelperTest {
+
+  private ParallelBatchHelper helper;
+  private SlingRequestProcessor processor;
+  private AtomicBoolean slowDone;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private StringWriter output;
+
+  @SuppressWarnings("unchecked")
+  @Before
+  public void setUp() throws Exception {
+    processor = mock(SlingRequestProcessor.class);
+    slowDone = new AtomicBoolean();
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest req = (HttpServletRequest) invocation.getArguments()[0];
+        HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+        if (req.getPathInfo().startsWith("/slow")) {
+          // finishes after the requests behind it.
+          Thread.sleep(200);
+          resp.setContentType("application/json");
+          resp.getWriter().write("{\"slow\":true}");
+          slowDone.set(true);
+        } else if (req.getPathInfo().startsWith("/hang")) {
+          // gives up when the request is cancelled.
+          Thread.sleep(10000);
+        } else if (req.getPathInfo().startsWith("/login")) {
+          Cookie cookie = new Cookie("a", "1");
+          cookie.setPath("/");
+          resp.addCookie(cookie);
+          resp.addCookie(new Cookie("b", "2"));
+          resp.setLocale(new Locale("en", "GB"));
+          resp.sendRedirect("/elsewhere");
+        } else if (req.getPathInfo().startsWith("/broken")) {
+          resp.setContentType("application/json");
+          resp.getWriter().write("{\"broken\":");
+        } else {
+          resp.setContentType("text/plain");
+          resp.getWriter().write("fast \"text\"");
+        }
+        return null;
+      }
+    }).when(processor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    helper = new ParallelBatchHelper(processor, 4, 5000);
+
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.clone(anyMap())).thenReturn(resourceResolver);
+    request = mock(SlingHttpServletRequest.class);
+    when(request.getRemoteUser()).thenReturn("alice");
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    response = mock(SlingHttpServletResponse.class);
+    output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+  }
+
+  @After
+  public void tearDown() {
+    helper.shutdown();
+  }
+
+  @Test
+  public void testResultsInRequestOrder() throws Exception {
+    String json = "[{\"url\":\"/slow\",\"method\":\"GET\"},{\"url\":\"/fast\",\"method\":\"GET\"},"
+        + "{\"url\":\"/broken\",\"method\":\"GET\"}]";
+    long start = System.currentTimeMillis();
+    helper.batchRequest(request, response, json, false);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    assertEquals(3, results.length());
+    JSONObject slow = results.getJSONObject(0);
+    assertEquals("/slow", slow.getString("url"));
+    assertEquals(200, slow.getInt("status"));
+    // json is embedded as json.
+    assertTrue(slow.getJSONObject("body").getBoolean("slow"));
+    assertEquals("fast \"text\"", results.getJSONObject(1).getString("body"));
+    // a broken json body is still a string, and does not break the batch.
+    assertEquals("{\"broken\":", results.getJSONObject(2).getString("body"));
+  }
+
+  @Test
+  public void testCookiesRedirectAndLocaleAreCaptured() throws Exception {
+    String json = "[{\"url\":\"/login\",\"method\":\"GET\"}]";
+    helper.batchRequest(request, response, json, false);
+
+    JSONObject result = new JSONObject(output.toString()).getJSONArray("results")
+        .getJSONObject(0);
+    assertEquals(302, result.getInt("status"));
+    JSONObject headers = result.getJSONObject("headers");
+    assertEquals("/elsewhere", headers.getString("Location"));
+    assertEquals("en-GB", headers.getString("Content-Language"));
+    JSONArray cookies = headers.getJSONArray("Set-Cookie");
+    assertEquals(2, cookies.length());
+    assertEquals("a=1; Path=/", cookies.getString(0));
+    assertEquals("b=2", cookies.getString(1));
+    // nothing reached the shared response.
+    verify(response, never()).addCookie(any(Cookie.class));
+    verify(response, never()).sendRedirect(anyString());
+  }
+
+  @Test
+  public void testUnsafeRequestWaitsForSafeRequestsBeforeIt() throws Exception {
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+        resp.setContentType("text/plain");
+        resp.getWriter().write(slowDone.get() ? "after" : "before");
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+    when(request.getRequestDispatcher("/write")).thenReturn(dispatcher);
+
+    String json = "[{\"url\":\"/slow\",\"method\":\"GET\"},{\"url\":\"/write\",\"method\":\"POST\"},"
+        + "{\"url\":\"/fast\",\"method\":\"GET\"}]";
+    helper.batchRequest(request, response, json, true);
+
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    assertEquals(3, results.length());
+    assertEquals("/write", results.getJSONObject(1).getString("url"));
+    assertEquals("after", results.getJSONObject(1).getString("body"));
+  }
+
+  @Test
+  public void testTimedOutRequestsDoNotStallTheBatch() throws Exception {
+    helper.shutdown();
+    helper = new ParallelBatchHelper(processor, 4, 300);
+    String json = "[{\"url\":\"/hang1\",\"method\":\"GET\"},{\"url\":\"/hang2\",\"method\":\"GET\"},"
+        + "{\"url\":\"/hang3\",\"method\":\"GET\"},{\"url\":\"/fast\",\"method\":\"GET\"}]";
+    long start = System.currentTimeMillis();
+    helper.batchRequest(request, response, json, false);
+    // the hanging requests share one timeout rather than waiting 300ms each.
+    assertTrue(System.currentTimeMillis() - start < 800);
+
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    assertEquals(4, results.length());
+    for (int i = 0; i < 3; i++) {
+      assertFalse(results.getJSONObject(i).getBoolean("success"));
+    }
+    assertTrue(results.getJSONObject(3).getBoolean("success"));
+    assertEquals("fast \"text\"", results.getJSONObject(3).getString("body"));
+  }
+
+  @Test
+  public void testAnonymousWrites() throws Exception {
+    when(request.getRemoteUser()).thenReturn("anonymous");
+    String json = "[{\"url\":\"/fast\",\"method\":\"GET\"},{\"url\":\"/foo\",\"method\":\"POST\"}]";
+    try {
+      helper.batchRequest(request, response, json, true);
+      fail("Anonymous writes should be refused");
+    } catch (ServletException e) {
+      // refused before anything was streamed.
+      assertEquals("", output.toString());
+    }
+  }
+}
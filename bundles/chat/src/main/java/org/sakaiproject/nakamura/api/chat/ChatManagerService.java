@@ -49,4 +49,25 @@ public interface ChatManagerService {
    * Flush the entire cache.
    */
   public void clear();
+
+  /**
+   * Run a callback once the chat messages of a user are updated after a time. The
+   * callback runs at once if they already have been, and is then forgotten.
+   *
+   * @param userID
+   *          The ID of the user to wait for.
+   * @param since
+   *          The timestamp (milliseconds) the user last saw.
+   * @param waiter
+   *          The callback, which should do no more than wake the waiting request.
+   */
+  public void addWaiter(String userID, long since, Runnable waiter);
+
+  /**
+   * Forget a callback that has not run.
+   *
+   * @param userID
+   * @param waiter
+   */
+  public void removeWaiter(String userID, Runnable waiter);
 }
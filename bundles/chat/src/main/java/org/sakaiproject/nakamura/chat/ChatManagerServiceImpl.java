@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.nakamura.chat;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -26,9 +28,17 @@ import org.sakaiproject.nakamura.api.chat.ChatManagerService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * The <code>ChatManagerServiceImpl</code>
+ * The <code>ChatManagerServiceImpl</code>. Requests waiting for a user's chat messages
+ * to change are woken by puts on this node, and by a checker thread that watches the
+ * replicated cache for changes made on other nodes.
  */
 @Component(immediate = true, label = "ChatManagerServiceImpl", description = "Implementation of the Chat Manager Service")
 @Service(value = ChatManagerService.class)
@@ -38,9 +48,17 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 @Reference(name = "CacheManagerService", referenceInterface = CacheManagerService.class)
 public class ChatManagerServiceImpl implements ChatManagerService {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatManagerServiceImpl.class);
   private static final String CHAT_CACHE = "chat";
+  private static final long CHECK_INTERVAL = 1000L;
 
   private CacheManagerService cacheManagerService;
+  /**
+   * The waiters for each user, with the time each has seen.
+   */
+  private final ConcurrentHashMap<String, Map<Runnable, Long>> waiters = new ConcurrentHashMap<String, Map<Runnable, Long>>();
+  private volatile boolean running;
+  private Thread checker;
 
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
@@ -51,6 +69,32 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     this.cacheManagerService = cacheManagerService;
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    running = true;
+    checker = new Thread("Chat Update Checker") {
+      @Override
+      public void run() {
+        checkLoop();
+      }
+    };
+    checker.setDaemon(true);
+    checker.start();
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    running = false;
+    if (checker != null) {
+      checker.interrupt();
+      checker = null;
+    }
+    // let everything waiting answer now.
+    for (Map<Runnable, Long> userWaiters : waiters.values()) {
+      wake(userWaiters, Long.MAX_VALUE);
+    }
+  }
+
   /**
    * Gets the cache.
    * 
@@ -89,6 +133,10 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void put(String userID, long time) {
     getCachedMap().put(userID, time);
+    Map<Runnable, Long> userWaiters = waiters.get(userID);
+    if (userWaiters != null) {
+      wake(userWaiters, time);
+    }
   }
 
   /**
@@ -101,4 +149,100 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     getCachedMap().remove(userID);
   }
 
+  /**
+   *
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#addWaiter(java.lang.String,
+   *      long, java.lang.Runnable)
+   */
+  public void addWaiter(String userID, long since, Runnable waiter) {
+    Map<Runnable, Long> userWaiters = waiters.get(userID);
+    if (userWaiters == null) {
+      userWaiters = new ConcurrentHashMap<Runnable, Long>();
+      Map<Runnable, Long> existing = waiters.putIfAbsent(userID, userWaiters);
+      if (existing != null) {
+        userWaiters = existing;
+      }
+    }
+    userWaiters.put(waiter, since);
+    // an update may have been made before the waiter was added.
+    Long time = get(userID);
+    if (time != null) {
+      wake(userWaiters, time);
+    }
+  }
+
+  /**
+   *
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#removeWaiter(java.lang.String,
+   *      java.lang.Runnable)
+   */
+  public void removeWaiter(String userID, Runnable waiter) {
+    Map<Runnable, Long> userWaiters = waiters.get(userID);
+    if (userWaiters != null) {
+      userWaiters.remove(waiter);
+    }
+  }
+
+  /**
+   * Run and forget the waiters that have not seen the time.
+   */
+  private void wake(Map<Runnable, Long> userWaiters, long time) {
+    for (Entry<Runnable, Long> e : userWaiters.entrySet()) {
+      if (e.getValue() < time && userWaiters.remove(e.getKey()) != null) {
+        try {
+          e.getKey().run();
+        } catch (RuntimeException ex) {
+          LOGGER.warn("Failed to wake chat waiter " + ex.getMessage(), ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Wake the waiters of users whose chat messages were updated on another node.
+   */
+  protected void checkWaiters() {
+    Cache<Long> cache = getCachedMap();
+    for (Entry<String, Map<Runnable, Long>> e : waiters.entrySet()) {
+      Map<Runnable, Long> userWaiters = e.getValue();
+      if (userWaiters.isEmpty()) {
+        waiters.remove(e.getKey());
+        // a waiter added since it was found empty must not be lost.
+        if (!userWaiters.isEmpty()) {
+          addAll(e.getKey(), userWaiters);
+        }
+        continue;
+      }
+      Long time = cache.get(e.getKey());
+      if (time != null) {
+        wake(userWaiters, time);
+      }
+    }
+  }
+
+  private void addAll(String userID, Map<Runnable, Long> userWaiters) {
+    for (Entry<Runnable, Long> e : userWaiters.entrySet()) {
+      addWaiter(userID, e.getValue(), e.getKey());
+    }
+  }
+
+  private void checkLoop() {
+    while (running) {
+      try {
+        Thread.sleep(CHECK_INTERVAL);
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        checkWaiters();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Chat update check failed " + e.getMessage(), e);
+      }
+    }
+  }
+
 }
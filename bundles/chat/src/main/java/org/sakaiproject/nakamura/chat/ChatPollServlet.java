@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.auth.core.AuthenticationSupport;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.osgi.service.http.HttpContext;
+import org.osgi.service.http.HttpService;
+import org.osgi.service.http.NamespaceException;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers chat update polls like the {@link ChatServlet}, but holds a poll that finds no
+ * update open until there is one or the wait runs out. The request is parked on a Jetty
+ * continuation, which only works outside the Sling engine, so like the UIEventServlet this
+ * servlet is mounted with the HttpService. Sling still authenticates the request, through
+ * its AuthenticationSupport.
+ */
+@ServiceDocumentation(name = "ChatPollServlet", okForVersion = "1.2",
+    shortDescription = "Wait for new chat messages.",
+    description = "Holds the request open until the currently logged in user has new chat messages, or the wait runs out.",
+    bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/system/chat/poll"),
+    methods = {
+      @ServiceMethod(name = "GET",
+        description = {
+          "GETs to this servlet will produce the same JSON object as the chatupdate selector on the message store.",
+          "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in milliseconds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>"
+        },
+        parameters = {
+          @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servlet. If this variable is omitted it uses the current time."),
+          @ServiceParameter(name = "wait", description = "Milliseconds, up to 60000, to hold the request open waiting for an update when there is none. If omitted the servlet answers at once.")
+        },
+        response = {
+          @ServiceResponse(code = 200, description = "Normal retrieval."),
+          @ServiceResponse(code = 401, description = "The user is not logged in."),
+          @ServiceResponse(code = 500, description = "Something went wrong trying to look for an update.")
+        })
+    })
+@Component(immediate = true, metatype = true)
+public class ChatPollServlet extends HttpServlet implements HttpContext {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatPollServlet.class);
+  private static final long serialVersionUID = 2316718404437613850L;
+  private static final String WAIT_PARAM = "wait";
+  private static final long MAX_WAIT = 60000L;
+  static final String UPDATE_ATTRIBUTE = ChatPollServlet.class.getName() + ".update";
+  static final String WAITER_ATTRIBUTE = ChatPollServlet.class.getName() + ".waiter";
+
+  @Property(value = "/system/chat/poll")
+  static final String REGISTRATION_PATH = "chat.poll.path";
+
+  @Reference
+  protected transient HttpService httpService;
+
+  @Reference
+  protected transient AuthenticationSupport authenticationSupport;
+
+  @Reference
+  protected transient ChatManagerService chatManagerService;
+
+  private String registrationPath;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) throws ServletException,
+      NamespaceException {
+    registrationPath = PropertiesUtil.toString(properties.get(REGISTRATION_PATH),
+        "/system/chat/poll");
+    httpService.registerServlet(registrationPath, this, null, this);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    httpService.unregister(registrationPath);
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    String userID = request.getRemoteUser();
+    if (userID == null) {
+      userID = (String) request.getAttribute(HttpContext.REMOTE_USER);
+    }
+    if (userID == null || UserConstants.ANON_USERID.equals(userID)) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+          "Anonymous users can't poll for chat updates.");
+      return;
+    }
+
+    ChatUpdate update = (ChatUpdate) request.getAttribute(UPDATE_ATTRIBUTE);
+    Runnable waiter = (Runnable) request.getAttribute(WAITER_ATTRIBUTE);
+    if (update != null) {
+      // dispatched again after the continuation was resumed or expired.
+      chatManagerService.removeWaiter(userID, waiter);
+      update.recheck(chatManagerService);
+    } else {
+      update = new ChatUpdate(chatManagerService, userID, request.getParameter("t"));
+      long wait = getWait(request);
+      if (!update.hasUpdate() && wait > 0) {
+        final Continuation continuation = ContinuationSupport.getContinuation(request,
+            null);
+        waiter = new Runnable() {
+          public void run() {
+            continuation.resume();
+          }
+        };
+        request.setAttribute(UPDATE_ATTRIBUTE, update);
+        request.setAttribute(WAITER_ATTRIBUTE, waiter);
+        chatManagerService.addWaiter(userID, update.getTime(), waiter);
+        LOGGER.debug("Parking chat poll of {} for {}ms", userID, wait);
+        // with a non blocking connector this throws and the request is dispatched again
+        // once resumed or expired, a blocking continuation returns here.
+        continuation.suspend(wait);
+        chatManagerService.removeWaiter(userID, waiter);
+        update.recheck(chatManagerService);
+      }
+    }
+    update.write(response);
+  }
+
+  /**
+   * @return how long the client is willing to wait for an update, 0 to answer at once.
+   */
+  private long getWait(HttpServletRequest request) {
+    String wait = request.getParameter(WAIT_PARAM);
+    if (wait == null) {
+      return 0;
+    }
+    try {
+      return Math.min(MAX_WAIT, Math.max(0L, Long.parseLong(wait)));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Lets Sling authenticate the request, which sets the remote user.
+   *
+   * @see org.osgi.service.http.HttpContext#handleSecurity(javax.servlet.http.HttpServletRequest,
+   *      javax.servlet.http.HttpServletResponse)
+   */
+  public boolean handleSecurity(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    return authenticationSupport.handleSecurity(request, response);
+  }
+
+  public URL getResource(String name) {
+    return null;
+  }
+
+  public String getMimeType(String name) {
+    return null;
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Whether a user has chat updates since a time, as answered by the {@link ChatServlet}
+ * and the {@link ChatPollServlet}.
+ */
+class ChatUpdate {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatUpdate.class);
+
+  // We use this format rather than ISO8601 because Jackrabbit uses a subset (8601:2000)
+  // See jsr170.pdf - 6.2.5.1
+  private final static FastDateFormat dateFormat;
+  static {
+    dateFormat = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+  }
+
+  private final String userID;
+  private final long requestTime;
+  private long time;
+  private boolean hasUpdate;
+
+  /**
+   * @param chatManagerService
+   * @param userID
+   *          the user polling for updates.
+   * @param timestamp
+   *          the t parameter of the request, the last time the user got from a poll.
+   */
+  ChatUpdate(ChatManagerService chatManagerService, String userID, String timestamp) {
+    this.userID = userID;
+    requestTime = System.currentTimeMillis();
+    time = requestTime;
+    Long lastUpdate = chatManagerService.get(userID);
+
+    if (lastUpdate == null) {
+      // This the first time (ever) the user poll's the chat update.
+      // Insert it.
+      chatManagerService.put(userID, time);
+      hasUpdate = true;
+    } else {
+      if (timestamp != null) {
+        try {
+          time = Long.parseLong(timestamp);
+          hasUpdate = time < lastUpdate;
+        } catch (NumberFormatException e) {
+          hasUpdate = true;
+          LOGGER.debug("User requested non-Long timestamp: {}", timestamp);
+        }
+      } else {
+        hasUpdate = true;
+      }
+    }
+  }
+
+  /**
+   * Checks again, after waiting for an update.
+   */
+  void recheck(ChatManagerService chatManagerService) {
+    Long lastUpdate = chatManagerService.get(userID);
+    hasUpdate = lastUpdate != null && time < lastUpdate;
+  }
+
+  boolean hasUpdate() {
+    return hasUpdate;
+  }
+
+  long getTime() {
+    return time;
+  }
+
+  void write(HttpServletResponse response) throws IOException {
+    LOGGER.debug("Returned time = {}, update = {}", time, hasUpdate);
+
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeInMillis(time);
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+
+    JSONWriter write = new JSONWriter(response.getWriter());
+    try {
+      write.object();
+      write.key("update");
+      write.value(hasUpdate);
+      write.key("time");
+      write.value(requestTime);
+      write.key("pulltime");
+      // We use this format rather than ISO8601 because Jackrabbit uses a subset
+      // (8601:2000)
+      // See jsr170.pdf - 6.2.5.1
+      write.value(dateFormat.format(cal));
+      write.endObject();
+    } catch (JSONException e) {
+      LOGGER.warn("Unable to parse JSON for user {} and time {}", userID, time);
+      response.sendError(500, "Unable to parse JSON.");
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.auth.core.AuthenticationSupport;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mortbay.util.ajax.Continuation;
+import org.osgi.service.http.HttpContext;
+import org.osgi.service.http.HttpService;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class ChatPollServletTest {
+  private static final String CONTINUATION_ATTRIBUTE = "org.mortbay.jetty.ajax.Continuation";
+  private String user1 = "Jack";
+  private ChatManagerServiceImpl chatManagerService;
+  private ChatPollServlet servlet;
+  private HttpService httpService;
+
+  /**
+   * Thrown by the continuation in place of Jetty's RetryRequest.
+   */
+  private static class RetryRequest extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache("chat", CacheScope.CLUSTERREPLICATED)).thenReturn(
+        new MapCacheImpl<Object>("chattest", CacheScope.INSTANCE));
+    chatManagerService = new ChatManagerServiceImpl();
+    chatManagerService.bindCacheManagerService(cacheManagerService);
+
+    httpService = mock(HttpService.class);
+    servlet = new ChatPollServlet();
+    servlet.httpService = httpService;
+    servlet.chatManagerService = chatManagerService;
+    servlet.authenticationSupport = mock(AuthenticationSupport.class);
+    servlet.activate(ImmutableMap.<String, Object> of());
+  }
+
+  @Test
+  public void testRegistersOutsideSling() throws Exception {
+    verify(httpService).registerServlet("/system/chat/poll", servlet, null, servlet);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(servlet.authenticationSupport.handleSecurity(request, response)).thenReturn(true);
+    assertTrue(servlet.handleSecurity(request, response));
+    servlet.deactivate(ImmutableMap.<String, Object> of());
+    verify(httpService).unregister("/system/chat/poll");
+  }
+
+  @Test
+  public void testAnonymous() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(request.getRemoteUser()).thenReturn("anonymous");
+    servlet.doGet(request, response);
+    verify(response).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED), anyString());
+  }
+
+  @Test
+  public void testUpdateAnswersAtOnce() throws Exception {
+    chatManagerService.put(user1, 50);
+    HttpServletRequest request = createRequest("20", "10000");
+    StringWriter out = new StringWriter();
+
+    servlet.doGet(request, createResponse(out));
+
+    verify(request, never()).setAttribute(anyString(), org.mockito.Matchers.any());
+    assertEquals(true, new JSONObject(out.toString()).get("update"));
+  }
+
+  @Test
+  public void testParkedAndResumed() throws Exception {
+    chatManagerService.put(user1, 50);
+    HttpServletRequest request = createRequest("100", "10000");
+    Continuation continuation = mock(Continuation.class);
+    when(request.getAttribute(CONTINUATION_ATTRIBUTE)).thenReturn(continuation);
+    doThrow(new RetryRequest()).when(continuation).suspend(10000);
+    StringWriter out = new StringWriter();
+    HttpServletResponse response = createResponse(out);
+
+    // the first dispatch parks the request.
+    try {
+      servlet.doGet(request, response);
+      throw new AssertionError("The request should have been suspended");
+    } catch (RetryRequest e) {
+      // expected
+    }
+    assertEquals("", out.toString());
+    ArgumentCaptor<Object> update = ArgumentCaptor.forClass(Object.class);
+    ArgumentCaptor<Object> waiter = ArgumentCaptor.forClass(Object.class);
+    verify(request).setAttribute(eq(ChatPollServlet.UPDATE_ATTRIBUTE), update.capture());
+    verify(request).setAttribute(eq(ChatPollServlet.WAITER_ATTRIBUTE), waiter.capture());
+    verify(continuation, never()).resume();
+
+    // a new message resumes it.
+    chatManagerService.put(user1, 200);
+    verify(continuation).resume();
+
+    // and the dispatch that follows answers with the update.
+    when(request.getAttribute(ChatPollServlet.UPDATE_ATTRIBUTE)).thenReturn(
+        update.getValue());
+    when(request.getAttribute(ChatPollServlet.WAITER_ATTRIBUTE)).thenReturn(
+        waiter.getValue());
+    servlet.doGet(request, response);
+    assertEquals(true, new JSONObject(out.toString()).get("update"));
+
+    // the waiter is gone.
+    chatManagerService.put(user1, 300);
+    verify(continuation).resume();
+  }
+
+  @Test
+  public void testBlockingWaitExpires() throws Exception {
+    chatManagerService.put(user1, 50);
+    HttpServletRequest request = createRequest("100", "50");
+    StringWriter out = new StringWriter();
+
+    servlet.doGet(request, createResponse(out));
+
+    assertEquals(false, new JSONObject(out.toString()).get("update"));
+  }
+
+  @Test
+  public void testBlockingWaitResumed() throws Exception {
+    chatManagerService.put(user1, 50);
+    HttpServletRequest request = createRequest("100", "10000");
+    StringWriter out = new StringWriter();
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        chatManagerService.put(user1, 200);
+      }
+    };
+
+    long start = System.currentTimeMillis();
+    sender.start();
+    servlet.doGet(request, createResponse(out));
+    sender.join();
+
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    assertEquals(true, new JSONObject(out.toString()).get("update"));
+  }
+
+  private HttpServletRequest createRequest(String t, String wait) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteUser()).thenReturn(null);
+    when(request.getAttribute(HttpContext.REMOTE_USER)).thenReturn(user1);
+    when(request.getParameter("t")).thenReturn(t);
+    when(request.getParameter("wait")).thenReturn(wait);
+    return request;
+  }
+
+  private HttpServletResponse createResponse(StringWriter out) throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(out, true));
+    return response;
+  }
+}
@@ -95,7 +95,6 @@ public class ChatServletTest {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     expect(response.getWriter()).andReturn(printWriter);
-    response.setHeader("Connection", "close");
     replay(request, response);
 
     chatServlet.doGet(request, response);
@@ -119,7 +118,6 @@ public class ChatServletTest {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     expect(response.getWriter()).andReturn(printWriter);
-    response.setHeader("Connection", "close");
     replay(param, request, response);
 
     // User1 gets a message at 50
@@ -145,7 +143,6 @@ public class ChatServletTest {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     expect(response.getWriter()).andReturn(printWriter);
-    response.setHeader("Connection", "close");
     replay(param, request, response);
 
     // User1 gets a message at 50
@@ -158,4 +155,31 @@ public class ChatServletTest {
     assertEquals(true, obj.get("update"));
   }
 
+  @Test
+  public void testWaiter() {
+    final int[] woken = new int[1];
+    Runnable waiter = new Runnable() {
+      public void run() {
+        woken[0]++;
+      }
+    };
+    chatManagerService.put(user1, 50);
+    chatManagerService.addWaiter(user1, 50, waiter);
+    assertEquals(0, woken[0]);
+    chatManagerService.put(user1, 60);
+    assertEquals(1, woken[0]);
+    // woken once only.
+    chatManagerService.put(user1, 70);
+    assertEquals(1, woken[0]);
+
+    // an update already made wakes the waiter at once.
+    chatManagerService.addWaiter(user1, 60, waiter);
+    assertEquals(2, woken[0]);
+
+    chatManagerService.addWaiter(user1, 70, waiter);
+    chatManagerService.removeWaiter(user1, waiter);
+    chatManagerService.put(user1, 80);
+    assertEquals(2, woken[0]);
+  }
+
 }
@@ -61,6 +61,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -149,7 +150,8 @@ public class RelatedContactsSearchBatchResultProcessor implements
     // TODO add proper paging support
     // final long page = SolrSearchUtil.longRequestParameter(request, PARAMS_PAGE, 0);
 
-    final Set<String> processedUsers = new HashSet<String>();
+    // the users picked so far, in the order they will be written
+    final Set<String> processedUsers = new LinkedHashSet<String>();
     try {
       final AuthorizableManager authMgr = session.getAuthorizableManager();
       final Authorizable auth = authMgr.findAuthorizable(user);
@@ -158,9 +160,9 @@ public class RelatedContactsSearchBatchResultProcessor implements
         final Result result = iterator.next();
         final String resourceType = (String) result.getFirstValue("resourceType");
         if (ConnectionConstants.SAKAI_CONTACT_RT.equals(resourceType)) {
-          renderConnection(session, authMgr, writer, result, connectedUsers, processedUsers);
+          renderConnection(session, authMgr, result, connectedUsers, processedUsers);
         } else if (AUTHORIZABLE_RT.equals(resourceType)) {
-          renderAuthorizable(session, authMgr, writer, result, connectedUsers, processedUsers);
+          renderAuthorizable(session, authMgr, result, connectedUsers, processedUsers);
         } else {
           LOG.warn("TODO: add missing handler for this resource type: {}: {}",
               result.getPath(), result.getProperties());
@@ -198,7 +200,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
           // but limit the size of the list to the number required by spec - significant optimization
           final List<String> relatedPeopleFromGroupMembers = makeRandomList(relatedUsers, nitems);
           for (final String peep : relatedPeopleFromGroupMembers) {
-            renderContact(peep, session, authMgr, writer, connectedUsers, processedUsers);
+            renderContact(peep, session, authMgr, connectedUsers, processedUsers);
           }
         }
         secondIterationTicks = System.currentTimeMillis();
@@ -239,7 +241,7 @@ public class RelatedContactsSearchBatchResultProcessor implements
             }
             final User u = (User) authMgr.findAuthorizable(path);
             if (u != null) {
-              renderContact(u.getId(), session, authMgr, writer, connectedUsers, processedUsers);
+              renderContact(u.getId(), session, authMgr, connectedUsers, processedUsers);
             } else {
               // fail quietly in this edge case
               LOG.debug("Contact not found: {}", path);
@@ -254,6 +256,8 @@ public class RelatedContactsSearchBatchResultProcessor implements
         }
       }
 
+      writeContacts(writer, authMgr, processedUsers);
+
       if (processedUsers.size() < VOLUME) {
         LOG.debug(
             "Did not meet functional specification. There should be at least {} results; actual size was: {}",
@@ -292,61 +296,59 @@ public class RelatedContactsSearchBatchResultProcessor implements
   }
 
   /**
-   * @param request
-   * @param writer
+   * @param session
+   * @param authMgr
    * @param result
    * @param connectedUsers
    * @param processedUsers
    * @throws AccessDeniedException
-   * @throws JSONException
    * @throws StorageClientException
    */
-  protected void renderConnection(Session session, AuthorizableManager authMgr, JSONWriter writer,
+  protected void renderConnection(Session session, AuthorizableManager authMgr,
       Result result, final List<String> connectedUsers, final Set<String> processedUsers)
-      throws AccessDeniedException, JSONException, StorageClientException {
+      throws AccessDeniedException, StorageClientException {
 
     final String contactUser = result.getPath().substring(
         result.getPath().lastIndexOf("/") + 1);
     if (contactUser == null) {
       throw new IllegalArgumentException("Missing " + User.NAME_FIELD);
     }
-    renderContact(contactUser, session, authMgr, writer, connectedUsers, processedUsers);
+    renderContact(contactUser, session, authMgr, connectedUsers, processedUsers);
   }
 
   /**
-   * @param request
-   * @param writer
+   * @param session
+   * @param authMgr
    * @param result
    * @param connectedUsers
    * @param processedUsers
    * @throws AccessDeniedException
-   * @throws JSONException
    * @throws StorageClientException
    */
   protected void renderAuthorizable(Session session, AuthorizableManager authMgr,
-      final JSONWriter writer, final Result result, final List<String> connectedUsers,
-      final Set<String> processedUsers) throws AccessDeniedException, JSONException,
+      final Result result, final List<String> connectedUsers,
+      final Set<String> processedUsers) throws AccessDeniedException,
       StorageClientException {
 
-    renderContact(result.getPath(), session, authMgr, writer, connectedUsers, processedUsers);
+    renderContact(result.getPath(), session, authMgr, connectedUsers, processedUsers);
   }
 
   /**
-   * Inspired by
-   * {@link ConnectionFinderSearchResultProcessor#writeResult(SlingHttpServletRequest, JSONWriter, Result)}
+   * Pick the user for the feed if they can be seen and are not already in it. The
+   * profiles are written at the end by
+   * {@link #writeContacts(JSONWriter, AuthorizableManager, Set)}.
    * 
    * @param user
-   * @param request
-   * @param writer
+   * @param session
+   * @param authMgr
    * @param connectedUsers
    * @param processedUsers
    * @throws AccessDeniedException
-   * @throws JSONException
    * @throws StorageClientException
    */
   private void renderContact(String user, Session session, AuthorizableManager authMgr,
-      JSONWriter writer, List<String> connectedUsers, Set<String> processedUsers)
-      throws AccessDeniedException, StorageClientException, JSONException {
+      List<String> connectedUsers, Set<String> processedUsers)
+      throws AccessDeniedException, StorageClientException {
 
     if (user == null) {
       throw new IllegalArgumentException("String user == null");
@@ -357,17 +359,37 @@ public class RelatedContactsSearchBatchResultProcessor implements
       final Authorizable auth = authMgr.findAuthorizable(user);
 
       if (auth != null && !auth.isGroup()) {
+        processedUsers.add(user);
+      }
+    }
+
+  }
+
+  /**
+   * Inspired by
+   * {@link ConnectionFinderSearchResultProcessor#writeResult(SlingHttpServletRequest, JSONWriter, Result)}
+   * but loads the basic info of the whole page in one call.
+   * 
+   * @param writer
+   * @param authMgr
+   * @param users
+   * @throws JSONException
+   */
+  private void writeContacts(JSONWriter writer, AuthorizableManager authMgr,
+      Set<String> users) throws JSONException {
+    final Map<String, Map<String, Object>> profiles = basicUserInfoService.getProperties(
+        authMgr, users);
+    for (final String user : users) {
+      final Map<String, Object> profile = profiles.get(user);
+      if (profile != null) {
         writer.object();
         writer.key("target");
         writer.value(user);
         writer.key("profile");
-        ExtendedJSONWriter.writeValueMap(writer,
-            new ValueMapDecorator(basicUserInfoService.getProperties(auth)));
+        ExtendedJSONWriter.writeValueMap(writer, new ValueMapDecorator(profile));
         writer.endObject();
-        processedUsers.add(user);
       }
     }
-
   }
 
   /**
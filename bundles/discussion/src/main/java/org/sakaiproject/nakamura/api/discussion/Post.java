@@ -39,7 +39,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 
@@ -51,6 +54,7 @@ public class Post {
   private List<Post> children;
   private String postId;
   private Session session;
+  private Map<String, Map<String, Object>> profiles;
 
   public Post(Content content, Session session) {
     setContent(content);
@@ -89,6 +93,57 @@ public class Post {
     this.postId = postId;
   }
 
+  /**
+   * @return the ids of the senders and editors of this post and all its replies.
+   */
+  public Set<String> getProfileIds() {
+    Set<String> ids = new HashSet<String>();
+    if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
+      for (String id : StringUtils.split(
+          (String) content.getProperty(DiscussionConstants.PROP_EDITEDBY), ',')) {
+        ids.add(id);
+      }
+    }
+    String fromVal = (String) content.getProperty(MessageConstants.PROP_SAKAI_FROM);
+    if (fromVal != null) {
+      for (String id : StringUtils.split(fromVal, ',')) {
+        ids.add(id);
+      }
+    }
+    for (Post p : children) {
+      ids.addAll(p.getProfileIds());
+    }
+    return ids;
+  }
+
+  /**
+   * Use already loaded basic info when writing this post and its replies, profiles not
+   * in the map are looked up one at a time.
+   *
+   * @param profiles
+   *          basic info keyed by authorizable id.
+   */
+  public void setProfiles(Map<String, Map<String, Object>> profiles) {
+    this.profiles = profiles;
+    for (Post p : children) {
+      p.setProfiles(profiles);
+    }
+  }
+
+  private ValueMap getProfile(String id, AuthorizableManager authMgr,
+      BasicUserInfoService basicUserInfoService) throws AccessDeniedException,
+      StorageClientException {
+    Map<String, Object> properties = null;
+    if (profiles != null) {
+      properties = profiles.get(id);
+    }
+    if (properties == null) {
+      Authorizable au = authMgr.findAuthorizable(id);
+      properties = basicUserInfoService.getProperties(au);
+    }
+    return new ValueMapDecorator(properties);
+  }
+
   /**
    * Checks if the current user can or cannot edit this post.
    *
@@ -173,8 +228,7 @@ public class Post {
         writer.array();
         for (int i = 0; i < edittedBy.length; i++) {
           writer.object();
-          Authorizable au = authMgr.findAuthorizable(edittedBy[i]);
-          ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+          ValueMap profile = getProfile(edittedBy[i], authMgr, basicUserInfoService);
           writer.valueMapInternals(profile);
           PresenceUtils.makePresenceJSON(writer, edittedBy[i], presenceService, true);
           writer.endObject();
@@ -189,8 +243,7 @@ public class Post {
       writer.array();
       for (String sender : senders) {
         writer.object();
-        Authorizable au = authMgr.findAuthorizable(sender);
-        ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+        ValueMap profile = getProfile(sender, authMgr, basicUserInfoService);
         writer.valueMapInternals(profile);
         PresenceUtils.makePresenceJSON(writer, sender, presenceService, true);
         writer.endObject();
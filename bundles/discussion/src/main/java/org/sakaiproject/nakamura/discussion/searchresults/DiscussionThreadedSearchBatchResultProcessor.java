@@ -47,10 +47,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 
@@ -130,6 +132,17 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
         }
       }
 
+      // Load the profiles of everyone in the thread in one go rather than per post.
+      Set<String> profileIds = new HashSet<String>();
+      for (String basePostId : basePosts) {
+        profileIds.addAll(allPosts.get(basePostId).getProfileIds());
+      }
+      Map<String, Map<String, Object>> profiles = basicUserInfoService.getProperties(
+          session.getAuthorizableManager(), profileIds);
+      for (String basePostId : basePosts) {
+        allPosts.get(basePostId).setProfiles(profiles);
+      }
+
       // The posts are sorted, now return them as json.
       for (String basePostId : basePosts) {
         allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer,
@@ -34,6 +34,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
@@ -77,8 +78,13 @@ public class DiscussionThreadedProcessorTest {
     processor.presenceService = presenceService;
     processor.basicUserInfoService = new BasicUserInfoServiceImpl() {
 
-      public BasicUserInfoService setup() {
+      public BasicUserInfoService setup() throws Exception {
         countProvider = Mockito.mock(CountProvider.class);
+        repository = Mockito.mock(Repository.class);
+        Session adminSession = Mockito.mock(Session.class);
+        when(repository.loginAdministrative()).thenReturn(adminSession);
+        when(adminSession.getAuthorizableManager()).thenReturn(
+            Mockito.mock(AuthorizableManager.class));
         return this;
       }
     }.setup();
@@ -64,6 +64,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
 
@@ -88,6 +89,11 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       .getLogger(LiteOutgoingEmailMessageListener.class);
 
 
+  /**
+   * The recipients an earlier attempt at a message reached, left out when it is retried.
+   */
+  static final String PROP_SENT_TO = "sakai:sentTo";
+
   @Property(value = "localhost")
   private static final String SMTP_SERVER = "sakai.smtp.server";
   @Property(intValue = 25)
@@ -108,6 +114,14 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String REPLY_AS_ADDRESS = "sakai.email.replyAsAddress";
   @Property(value = "Sakai OAE")
   private static final String REPLY_AS_NAME = "sakai.email.replyAsName";
+  @Property(intValue = 4)
+  private static final String SMTP_POOL_SIZE = "sakai.smtp.pool.size";
+  @Property(intValue = 60)
+  private static final String SMTP_POOL_IDLE = "sakai.smtp.pool.idleSeconds";
+  @Property(intValue = 100)
+  private static final String SMTP_MAX_RECIPIENTS = "sakai.smtp.maxRecipients";
+
+  private static final String CLOSE_IDLE_JOB = LiteOutgoingEmailMessageListener.class.getName() + ".closeIdle";
 
   protected static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -148,6 +162,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private Integer retryInterval;
   private String replyAsAddress;
   private String replyAsName;
+  private volatile SmtpTransportPool transportPool;
 
 
   public LiteOutgoingEmailMessageListener() {
@@ -207,12 +222,28 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                         sparseSession);
 
                     setOptions(email);
+                    email.buildMimeMessage();
                     if (LOGGER.isDebugEnabled()) {
-                      // build wrapped meesage in order to log it
-                      email.buildMimeMessage();
                       logEmail(email);
                     }
-                    email.send();
+                    SmtpTransportPool pool = transportPool;
+                    if (pool == null) {
+                      throw new EmailException("No SMTP server set");
+                    }
+                    Set<String> sentTo = getSentTo(messageContent);
+                    try {
+                      pool.send(email.getMimeMessage(), sentTo);
+                    } catch (PartialSendException e) {
+                      // keep who has the message, so a retry only goes to the rest.
+                      sentTo.addAll(e.getSent());
+                      messageContent.setProperty(PROP_SENT_TO,
+                          sentTo.toArray(new String[sentTo.size()]));
+                      contentManager.update(messageContent);
+                      throw new EmailException(e.getMessage(), e);
+                    } catch (MessagingException e) {
+                      // handled with the other send failures below.
+                      throw new EmailException(e.getMessage(), e);
+                    }
                   } catch (EmailException e) {
                     String exMessage = e.getMessage();
                     Throwable cause = e.getCause();
@@ -607,6 +638,34 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     authUser = PropertiesUtil.toString(props.get(SMTP_AUTH_USER), "");
     authPass = PropertiesUtil.toString(props.get(SMTP_AUTH_PASS), "");
 
+    SmtpTransportPool oldPool = transportPool;
+    long idleMs = PropertiesUtil.toInteger(props.get(SMTP_POOL_IDLE), 60) * 1000L;
+    transportPool = null;
+    if (smtpServer != null) {
+      transportPool = new SmtpTransportPool(smtpServer, smtpPort == null ? 25 : smtpPort,
+          useTls, useSsl, authUser, authPass,
+          PropertiesUtil.toInteger(props.get(SMTP_POOL_SIZE), 4), idleMs,
+          PropertiesUtil.toInteger(props.get(SMTP_MAX_RECIPIENTS), 100));
+    }
+    if (oldPool != null) {
+      oldPool.close();
+    }
+    if (scheduler != null) {
+      removeCloseIdleJob();
+      try {
+        scheduler.addPeriodicJob(CLOSE_IDLE_JOB, new Runnable() {
+          public void run() {
+            SmtpTransportPool pool = transportPool;
+            if (pool != null) {
+              pool.closeIdle();
+            }
+          }
+        }, null, Math.max(1L, idleMs / 1000L), false);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to schedule closing of idle SMTP connections " + e.getMessage());
+      }
+    }
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
@@ -627,6 +686,12 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   @Deactivate
   protected void deactivate(ComponentContext ctx) {
+    if (scheduler != null) {
+      removeCloseIdleJob();
+    }
+    if (transportPool != null) {
+      transportPool.close();
+    }
     if (connection != null) {
       try {
         connection.close();
@@ -635,6 +700,28 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  private void removeCloseIdleJob() {
+    try {
+      scheduler.removeJob(CLOSE_IDLE_JOB);
+    } catch (NoSuchElementException e) {
+      // not scheduled yet
+    }
+  }
+
+  /**
+   * @return the addresses an earlier attempt at the message did send it to.
+   */
+  private Set<String> getSentTo(Content node) {
+    Set<String> sentTo = new HashSet<String>();
+    Object sent = node.getProperty(PROP_SENT_TO);
+    if (sent instanceof String[]) {
+      sentTo.addAll(Arrays.asList((String[]) sent));
+    } else if (sent instanceof String) {
+      sentTo.add((String) sent);
+    }
+    return sentTo;
+  }
+
   private void setError(Content node, String error) {
     node.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, error);
   }
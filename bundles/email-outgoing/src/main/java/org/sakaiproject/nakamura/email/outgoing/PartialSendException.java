@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+/**
+ * Thrown when some envelopes of a message were accepted before one failed. The message
+ * and the cause are those of the failure, the recipients it did reach are listed so a
+ * retry can leave them out.
+ */
+public class PartialSendException extends MessagingException {
+
+  private static final long serialVersionUID = -3190364829181622071L;
+
+  private final List<String> sent;
+
+  /**
+   * @param cause
+   *          the failure of the envelope that was not accepted.
+   * @param sent
+   *          the addresses of the recipients in envelopes that were accepted.
+   */
+  public PartialSendException(MessagingException cause, List<String> sent) {
+    super(cause.getMessage(), cause);
+    this.sent = Collections.unmodifiableList(sent);
+  }
+
+  /**
+   * @return the addresses, lower case, of the recipients that were sent the message.
+   */
+  public List<String> getSent() {
+    return sent;
+  }
+}
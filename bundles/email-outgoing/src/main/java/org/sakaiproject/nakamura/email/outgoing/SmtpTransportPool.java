@@ -0,0 +1,313 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Keeps a few SMTP connections open between messages, so that a run of outgoing
+ * messages does not pay for a connection and handshake each. A message is sent to its
+ * recipients in envelopes of at most the configured number of recipients, each envelope
+ * over whichever open connection is free.
+ */
+public class SmtpTransportPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+  private static final String TIMEOUT = "60000";
+
+  private final Session session;
+  private final String protocol;
+  private final String host;
+  private final int port;
+  private final String user;
+  private final String pass;
+  private final int maxIdle;
+  private final long idleMs;
+  private final int maxRecipients;
+  private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+  private boolean closed;
+
+  private static class PooledTransport {
+    private final Transport transport;
+    private long lastUsed;
+    private boolean reused;
+
+    PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+  }
+
+  /**
+   * @param host
+   * @param port
+   * @param tls
+   *          start TLS on a plain connection.
+   * @param ssl
+   *          connect over SSL.
+   * @param user
+   *          the user to authenticate as, blank for none.
+   * @param pass
+   * @param maxIdle
+   *          the number of connections kept open.
+   * @param idleMs
+   *          how long a connection is kept open without being used.
+   * @param maxRecipients
+   *          the most recipients in one envelope.
+   */
+  public SmtpTransportPool(String host, int port, boolean tls, boolean ssl, String user,
+      String pass, int maxIdle, long idleMs, int maxRecipients) {
+    this.host = host;
+    this.port = port;
+    this.maxIdle = maxIdle;
+    this.idleMs = idleMs;
+    this.maxRecipients = Math.max(1, maxRecipients);
+    protocol = ssl ? "smtps" : "smtp";
+    boolean auth = !StringUtils.isBlank(user) && !StringUtils.isBlank(pass);
+    this.user = auth ? user : null;
+    this.pass = auth ? pass : null;
+    Properties props = new Properties();
+    props.setProperty("mail." + protocol + ".host", host);
+    props.setProperty("mail." + protocol + ".port", String.valueOf(port));
+    props.setProperty("mail." + protocol + ".auth", String.valueOf(auth));
+    props.setProperty("mail." + protocol + ".connectiontimeout", TIMEOUT);
+    props.setProperty("mail." + protocol + ".timeout", TIMEOUT);
+    if (tls) {
+      props.setProperty("mail.smtp.starttls.enable", "true");
+    }
+    session = Session.getInstance(props);
+  }
+
+  /**
+   * Send a message to all its recipients, To, Cc and Bcc.
+   *
+   * @param message
+   * @throws MessagingException
+   *           if any envelope could not be sent, a {@link PartialSendException} if
+   *           envelopes before it have been.
+   */
+  public void send(MimeMessage message) throws MessagingException {
+    send(message, Collections.<String> emptySet());
+  }
+
+  /**
+   * Send a message to its recipients, To, Cc and Bcc, leaving out those that already
+   * have it.
+   *
+   * @param message
+   * @param skip
+   *          the addresses, lower case, of recipients not to send to.
+   * @throws MessagingException
+   *           if any envelope could not be sent, a {@link PartialSendException} if
+   *           envelopes before it have been.
+   */
+  public void send(MimeMessage message, Collection<String> skip) throws MessagingException {
+    Address[] all = expand(message.getAllRecipients());
+    if (all.length == 0) {
+      throw new SendFailedException("No recipient addresses");
+    }
+    List<Address> remaining = new ArrayList<Address>(all.length);
+    for (Address address : all) {
+      if (!skip.contains(getKey(address))) {
+        remaining.add(address);
+      }
+    }
+    if (remaining.isEmpty()) {
+      return;
+    }
+    Address[] recipients = remaining.toArray(new Address[remaining.size()]);
+    message.saveChanges();
+    List<String> sent = new ArrayList<String>();
+    for (int i = 0; i < recipients.length; i += maxRecipients) {
+      Address[] envelope = Arrays.copyOfRange(recipients, i,
+          Math.min(recipients.length, i + maxRecipients));
+      try {
+        sendEnvelope(message, envelope);
+      } catch (MessagingException e) {
+        if (sent.isEmpty()) {
+          throw e;
+        }
+        throw new PartialSendException(e, sent);
+      }
+      for (Address address : envelope) {
+        sent.add(getKey(address));
+      }
+    }
+  }
+
+  /**
+   * @param address
+   * @return the address as recorded for a recipient that has been sent a message.
+   */
+  public static String getKey(Address address) {
+    if (address instanceof InternetAddress) {
+      return ((InternetAddress) address).getAddress().toLowerCase(Locale.ENGLISH);
+    }
+    return address.toString().toLowerCase(Locale.ENGLISH);
+  }
+
+  private void sendEnvelope(MimeMessage message, Address[] envelope)
+      throws MessagingException {
+    PooledTransport pooled = borrow();
+    try {
+      pooled.transport.sendMessage(message, envelope);
+    } catch (MessagingException e) {
+      close(pooled);
+      if (!pooled.reused || e instanceof SendFailedException) {
+        throw e;
+      }
+      // the server may have dropped a connection that looked open, try a new one.
+      LOGGER.debug("Pooled SMTP connection failed, reconnecting {} ", e.getMessage());
+      pooled = connect();
+      try {
+        pooled.transport.sendMessage(message, envelope);
+      } catch (MessagingException e2) {
+        close(pooled);
+        throw e2;
+      }
+    }
+    release(pooled);
+  }
+
+  private PooledTransport borrow() throws MessagingException {
+    long cutoff = System.currentTimeMillis() - idleMs;
+    while (true) {
+      PooledTransport pooled;
+      synchronized (idle) {
+        pooled = idle.poll();
+      }
+      if (pooled == null) {
+        return connect();
+      }
+      if (pooled.lastUsed > cutoff && pooled.transport.isConnected()) {
+        pooled.reused = true;
+        return pooled;
+      }
+      close(pooled);
+    }
+  }
+
+  private PooledTransport connect() throws MessagingException {
+    Transport transport = session.getTransport(protocol);
+    transport.connect(host, port, user, pass);
+    return new PooledTransport(transport);
+  }
+
+  private void release(PooledTransport pooled) {
+    pooled.lastUsed = System.currentTimeMillis();
+    synchronized (idle) {
+      if (!closed && idle.size() < maxIdle) {
+        // most recently used first, so the spare connections age out.
+        idle.addFirst(pooled);
+        return;
+      }
+    }
+    close(pooled);
+  }
+
+  private void close(PooledTransport pooled) {
+    try {
+      pooled.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP connection {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * Close the connections that are open and stop keeping any.
+   */
+  public void close() {
+    List<PooledTransport> toClose;
+    synchronized (idle) {
+      closed = true;
+      toClose = new ArrayList<PooledTransport>(idle);
+      idle.clear();
+    }
+    for (PooledTransport pooled : toClose) {
+      close(pooled);
+    }
+  }
+
+  /**
+   * Close the connections that have not been used for the idle time.
+   */
+  public void closeIdle() {
+    long cutoff = System.currentTimeMillis() - idleMs;
+    List<PooledTransport> toClose = new ArrayList<PooledTransport>();
+    synchronized (idle) {
+      for (Iterator<PooledTransport> i = idle.iterator(); i.hasNext();) {
+        PooledTransport pooled = i.next();
+        if (pooled.lastUsed <= cutoff) {
+          i.remove();
+          toClose.add(pooled);
+        }
+      }
+    }
+    for (PooledTransport pooled : toClose) {
+      close(pooled);
+    }
+  }
+
+  /**
+   * @return the number of connections held open.
+   */
+  public int getIdleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  /**
+   * Replace group addresses, like undisclosed-recipients:;, with their members.
+   */
+  private Address[] expand(Address[] addresses) throws MessagingException {
+    List<Address> expanded = new ArrayList<Address>();
+    if (addresses != null) {
+      for (Address address : addresses) {
+        if (address instanceof InternetAddress && ((InternetAddress) address).isGroup()) {
+          InternetAddress[] members = ((InternetAddress) address).getGroup(false);
+          if (members != null) {
+            expanded.addAll(Arrays.asList(members));
+          }
+        } else {
+          expanded.add(address);
+        }
+      }
+    }
+    return expanded.toArray(new Address[expanded.size()]);
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+
+  private static final int PORT = 25251;
+  private Wiser wiser;
+  private SmtpTransportPool pool;
+
+  private volatile String reject;
+
+  @Before
+  public void setUp() {
+    wiser = new Wiser() {
+      @Override
+      public boolean accept(String from, String recipient) {
+        return reject == null || !recipient.startsWith(reject);
+      }
+    };
+    wiser.setPort(PORT);
+    wiser.start();
+    pool = new SmtpTransportPool("localhost", PORT, false, false, null, null, 2, 60000L,
+        100);
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+    wiser.stop();
+  }
+
+  @Test
+  public void testEnvelopesOverPooledConnection() throws Exception {
+    for (int m = 0; m < 3; m++) {
+      MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+      message.setFrom(new InternetAddress("no-reply@example.com"));
+      message.setHeader("To", "undisclosed-recipients:;");
+      for (int i = 0; i < 250; i++) {
+        message.addRecipient(RecipientType.BCC, new InternetAddress("user" + i
+            + "@example.com"));
+      }
+      message.setSubject("test " + m);
+      message.setText("body");
+      pool.send(message);
+    }
+    // one delivery per recipient, 3 envelopes a message, all over one connection.
+    assertEquals(750, wiser.getMessages().size());
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  @Test
+  public void testReconnectAfterServerRestart() throws Exception {
+    send("a@example.com");
+    wiser.stop();
+    wiser = new Wiser();
+    wiser.setPort(PORT);
+    wiser.start();
+    send("b@example.com");
+    assertEquals(1, wiser.getMessages().size());
+  }
+
+  @Test
+  public void testSecondEnvelopeFails() throws Exception {
+    pool.close();
+    pool = new SmtpTransportPool("localhost", PORT, false, false, null, null, 2, 60000L, 2);
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress("no-reply@example.com"));
+    for (String to : new String[] { "a", "b", "later-c", "later-d" }) {
+      message.addRecipient(RecipientType.BCC, new InternetAddress(to + "@example.com"));
+    }
+    message.setText("body");
+
+    reject = "later";
+    try {
+      pool.send(message);
+      fail("The second envelope should have failed");
+    } catch (PartialSendException e) {
+      assertEquals(Arrays.asList("a@example.com", "b@example.com"), e.getSent());
+    }
+    assertEquals(2, wiser.getMessages().size());
+
+    // a retry leaving out the recipients that have it only reaches the rest.
+    reject = null;
+    pool.send(message, new HashSet<String>(Arrays.asList("a@example.com", "b@example.com")));
+    assertEquals(4, wiser.getMessages().size());
+    assertEquals("later-c@example.com", wiser.getMessages().get(2).getEnvelopeReceiver());
+    assertEquals("later-d@example.com", wiser.getMessages().get(3).getEnvelopeReceiver());
+  }
+
+  private void send(String to) throws Exception {
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress("no-reply@example.com"));
+    message.setRecipient(RecipientType.TO, new InternetAddress(to));
+    message.setText("body");
+    pool.send(message);
+  }
+}
@@ -17,17 +17,23 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageFormatException;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 
@@ -43,9 +49,9 @@ import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.sakaiproject.nakamura.util.osgi.EventUtils;
 import org.slf4j.Logger;
@@ -53,6 +59,12 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Bridge to send OSGi events onto a JMS topic.
+ *
+ * Events are put on a bounded queue by the thread that posted them and sent by a single
+ * sender thread, which keeps its connection, session and producer open between events.
+ * Everything queued is sent as one batch, committed together when the session is
+ * transacted. When the queue is full new events are dropped and counted, so a slow or
+ * missing broker never holds up the threads posting events.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
@@ -65,7 +77,7 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = "sakai.event.bridge")
   static final String CONNECTION_CLIENT_ID = "bridge.connectionClientId";
 
-  @Property(boolValue = false, propertyPrivate = true)
+  @Property(boolValue = true, propertyPrivate = true)
   static final String SESSION_TRANSACTED = "bridge.sessionTransacted";
 
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
@@ -74,6 +86,14 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queue.size";
+
+  @Property(intValue = 200)
+  static final String MAX_BATCH = "bridge.maxBatch";
+
+  private static final int MAX_DESTINATIONS = 1000;
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -87,11 +107,37 @@ public class OsgiJmsBridge implements EventHandler {
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private int maxBatch = 200;
 
   private long lastMessage = System.currentTimeMillis();
+  private long lastDropped = 0;
 
   private String serverId;
 
+  private BlockingQueue<Event> queue = new LinkedBlockingQueue<Event>(10000);
+  private volatile boolean running;
+  private Thread sender;
+
+  // used by the sender only, under the lock of this bridge.
+  private Connection connection;
+  private Session session;
+  private MessageProducer producer;
+  private int batchSent;
+  private int batchSkipped;
+  private final Map<String, Destination> destinations = new LinkedHashMap<String, Destination>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Destination> eldest) {
+      return size() > MAX_DESTINATIONS;
+    }
+  };
+
+  private final StripedCounter queuedGauge = TelemetryCounter.counter("event", "JMSBridge", "queued");
+  private final StripedCounter droppedCounter = TelemetryCounter.counter("event", "JMSBridge", "dropped");
+  private final StripedCounter sentCounter = TelemetryCounter.counter("event", "JMSBridge", "sent");
+  private final StripedCounter batchCounter = TelemetryCounter.counter("event", "JMSBridge", "batches");
+
   /**
    * Default constructor.
    */
@@ -121,9 +167,10 @@ public class OsgiJmsBridge implements EventHandler {
   protected void activate(ComponentContext ctx) {
     Dictionary props = ctx.getProperties();
 
-    transacted = PropertiesUtil.toBoolean(props.get(SESSION_TRANSACTED), false);
-    acknowledgeMode = PropertiesUtil.toInteger(props.get(ACKNOWLEDGE_MODE), 0);
+    transacted = PropertiesUtil.toBoolean(props.get(SESSION_TRANSACTED), true);
+    acknowledgeMode = PropertiesUtil.toInteger(props.get(ACKNOWLEDGE_MODE), Session.AUTO_ACKNOWLEDGE);
     connectionClientId = PropertiesUtil.toString(props.get(CONNECTION_CLIENT_ID), "sakai.event.bridge");
+    maxBatch = Math.max(1, PropertiesUtil.toInteger(props.get(MAX_BATCH), 200));
     serverId = clusterTrackingService.getCurrentServerId();
 
     String[] ignoreEventTopicsValues = PropertiesUtil.toStringArray(props.get(IGNORE_EVENT_TOPICS));
@@ -135,16 +182,46 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
+    queue = new LinkedBlockingQueue<Event>(Math.max(1,
+        PropertiesUtil.toInteger(props.get(QUEUE_SIZE), 10000)));
+    running = true;
+    sender = new Thread("OSGi JMS Bridge") {
+      @Override
+      public void run() {
+        sendLoop();
+      }
+    };
+    sender.setDaemon(true);
+    sender.start();
+
     LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
         new Object[] { transacted, acknowledgeMode, connectionClientId });
   }
 
   /**
-   * Called by the OSGi container to deactivate this component.
+   * Called by the OSGi container to deactivate this component. Events already queued are
+   * sent before the connection is closed.
    *
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    running = false;
+    if (sender != null) {
+      try {
+        sender.join(5000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      sender = null;
+    }
+    List<Event> batch = new ArrayList<Event>(maxBatch);
+    while (queue.drainTo(batch, maxBatch) > 0) {
+      send(batch);
+      batch.clear();
+    }
+    synchronized (this) {
+      closeConnection();
+    }
   }
 
   /**
@@ -158,122 +235,183 @@ public class OsgiJmsBridge implements EventHandler {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
-
-    LOGGER.debug("Processing event {}", event);
+    LOGGER.debug("Queueing event {}", event);
     TelemetryCounter.incrementValue("event", "JMSBridge", event.getTopic());
-    Session clientSession = null;
-    try {
+    if (!queue.offer(event)) {
+      droppedCounter.increment();
+      if ((System.currentTimeMillis() - lastDropped) > 15000L) {
+        lastDropped = System.currentTimeMillis();
+        LOGGER.warn("JMS bridge queue is full, dropping events, {} dropped so far ",
+            droppedCounter.get());
+      }
+    }
+  }
 
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
-
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
+  private void sendLoop() {
+    List<Event> batch = new ArrayList<Event>(maxBatch);
+    while (running) {
+      try {
+        Event first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
         }
+        batch.add(first);
+        queue.drainTo(batch, maxBatch - 1);
+        send(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        batch.clear();
       }
+    }
+  }
 
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
-        }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+  /**
+   * Send a batch of events, committed together if the session is transacted. An event
+   * that can not be made into a message is logged and left out, the rest of the batch is
+   * still sent. If the connection or the commit fails the batch, or with a session that
+   * is not transacted what was not sent of it, is tried once more on a new connection.
+   *
+   * @param batch
+   */
+  protected synchronized void send(List<Event> batch) {
+    queuedGauge.reset();
+    queuedGauge.add(queue.size());
+    batchSent = 0;
+    batchSkipped = 0;
+    try {
+      sendBatch(batch);
+    } catch (JMSException e) {
+      LOGGER.debug("Failed to send events, retrying on a new connection {} ",
+          e.getMessage());
+      closeConnection();
+      if (transacted) {
+        // nothing was committed, start the batch again.
+        batchSent = 0;
+        batchSkipped = 0;
       }
+      try {
+        sendBatch(batch);
+      } catch (JMSException e2) {
+        logFailure(batch.size() - batchSent - batchSkipped, e2);
+        droppedCounter.add(batch.size() - batchSkipped);
+        // start again with a new connection for the next batch.
+        closeConnection();
+        return;
+      }
+    }
+    sentCounter.add(batchSent);
+    droppedCounter.add(batchSkipped);
+    batchCounter.increment();
+  }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
+  private void sendBatch(List<Event> batch) throws JMSException {
+    if (session == null) {
+      connection = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
+      // connection.setClientID(connectionClientId);
+      session = connection.createSession(transacted, transacted ? Session.SESSION_TRANSACTED
+          : acknowledgeMode);
+      producer = session.createProducer(null);
+    }
+    for (int i = batchSent + batchSkipped; i < batch.size(); i++) {
+      Event event = batch.get(i);
+      try {
+        sendEvent(event);
+        batchSent++;
+      } catch (MessageFormatException e) {
+        skip(event, e);
+      } catch (RuntimeException e) {
+        skip(event, e);
       }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
-        }
+    }
+    if (transacted) {
+      session.commit();
+    }
+  }
+
+  private void skip(Event event, Exception e) {
+    batchSkipped++;
+    LOGGER.warn("Unable to send event {} to JMS, leaving it out {} ", event.getTopic(),
+        e.getMessage());
+    LOGGER.debug(e.getMessage(), e);
+  }
+
+  private void logFailure(int events, JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
       }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error("Failed to send " + events + " events " + e.getMessage(), e);
+    }
+  }
 
-      msg.setStringProperty("clusterServerId", serverId);
+  private void sendEvent(Event event) throws JMSException {
+    EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+        .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
 
-      // add the current user
+    Message msg = session.createMessage();
 
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
-      producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    int jmsDeliveryMode = DeliveryMode.NON_PERSISTENT;
+    if (EventMessageMode.PERSISTENT.equals(messageMode)) {
+      jmsDeliveryMode = DeliveryMode.PERSISTENT;
+    }
+
+    boolean p2p = EventDeliveryMode.P2P.equals(deliveryMode);
+    String destinationKey = (p2p ? "q:" : "t:") + event.getTopic();
+    Destination destination = destinations.get(destinationKey);
+    if (destination == null) {
+      destination = p2p ? session.createQueue(event.getTopic()) : session
+          .createTopic(event.getTopic());
+      destinations.put(destinationKey, destination);
+    }
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List || obj instanceof Object[]) {
+        msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
       }
-    } finally {
-      try {
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+
+    LOGGER.debug("Sending Message {} to {}  ",msg, destination);
+    producer.send(destination, msg, jmsDeliveryMode, Message.DEFAULT_PRIORITY,
+        Message.DEFAULT_TIME_TO_LIVE);
+  }
+
+  private void closeConnection() {
+    destinations.clear();
+    producer = null;
+    try {
+      if (session != null) {
+        session.close();
       }
-      try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    session = null;
+    try {
+      if (connection != null) {
+        connection.close();
       }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
     }
+    connection = null;
   }
 }
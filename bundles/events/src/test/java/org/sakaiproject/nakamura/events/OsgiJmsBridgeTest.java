@@ -17,8 +17,11 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
@@ -30,15 +33,23 @@ import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.Topic;
 
+import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.command.ActiveMQMessage;
 import org.junit.Before;
 import org.junit.Test;
@@ -46,11 +57,14 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Unit test for bridging events from OSGi to JMS.
  */
 public class OsgiJmsBridgeTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridgeTest.class);
   private Hashtable<Object, Object> compProps;
   private ComponentContext ctx;
   private ConnectionFactoryService connFactoryService;
@@ -79,6 +93,9 @@ public class OsgiJmsBridgeTest {
     // mock a connection factory service
     connFactoryService = createMock(ConnectionFactoryService.class);
     expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(connFactory).anyTimes();
+
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
   }
 
   /**
@@ -96,14 +113,11 @@ public class OsgiJmsBridgeTest {
    *
    * @throws JMSException
    */
-  @SuppressWarnings("rawtypes")
   @Test
   public void testHandleEvent() throws Exception {
     // setup to do full processing
     setUpFullProcess(true);
-    
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
     // start the mocks
     replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
 
@@ -115,15 +129,8 @@ public class OsgiJmsBridgeTest {
     // verify that all expected calls were made.
     verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
 
-    int namesCount = 0;
-    Enumeration names = message.getPropertyNames();
-    while (names.hasMoreElements()) {
-      names.nextElement();
-      namesCount++;
-    }
-
     // there should be an entry for each property plus the name of the topics
-    assertEquals(props.size() + 2, namesCount);
+    assertEquals(props.size() + 2, countProperties(message));
   }
 
   /**
@@ -131,17 +138,12 @@ public class OsgiJmsBridgeTest {
    *
    * @throws JMSException
    */
-  @SuppressWarnings("rawtypes")
   @Test
   public void testHandleEventExceptionClosing() throws Exception {
     // setup to do full processing
     setUpFullProcess(false);
 
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
-    // expect to have exceptions when closing the session and connection
-    //sess.close();
-    //expectLastCall().andThrow(new JMSException("can't close session"));
+    // expect to have exceptions when closing the connection
     conn.close();
     expectLastCall().andThrow(new JMSException("can't close connection"));
 
@@ -156,15 +158,8 @@ public class OsgiJmsBridgeTest {
     // verify that all expected calls were made.
     verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
 
-    int namesCount = 0;
-    Enumeration names = message.getPropertyNames();
-    while (names.hasMoreElements()) {
-      names.nextElement();
-      namesCount++;
-    }
-
     // there should be an entry for each property plus the name of the topics
-    assertEquals(props.size() + 2, namesCount);
+    assertEquals(props.size() + 2, countProperties(message));
   }
 
   @Test
@@ -172,14 +167,8 @@ public class OsgiJmsBridgeTest {
     // expect the connection factory to thrown an exception. this is the
     // earliest an exception can be thrown and causes extra checks in the
     // exception handling.
-    connFactory = createMock(ConnectionFactory.class);
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
-
-    connFactoryService = createMock(ConnectionFactoryService.class);
-    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(connFactory).anyTimes();
-
-    expect(connFactory.createConnection()).andThrow(new JMSException("can't create connection"));
+    expect(connFactory.createConnection()).andThrow(new JMSException("can't create connection"))
+        .times(2);
 
     // start the mocks
     replay(ctx, connFactoryService, connFactory, clusterTrackingService);
@@ -187,29 +176,30 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
-    // should log the message, but not fail
+    bridge.deactivate(ctx);
+    // should log the message, but not fail, after trying a second connection.
     verify(ctx, connFactory, clusterTrackingService);
   }
 
 
   @Test
-  public void testJmsExceptionWhenCreatingTopic() throws JMSException {
-    setUpConnection(true);
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+  public void testJmsExceptionWhenCreatingMessage() throws JMSException {
+    conn = createMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn).times(2);
+    conn.close();
+    expectLastCall().times(2);
 
     // mock a session to be returned by the connection and expect it to throw an
     // exception. this causes extra checking to happen in the exception
-    // handling.
+    // handling, and the batch to be tried again on a new connection.
     sess = createMock(Session.class);
-    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
-    sess.run();
-    expectLastCall();
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess).times(2);
+    expect(sess.createProducer(null)).andReturn(createMock(MessageProducer.class))
+        .times(2);
+    expect(sess.createMessage()).andThrow(new JMSException("can't create message"))
+        .times(2);
     sess.close();
-    expectLastCall();
-
-    // mock a destination as a topic from the session and expect it
-    expect(sess.createMessage()).andThrow(new JMSException("can't create topic"));
+    expectLastCall().times(2);
 
     // start the mocks
     replay(ctx, connFactoryService, connFactory, conn, sess, clusterTrackingService);
@@ -220,7 +210,141 @@ public class OsgiJmsBridgeTest {
     bridge.deactivate(ctx);
 
     // verify that all expected calls were made.
-    verify(ctx, conn, connFactory, clusterTrackingService);
+    verify(ctx, conn, connFactory, sess, clusterTrackingService);
+  }
+
+  @Test
+  public void testBadEventLeftOut() throws Exception {
+    setUpConnection(true);
+    sess = createMock(Session.class);
+    expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic((String) anyObject())).andReturn(topic).anyTimes();
+
+    // the first event can't be made into a message, the second is sent and committed.
+    Message bad = createNiceMock(Message.class);
+    bad.setObjectProperty((String) anyObject(), anyObject());
+    expectLastCall().andThrow(new MessageFormatException("bad property")).anyTimes();
+    message = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(bad).andReturn(message);
+    prod.send((Destination) topic, message, DeliveryMode.NON_PERSISTENT,
+        Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+    sess.commit();
+    sess.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, bad,
+        clusterTrackingService);
+
+    sendBatch(2);
+
+    verify(connFactory, conn, sess, prod);
+    assertEquals(buildEventProperties().size() + 2, countProperties(message));
+  }
+
+  @Test
+  public void testFailedCommitRetriedOnNewConnection() throws Exception {
+    // the first connection fails on commit.
+    Connection failedConn = createMock(Connection.class);
+    Session failedSess = createMock(Session.class);
+    MessageProducer failedProd = createMock(MessageProducer.class);
+    expect(connFactory.createConnection()).andReturn(failedConn);
+    expect(failedConn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(failedSess);
+    expect(failedSess.createProducer(null)).andReturn(failedProd);
+    expect(failedSess.createTopic((String) anyObject())).andReturn(createMock(Topic.class));
+    expect(failedSess.createMessage()).andReturn(new ActiveMQMessage());
+    failedProd.send((Destination) anyObject(), (Message) anyObject(), anyInt(), anyInt(),
+        anyLong());
+    failedSess.commit();
+    expectLastCall().andThrow(new JMSException("connection lost"));
+    failedSess.close();
+    failedConn.close();
+
+    // and the batch is sent again, whole, on a second.
+    setUpFullProcess(true);
+
+    replay(ctx, connFactory, connFactoryService, failedConn, failedSess, failedProd, conn,
+        sess, topic, prod, clusterTrackingService);
+
+    sendBatch(1);
+
+    verify(connFactory, failedConn, failedSess, failedProd, conn, sess, prod);
+    assertEquals(buildEventProperties().size() + 2, countProperties(message));
+  }
+
+  /**
+   * Sends a batch of events straight through the bridge.
+   */
+  private void sendBatch(int events) {
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    List<Event> batch = new ArrayList<Event>();
+    for (int i = 0; i < events; i++) {
+      batch.add(new Event("test-event", buildEventProperties()));
+    }
+    bridge.send(batch);
+    bridge.deactivate(ctx);
+  }
+
+  /**
+   * Sends events through an embedded broker and reports the throughput.
+   */
+  @Test
+  public void testThroughputEmbeddedBroker() throws Exception {
+    ConnectionFactory brokerFactory = new ActiveMQConnectionFactory(
+        "vm://localhost?broker.persistent=false");
+    connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(brokerFactory)
+        .anyTimes();
+    replay(ctx, connFactoryService, clusterTrackingService);
+
+    Connection consumerConnection = brokerFactory.createConnection();
+    final AtomicInteger received = new AtomicInteger();
+    try {
+      Session consumerSession = consumerConnection.createSession(false,
+          Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = consumerSession.createConsumer(consumerSession
+          .createTopic("bench/event"));
+      consumer.setMessageListener(new MessageListener() {
+        public void onMessage(Message message) {
+          received.incrementAndGet();
+        }
+      });
+      consumerConnection.start();
+
+      bridge = new OsgiJmsBridge(connFactoryService);
+      bridge.clusterTrackingService = clusterTrackingService;
+      bridge.activate(ctx);
+      int n = 5000;
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < n; i++) {
+        Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+        props.put("n", i);
+        bridge.handleEvent(new Event("bench/event", (Dictionary<?, ?>) props));
+      }
+      for (int i = 0; i < 300 && received.get() < n; i++) {
+        Thread.sleep(100);
+      }
+      long elapsed = Math.max(1L, System.currentTimeMillis() - start);
+      bridge.deactivate(ctx);
+      assertEquals(n, received.get());
+      LOGGER.info("OSGi JMS bridge sent {} events in {}ms, {} events/s", new Object[] { n,
+          elapsed, n * 1000L / elapsed });
+    } finally {
+      consumerConnection.close();
+    }
+  }
+
+  private int countProperties(Message message) throws JMSException {
+    int namesCount = 0;
+    Enumeration<?> names = message.getPropertyNames();
+    while (names.hasMoreElements()) {
+      names.nextElement();
+      namesCount++;
+    }
+    return namesCount;
   }
 
   /**
@@ -262,7 +386,7 @@ public class OsgiJmsBridgeTest {
     Hashtable<Object, Object> dict = new Hashtable<Object, Object>();
     dict.put(OsgiJmsBridge.ACKNOWLEDGE_MODE, Session.AUTO_ACKNOWLEDGE);
     dict.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge");
-    dict.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
+    dict.put(OsgiJmsBridge.SESSION_TRANSACTED, true);
     dict.put(OsgiJmsBridge.TOPICS, "*");
     return dict;
   }
@@ -301,27 +425,24 @@ public class OsgiJmsBridgeTest {
 
       // mock a session to be returned by the connection and expect it
       sess = createMock(Session.class);
-      expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+      expect(conn.createSession(true, Session.SESSION_TRANSACTED)).andReturn(sess);
 
-      // expect the session to get run
-      //sess.run();
-      //expectLastCall();
+      // mock a producer for the session to create and expect it
+      prod = createMock(MessageProducer.class);
+      expect(sess.createProducer(null)).andReturn(prod);
 
       // mock a destination as a topic from the session and expect it
       topic = createMock(Topic.class);
       expect(sess.createTopic((String) anyObject())).andReturn(topic);
 
-      // mock a producer for the session to create and expect it
-      prod = createMock(MessageProducer.class);
-      expect(sess.createProducer(topic)).andReturn(prod);
-
       // mock the return of a mapped message
       message = new ActiveMQMessage();
       expect(sess.createMessage()).andReturn(message);
 
-      // expect the message to be sent
-      prod.send(message);
-      
+      // expect the message to be sent, and the batch committed
+      prod.send((Destination) topic, message, DeliveryMode.NON_PERSISTENT,
+          Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+      sess.commit();
 
       sess.close();
     } catch (JMSException e) {
@@ -335,48 +335,46 @@ public class FileUtils {
   /**
    * Writes commentCount of content
    *
-   * @param node
+   * @deprecated the count is maintained when comments change, use
+   *             {@link #writeCommentCountProperty(Content, org.sakaiproject.nakamura.api.lite.Session, JSONWriter)}
+   */
+  @Deprecated
+  public static void writeCommentCountProperty(Content content,
+      org.sakaiproject.nakamura.api.lite.Session session, JSONWriter writer, Repository repository) 
+          throws StorageClientException, JSONException {
+    writeCommentCountProperty(content, session, writer);
+  }
+
+  /**
+   * Writes commentCount of content. The count is kept on the content as comments are
+   * added and removed, it is only counted here for content that has not been brought up
+   * to date yet, and nothing is written back.
+   *
+   * @param content
    * @param session
-   * @param write
-   * @throws RepositoryException
+   * @param writer
+   * @throws StorageClientException
    * @throws JSONException
    */
   public static void writeCommentCountProperty(Content content,
-      org.sakaiproject.nakamura.api.lite.Session session, JSONWriter writer, Repository repository) 
+      org.sakaiproject.nakamura.api.lite.Session session, JSONWriter writer)
           throws StorageClientException, JSONException {
 
     int commentCount = 0;
-    String COMMENTCOUNT = "commentCount";
 
-    if(content.hasProperty(COMMENTCOUNT)){
-      commentCount = (Integer)content.getProperty(COMMENTCOUNT);
+    if (content.hasProperty(FilesConstants.COMMENT_COUNT)) {
+      commentCount = StorageClientUtils.toInt(content.getProperty(FilesConstants.COMMENT_COUNT));
     } else {
-      // no commentCount property on Content, then evaluate count and add property
-      Content comments = null;
-      org.sakaiproject.nakamura.api.lite.Session adminSession = null;
       try {
-        comments = session.getContentManager().get(content.getPath() + "/comments");
-        if (comments!=null){
+        Content comments = session.getContentManager().get(content.getPath() + "/comments");
+        if (comments != null) {
           commentCount = Iterables.size(comments.listChildPaths());
         }
-        content.setProperty(COMMENTCOUNT, commentCount);
-        //save property
-        adminSession = repository.loginAdministrative();
-        ContentManager adminContentManager = adminSession.getContentManager();
-        adminContentManager.update(content);
       } catch (org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException e) {
-        log.error(e.getMessage(), e);
-      } finally {
-        if (adminSession != null) {
-          try {
-            adminSession.logout();
-          } catch (Exception e) {
-            log.error("Could not logout administrative session.");
-          }
-        }
+        log.debug("Unable to count comments of {}: {}", content.getPath(), e.getMessage());
       }
     }
-    writer.key(COMMENTCOUNT);
+    writer.key(FilesConstants.COMMENT_COUNT);
     writer.value(commentCount);
   }
 
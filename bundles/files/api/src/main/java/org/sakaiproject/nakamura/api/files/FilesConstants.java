@@ -195,6 +195,9 @@ public interface FilesConstants {
   /** Property of where this content is used*/
   public static final String LINK_PATHS = "linkpaths";
 
+  /** Property with the number of comments on a content pool item, kept up to date as comments are added and removed */
+  public static final String COMMENT_COUNT = "commentCount";
+
   /** Property stem for structure properties in content pool items */
   public static final String STRUCTURE_FIELD_STEM = "structure";
 
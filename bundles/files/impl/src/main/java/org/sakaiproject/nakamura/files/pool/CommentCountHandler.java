@@ -0,0 +1,257 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.sakaiproject.nakamura.api.files.FilesConstants.COMMENT_COUNT;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_RT;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Keeps the comment count of content pool items up to date as comments are added and
+ * removed, so that reading an item never has to count or write anything. The count is
+ * taken from the comments themselves rather than incremented, so a missed or repeated
+ * event can't leave it wrong. Items that have no count yet, from before counts were kept,
+ * are brought up to date once in the background.
+ */
+@Component(immediate = true, metatype = true)
+@Service
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Keeps the comment count of content pool items up to date."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
+public class CommentCountHandler implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommentCountHandler.class);
+
+  @Property(boolValue = true, label = "Backfill",
+      description = "Count the comments of content pool items that have no count yet, once, in the background")
+  protected static final String BACKFILL = "comment.count.backfill";
+
+  protected static final String SYSTEM_LOG_PATH = "system/commentcountbackfill-runlog";
+
+  private static final String COMMENTS = "comments";
+
+  private static final int ROWS_PER_SEARCH = 1000;
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  private volatile boolean running;
+
+  private Thread backfillThread;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    running = true;
+    if (PropertiesUtil.toBoolean(properties.get(BACKFILL), true)) {
+      backfillThread = new Thread(new Runnable() {
+        public void run() {
+          backfill();
+        }
+      }, "Comment Count Backfill");
+      backfillThread.setDaemon(true);
+      backfillThread.setPriority(Thread.MIN_PRIORITY);
+      backfillThread.start();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    running = false;
+    if (backfillThread != null) {
+      backfillThread.interrupt();
+      backfillThread = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String itemPath = getCommentedPath((String) event.getProperty("path"));
+    if (itemPath == null) {
+      return;
+    }
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      updateCount(adminSession.getContentManager(), itemPath);
+    } catch (ClientPoolException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * @return The path of the item a comment belongs to, or null if the path is not that of
+   *         a comment.
+   */
+  protected static String getCommentedPath(String path) {
+    if (path == null) {
+      return null;
+    }
+    int slash = path.lastIndexOf('/');
+    if (slash <= 0) {
+      return null;
+    }
+    String parent = path.substring(0, slash);
+    if (!parent.endsWith("/" + COMMENTS)) {
+      return null;
+    }
+    return parent.substring(0, parent.length() - COMMENTS.length() - 1);
+  }
+
+  /**
+   * Counts the comments of a content pool item and stores the count if it changed.
+   *
+   * @return true if the count was written.
+   */
+  protected boolean updateCount(ContentManager contentManager, String itemPath)
+      throws StorageClientException, AccessDeniedException {
+    Content item = contentManager.get(itemPath);
+    if (item == null
+        || !POOLED_CONTENT_RT.equals(item
+            .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY))) {
+      return false;
+    }
+    int commentCount = 0;
+    Content comments = contentManager.get(itemPath + "/" + COMMENTS);
+    if (comments != null) {
+      commentCount = Iterables.size(comments.listChildPaths());
+    }
+    if (item.hasProperty(COMMENT_COUNT)
+        && StorageClientUtils.toInt(item.getProperty(COMMENT_COUNT)) == commentCount) {
+      return false;
+    }
+    item.setProperty(COMMENT_COUNT, commentCount);
+    contentManager.update(item);
+    return true;
+  }
+
+  /**
+   * Counts the comments of every content pool item that has no count yet. This runs until
+   * it has been through all items once, which is recorded so later starts skip it.
+   */
+  protected void backfill() {
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      ContentManager contentManager = adminSession.getContentManager();
+      if (contentManager.exists(SYSTEM_LOG_PATH)) {
+        return;
+      }
+      int start = 0;
+      int updated = 0;
+      while (running) {
+        SolrQuery query = new SolrQuery("resourceType:"
+            + ClientUtils.escapeQueryChars(POOLED_CONTENT_RT));
+        query.setFields("id");
+        // a stable order, updated items are indexed again and would move otherwise.
+        query.addSortField("id", SolrQuery.ORDER.asc);
+        query.setRows(ROWS_PER_SEARCH);
+        query.setStart(start);
+        SolrDocumentList items = solrServerService.getServer().query(query).getResults();
+        for (SolrDocument doc : items) {
+          if (!running) {
+            return;
+          }
+          String itemPath = (String) doc.getFieldValue("id");
+          Content item = contentManager.get(itemPath);
+          if (item != null && !item.hasProperty(COMMENT_COUNT)
+              && updateCount(contentManager, itemPath)) {
+            updated++;
+          }
+        }
+        if (items.getNumFound() > start + ROWS_PER_SEARCH) {
+          start = start + ROWS_PER_SEARCH;
+        } else {
+          break;
+        }
+      }
+      if (running) {
+        contentManager.update(new Content(SYSTEM_LOG_PATH, ImmutableMap.<String, Object> of(
+            "backfillTime", System.currentTimeMillis(), "updated", updated)));
+        LOGGER.info("Counted the comments of {} content pool items", updated);
+      }
+    } catch (SolrServerException e) {
+      LOGGER.warn("Unable to backfill comment counts: " + e.getMessage(), e);
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error(e.getLocalizedMessage(), e);
+      }
+    }
+  }
+}
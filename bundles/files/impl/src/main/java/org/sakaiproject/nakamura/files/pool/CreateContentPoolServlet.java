@@ -219,6 +219,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
       // All the ones that are files will be stored.
       int statusCode = HttpServletResponse.SC_BAD_REQUEST;
       boolean fileUpload = false;
+      int created = 0;
       Map<String, Object> results = new HashMap<String, Object>();
       for (Entry<String, RequestParameter[]> e : request.getRequestParameterMap()
           .entrySet()) {
@@ -233,6 +234,7 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
               results.put(fileName, ImmutableMap.of("poolId", (Object)createPoolId, "item", content.getProperties()));
               statusCode = HttpServletResponse.SC_CREATED;
               fileUpload = true;
+              created++;
 
               notifyFileUploadHandlers(results, createPoolId, p, au.getId(), true);
             } else {
@@ -256,10 +258,11 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
           String createPoolId = generatePoolId();
           results.put("_contentItem",  ImmutableMap.of("poolId", (Object)createPoolId,  "item", createContentItem(createPoolId, adminSession, request, au).getProperties()));
           statusCode = HttpServletResponse.SC_CREATED;
+          created++;
         }
       }
 
-      this.authorizableCountChanger.notify(UserConstants.CONTENT_ITEMS_PROP, userId);
+      this.authorizableCountChanger.change(UserConstants.CONTENT_ITEMS_PROP, created, userId);
 
       // Make sure we're outputting proper json.
       if ( statusCode == HttpServletResponse.SC_BAD_REQUEST ) {
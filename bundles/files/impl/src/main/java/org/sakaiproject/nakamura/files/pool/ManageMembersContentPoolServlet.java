@@ -382,6 +382,7 @@ import javax.servlet.http.HttpServletResponse;
       Set<String> managerSet = Sets.newHashSet(managers);
       Set<String> editorSet = Sets.newHashSet(editors);
       Set<String> viewerSet = Sets.newHashSet(viewers);
+      Set<String> membersBefore = Sets.union(managerSet, viewerSet).immutableCopy();
 
       List<String> removeViewers = Arrays.asList(StorageClientUtils.nonNullStringArray(request.getParameterValues(":viewer@Delete")));
       List<String> removeManagers = Arrays.asList(StorageClientUtils.nonNullStringArray(request.getParameterValues(":manager@Delete")));
@@ -483,8 +484,13 @@ import javax.servlet.http.HttpServletResponse;
       updateContentMembers(session, pooledContent, viewerSet,  managerSet, editorSet);
       updateContentAccess(session, pooledContent, aclModifications);
 
-      this.authorizableCountChanger.notify(UserConstants.CONTENT_ITEMS_PROP, addViewers, addEditors, addManagers,
-          removeViewers, removeEditors, removeManagers);
+      // the content count covers items managed or viewed, so only authorizables that
+      // gained or lost the item altogether change their count
+      Set<String> membersAfter = Sets.union(managerSet, viewerSet);
+      this.authorizableCountChanger.change(UserConstants.CONTENT_ITEMS_PROP, 1,
+          Sets.difference(membersAfter, membersBefore));
+      this.authorizableCountChanger.change(UserConstants.CONTENT_ITEMS_PROP, -1,
+          Sets.difference(membersBefore, membersAfter));
 
       response.setStatus(SC_OK);
 
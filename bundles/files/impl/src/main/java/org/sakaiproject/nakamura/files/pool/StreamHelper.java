@@ -18,28 +18,54 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.StringUtils;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
-import javax.jcr.RepositoryException;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 public class StreamHelper {
 
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_RANGE = "Range";
+  private static final String HEADER_IF_RANGE = "If-Range";
+  private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
+  private static final String BODY_LOCATION_FIELD = "_bodyLocation";
+  private static final String CRLF = "\r\n";
+
+  /**
+   * More ranges than this in one request are answered with the whole body.
+   */
+  private static final int MAX_RANGES = 32;
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
@@ -47,34 +73,151 @@ public class StreamHelper {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      Map<String, Object> properties = node.getProperties();
+      long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+      long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+      String etag = getETag(node, alternativeStream, modifTime, length);
+      if (etag != null) {
+        response.setHeader(HEADER_ETAG, etag);
+      }
+      if (unmodified(request, etag, modifTime)) {
+        response.setStatus(SC_NOT_MODIFIED);
+        return;
+      }
+
+      if (modifTime > 0) {
+        response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
+      }
+      String contentType = getContentType(properties, resource, alternativeStream, servletContext);
+      String encoding = (String) properties.get(StorageClientUtils.getAltField(Content.ENCODING_FIELD, alternativeStream));
+
+      List<long[]> ranges = getRanges(request, etag, modifTime, length);
+      if (ranges == null) {
+        setHeaders(response, contentType, encoding);
+        if (length > 0) {
+          response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+        }
+        setContentLength(response, length);
+        OutputStream out = response.getOutputStream();
+        new Body(dataStream, out).copy(0, -1);
+      } else if (ranges.isEmpty()) {
+        response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+        response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        setHeaders(response, contentType, encoding);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, contentRange(range, length));
+        setContentLength(response, range[1] - range[0] + 1);
+        OutputStream out = response.getOutputStream();
+        new Body(dataStream, out).copy(range[0], range[1] - range[0] + 1);
+      } else {
+        streamMultipart(response, dataStream, ranges, length, contentType, encoding);
+      }
+    } finally {
+      dataStream.close();
     }
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  /**
+   * Send several ranges as a multipart/byteranges body.
+   */
+  private void streamMultipart(HttpServletResponse response, InputStream dataStream,
+      List<long[]> ranges, long length, String contentType, String encoding)
+      throws IOException {
+    String boundary = UUID.randomUUID().toString().replace("-", "");
+    String partType = contentType;
+    if (partType != null && encoding != null) {
+      partType = partType + "; charset=" + encoding;
+    }
+    List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+    long contentLength = 0;
+    for (long[] range : ranges) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(CRLF).append("--").append(boundary).append(CRLF);
+      if (partType != null) {
+        sb.append("Content-Type: ").append(partType).append(CRLF);
+      }
+      sb.append("Content-Range: ").append(contentRange(range, length)).append(CRLF);
+      sb.append(CRLF);
+      byte[] header = sb.toString().getBytes("ISO-8859-1");
+      partHeaders.add(header);
+      contentLength += header.length + range[1] - range[0] + 1;
+    }
+    byte[] end = (CRLF + "--" + boundary + "--" + CRLF).getBytes("ISO-8859-1");
+    contentLength += end.length;
+
+    response.setStatus(SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + boundary);
+    setContentLength(response, contentLength);
+    OutputStream out = response.getOutputStream();
+    Body body = new Body(dataStream, out);
+    for (int i = 0; i < ranges.size(); i++) {
+      long[] range = ranges.get(i);
+      out.write(partHeaders.get(i));
+      body.copy(range[0], range[1] - range[0] + 1);
+    }
+    out.write(end);
+  }
+
+  private String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
+  /**
+   * A strong entity tag for the body, derived from where the body is stored, its length
+   * and its modification time, so that it changes whenever a new body is written.
+   */
+  private String getETag(Content node, String alternativeStream, long modifTime, long length) {
+    Object bodyLocation = node.getProperty(StorageClientUtils.getAltField(BODY_LOCATION_FIELD, alternativeStream));
+    if (bodyLocation == null && modifTime <= 0) {
+      return null;
+    }
+    try {
+      return "\"" + StringUtils.sha1Hash(node.getPath() + ":" + alternativeStream + ":" + bodyLocation
+          + ":" + length + ":" + modifTime) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
   }
 
   /**
-   * Returns <code>true</code> if the request has a <code>If-Modified-Since</code> header
-   * whose date value is later than the last modification time given as
-   * <code>modifTime</code>.
+   * Returns <code>true</code> if the request has a <code>If-None-Match</code> header that
+   * matches the entity tag, or, when there is no <code>If-None-Match</code> header, a
+   * <code>If-Modified-Since</code> header whose date value is later than the last
+   * modification time given as <code>modifTime</code>.
    *
    * @param request
    *          The <code>ComponentRequest</code> checked for the
    *          <code>If-Modified-Since</code> header.
+   * @param etag
+   *          The entity tag of the body, may be null.
    * @param modifTime
    *          The last modification time to compare the header to.
-   * @return <code>true</code> if the <code>modifTime</code> is less than or equal to the
-   *         time of the <code>If-Modified-Since</code> header.
+   * @return <code>true</code> if the body is not modified.
    */
-  private boolean unmodified(HttpServletRequest request, long modifTime) {
+  private boolean unmodified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      if (etag == null) {
+        return false;
+      }
+      for (String tag : StringUtils.split(ifNoneMatch, ',')) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          // a weak comparison is allowed for If-None-Match on a GET.
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
     if (modifTime > 0) {
       long modTime = modifTime / 1000; // seconds
       long ims = request.getDateHeader(HEADER_IF_MODIFIED_SINCE) / 1000;
@@ -86,19 +229,89 @@ public class StreamHelper {
   }
 
   /**
-   * @param resource
-   * @param request
-   * @param response
-   * @param servletContext 
-   * @throws RepositoryException
+   * Parse the <code>Range</code> header of the request.
+   *
+   * @return null if the whole body should be sent, an empty list if none of the ranges can
+   *         be satisfied, otherwise the ranges to send as inclusive start and end
+   *         positions, in order and with overlapping ranges merged.
    */
-  private void setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
+  private List<long[]> getRanges(HttpServletRequest request, String etag, long modifTime,
+      long length) {
+    String range = request.getHeader(HEADER_RANGE);
+    if (range == null || length <= 0 || !range.startsWith("bytes=")) {
+      return null;
+    }
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange != null) {
+      if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+        // only a strong match allows a partial response.
+        if (etag == null || !etag.equals(ifRange.trim())) {
+          return null;
+        }
+      } else {
+        long ifRangeTime = request.getDateHeader(HEADER_IF_RANGE);
+        if (modifTime <= 0 || ifRangeTime / 1000 != modifTime / 1000) {
+          return null;
+        }
+      }
+    }
 
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (modifTime > 0) {
-      response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
+    List<long[]> ranges = new ArrayList<long[]>();
+    try {
+      for (String spec : StringUtils.split(range.substring(6), ',')) {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+          return null;
+        }
+        long start;
+        long end;
+        if (dash == 0) {
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec
+              .substring(dash + 1));
+          if (end < start) {
+            return null;
+          }
+          if (start >= length) {
+            continue;
+          }
+          end = Math.min(end, length - 1);
+        }
+        ranges.add(new long[] { start, end });
+      }
+    } catch (NumberFormatException e) {
+      return null;
     }
 
+    Collections.sort(ranges, new Comparator<long[]>() {
+      public int compare(long[] o1, long[] o2) {
+        return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+      }
+    });
+    List<long[]> merged = new ArrayList<long[]>();
+    for (long[] r : ranges) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && r[0] <= last[1] + 1) {
+        last[1] = Math.max(last[1], r[1]);
+      } else {
+        merged.add(r);
+      }
+    }
+    if (merged.size() > MAX_RANGES) {
+      return null;
+    }
+    return merged;
+  }
+
+  private String getContentType(Map<String, Object> properties, Resource resource, String alternativeStream, ServletContext servletContext) {
     String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
     if (contentType == null && servletContext != null) {
       final String ct = servletContext.getMimeType(resource.getPath());
@@ -106,11 +319,18 @@ public class StreamHelper {
         contentType = ct;
       }
     }
+    return contentType;
+  }
+
+  /**
+   * @param response
+   * @param contentType
+   * @param encoding
+   */
+  private void setHeaders(HttpServletResponse response, String contentType, String encoding) {
     if (contentType != null) {
       response.setContentType(contentType);
     }
-
-    String encoding = (String) properties.get(StorageClientUtils.getAltField(Content.ENCODING_FIELD, alternativeStream));
     if (encoding != null) {
       response.setCharacterEncoding(encoding);
     }
@@ -128,8 +348,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
@@ -139,4 +358,69 @@ public class StreamHelper {
     }
   }
 
+  /**
+   * Copies parts of a body to an output stream. A file backed body is read through its
+   * channel, so ranges are reached by position rather than by reading and discarding the
+   * bytes before them, and no copy buffer is allocated on the heap for the body.
+   */
+  private static class Body {
+    private final InputStream in;
+    private final OutputStream out;
+    private final FileChannel channel;
+    private WritableByteChannel target;
+    private long position;
+
+    Body(InputStream in, OutputStream out) {
+      this.in = in;
+      this.out = out;
+      this.channel = (in instanceof FileInputStream) ? ((FileInputStream) in).getChannel()
+          : null;
+    }
+
+    /**
+     * Copy <code>count</code> bytes from <code>start</code>, or to the end if
+     * <code>count</code> is negative. Calls must be in increasing order of position.
+     */
+    void copy(long start, long count) throws IOException {
+      if (channel != null) {
+        if (target == null) {
+          target = Channels.newChannel(out);
+        }
+        long end = count < 0 ? channel.size() : Math.min(channel.size(), start + count);
+        long p = start;
+        while (p < end) {
+          long n = channel.transferTo(p, end - p, target);
+          if (n <= 0) {
+            break;
+          }
+          p += n;
+        }
+        return;
+      }
+
+      while (position < start) {
+        long skipped = in.skip(start - position);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            return;
+          }
+          skipped = 1;
+        }
+        position += skipped;
+      }
+      byte[] buffer = new byte[(int) (count < 0 ? 8192 : Math.min(8192, Math.max(count, 1)))];
+      long remaining = count;
+      while (count < 0 || remaining > 0) {
+        int n = in.read(buffer, 0, (int) (count < 0 ? buffer.length : Math.min(
+            buffer.length, remaining)));
+        if (n < 0) {
+          break;
+        }
+        out.write(buffer, 0, n);
+        position += n;
+        remaining -= n;
+      }
+    }
+  }
+
 }
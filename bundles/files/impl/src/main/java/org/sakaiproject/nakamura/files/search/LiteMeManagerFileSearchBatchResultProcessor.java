@@ -29,7 +29,6 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.files.FileUtils;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
-import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -67,8 +66,6 @@ public class LiteMeManagerFileSearchBatchResultProcessor implements SolrSearchBa
 
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
-  @Reference
-  private Repository repository;
 
   public LiteMeManagerFileSearchBatchResultProcessor(SolrSearchServiceFactory searchServiceFactory) {
     this.searchServiceFactory = searchServiceFactory;
@@ -168,7 +165,7 @@ public class LiteMeManagerFileSearchBatchResultProcessor implements SolrSearchBa
     } else {
       FileUtils.writeFileNode(content, session, write, depth, true);
     }
-    FileUtils.writeCommentCountProperty(content, session, write, repository); 
+    FileUtils.writeCommentCountProperty(content, session, write);
     write.endObject();
   }
 
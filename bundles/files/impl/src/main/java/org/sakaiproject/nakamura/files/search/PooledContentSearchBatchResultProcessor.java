@@ -29,7 +29,6 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.files.FileUtils;
-import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -62,8 +61,6 @@ SolrSearchBatchResultProcessor {
 
   @Reference
   protected SolrSearchServiceFactory searchServiceFactory;
-  @Reference
-  private Repository repository;
 
   public static final Logger LOGGER = LoggerFactory
       .getLogger(LiteMeManagerFileSearchBatchResultProcessor.class);
@@ -108,7 +105,7 @@ SolrSearchBatchResultProcessor {
           write.object();
           int traversalDepth = SearchUtil.getTraversalDepth(request, -1);
           ExtendedJSONWriter.writeContentTreeToWriter(write, content, true, traversalDepth);
-          FileUtils.writeCommentCountProperty(content, session, write, repository);
+          FileUtils.writeCommentCountProperty(content, session, write);
           write.endObject();
         }
       } catch (StorageClientException e) {
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Collections;
+import java.util.Hashtable;
+
+public class CommentCountHandlerTest {
+
+  private CommentCountHandler handler;
+  private ContentManager contentManager;
+
+  @Before
+  public void setUp() throws Exception {
+    BaseMemoryRepository baseMemoryRepository = new BaseMemoryRepository();
+    handler = new CommentCountHandler();
+    handler.repository = baseMemoryRepository.getRepository();
+    contentManager = handler.repository.loginAdministrative().getContentManager();
+    contentManager.update(new Content("pool1", ImmutableMap.<String, Object> of(
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, FilesConstants.POOLED_CONTENT_RT)));
+    contentManager.update(new Content("pool1/comments", null));
+    contentManager.update(new Content("pool1/comments/1", ImmutableMap.<String, Object> of(
+        "comment", "first")));
+  }
+
+  @Test
+  public void testCommentedPath() {
+    assertEquals("pool1", CommentCountHandler.getCommentedPath("pool1/comments/1"));
+    assertEquals("a/b", CommentCountHandler.getCommentedPath("a/b/comments/1"));
+    assertNull(CommentCountHandler.getCommentedPath("pool1/comments"));
+    assertNull(CommentCountHandler.getCommentedPath("pool1/other/1"));
+    assertNull(CommentCountHandler.getCommentedPath("comments/1"));
+    assertNull(CommentCountHandler.getCommentedPath(null));
+  }
+
+  @Test
+  public void testCountFollowsComments() throws Exception {
+    contentManager.update(new Content("pool1/comments/2", ImmutableMap.<String, Object> of(
+        "comment", "second")));
+    handler.handleEvent(event("ADDED", "pool1/comments/2"));
+    assertEquals(2, count("pool1"));
+
+    contentManager.delete("pool1/comments/1");
+    handler.handleEvent(event("DELETE", "pool1/comments/1"));
+    assertEquals(1, count("pool1"));
+
+    // a repeated event doesn't change the count.
+    handler.handleEvent(event("DELETE", "pool1/comments/1"));
+    assertEquals(1, count("pool1"));
+  }
+
+  @Test
+  public void testOnlyPooledContentIsCounted() throws Exception {
+    contentManager.update(new Content("page1", null));
+    contentManager.update(new Content("page1/comments/1", null));
+    handler.handleEvent(event("ADDED", "page1/comments/1"));
+    assertFalse(contentManager.get("page1").hasProperty(FilesConstants.COMMENT_COUNT));
+  }
+
+  @Test
+  public void testBackfill() throws Exception {
+    contentManager.update(new Content("pool2", ImmutableMap.<String, Object> of(
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, FilesConstants.POOLED_CONTENT_RT)));
+    SolrDocumentList results = new SolrDocumentList();
+    results.add(new SolrDocument());
+    results.get(0).setField("id", "pool1");
+    results.add(new SolrDocument());
+    results.get(1).setField("id", "pool2");
+    results.setNumFound(2);
+    QueryResponse response = Mockito.mock(QueryResponse.class);
+    Mockito.when(response.getResults()).thenReturn(results);
+    SolrServer server = Mockito.mock(SolrServer.class);
+    Mockito.when(server.query(Mockito.any(SolrQuery.class))).thenReturn(response);
+    handler.solrServerService = Mockito.mock(SolrServerService.class);
+    Mockito.when(handler.solrServerService.getServer()).thenReturn(server);
+
+    handler.activate(Collections.<String, Object> singletonMap(CommentCountHandler.BACKFILL,
+        false));
+    handler.backfill();
+
+    assertEquals(1, count("pool1"));
+    assertEquals(0, count("pool2"));
+    assertTrue(contentManager.exists(CommentCountHandler.SYSTEM_LOG_PATH));
+
+    // it only runs once.
+    handler.backfill();
+    Mockito.verify(server, Mockito.times(1)).query(Mockito.any(SolrQuery.class));
+    handler.deactivate();
+  }
+
+  private int count(String path) throws Exception {
+    return StorageClientUtils.toInt(contentManager.get(path).getProperty(
+        FilesConstants.COMMENT_COUNT));
+  }
+
+  private Event event(String type, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event("org/sakaiproject/nakamura/lite/content/" + type, properties);
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String DATA = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private ContentManager contentManager;
+  private Resource resource;
+  private Content content;
+  private ByteArrayOutputStream output;
+
+  @Before
+  public void before() throws Exception {
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    contentManager = Mockito.mock(ContentManager.class);
+    resource = Mockito.mock(Resource.class);
+    content = new Content("p/abc", ImmutableMap.of(Content.LENGTH_FIELD, (Object) DATA.length(),
+        Content.MIMETYPE_FIELD, "text/plain", Content.LASTMODIFIED_FIELD, 1309276646363L,
+        "_bodyLocation", "2011/5/-V/7P/mM/-V7PmMdM-QDHyHslMftAMF21H4s"));
+    Mockito.when(contentManager.getInputStream("p/abc", null)).thenReturn(
+        new ByteArrayInputStream(DATA.getBytes("UTF-8")));
+    Mockito.when(request.getDateHeader(Mockito.anyString())).thenReturn(-1L);
+    output = new ByteArrayOutputStream();
+    Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        output.write(b);
+      }
+    });
+  }
+
+  private void stream() throws Exception {
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+  }
+
+  private String etag() throws Exception {
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    Mockito.verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+    return etag.getValue();
+  }
+
+  @Test
+  public void testFullBodyWithETag() throws Exception {
+    stream();
+    Assert.assertEquals(DATA, output.toString("UTF-8"));
+    Mockito.verify(response).setContentLength(DATA.length());
+    Mockito.verify(response).setHeader("Accept-Ranges", "bytes");
+    String etag = etag();
+    Assert.assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    stream();
+    String etag = etag();
+
+    response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + etag);
+    Mockito.when(contentManager.getInputStream("p/abc", null)).thenReturn(
+        new ByteArrayInputStream(DATA.getBytes("UTF-8")));
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(response, Mockito.never()).getOutputStream();
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=10-15");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader("Content-Range", "bytes 10-15/36");
+    Mockito.verify(response).setContentLength(6);
+    Assert.assertEquals("abcdef", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testSuffixRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=-4");
+    stream();
+    Mockito.verify(response).setHeader("Content-Range", "bytes 32-35/36");
+    Assert.assertEquals("wxyz", output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=30-31,0-1,1-2");
+    stream();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    ArgumentCaptor<String> contentType = ArgumentCaptor.forClass(String.class);
+    Mockito.verify(response).setContentType(contentType.capture());
+    Assert.assertTrue(contentType.getValue().startsWith("multipart/byteranges; boundary="));
+    String boundary = contentType.getValue().substring(31);
+    String expected = "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\n"
+        + "Content-Range: bytes 0-2/36\r\n\r\n012" + "\r\n--" + boundary
+        + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 30-31/36\r\n\r\nuv"
+        + "\r\n--" + boundary + "--\r\n";
+    Assert.assertEquals(expected, output.toString("UTF-8"));
+    Mockito.verify(response).setContentLength(expected.length());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=100-200");
+    stream();
+    Mockito.verify(response).setHeader("Content-Range", "bytes */36");
+    Mockito.verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  @Test
+  public void testIfRangeMismatchSendsAll() throws Exception {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=10-15");
+    Mockito.when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+    stream();
+    Mockito.verify(response, Mockito.never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Assert.assertEquals(DATA, output.toString("UTF-8"));
+  }
+
+  @Test
+  public void testFileBackedRange() throws Exception {
+    File file = File.createTempFile("streamhelper", ".txt");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(DATA.getBytes("UTF-8"));
+      out.close();
+      Mockito.when(contentManager.getInputStream("p/abc", null)).thenReturn(
+          new FileInputStream(file));
+      Mockito.when(request.getHeader("Range")).thenReturn("bytes=20-");
+      stream();
+      Mockito.verify(response).setHeader("Content-Range", "bytes 20-35/36");
+      Assert.assertEquals("klmnopqrstuvwxyz", output.toString("UTF-8"));
+    } finally {
+      file.delete();
+    }
+  }
+}
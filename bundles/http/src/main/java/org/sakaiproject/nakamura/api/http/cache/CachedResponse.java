@@ -17,49 +17,248 @@
  */
 package org.sakaiproject.nakamura.api.http.cache;
 
-import org.sakaiproject.nakamura.api.http.cache.Operation;
 import org.sakaiproject.nakamura.http.cache.OperationResponseCapture;
 import org.sakaiproject.nakamura.http.cache.OperationResponseReplay;
+import org.sakaiproject.nakamura.util.StringUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
-  A pojo to contain the response redo log and content.
+  A pojo to contain the response redo log and content. The content is held encoded, as
+  is and gzipped when that is worth it, so that a hit can be written out without any
+  further work. Each variant has a strong ETag.
  */
 public class CachedResponse implements Serializable {
 
   /**
    *
    */
-  private static final long serialVersionUID = -533080549451000116L;
+  private static final long serialVersionUID = -533080549451000117L;
+  /**
+   * Content smaller than this is not worth compressing.
+   */
+  private static final int MIN_GZIP_SIZE = 256;
+  /**
+   * a : delimited list of headernames in lower case that are set from the variant rather than
+   * the redo log.
+   */
+  private static final String VARIANT_HEADERS = ":content-length:content-encoding:etag:";
+  /**
+   * a : delimited list of headernames in lower case that are also sent with a 304.
+   */
+  private static final String NOT_MODIFIED_HEADERS = ":cache-control:expires:";
   private long expires;
   private Operation[] operations;
-  private byte[] byteContent;
-  private String stringContent;
+  private byte[] content;
+  private byte[] gzipContent;
+  private String etag;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
+    this(responseOperation, cacheAge, null);
+  }
+
+  /**
+   * @param responseOperation
+   *          the captured response.
+   * @param cacheAge
+   *          seconds the response may be served from the cache.
+   * @param characterEncoding
+   *          the encoding of the response, used if the content was written as characters,
+   *          ISO-8859-1 if null.
+   * @throws IOException
+   */
+  public CachedResponse(OperationResponseCapture responseOperation, int cacheAge,
+      String characterEncoding) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
     responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
-    operations = responseOperation.getRedoLog();
-    byteContent = responseOperation.getByteContent();
-    stringContent = responseOperation.getStringContent();
+    String contentType = null;
+    List<Operation> redoLog = new ArrayList<Operation>();
+    for (Operation o : responseOperation.getRedoLog()) {
+      switch (o.getOperation()) {
+      case OperationResponseCapture.SET_CONTENT_LENGTH:
+        break;
+      case OperationResponseCapture.SET_CONTENT_TYPE:
+        contentType = o.get(0);
+        redoLog.add(o);
+        break;
+      case OperationResponseCapture.ADD_HEADER:
+      case OperationResponseCapture.SET_HEADER:
+      case OperationResponseCapture.ADD_INT_HEADER:
+      case OperationResponseCapture.SET_INT_HEADER:
+        String name = ((String) o.get(0)).toLowerCase();
+        if (VARIANT_HEADERS.indexOf(":" + name + ":") == -1) {
+          if ("content-type".equals(name)) {
+            contentType = o.get(1).toString();
+          }
+          redoLog.add(o);
+        }
+        break;
+      default:
+        redoLog.add(o);
+      }
+    }
+    operations = redoLog.toArray(new Operation[redoLog.size()]);
+    content = responseOperation.getByteContent();
+    if (content == null) {
+      String stringContent = responseOperation.getStringContent();
+      content = stringContent == null ? new byte[0] : stringContent
+          .getBytes(characterEncoding == null ? "ISO-8859-1" : characterEncoding);
+    }
+    if (content.length >= MIN_GZIP_SIZE && isCompressible(contentType)) {
+      byte[] gzipped = gzip(content);
+      if (gzipped.length < content.length) {
+        gzipContent = gzipped;
+      }
+    }
+    etag = digest(content);
   }
 
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @return the number of bytes held by this response, near enough.
+   */
+  public long getSize() {
+    return content.length + (gzipContent == null ? 0 : gzipContent.length)
+        + operations.length * 64L;
+  }
+
+  /**
+   * Replay the response as is.
+   */
   public void replay(HttpServletResponse response) throws IOException {
-    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
+    replay(null, response);
+  }
+
+  /**
+   * Replay the response, gzipped if the request accepts that, or answer a conditional
+   * request with a 304.
+   *
+   * @param request
+   *          the request, may be null.
+   * @param response
+   * @throws IOException
+   */
+  public void replay(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    boolean gzip = gzipContent != null && request != null && acceptsGzip(request);
+    String variantTag = gzip ? "\"" + etag + "-gz\"" : "\"" + etag + "\"";
+    if (gzipContent != null && !response.containsHeader("Vary")) {
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+    response.setHeader("ETag", variantTag);
+    if (request != null && matches(request.getHeader("If-None-Match"), variantTag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      // so that the client keeps caching for as long as the full response would have.
+      new OperationResponseReplay(getNotModifiedOperations()).replay(response);
+      return;
+    }
+    OperationResponseReplay responseOperation = new OperationResponseReplay(operations);
     responseOperation.replay(response);
+    byte[] body = content;
+    if (gzip) {
+      // set before any content, so that nothing further down compresses it again.
+      response.setHeader("Content-Encoding", "gzip");
+      body = gzipContent;
+    }
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
   }
 
   @Override
   public String toString() {
-    return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
+    return "redo "+operations.length+" operations "+content.length+(gzipContent == null ? "" : " gzip "+gzipContent.length);
+  }
+
+  private Operation[] getNotModifiedOperations() {
+    List<Operation> headers = new ArrayList<Operation>();
+    for (Operation o : operations) {
+      switch (o.getOperation()) {
+      case OperationResponseCapture.ADD_HEADER:
+      case OperationResponseCapture.SET_HEADER:
+      case OperationResponseCapture.ADD_DATE_HEADER:
+      case OperationResponseCapture.SET_DATE_HEADER:
+        String name = ((String) o.get(0)).toLowerCase();
+        if (NOT_MODIFIED_HEADERS.indexOf(":" + name + ":") != -1) {
+          headers.add(o);
+        }
+        break;
+      default:
+      }
+    }
+    return headers.toArray(new Operation[headers.size()]);
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    Boolean any = null;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      // gzip;q=0 refuses gzip.
+      boolean accepted = parts.length < 2
+          || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+      if ("gzip".equalsIgnoreCase(name)) {
+        return accepted;
+      }
+      if ("*".equals(name)) {
+        any = accepted;
+      }
+    }
+    // * covers gzip when it isn't named.
+    return any != null && any;
+  }
+
+  private static boolean matches(String ifNoneMatch, String tag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if ("*".equals(candidate) || tag.equals(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return true;
+    }
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.contains("json") || type.contains("javascript")
+        || type.contains("xml");
+  }
+
+  private static byte[] gzip(byte[] content) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 3);
+    GZIPOutputStream out = new GZIPOutputStream(baos);
+    out.write(content);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  private static String digest(byte[] content) throws IOException {
+    try {
+      return StringUtils.byteToHex(MessageDigest.getInstance("SHA-1").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e.getMessage());
+    }
   }
 
 }
@@ -59,7 +59,14 @@ public interface QoSToken {
   void acquire() throws InterruptedException;
 
   /**
-   * Queue a continuation pending more resources
+   * @return true if the request may be queued when it can't be handled straight away,
+   *         false if it should be refused now because too many requests are waiting.
+   */
+  boolean canQueue();
+
+  /**
+   * Queue a continuation pending more resources. The request is queued before it is
+   * suspended, since a continuation may not return from suspend until it is resumed.
    * @param continuation
    */
   void queue(Continuation continuation);
@@ -27,10 +27,8 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 
 import java.io.IOException;
@@ -57,6 +55,11 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * When more than one pattern matches, the filter sets the lowest maxage of the collection
  * of matching patterns.
+ *
+ * Where a .requestCache age is configured, whole responses are cached within a byte budget
+ * keyed by path and query, with a gzipped variant so that hits are neither rendered nor
+ * compressed again. Hits carry a strong ETag and conditional requests are answered
+ * with a 304.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -75,6 +78,13 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "service.vendor", value = "The Sakai Foundation")})
 public class CacheControlFilter implements Filter {
 
+  private static final StripedCounter REQUESTS = TelemetryCounter.counter("http",
+      "CacheControl", "requests");
+  private static final StripedCounter CACHED_RESPONSES = TelemetryCounter.counter("http",
+      "CacheControl", "cachedResponses");
+  private static final LatencyHistogram REQUEST_TIME = TelemetryCounter.histogram("http",
+      "CacheControl", "request.ms");
+
   /**
    * map of expiry times for whole subtrees
    */
@@ -100,10 +110,20 @@ public class CacheControlFilter implements Filter {
   @Property(intValue=5)
   private static final String FILTER_PRIORITY_CONF = "filter.priority";
 
-  
-  @Reference 
-  protected CacheManagerService cacheManagerService;
-  
+  /**
+   * Total bytes of cached responses, including the gzipped variants.
+   */
+  @Property(longValue=33554432L)
+  static final String SAKAI_CACHE_MAX_BYTES = "sakai.cache.maxBytes";
+
+  /**
+   * Responses bigger than this are not cached.
+   */
+  @Property(longValue=1048576L)
+  static final String SAKAI_CACHE_MAX_ENTRY_BYTES = "sakai.cache.maxEntryBytes";
+
+  private ResponseCache responseCache = new ResponseCache(33554432L, 1048576L);
+
   @Reference
   protected ExtHttpService extHttpService;
 
@@ -126,7 +146,17 @@ public class CacheControlFilter implements Filter {
     HttpServletRequest srequest = (HttpServletRequest) request;
     HttpServletResponse sresponse = (HttpServletResponse) response;
     String path = srequest.getPathInfo();
-    TelemetryCounter.incrementValue("http","CacheControl", path);
+    REQUESTS.increment();
+    long start = System.currentTimeMillis();
+    try {
+      doFilter(srequest, sresponse, chain, path);
+    } finally {
+      REQUEST_TIME.record(System.currentTimeMillis() - start);
+    }
+  }
+
+  private void doFilter(HttpServletRequest srequest, HttpServletResponse sresponse,
+      FilterChain chain, String path) throws IOException, ServletException {
     int respCode = 0;
     Map<String, String> headers = null;
     boolean withLastModfied = true;
@@ -163,9 +193,10 @@ public class CacheControlFilter implements Filter {
       sresponse.flushBuffer();
     } else {
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, responseCache);
         if ( cachedResponseManager.isValid() ) {
-          cachedResponseManager.send(sresponse);
+          CACHED_RESPONSES.increment();
+          cachedResponseManager.send(srequest, sresponse);
           return;
         }
       }
@@ -173,21 +204,20 @@ public class CacheControlFilter implements Filter {
         fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
       }
       if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
+        chain.doFilter(srequest, fresponse);
         if ( cachedResponseManager != null ) {
-          cachedResponseManager.save(fresponse.getResponseOperation());
+          cachedResponseManager.save(fresponse.getResponseOperation(), fresponse.getCharacterEncoding());
         }
       } else {
-        chain.doFilter(request, response);
+        chain.doFilter(srequest, sresponse);
       }
     }
   }
 
-  private Cache<CachedResponse> getCache() {
-    return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
+  ResponseCache getResponseCache() {
+    return responseCache;
   }
 
-
   private Map<String, String> getHeaders(String path) {
 
     // get the Path and then the first 2 elements (2 so that we can tell if this is root
@@ -264,6 +294,9 @@ public class CacheControlFilter implements Filter {
     }
 
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),0);
+    responseCache = new ResponseCache(
+        PropertiesUtil.toLong(properties.get(SAKAI_CACHE_MAX_BYTES), 33554432L),
+        PropertiesUtil.toLong(properties.get(SAKAI_CACHE_MAX_ENTRY_BYTES), 1048576L));
 
     extHttpService.registerFilter(this, ".*", null, filterPriority, null);
 
@@ -273,6 +306,7 @@ public class CacheControlFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    responseCache.clear();
   }
 
   private Map<String, String> toMap(int starting, String[] cp) {
@@ -18,7 +18,6 @@
 package org.sakaiproject.nakamura.http.cache;
 
 import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
-import org.sakaiproject.nakamura.api.memory.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,15 +26,19 @@ import java.io.IOException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Looks up and saves the cached response of a request. The key is the request, the
+ * encoding variants live within the cached response.
+ */
 public class CachedResponseManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseManager.class);
   private int cacheAge;
   private String key;
-  private Cache<CachedResponse> cache;
+  private ResponseCache cache;
   private CachedResponse cachedResponse;
 
-  public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+  public CachedResponseManager(HttpServletRequest request, int cacheAge, ResponseCache cache) {
     this.cacheAge = cacheAge;
     this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
     this.cache = cache;
@@ -53,10 +56,10 @@ public class CachedResponseManager {
     return cachedResponse != null;
   }
 
-  public void save(OperationResponseCapture responseOperation) {
+  public void save(OperationResponseCapture responseOperation, String characterEncoding) {
     try {
       if ( responseOperation.canCache() ) {
-        cache.put(key, new CachedResponse(responseOperation, cacheAge));
+        cache.put(key, new CachedResponse(responseOperation, cacheAge, characterEncoding));
       }
     } catch (IOException e) {
       LOGGER.error("Failed to save response in cache ",e);
@@ -64,17 +67,11 @@ public class CachedResponseManager {
   }
 
   private CachedResponse load() {
-    CachedResponse cachedResponse = null;
-    cachedResponse = cache.get(key);
-    if ( cachedResponse != null && !cachedResponse.isValid() ) {
-      cachedResponse = null;
-      cache.remove(key);
-    }
-    return cachedResponse;
+    return cache.get(key);
   }
 
-  public void send(HttpServletResponse response) throws IOException {
-    cachedResponse.replay(response);
+  public void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    cachedResponse.replay(request, response);
   }
   
   @Override
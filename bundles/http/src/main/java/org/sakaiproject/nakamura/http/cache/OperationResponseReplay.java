@@ -32,17 +32,14 @@ public class OperationResponseReplay implements Serializable {
    */
   private static final long serialVersionUID = 3978261366893966679L;
   private Operation[] operations;
-  private String stringContent;
-  private byte[] byteContent;
 
-  public OperationResponseReplay(Operation[] operations, byte[] byteContent, String stringContent) {
+  public OperationResponseReplay(Operation[] operations) {
     this.operations = operations.clone();
-    this.byteContent = byteContent.clone();
-    this.stringContent = stringContent;
   }
 
   /**
-   * Replay the cached request
+   * Replay the headers and status of the cached request, the content is written by the
+   * caller.
    * @param response
    * @throws IOException
    */
@@ -90,12 +87,6 @@ public class OperationResponseReplay implements Serializable {
       }
     }
 
-     if ( stringContent != null  ) {
-       response.getWriter().write(stringContent);
-     } else if ( byteContent != null ){
-       response.getOutputStream().write(byteContent);
-     }
-
   }
 
 
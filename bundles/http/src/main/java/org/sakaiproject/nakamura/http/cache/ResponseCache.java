@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds cached responses within a byte budget, evicting the least recently used
+ * responses first, so that a few large responses cannot push out many small ones and
+ * many small ones cannot use unbounded memory.
+ *
+ * Every hit moves the response to the young end of the recency order, so the responses
+ * are split over segments by key, each with its own share of the budget and its own
+ * lock, and concurrent hits on different keys rarely wait for each other. Recency is
+ * kept per segment, so eviction is least recently used within a segment.
+ */
+public class ResponseCache {
+
+  private static final StripedCounter EVICTIONS = TelemetryCounter.counter("http",
+      "CacheControl", "evictions");
+  private static final StripedCounter CACHED_BYTES = TelemetryCounter.counter("http",
+      "CacheControl", "cachedBytes");
+
+  private static final int MAX_SEGMENTS = 16;
+  /**
+   * The number of the largest responses each segment must be able to hold, so that
+   * splitting the budget does not make eviction much worse.
+   */
+  private static final int MIN_ENTRIES_PER_SEGMENT = 4;
+
+  private static class Segment {
+    private final LinkedHashMap<String, CachedResponse> responses = new LinkedHashMap<String, CachedResponse>(
+        16, 0.75f, true);
+    private final long maxBytes;
+    private long size;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+  }
+
+  private final Segment[] segments;
+  private final int segmentMask;
+  private final long maxEntryBytes;
+  private final AtomicLong size = new AtomicLong();
+
+  /**
+   * @param maxBytes
+   *          the total size of the responses held.
+   * @param maxEntryBytes
+   *          responses bigger than this are not held.
+   */
+  public ResponseCache(long maxBytes, long maxEntryBytes) {
+    this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    // a power of 2 number of segments, each big enough for a few of the largest responses.
+    int nsegments = 1;
+    while (nsegments < MAX_SEGMENTS
+        && nsegments * 2 * MIN_ENTRIES_PER_SEGMENT * this.maxEntryBytes <= maxBytes) {
+      nsegments = nsegments * 2;
+    }
+    segmentMask = nsegments - 1;
+    segments = new Segment[nsegments];
+    // share the budget out so that the segments add up to exactly maxBytes.
+    for (int i = 0; i < nsegments; i++) {
+      segments[i] = new Segment(maxBytes / nsegments + (i < maxBytes % nsegments ? 1 : 0));
+    }
+  }
+
+  private Segment segmentFor(String key) {
+    // spread the hash bits so that poor hashCodes still use all segments.
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & segmentMask];
+  }
+
+  /**
+   * @return the response, or null if there is none or it has expired.
+   */
+  public CachedResponse get(String key) {
+    Segment s = segmentFor(key);
+    synchronized (s) {
+      CachedResponse cachedResponse = s.responses.get(key);
+      if (cachedResponse != null && !cachedResponse.isValid()) {
+        remove(s, key);
+        return null;
+      }
+      return cachedResponse;
+    }
+  }
+
+  public void put(String key, CachedResponse cachedResponse) {
+    Segment s = segmentFor(key);
+    synchronized (s) {
+      remove(s, key);
+      long entrySize = cachedResponse.getSize();
+      if (entrySize > maxEntryBytes) {
+        return;
+      }
+      s.responses.put(key, cachedResponse);
+      s.size += entrySize;
+      long added = entrySize;
+      for (Iterator<Entry<String, CachedResponse>> i = s.responses.entrySet().iterator(); s.size > s.maxBytes
+          && i.hasNext();) {
+        long evicted = i.next().getValue().getSize();
+        s.size -= evicted;
+        added -= evicted;
+        i.remove();
+        EVICTIONS.increment();
+      }
+      updateGauge(added);
+    }
+  }
+
+  public void remove(String key) {
+    Segment s = segmentFor(key);
+    synchronized (s) {
+      remove(s, key);
+    }
+  }
+
+  private void remove(Segment s, String key) {
+    CachedResponse cachedResponse = s.responses.remove(key);
+    if (cachedResponse != null) {
+      s.size -= cachedResponse.getSize();
+      updateGauge(-cachedResponse.getSize());
+    }
+  }
+
+  public void clear() {
+    for (Segment s : segments) {
+      synchronized (s) {
+        s.responses.clear();
+        updateGauge(-s.size);
+        s.size = 0;
+      }
+    }
+  }
+
+  /**
+   * @return the bytes held.
+   */
+  public long getSize() {
+    return size.get();
+  }
+
+  public int getCount() {
+    int count = 0;
+    for (Segment s : segments) {
+      synchronized (s) {
+        count += s.responses.size();
+      }
+    }
+    return count;
+  }
+
+  private void updateGauge(long delta) {
+    long total = size.addAndGet(delta);
+    CACHED_BYTES.reset();
+    CACHED_BYTES.add(total);
+  }
+}
@@ -33,6 +33,7 @@ import javax.servlet.http.HttpServletResponseWrapper;
 public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
   private final CharArrayWriter caw;
   private final ByteArrayOutputStream baos;
+  private long lastModified = -1;
 
   public CapturingHttpServletResponse(HttpServletResponse response) {
     super(response);
@@ -40,6 +41,29 @@ public class CapturingHttpServletResponse extends HttpServletResponseWrapper {
     baos = new ByteArrayOutputStream();
   }
 
+  @Override
+  public void setDateHeader(String name, long date) {
+    super.setDateHeader(name, date);
+    if ("Last-Modified".equalsIgnoreCase(name)) {
+      lastModified = date;
+    }
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    super.addDateHeader(name, date);
+    if ("Last-Modified".equalsIgnoreCase(name)) {
+      lastModified = date;
+    }
+  }
+
+  /**
+   * @return the Last-Modified date set on the response, -1 if none was set.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
   @Override
   public ServletOutputStream getOutputStream() throws IOException {
     // calling super will throw an exception if that's the right thing to do
@@ -23,19 +23,28 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import javax.jcr.Node;
@@ -53,6 +62,10 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Filter to transform __MSG_*__ i18n message keys into i18n messages.
+ *
+ * Pages are compiled once per version into an {@link I18nTemplate} and rendered once per
+ * locale. Language bundles are parsed once. Both are dropped when the pages or bundles
+ * change in the repository.
  */
 @Component(metatype = true, enabled=false)
 @Service
@@ -63,24 +76,54 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
     @Property(name = I18nFilter.BUNDLES_PATH, value = I18nFilter.DEFAULT_BUNDLES_PATH),
     @Property(name = I18nFilter.MESSAGE_KEY_PATTERN, value = I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN),
-    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS)
+    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS),
+    @Property(name = I18nFilter.TEMPLATE_CACHE_SIZE, intValue = I18nFilter.DEFAULT_TEMPLATE_CACHE_SIZE),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true)
 })
-public class I18nFilter implements Filter {
+public class I18nFilter implements Filter, EventHandler {
   public static final String PARAM_LANGUAGE = "l";
   public static final String DEFAULT_BUNDLES_PATH = "/dev/bundle";
   public static final String DEFAULT_MESSAGE_KEY_PATTERN = "__MSG__(.+?)__";
   public static final boolean DEFAULT_SHOW_MISSING_KEYS = true;
+  public static final int DEFAULT_TEMPLATE_CACHE_SIZE = 500;
 
   private static final Logger logger = LoggerFactory.getLogger(I18nFilter.class);
 
   static final String BUNDLES_PATH = "sakai.filter.i18n.bundles.path";
   static final String MESSAGE_KEY_PATTERN = "sakai.filter.i18n.message_key.pattern";
   static final String SHOW_MISSING_KEYS = "sakai.filter.i18n.message_key.show_missing";
+  static final String TEMPLATE_CACHE_SIZE = "sakai.filter.i18n.template.cache.size";
 
   private String bundlesPath;
   private String keyPattern;
   private Pattern messageKeyPattern;
   private boolean showMissingKeys;
+  private int templateCacheSize = DEFAULT_TEMPLATE_CACHE_SIZE;
+
+  /**
+   * Compiled pages by path, least recently used first.
+   */
+  private final Map<String, I18nTemplate> templates = new LinkedHashMap<String, I18nTemplate>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, I18nTemplate> eldest) {
+      return size() > templateCacheSize;
+    }
+  };
+
+  /**
+   * Parsed language bundles by name.
+   */
+  private final ConcurrentMap<String, Properties> bundles = new ConcurrentHashMap<String, Properties>();
+
+  /**
+   * Bumped whenever the caches are cleared, so that a page or bundle loaded before the
+   * clear is not put back into the cache after it.
+   */
+  private final AtomicLong generation = new AtomicLong();
 
   @Activate @Modified
   public void modified(Map<?, ?> props) {
@@ -92,6 +135,43 @@ public class I18nFilter implements Filter {
 
     showMissingKeys = PropertiesUtil.toBoolean(props.get(SHOW_MISSING_KEYS),
         DEFAULT_SHOW_MISSING_KEYS);
+
+    templateCacheSize = PropertiesUtil.toInteger(props.get(TEMPLATE_CACHE_SIZE),
+        DEFAULT_TEMPLATE_CACHE_SIZE);
+    clearCaches();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    if (path.startsWith(bundlesPath)) {
+      // messages may be rendered into any page.
+      clearCaches();
+    } else if (path.startsWith("/dev/") || path.startsWith("/devwidgets/")) {
+      synchronized (templates) {
+        for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+          String templatePath = i.next();
+          if (path.startsWith(templatePath) || templatePath.startsWith(path)) {
+            i.remove();
+          }
+        }
+      }
+    }
+  }
+
+  private void clearCaches() {
+    generation.incrementAndGet();
+    bundles.clear();
+    synchronized (templates) {
+      templates.clear();
+    }
   }
 
   // ---------- Filter interface ----------
@@ -148,7 +228,8 @@ public class I18nFilter implements Filter {
       if (!StringUtils.isBlank(output)) {
         long start = System.currentTimeMillis();
 
-        writeFilteredResponse(srequest, response, output);
+        writeFilteredResponse(srequest, response, output,
+            getVersion((CapturingHttpServletResponse) httpResponse, output));
 
         long end = System.currentTimeMillis();
         logger.debug("Filtered {} in {}ms", path, (end - start));
@@ -156,6 +237,24 @@ public class I18nFilter implements Filter {
     }
   }
 
+  /**
+   * @return the version of the page, its last modified date when known or else a SHA-1
+   *         digest of the content.
+   * @throws IOException
+   */
+  private String getVersion(CapturingHttpServletResponse response, String output)
+      throws IOException {
+    long lastModified = response.getLastModified();
+    if (lastModified >= 0) {
+      return "m" + lastModified;
+    }
+    try {
+      return "h" + org.sakaiproject.nakamura.util.StringUtils.sha1Hash(output);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   /**
    * Filter <code>output</code> of any message keys by replacing them with the matching
    * message from the language bundle associated to the user.
@@ -163,65 +262,54 @@ public class I18nFilter implements Filter {
    * @param srequest
    * @param response
    * @param output
+   * @param version
    * @throws IOException
    */
   private void writeFilteredResponse(SlingHttpServletRequest srequest,
-      ServletResponse response, String output) throws IOException {
-    StringBuilder sb = new StringBuilder(output);
+      ServletResponse response, String output, String version) throws IOException {
+    String path = srequest.getPathInfo();
+    String filtered = output;
+    long loadGeneration = generation.get();
     try {
-      Session session = srequest.getResourceResolver().adaptTo(Session.class);
-      Node bundlesNode = session.getNode(bundlesPath);
-
-      // load the language bundle
-      Locale locale = getLocale(srequest);
-      Properties bndLang = getLangBundle(bundlesNode, locale.toString());
-
-      // load the default bundle
-      Properties bndLangDefault = getLangBundle(bundlesNode, "default");
-
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
-          String message = "";
-
-          if (bndLang.containsKey(key)) {
-            message = bndLang.getProperty(key);
-          } else if (bndLangDefault.containsKey(key)) {
-            message = bndLangDefault.getProperty(key);
-          } else {
-            String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
-            logger.warn(msg);
-            if (showMissingKeys) {
-              message = msg;
-            }
+      I18nTemplate template;
+      synchronized (templates) {
+        template = templates.get(path);
+      }
+      if (template == null || !version.equals(template.getVersion())) {
+        template = new I18nTemplate(output, messageKeyPattern, version);
+        synchronized (templates) {
+          if (generation.get() == loadGeneration) {
+            templates.put(path, template);
           }
+        }
+      }
 
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
-          }
+      String locale = getLocale(srequest).toString();
+      filtered = template.getRendered(locale);
+      if (filtered == null) {
+        Session session = srequest.getResourceResolver().adaptTo(Session.class);
+        Node bundlesNode = session.getNode(bundlesPath);
 
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
-        }
+        // load the language bundle
+        Properties bndLang = getLangBundle(bundlesNode, locale, loadGeneration);
+
+        // load the default bundle
+        Properties bndLangDefault = getLangBundle(bundlesNode, "default", loadGeneration);
+
+        filtered = template.render(locale, bndLang, bndLangDefault, showMissingKeys);
       }
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
+      filtered = output;
     }
 
-    response.setContentLength(sb.length());
+    response.setContentLength(filtered.length());
 
     // send the output to the actual response
     try {
-      response.getWriter().write(sb.toString());
+      response.getWriter().write(filtered);
     } catch (IllegalStateException e) {
-      response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+      response.getOutputStream().write(filtered.getBytes("UTF-8"));
     }
   }
 
@@ -239,15 +327,31 @@ public class I18nFilter implements Filter {
     return l;
   }
 
-  private Properties getLangBundle(Node bundlesNode, String name)
+  /**
+   * @param loadGeneration
+   *          the generation of the caches when the request started, the bundle is only
+   *          cached if they have not been cleared since.
+   */
+  private Properties getLangBundle(Node bundlesNode, String name, long loadGeneration)
       throws PathNotFoundException, RepositoryException, ValueFormatException,
       IOException {
+    Properties cached = bundles.get(name);
+    if (cached != null) {
+      return cached;
+    }
     Node langNode = bundlesNode.getNode(name + ".properties");
     Node content = langNode.getNode("jcr:content");
     Properties props = new Properties();
     InputStream in = content.getProperty("jcr:data").getBinary().getStream();
     props.load(in);
     in.close();
+    if (generation.get() == loadGeneration) {
+      bundles.put(name, props);
+      // the caches may have been cleared between the check and the put.
+      if (generation.get() != loadGeneration) {
+        bundles.remove(name, props);
+      }
+    }
     return props;
   }
 }
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A page split once into literal chunks and message key slots, so that rendering it in a
+ * language is a single pass of concatenation. The rendered pages are kept per locale.
+ */
+public class I18nTemplate {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(I18nTemplate.class);
+
+  private final String version;
+  private final String[] literals;
+  private final String[] keys;
+  private final int literalLength;
+  private final Map<String, String> rendered = new ConcurrentHashMap<String, String>();
+
+  /**
+   * @param output
+   *          the page.
+   * @param messageKeyPattern
+   *          the pattern of a message key, group 1 being the key.
+   * @param version
+   *          the version of the page the template was compiled from.
+   */
+  public I18nTemplate(String output, Pattern messageKeyPattern, String version) {
+    this.version = version;
+    List<String> literalList = new ArrayList<String>();
+    List<String> keyList = new ArrayList<String>();
+    Matcher m = messageKeyPattern.matcher(output);
+    int last = 0;
+    int length = 0;
+    while (m.find()) {
+      literalList.add(output.substring(last, m.start()));
+      keyList.add(m.group(1));
+      length += m.start() - last;
+      last = m.end();
+    }
+    literalList.add(output.substring(last));
+    length += output.length() - last;
+    literals = literalList.toArray(new String[literalList.size()]);
+    keys = keyList.toArray(new String[keyList.size()]);
+    literalLength = length;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the page rendered for a locale by an earlier call to
+   *         {@link #render(String, Properties, Properties, boolean)}, or null.
+   */
+  public String getRendered(String locale) {
+    return rendered.get(locale);
+  }
+
+  /**
+   * Render the page, replacing each key with the message from the language bundle, the
+   * default bundle or, if the key is in neither, the missing key marker.
+   *
+   * @param locale
+   *          the locale the rendered page is kept under.
+   * @param bndLang
+   * @param bndLangDefault
+   * @param showMissingKeys
+   * @return the rendered page.
+   */
+  public String render(String locale, Properties bndLang, Properties bndLangDefault,
+      boolean showMissingKeys) {
+    StringBuilder sb = new StringBuilder(literalLength + keys.length * 16);
+    for (int i = 0; i < keys.length; i++) {
+      sb.append(literals[i]);
+      String key = keys[i];
+      String message = bndLang.getProperty(key);
+      if (message == null) {
+        message = bndLangDefault.getProperty(key);
+      }
+      if (message == null) {
+        message = "[MESSAGE KEY NOT FOUND '" + key + "']";
+        LOGGER.warn(message);
+        if (!showMissingKeys) {
+          message = "";
+        }
+      }
+      sb.append(message);
+    }
+    sb.append(literals[keys.length]);
+    String page = sb.toString();
+    rendered.put(locale, page);
+    return page;
+  }
+}
@@ -17,42 +17,281 @@
  */
 package org.sakaiproject.nakamura.http.qos;
 
-import org.mortbay.util.ajax.Continuation;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.ServletRequest;
 
+/**
+ * Limits the number of concurrent requests in one QoS category.
+ *
+ * With a fixed limit this behaves as the semaphore it replaces. In adaptive mode the
+ * limit follows the observed latency: while requests take about as long as the fastest
+ * recent ones the limit grows, and as latency rises above that the limit shrinks, so
+ * that when storage or Solr slows down requests are queued and shed early rather than
+ * piling up inside the server. The limit, queued and rejected counts are exported as
+ * telemetry under http::QoS.&lt;category&gt;.
+ */
 public class QoSControl {
 
-  private Semaphore semaphore;
-  private int priority;
-  private Queue<Continuation>[] priorityQueue;
-  private long timeout;
+  /**
+   * How much the latency may grow over the fastest recent latency before the limit
+   * starts to shrink.
+   */
+  private static final double TOLERANCE = 2.0;
+  /**
+   * Weight of each new limit estimate.
+   */
+  private static final double SMOOTHING = 0.2;
+  /**
+   * Samples after which the fastest latency is forgotten, so that it follows a change in
+   * the normal latency.
+   */
+  private static final int WINDOW = 500;
+
+  private final String name;
+  private final int priority;
+  private final long timeout;
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+  private final int queueFactor;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final AtomicInteger queued = new AtomicInteger();
+  private int limit;
+  private int inFlight;
+  private double estimatedLimit;
+  private long minRtt;
+  private long windowMinRtt = Long.MAX_VALUE;
+  private int samples;
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
-      long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+  private final StripedCounter rejectedCounter;
+  private final StripedCounter queuedCounter;
+  private final StripedCounter limitGauge;
+  private final LatencyHistogram requestTime;
+
+  /**
+   * A category with a fixed limit.
+   */
+  public QoSControl(String name, int nRequests, int priority, long timeout) {
+    this(name, nRequests, priority, timeout, false, nRequests, nRequests, 0);
+  }
+
+  /**
+   * @param name
+   *          the category, used to name the metrics.
+   * @param nRequests
+   *          the concurrent requests allowed, the starting limit in adaptive mode.
+   * @param priority
+   *          the queue suspended requests are put into, 0 is the lowest.
+   * @param timeout
+   *          the time (ms) a suspended request may wait.
+   * @param adaptive
+   *          true to adapt the limit to the latency.
+   * @param minLimit
+   *          the lowest adaptive limit.
+   * @param maxLimit
+   *          the highest adaptive limit.
+   * @param queueFactor
+   *          requests are shed rather than queued once this many times the limit are
+   *          waiting, 0 for no bound.
+   */
+  public QoSControl(String name, int nRequests, int priority, long timeout,
+      boolean adaptive, int minLimit, int maxLimit, int queueFactor) {
+    this.name = name;
     this.priority = priority;
-    this.priorityQueue = priorityQueue.clone();
     this.timeout = timeout;
+    this.adaptive = adaptive;
+    this.minLimit = Math.max(1, Math.min(minLimit, nRequests));
+    this.maxLimit = Math.max(nRequests, maxLimit);
+    this.queueFactor = queueFactor;
+    this.limit = nRequests;
+    this.estimatedLimit = nRequests;
+    String service = "QoS." + name;
+    rejectedCounter = TelemetryCounter.counter("http", service, "rejected");
+    queuedCounter = TelemetryCounter.counter("http", service, "queued");
+    limitGauge = TelemetryCounter.counter("http", service, "limit");
+    requestTime = TelemetryCounter.histogram("http", service, "request.ms");
+    setGauge(limit);
   }
 
-  public Semaphore getSemaphore() {
-    return semaphore;
+  public String getName() {
+    return name;
   }
 
   public int getPriority(ServletRequest request) {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
-    return priorityQueue;
-  }
-
   public long getTimeout() {
     return timeout;
   }
 
+  public int getLimit() {
+    lock.lock();
+    try {
+      return limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait up to waitMs for room to run a request.
+   *
+   * @return true if the request may run.
+   * @throws InterruptedException
+   */
+  public boolean tryAcquire(long waitMs) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(waitMs);
+    lock.lockInterruptibly();
+    try {
+      while (inFlight >= limit) {
+        if (remaining <= 0) {
+          return false;
+        }
+        remaining = available.awaitNanos(remaining);
+      }
+      inFlight++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait for room to run a request.
+   *
+   * @throws InterruptedException
+   */
+  public void acquire() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (inFlight >= limit) {
+        available.await();
+      }
+      inFlight++;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take room for a queued request without waiting.
+   *
+   * @return true if there was room, the request must release it.
+   */
+  public boolean tryReserve() {
+    lock.lock();
+    try {
+      if (inFlight >= limit) {
+        return false;
+      }
+      inFlight++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Give back the room taken by a request.
+   *
+   * @param elapsedNanos
+   *          how long the request ran, -1 if it did not run.
+   */
+  public void release(long elapsedNanos) {
+    lock.lock();
+    try {
+      if (elapsedNanos >= 0) {
+        requestTime.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        if (adaptive) {
+          sample(elapsedNanos);
+        }
+      }
+      inFlight--;
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return true if another request may wait in the queue for this category.
+   */
+  public boolean canQueue() {
+    return queueFactor <= 0 || queued.get() < getLimit() * queueFactor;
+  }
+
+  protected void queued() {
+    queued.incrementAndGet();
+    queuedCounter.increment();
+  }
+
+  protected void dequeued() {
+    queued.decrementAndGet();
+  }
+
+  protected void rejected() {
+    rejectedCounter.increment();
+  }
+
+  /**
+   * Called with the lock held.
+   */
+  private void sample(long rtt) {
+    if (rtt <= 0) {
+      return;
+    }
+    if (rtt < windowMinRtt) {
+      windowMinRtt = rtt;
+    }
+    if (minRtt == 0 || rtt < minRtt) {
+      minRtt = rtt;
+    }
+    if (++samples >= WINDOW) {
+      minRtt = windowMinRtt;
+      windowMinRtt = Long.MAX_VALUE;
+      samples = 0;
+    }
+    if (inFlight * 2 < limit) {
+      // the limit is not being used, the latency says nothing about it.
+      return;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * minRtt / rtt));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    estimatedLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+    int newIntLimit = (int) estimatedLimit;
+    if (newIntLimit != limit) {
+      if (newIntLimit > limit) {
+        available.signalAll();
+      }
+      limit = newIntLimit;
+      setGauge(limit);
+    }
+  }
+
+  private void setGauge(int value) {
+    limitGauge.reset();
+    limitGauge.add(value);
+  }
+
 }
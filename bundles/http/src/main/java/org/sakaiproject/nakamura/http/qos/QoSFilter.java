@@ -36,9 +36,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Dictionary;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -51,6 +49,8 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
+ * Within a priority, pending requests are taken out one per client address in turn, and a client may only have a few requests pending,
+ * so that one busy client cannot hold up everyone else. In adaptive mode the number of concurrent requests in each category follows the latency of the category, see {@link QoSControl}.
  * Configuration is via the
  */
 @Component(immediate = true, metatype = true)
@@ -105,6 +105,46 @@ public class QoSFilter implements Filter {
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+  /**
+   * Adapt the number of concurrent requests of each category to its latency, the
+   * configured number is used as the starting point.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONF = "qos.adaptive";
+  /**
+   * The lowest number of concurrent requests an adaptive category is cut down to.
+   */
+  @Property(intValue=2)
+  private static final String QOS_ADAPTIVE_MIN_LIMIT_CONF = "qos.adaptive.minLimit";
+  /**
+   * The highest number of concurrent requests an adaptive category may grow to.
+   */
+  @Property(intValue=200)
+  private static final String QOS_ADAPTIVE_MAX_LIMIT_CONF = "qos.adaptive.maxLimit";
+  /**
+   * Requests are refused rather than suspended once this many times the concurrent
+   * requests of the category are already suspended (0 for no bound).
+   */
+  @Property(intValue=4)
+  private static final String QOS_QUEUE_FACTOR_CONF = "qos.queue.factor";
+  /**
+   * The number of requests a single client may have suspended (0 for no bound).
+   */
+  @Property(intValue=10)
+  private static final String QOS_CLIENT_MAX_QUEUED_CONF = "qos.client.maxQueued";
+  /**
+   * Request header holding the client address when behind a proxy, eg X-Forwarded-For.
+   * The remote address is used if empty.
+   */
+  @Property(value="")
+  private static final String QOS_CLIENT_HEADER_CONF = "qos.client.header";
+  /**
+   * The number of proxies in front of the server that append to the client header. The
+   * address that many entries from the right is used, the entries left of it are set by
+   * the client and can not be trusted.
+   */
+  @Property(intValue=1)
+  private static final String QOS_CLIENT_TRUSTED_HOPS_CONF = "qos.client.trustedHops";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
 
@@ -113,8 +153,11 @@ public class QoSFilter implements Filter {
 
   private long waitMs;
 
+  private String clientHeader;
+
+  private int trustedHops;
 
-  private Queue<Continuation>[] priorityQueue;
+  private QoSQueue qoSQueue;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
 
@@ -134,26 +177,27 @@ public class QoSFilter implements Filter {
         accepted = qoSToken.acquire(waitMs);
         if (accepted) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+        } else if (!qoSToken.canQueue()) {
+          // shed the request now rather than let it wait for a timeout.
+          LOGGER.debug("Too many requests waiting, refusing request");
         } else {
           LOGGER.debug("Suspending request");
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
           qoSToken.queue(continuation);
-          return;
+          continuation.suspend(qoSToken.getSuspendTime());
+          // only a blocking continuation gets here, once resumed or timed out, others
+          // are dispatched again.
+          request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+          accepted = acceptSuspended(qoSToken, continuation.isResumed());
         }
       } else {
         Boolean suspended = (Boolean) request.getAttribute(suspendedAttributeName);
 
         if (suspended.booleanValue()) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
-          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
-            qoSToken.acquire();
-            accepted = true;
-          } else {
-            // Timeout! try 1 more time.
-            accepted = qoSToken.acquire(waitMs);
-          }
+          accepted = acceptSuspended(qoSToken,
+              request.getAttribute("javax.servlet.resumed") == Boolean.TRUE);
         } else {
           // pass through resume of previously accepted request
           qoSToken.acquire();
@@ -178,6 +222,50 @@ public class QoSFilter implements Filter {
     }
   }
 
+  private boolean acceptSuspended(QoSToken qoSToken, boolean resumed)
+      throws InterruptedException {
+    if (resumed) {
+      qoSToken.acquire();
+      return true;
+    }
+    // Timeout! try 1 more time.
+    return qoSToken.acquire(waitMs);
+  }
+
+  /**
+   * The filter runs before authentication, so the user is never known here and a session
+   * or token cookie can be made up by the client, clients are told apart by address.
+   * Users behind a shared NAT or proxy address are queued as one client.
+   *
+   * @return the key a request is queued fairly under.
+   */
+  private String getClient(HttpServletRequest request) {
+    if (clientHeader != null) {
+      String address = request.getHeader(clientHeader);
+      if (address != null) {
+        return "a:" + getForwardedAddress(address, trustedHops);
+      }
+    }
+    return "a:" + request.getRemoteAddr();
+  }
+
+  /**
+   * @param header
+   *          a comma separated list of addresses, each proxy appending the one it got the
+   *          request from.
+   * @param trustedHops
+   *          the number of proxies that can be trusted.
+   * @return the address added by the furthest trusted proxy, or the leftmost if there
+   *         are fewer entries.
+   */
+  static String getForwardedAddress(String header, int trustedHops) {
+    String[] addresses = StringUtils.split(header, ',');
+    if (addresses.length == 0) {
+      return "";
+    }
+    return StringUtils.trim(addresses[Math.max(0, addresses.length - trustedHops)]);
+  }
+
   private QoSToken getQoSControl(ServletRequest request) {
     QoSToken control = (QoSToken) request.getAttribute(QoSToken.CONTROL_ATTR);
     if  ( control != null ) {
@@ -200,7 +288,7 @@ public class QoSFilter implements Filter {
     if ( qoSControl == null ) {
       qoSControl =  defaultQoSControl;
     }
-    QoSToken qoSToken = new QoSTokenImpl(qoSControl, request);
+    QoSToken qoSToken = new QoSTokenImpl(qoSControl, qoSQueue, getClient(hrequest), request);
     request.setAttribute(QoSToken.CONTROL_ATTR, qoSToken);
     return qoSToken;
   }
@@ -218,10 +306,14 @@ public class QoSFilter implements Filter {
 
     long defaultTimeout = PropertiesUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
     int maxPriorityNumber = PropertiesUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
-    for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
-    }
+    boolean adaptive = PropertiesUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONF), false);
+    int minLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MIN_LIMIT_CONF), 2);
+    int maxLimit = PropertiesUtil.toInteger(properties.get(QOS_ADAPTIVE_MAX_LIMIT_CONF), 200);
+    int queueFactor = PropertiesUtil.toInteger(properties.get(QOS_QUEUE_FACTOR_CONF), 4);
+    int clientMaxQueued = PropertiesUtil.toInteger(properties.get(QOS_CLIENT_MAX_QUEUED_CONF), 10);
+    clientHeader = StringUtils.trimToNull(PropertiesUtil.toString(properties.get(QOS_CLIENT_HEADER_CONF), null));
+    trustedHops = Math.max(1, PropertiesUtil.toInteger(properties.get(QOS_CLIENT_TRUSTED_HOPS_CONF), 1));
+    qoSQueue = new QoSQueue(maxPriorityNumber, clientMaxQueued);
 
     // path, max requests, priority, timeout
     qoSControMap.clear();
@@ -231,11 +323,11 @@ public class QoSFilter implements Filter {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
           if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3]), adaptive, minLimit, maxLimit, queueFactor));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout, adaptive, minLimit, maxLimit, queueFactor));
           } else if ( settings.length > 1 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], new QoSControl(settings[0], Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout, adaptive, minLimit, maxLimit, queueFactor));
           }
         }
       }
@@ -247,7 +339,7 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = PropertiesUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = PropertiesUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = new QoSControl("default", qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout, adaptive, minLimit, maxLimit, queueFactor);
 
     int filterPriority = PropertiesUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -259,13 +351,7 @@ public class QoSFilter implements Filter {
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
     // resume any continuations held by the filter
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
-      }
-    }
+    qoSQueue.resumeAll();
   }
 
 }
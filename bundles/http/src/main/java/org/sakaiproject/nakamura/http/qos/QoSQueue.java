@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Suspended requests waiting for room in their QoS category. Requests are held per
+ * priority and per client, and released highest priority first, taking one request from
+ * each client in turn, so a client with many queued requests cannot starve the others.
+ * A client may only have a bounded number of requests queued.
+ *
+ * The room for a released request is reserved before its continuation is resumed, so the
+ * resumed request does not have to compete for it again.
+ */
+public class QoSQueue {
+
+  private final List<LinkedHashMap<String, LinkedList<QoSTokenImpl>>> priorities;
+  private final int maxPerClient;
+
+  /**
+   * @param maxPriority
+   *          the highest priority, 0 is the lowest.
+   * @param maxPerClient
+   *          the number of requests a client may have queued, 0 for no bound.
+   */
+  public QoSQueue(int maxPriority, int maxPerClient) {
+    priorities = new ArrayList<LinkedHashMap<String, LinkedList<QoSTokenImpl>>>(maxPriority + 1);
+    for (int i = 0; i <= maxPriority; i++) {
+      priorities.add(new LinkedHashMap<String, LinkedList<QoSTokenImpl>>());
+    }
+    this.maxPerClient = maxPerClient;
+  }
+
+  /**
+   * @return false if the client already has as many requests queued as allowed.
+   */
+  public synchronized boolean canAdd(QoSTokenImpl token) {
+    if (maxPerClient <= 0) {
+      return true;
+    }
+    LinkedList<QoSTokenImpl> tokens = getQueue(token.getPriority()).get(token.getClient());
+    return tokens == null || tokens.size() < maxPerClient;
+  }
+
+  public synchronized void add(QoSTokenImpl token) {
+    Map<String, LinkedList<QoSTokenImpl>> clients = getQueue(token.getPriority());
+    LinkedList<QoSTokenImpl> tokens = clients.get(token.getClient());
+    if (tokens == null) {
+      tokens = new LinkedList<QoSTokenImpl>();
+      clients.put(token.getClient(), tokens);
+    }
+    tokens.add(token);
+    token.getControl().queued();
+  }
+
+  /**
+   * Take a request out of the queue, eg when it has timed out.
+   *
+   * @return true if the request had been granted room while queued, the room is now held
+   *         by the request.
+   */
+  public synchronized boolean remove(QoSTokenImpl token) {
+    Map<String, LinkedList<QoSTokenImpl>> clients = getQueue(token.getPriority());
+    LinkedList<QoSTokenImpl> tokens = clients.get(token.getClient());
+    if (tokens != null && tokens.remove(token)) {
+      token.getControl().dequeued();
+      if (tokens.isEmpty()) {
+        clients.remove(token.getClient());
+      }
+    }
+    return token.takeGrant();
+  }
+
+  /**
+   * Resume as many queued requests as their categories have room for.
+   */
+  public void resume() {
+    List<QoSTokenImpl> granted = new ArrayList<QoSTokenImpl>();
+    synchronized (this) {
+      for (int p = priorities.size(); p-- > 0;) {
+        LinkedHashMap<String, LinkedList<QoSTokenImpl>> clients = priorities.get(p);
+        boolean progress = true;
+        while (progress && !clients.isEmpty()) {
+          progress = false;
+          for (String client : new ArrayList<String>(clients.keySet())) {
+            LinkedList<QoSTokenImpl> tokens = clients.get(client);
+            QoSTokenImpl token = grantFirst(tokens);
+            if (tokens.isEmpty()) {
+              clients.remove(client);
+            }
+            if (token != null) {
+              granted.add(token);
+              progress = true;
+              // move the client to the back of the line.
+              if (!tokens.isEmpty()) {
+                clients.remove(client);
+                clients.put(client, tokens);
+              }
+            }
+          }
+        }
+      }
+    }
+    for (QoSTokenImpl token : granted) {
+      token.resumeContinuation();
+    }
+  }
+
+  /**
+   * Resume every queued request, without granting room.
+   */
+  public void resumeAll() {
+    List<QoSTokenImpl> all = new ArrayList<QoSTokenImpl>();
+    synchronized (this) {
+      for (Map<String, LinkedList<QoSTokenImpl>> clients : priorities) {
+        for (LinkedList<QoSTokenImpl> tokens : clients.values()) {
+          for (QoSTokenImpl token : tokens) {
+            token.getControl().dequeued();
+            all.add(token);
+          }
+        }
+        clients.clear();
+      }
+    }
+    for (QoSTokenImpl token : all) {
+      token.resumeContinuation();
+    }
+  }
+
+  /**
+   * Grant room to the first request of a client whose category has room. Requests that
+   * time out take themselves out of the queue.
+   */
+  private QoSTokenImpl grantFirst(LinkedList<QoSTokenImpl> tokens) {
+    for (Iterator<QoSTokenImpl> i = tokens.iterator(); i.hasNext();) {
+      QoSTokenImpl token = i.next();
+      if (token.getControl().tryReserve()) {
+        i.remove();
+        token.getControl().dequeued();
+        token.grant();
+        return token;
+      }
+    }
+    return null;
+  }
+
+  private LinkedHashMap<String, LinkedList<QoSTokenImpl>> getQueue(int priority) {
+    return priorities.get(Math.max(0, Math.min(priority, priorities.size() - 1)));
+  }
+}
@@ -20,18 +20,34 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.ServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
-  private QoSControl qoSControl;
-  private int priority;
+  private final QoSControl qoSControl;
+  private final QoSQueue qoSQueue;
+  private final String client;
+  private final int priority;
+  private final AtomicBoolean granted = new AtomicBoolean();
+  private volatile Continuation continuation;
+  private long started = -1;
 
-  public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
+  /**
+   * @param qoSControl
+   *          the category of the request.
+   * @param qoSQueue
+   *          where the request waits if the category is full.
+   * @param client
+   *          the user or address the request is queued fairly under.
+   * @param request
+   */
+  public QoSTokenImpl(QoSControl qoSControl, QoSQueue qoSQueue, String client,
+      ServletRequest request) {
     this.qoSControl = qoSControl;
+    this.qoSQueue = qoSQueue;
+    this.client = client;
     priority = qoSControl.getPriority(request);
   }
 
@@ -41,31 +57,79 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
-      }
-    }
-    qoSControl.getSemaphore().release();
+    long elapsed = started < 0 ? -1 : System.nanoTime() - started;
+    started = -1;
+    qoSControl.release(elapsed);
+    qoSQueue.resume();
   }
 
   public long getSuspendTime() {
     return qoSControl.getTimeout();
   }
 
+  public boolean canQueue() {
+    if (qoSControl.canQueue() && qoSQueue.canAdd(this)) {
+      return true;
+    }
+    qoSControl.rejected();
+    return false;
+  }
+
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    this.continuation = continuation;
+    qoSQueue.add(this);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    // a queued request that timed out may have been granted room on the way out.
+    if ((continuation != null && qoSQueue.remove(this)) || qoSControl.tryAcquire(waitMs)) {
+      started = System.nanoTime();
+      return true;
+    }
+    if (continuation != null) {
+      qoSControl.rejected();
+    }
+    return false;
   }
 
   public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+    if (!takeGrant()) {
+      qoSControl.acquire();
+    }
+    started = System.nanoTime();
+  }
+
+  protected QoSControl getControl() {
+    return qoSControl;
+  }
+
+  protected String getClient() {
+    return client;
+  }
+
+  protected int getPriority() {
+    return priority;
+  }
+
+  /**
+   * Called by the queue once room has been reserved for this request.
+   */
+  protected void grant() {
+    granted.set(true);
+  }
+
+  /**
+   * @return true if room had been reserved for this request, which now holds it.
+   */
+  protected boolean takeGrant() {
+    return granted.getAndSet(false);
+  }
+
+  protected void resumeContinuation() {
+    Continuation c = continuation;
+    if (c != null) {
+      c.resume();
+    }
   }
 
 }
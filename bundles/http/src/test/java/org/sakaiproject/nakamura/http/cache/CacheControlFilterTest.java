@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -29,16 +33,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.Matchers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.http.cache.CachedResponse;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -46,11 +48,13 @@ import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CacheControlFilterTest {
@@ -73,12 +77,6 @@ public class CacheControlFilterTest {
   @Mock
   private FilterConfig filterConfig;
 
-  @Mock
-  private CacheManagerService cacheMangerService;
-
-  @Mock
-  private Cache<Object> cache;
-
   @Mock
   private ExtHttpService extHttpService;
 
@@ -151,14 +149,10 @@ public class CacheControlFilterTest {
     };
     when(response.getOutputStream()).thenReturn(servletOutputStream);
 
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
-    
-    cacheControlFilter.cacheManagerService = cacheMangerService;
-
     cacheControlFilter.doFilter(request, response, new TFilter(true));
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    assertNotNull(cacheControlFilter.getResponseCache().get("/cacheable/config.json?null"));
     
     
     
@@ -179,15 +173,14 @@ public class CacheControlFilterTest {
     };
     when(response.getOutputStream()).thenReturn(servletOutputStream);
 
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
     CachedResponse cachedResponse  = populateResponseCapture(true);
-    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
-    
-    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.getResponseCache().put("/cacheable/config.json?null", cachedResponse);
 
     cacheControlFilter.doFilter(request, response, null);
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
+    verify(response).setContentLength(1024);
+    assertEquals(1024, baos.size());
     
     
     
@@ -195,12 +188,16 @@ public class CacheControlFilterTest {
   }
 
   private CachedResponse populateResponseCapture(boolean useOutputStream) throws IOException {
+    return populateResponseCapture(useOutputStream, "test/plain");
+  }
+
+  private CachedResponse populateResponseCapture(boolean useOutputStream, String contentType) throws IOException {
     OperationResponseCapture sresponse = new OperationResponseCapture();
     sresponse.addDateHeader("Date", System.currentTimeMillis());
     sresponse.setDateHeader("Last-Modified", System.currentTimeMillis());
     sresponse.setCharacterEncoding("URF-8");
     sresponse.setContentLength(10);
-    sresponse.setContentType("test/plain");
+    sresponse.setContentType(contentType);
     sresponse.setHeader("Cache-Control", "max-age=3600");
     sresponse.setIntHeader("Age", 1000);
     sresponse.setLocale(new Locale("en","GB"));
@@ -232,14 +229,94 @@ public class CacheControlFilterTest {
     StringWriter stringWriter = new StringWriter();
     PrintWriter printWriter = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(printWriter);
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
-
-    cacheControlFilter.cacheManagerService = cacheMangerService;
     cacheControlFilter.doFilter(request, response, new TFilter(false));
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
     
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    assertNotNull(cacheControlFilter.getResponseCache().get("/cacheable/config.json?null"));
+  }
+
+  @Test
+  public void checkRequestCachingGzipVariant() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    cacheControlFilter.getResponseCache().put("/cacheable/config.json?null",
+        populateResponseCapture(true, "text/plain"));
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    int length = 0;
+    while (in.read() >= 0) {
+      length++;
+    }
+    assertEquals(1024, length);
+  }
+
+  @Test
+  public void checkRequestCachingNotModified() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+      }
+    });
+    CachedResponse cachedResponse = populateResponseCapture(false);
+    cacheControlFilter.getResponseCache().put("/cacheable/config.json?null", cachedResponse);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+
+    cacheControlFilter.doFilter(request, response, null);
+    verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    cacheControlFilter.doFilter(request, response, null);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    // the full response and the 304 both carry the caching headers.
+    verify(response, Mockito.times(2)).setHeader("Cache-Control", "max-age=3600");
+    verify(response, Mockito.times(2)).addHeader("Cache-Control", " public");
+  }
+
+  @Test
+  public void checkRequestCachingGzipAnyEncoding() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(request.getHeader("Accept-Encoding")).thenReturn("identity, *");
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+      }
+    });
+    cacheControlFilter.getResponseCache().put("/cacheable/config.json?null",
+        populateResponseCapture(true, "text/plain"));
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+  }
+
+  @Test
+  public void checkResponseCacheBudget() throws Exception {
+    ResponseCache responseCache = new ResponseCache(4096, 2048);
+    for (int i = 0; i < 10; i++) {
+      responseCache.put("r" + i, populateResponseCapture(true));
+    }
+    assertTrue(responseCache.getSize() <= 4096);
+    assertNull(responseCache.get("r0"));
+    assertNotNull(responseCache.get("r9"));
   }
 
 
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
@@ -25,6 +26,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -33,6 +35,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.After;
@@ -47,12 +50,15 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Properties;
@@ -371,6 +377,63 @@ public class I18nFilterTest {
     assertTrue(output.contains("Wie geht es ihnen?"));
   }
 
+  @Test
+  public void cachedTemplateAndBundles() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__ __MSG__REPLACE_ME_DEFAULT__", false);
+
+    filter.doFilter(request, response, chain);
+    when(response.getWriter()).thenReturn(new PrintWriter(sw));
+    filter.doFilter(request, response, chain);
+
+    // the bundles were parsed once for both requests.
+    verify(bundlesNode, times(1)).getNode("en_US.properties");
+    assertEquals(2, StringUtils.countMatches(sw.toString(), "Yay, In the language bundle!"));
+    assertEquals(2, StringUtils.countMatches(sw.toString(), "Default replacement"));
+
+    // a changed bundle is parsed again.
+    Binary binary = langNode.getNode("jcr:content").getProperty("jcr:data").getBinary();
+    when(binary.getStream()).thenReturn(
+        new ByteArrayInputStream("REPLACE_ME=Changed".getBytes("UTF-8")));
+    Hashtable<String, Object> eventProps = new Hashtable<String, Object>();
+    eventProps.put(SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH
+        + "/en_US.properties");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, eventProps));
+    sw.getBuffer().setLength(0);
+    filter.doFilter(request, response, chain);
+
+    verify(bundlesNode, times(2)).getNode("en_US.properties");
+    assertTrue(sw.toString().contains("Changed"));
+  }
+
+  @Test
+  public void bundleLoadedAcrossAChangeIsNotCached() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    // the bundle changes while the old version is being read.
+    final Hashtable<String, Object> eventProps = new Hashtable<String, Object>();
+    eventProps.put(SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH
+        + "/en_US.properties");
+    Binary binary = langNode.getNode("jcr:content").getProperty("jcr:data").getBinary();
+    when(binary.getStream()).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, eventProps));
+        return new ByteArrayInputStream("REPLACE_ME=Old".getBytes("UTF-8"));
+      }
+    }).thenReturn(new ByteArrayInputStream("REPLACE_ME=New".getBytes("UTF-8")));
+
+    filter.doFilter(request, response, chain);
+    assertTrue(sw.toString().contains("Old"));
+
+    // the old bundle was not kept, so the next request reads the new one.
+    sw.getBuffer().setLength(0);
+    when(response.getWriter()).thenReturn(new PrintWriter(sw));
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(2)).getNode("en_US.properties");
+    assertTrue(sw.toString().contains("New"));
+  }
+
   private void writeToResponse(final String key, final boolean useOutputStream) throws IOException, ServletException {
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class QoSFilterTest {
+
+  @Test
+  public void testSpoofedForwardedFor() {
+    // the client sent "1.1.1.1, 2.2.2.2", the proxy appended the address it saw.
+    String header = "1.1.1.1, 2.2.2.2, 10.0.0.7";
+    assertEquals("10.0.0.7", QoSFilter.getForwardedAddress(header, 1));
+    // behind two proxies the entry the outer proxy added is the client.
+    assertEquals("2.2.2.2", QoSFilter.getForwardedAddress("1.1.1.1, 2.2.2.2, 10.0.0.7", 2));
+  }
+
+  @Test
+  public void testShortForwardedFor() {
+    assertEquals("10.0.0.7", QoSFilter.getForwardedAddress("10.0.0.7", 1));
+    assertEquals("10.0.0.7", QoSFilter.getForwardedAddress(" 10.0.0.7 ", 3));
+    assertEquals("", QoSFilter.getForwardedAddress(",", 1));
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletRequest;
+
+public class QoSQueueTest {
+
+  private final List<String> resumed = new ArrayList<String>();
+
+  @Test
+  public void testFairness() throws Exception {
+    QoSControl control = new QoSControl("fair", 1, 1, 1000L);
+    QoSQueue queue = new QoSQueue(1, 0);
+    QoSTokenImpl running = new QoSTokenImpl(control, queue, "busy",
+        Mockito.mock(ServletRequest.class));
+    assertTrue(running.acquire(0));
+    for (int i = 0; i < 3; i++) {
+      queue("busy", control, queue);
+    }
+    queue("quiet", control, queue);
+
+    // each release lets one request in, the quiet client does not wait behind the busy one.
+    running.release();
+    assertEquals(1, resumed.size());
+    assertEquals("busy", resumed.get(0));
+    control.release(-1);
+    queue.resume();
+    assertEquals("quiet", resumed.get(1));
+    assertEquals(1, control.getInFlight());
+  }
+
+  @Test
+  public void testClientBound() throws Exception {
+    QoSControl control = new QoSControl("bound", 1, 1, 1000L, false, 1, 1, 2);
+    QoSQueue queue = new QoSQueue(1, 1);
+    assertTrue(control.tryAcquire(0));
+    QoSTokenImpl first = queue("a", control, queue);
+    assertFalse(token("a", control, queue).canQueue());
+    queue("b", control, queue);
+    // the category queue is full.
+    assertFalse(token("c", control, queue).canQueue());
+
+    // a token that timed out takes itself out of the queue.
+    assertFalse(first.acquire(0));
+    assertTrue(token("a", control, queue).canQueue());
+  }
+
+  @Test
+  public void testAdaptiveLimitShrinks() throws Exception {
+    QoSControl control = new QoSControl("adaptive", 20, 1, 1000L, true, 2, 40, 0);
+    for (int i = 0; i < 200; i++) {
+      assertTrue(control.tryAcquire(0));
+      control.release(1000000L);
+    }
+    int limit = control.getLimit();
+    // keep the category busy while the latency goes up tenfold, within one window.
+    for (int i = 0; i < 250; i++) {
+      while (control.tryReserve()) {
+        // fill up to the limit.
+      }
+      control.release(10000000L);
+    }
+    assertTrue(control.getLimit() < limit);
+  }
+
+  private QoSTokenImpl token(String client, QoSControl control, QoSQueue queue) {
+    return new QoSTokenImpl(control, queue, client, Mockito.mock(ServletRequest.class));
+  }
+
+  private QoSTokenImpl queue(final String client, QoSControl control, QoSQueue queue) {
+    QoSTokenImpl token = token(client, control, queue);
+    assertTrue(token.canQueue());
+    Continuation continuation = Mockito.mock(Continuation.class);
+    Mockito.doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        resumed.add(client);
+        return null;
+      }
+    }).when(continuation).resume();
+    token.queue(continuation);
+    return token;
+  }
+}
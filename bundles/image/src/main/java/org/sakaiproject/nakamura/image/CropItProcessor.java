@@ -40,15 +40,20 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -136,7 +141,11 @@ public class CropItProcessor {
           // this doesn't help.
           byte[] bytes = IOUtils.getInputStreamBytes(in);
           ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
+          if (info.getFormat() == ImageFormat.IMAGE_FORMAT_UNKNOWN) {
+            // This is not a valid image.
+            LOGGER.error("Can't parse this format.");
+            throw new ImageException(406, "Can't parse this format.");
+          }
 
           // Set the correct width & height.
           width = (width <= 0) ? info.getWidth() : width;
@@ -149,8 +158,23 @@ public class CropItProcessor {
             height = info.getHeight() - y;
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
+          // Only decode the piece we cut out, and no more pixels of it than the largest
+          // dimension needs.
+          int targetWidth = 0;
+          int targetHeight = 0;
+          for (Dimension d : dimensions) {
+            targetWidth = Math.max(targetWidth, (d.width <= 0) ? info.getWidth() : d.width);
+            targetHeight = Math.max(targetHeight, (d.height <= 0) ? info.getHeight() : d.height);
+          }
+          Rectangle region = new Rectangle(x, y, width, height);
+          BufferedImage subImage = readImage(
+              ImageIO.createImageInputStream(new ByteArrayInputStream(bytes)), region,
+              targetWidth, targetHeight);
+          if (subImage == null) {
+            // Cut the desired piece out of the image.
+            BufferedImage imgBuf = getBufferedImage(bytes, info);
+            subImage = imgBuf.getSubimage(x, y, width, height);
+          }
 
           // Loop the dimensions and create and save an image for each
           // one.
@@ -247,6 +271,92 @@ public class CropItProcessor {
     return imgBuf;
   }
 
+  /**
+   * Decodes a region of an image with ImageIO, skipping source pixels so that the result
+   * is no smaller than the target size but not much bigger either. Only the image header
+   * and the rows of the region are read, so a thumbnail of a large photo never needs a
+   * full size copy in memory.
+   *
+   * @param iis
+   *          The stream of the image, closed by this method.
+   * @param region
+   *          The part of the image to decode, or null for the whole image.
+   * @param targetWidth
+   *          The largest width the decoded image will be scaled to.
+   * @param targetHeight
+   *          The largest height the decoded image will be scaled to.
+   * @return The decoded region, or null if ImageIO can't read this image in a type we
+   *         can scale, in which case the caller should fall back to
+   *         {@link #getBufferedImage(byte[], ImageInfo)}.
+   * @throws IOException
+   */
+  protected static BufferedImage readImage(ImageInputStream iis, Rectangle region,
+      int targetWidth, int targetHeight) throws IOException {
+    if (iis == null) {
+      return null;
+    }
+    ImageReader reader = null;
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      reader = readers.next();
+      reader.setInput(iis, true, true);
+      return readImage(reader, region, targetWidth, targetHeight);
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("ImageIO can't decode this image: {}", e.getMessage());
+      return null;
+    } catch (IOException e) {
+      LOGGER.debug("ImageIO can't decode this image: {}", e.getMessage());
+      return null;
+    } finally {
+      if (reader != null) {
+        reader.dispose();
+      }
+      iis.close();
+    }
+  }
+
+  /**
+   * Decodes a region of the first image of a reader that already has its input set.
+   *
+   * @see #readImage(ImageInputStream, Rectangle, int, int)
+   */
+  protected static BufferedImage readImage(ImageReader reader, Rectangle region,
+      int targetWidth, int targetHeight) throws IOException {
+    Rectangle source = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+    if (region != null) {
+      source = source.intersection(region);
+    }
+    if (source.isEmpty()) {
+      return null;
+    }
+    int subsampling = getSubsampling(source.width, source.height, targetWidth,
+        targetHeight);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(source);
+    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+    BufferedImage img = reader.read(0, param);
+    // KERN-1113 the scaling needs a standard image type.
+    if (img == null || img.getType() == BufferedImage.TYPE_CUSTOM) {
+      return null;
+    }
+    return img;
+  }
+
+  /**
+   * @return The number of source pixels that can be skipped in each direction while still
+   *         decoding at least the target width and height.
+   */
+  protected static int getSubsampling(int width, int height, int targetWidth,
+      int targetHeight) {
+    if (targetWidth <= 0 || targetHeight <= 0) {
+      return 1;
+    }
+    return Math.max(1, Math.min(width / targetWidth, height / targetHeight));
+  }
+
   /**
    * Will save a stream of an image to the JCR.
    *
@@ -358,6 +468,15 @@ public class CropItProcessor {
     int w = img.getWidth();
     int h = img.getHeight();
 
+    // Indexed and custom images can't be drawn into with any quality, so scale into a
+    // plain RGB(A) image instead.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
+
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
       w >>= 1;
@@ -371,7 +490,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
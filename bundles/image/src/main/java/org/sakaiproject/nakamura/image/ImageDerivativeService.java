@@ -0,0 +1,501 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Generates scaled copies of images in the background when they are uploaded. The copies
+ * are stored as alternative streams of the image, stamped with the version of the body
+ * they were made from, so a new upload makes them stale and queues them again. A fixed
+ * number of workers take images from a bounded queue, and a worker only decodes once the
+ * pixels it needs fit in the memory budget; images are decoded subsampled, so the budget
+ * is spent on roughly the size of the largest derivative rather than on the original. An
+ * image too large for the budget at that subsampling is decoded more coarsely instead.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { ImageDerivativeService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Generates scaled copies of uploaded images in the background."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED" }) })
+public class ImageDerivativeService implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImageDerivativeService.class);
+
+  @Property(value = { "64x64", "256x256" }, label = "Sizes",
+      description = "The boxes, as widthxheight, that derivatives are scaled to fit in")
+  protected static final String SIZES = "image.derivative.sizes";
+
+  @Property(intValue = 2, label = "Workers",
+      description = "The number of images processed at the same time")
+  protected static final String WORKERS = "image.derivative.workers";
+
+  @Property(intValue = 100, label = "Queue Size",
+      description = "The number of images waiting to be processed, further images are processed when first viewed")
+  protected static final String QUEUE_SIZE = "image.derivative.queueSize";
+
+  @Property(intValue = 128, label = "Memory Budget",
+      description = "Megabytes of decoded pixels shared by all workers, larger images are decoded more coarsely")
+  protected static final String MEMORY_BUDGET = "image.derivative.memoryBudget";
+
+  @Property(value = { "sakai/pooled-content" }, label = "Resource Types",
+      description = "The resource types of content that derivatives are generated for on upload, other images get them when first viewed")
+  protected static final String RESOURCE_TYPES = "image.derivative.resourceTypes";
+
+  /**
+   * The version of the body a derivative was made from, stored per stream.
+   */
+  protected static final String DERIVATIVE_VERSION = "sakai:derivativeVersion";
+
+  /**
+   * The version of the body that could not be processed, so it isn't tried again.
+   */
+  protected static final String DERIVATIVE_FAILED = "sakai:derivativeFailed";
+
+  private static final String BODY_LOCATION = "_bodyLocation";
+
+  private static final String BLOCK_ID = "_blockId";
+
+  @Reference
+  protected Repository repository;
+
+  private List<Dimension> sizes;
+
+  private Set<String> resourceTypes;
+
+  private Dimension largest;
+
+  private ThreadPoolExecutor executor;
+
+  private Semaphore budget;
+
+  private int budgetKb;
+
+  private final Set<String> pending = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final ConcurrentMap<String, byte[]> placeholders = new ConcurrentHashMap<String, byte[]>();
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    sizes = new ArrayList<Dimension>();
+    largest = new Dimension();
+    for (String size : PropertiesUtil.toStringArray(properties.get(SIZES),
+        new String[] { "64x64", "256x256" })) {
+      Dimension d = parseSize(size);
+      if (d == null) {
+        LOGGER.warn("Ignoring derivative size {}, expected widthxheight", size);
+      } else {
+        sizes.add(d);
+        largest.width = Math.max(largest.width, d.width);
+        largest.height = Math.max(largest.height, d.height);
+      }
+    }
+    resourceTypes = new HashSet<String>(Arrays.asList(PropertiesUtil.toStringArray(
+        properties.get(RESOURCE_TYPES), new String[] { "sakai/pooled-content" })));
+    int workers = Math.max(1, PropertiesUtil.toInteger(properties.get(WORKERS), 2));
+    int queueSize = Math.max(1, PropertiesUtil.toInteger(properties.get(QUEUE_SIZE), 100));
+    budgetKb = Math.max(1, PropertiesUtil.toInteger(properties.get(MEMORY_BUDGET), 128)) * 1024;
+    budget = new Semaphore(budgetKb, true);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    // when the queue is full the image is dropped, it is queued again when first viewed.
+    executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Image Derivative " + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    executor.shutdownNow();
+    pending.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null || path.startsWith("a:")) {
+      return;
+    }
+    String resourceType = (String) event.getProperty("resourceType");
+    if (!resourceTypes.contains(resourceType)) {
+      return;
+    }
+    Object mimeType = event.getProperty(Content.MIMETYPE_FIELD);
+    if (mimeType == null) {
+      mimeType = event.getProperty("mimeType");
+    }
+    if (mimeType != null && !String.valueOf(mimeType).startsWith("image/")) {
+      return;
+    }
+    // the worker checks whether the derivatives are stale, including after our own writes.
+    request(path);
+  }
+
+  /**
+   * Queues the derivatives of an image to be generated, unless they already are.
+   *
+   * @param path
+   *          The path of the image.
+   */
+  public void request(final String path) {
+    if (!pending.add(path)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          boolean again = false;
+          try {
+            again = generate(path);
+          } finally {
+            pending.remove(path);
+          }
+          if (again) {
+            request(path);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pending.remove(path);
+      LOGGER.debug("Derivative queue is full, not processing {} now", path);
+    }
+  }
+
+  /**
+   * @return The sizes derivatives are generated in.
+   */
+  public List<Dimension> getSizes() {
+    return sizes;
+  }
+
+  /**
+   * @return true if the derivative of this size, made from the current body, is stored.
+   */
+  public boolean isCurrent(Content content, Dimension size) {
+    String version = getVersion(content);
+    return version != null
+        && version.equals(content.getProperty(StorageClientUtils.getAltField(
+            DERIVATIVE_VERSION, getStreamId(size))));
+  }
+
+  /**
+   * @return true if the current body can't be processed, so there won't be derivatives.
+   */
+  public boolean hasFailed(Content content) {
+    String version = getVersion(content);
+    return version != null && version.equals(content.getProperty(DERIVATIVE_FAILED));
+  }
+
+  /**
+   * @return A transparent PNG of the given size, to show until the derivative is ready.
+   */
+  public byte[] getPlaceholder(Dimension size) throws IOException {
+    String key = size.width + "x" + size.height;
+    byte[] placeholder = placeholders.get(key);
+    if (placeholder == null) {
+      BufferedImage img = new BufferedImage(size.width, size.height,
+          BufferedImage.TYPE_INT_ARGB);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(img, "png", out);
+      placeholder = out.toByteArray();
+      placeholders.putIfAbsent(key, placeholder);
+    }
+    return placeholder;
+  }
+
+  /**
+   * @return The alternative stream a derivative of this size is stored in.
+   */
+  public static String getStreamId(Dimension size) {
+    return "derivative-" + size.width + "x" + size.height;
+  }
+
+  /**
+   * @return The size in a widthxheight string, or null if it isn't one.
+   */
+  public static Dimension parseSize(String size) {
+    String[] parts = StringUtils.split(size, 'x');
+    if (parts.length != 2) {
+      return null;
+    }
+    try {
+      int width = Integer.parseInt(parts[0].trim());
+      int height = Integer.parseInt(parts[1].trim());
+      if (width <= 0 || height <= 0) {
+        return null;
+      }
+      return new Dimension(width, height);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return Identifies the body of the content, it changes when a new body is uploaded but
+   *         not when properties are updated.
+   */
+  protected static String getVersion(Content content) {
+    Object location = content.getProperty(BODY_LOCATION);
+    Object blockId = content.getProperty(BLOCK_ID);
+    if (location == null && blockId == null) {
+      return null;
+    }
+    return blockId + ":" + location + ":" + content.getProperty(Content.LENGTH_FIELD);
+  }
+
+  protected static boolean isImage(Content content) {
+    Object mimeType = content.getProperty(Content.MIMETYPE_FIELD);
+    if (mimeType == null) {
+      mimeType = content.getProperty("mimeType");
+    }
+    return mimeType != null && String.valueOf(mimeType).startsWith("image/");
+  }
+
+  protected boolean needsDerivatives(Content content) {
+    if (!isImage(content) || getVersion(content) == null || hasFailed(content)) {
+      return false;
+    }
+    for (Dimension size : sizes) {
+      if (!isCurrent(content, size)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Generates and stores the derivatives of an image.
+   *
+   * @return true if the body changed while the derivatives were generated, so they have
+   *         to be generated again.
+   */
+  protected boolean generate(String path) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Content content = contentManager.get(path);
+      if (content == null || !needsDerivatives(content)) {
+        return false;
+      }
+      String version = getVersion(content);
+      Map<String, BufferedImage> derivatives = scale(path,
+          contentManager.getInputStream(path));
+      content = contentManager.get(path);
+      if (content == null) {
+        return false;
+      }
+      if (!version.equals(getVersion(content))) {
+        return true;
+      }
+      if (derivatives == null) {
+        content.setProperty(DERIVATIVE_FAILED, version);
+        contentManager.update(content);
+        return false;
+      }
+      for (Dimension size : sizes) {
+        String streamId = getStreamId(size);
+        BufferedImage img = derivatives.get(streamId);
+        boolean alpha = img.getColorModel().hasAlpha();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, alpha ? "png" : "jpg", out);
+        contentManager.writeBody(path, new ByteArrayInputStream(out.toByteArray()), streamId);
+        content.setProperty(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, streamId),
+            alpha ? "image/png" : "image/jpeg");
+        content.setProperty(StorageClientUtils.getAltField(DERIVATIVE_VERSION, streamId),
+            version);
+      }
+      contentManager.update(content);
+    } catch (ClientPoolException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to store derivatives of {}: {}", path, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      logout(session);
+    }
+    return false;
+  }
+
+  /**
+   * Decodes the image just large enough for the largest size, within the memory budget,
+   * and scales it to fit each size.
+   *
+   * @return The scaled images by stream id, or null if the image can't be processed.
+   */
+  private Map<String, BufferedImage> scale(String path, InputStream in)
+      throws IOException, InterruptedException {
+    if (in == null) {
+      return null;
+    }
+    ImageInputStream iis = null;
+    ImageReader reader = null;
+    try {
+      iis = ImageIO.createImageInputStream(in);
+      Iterator<ImageReader> readers = (iis == null) ? null : ImageIO.getImageReaders(iis);
+      if (readers == null || !readers.hasNext()) {
+        LOGGER.info("Not generating derivatives of {}, ImageIO can't read it", path);
+        return null;
+      }
+      reader = readers.next();
+      reader.setInput(iis, true, true);
+      int width = reader.getWidth(0);
+      int height = reader.getHeight(0);
+      int subsampling = CropItProcessor.getSubsampling(width, height, largest.width,
+          largest.height);
+      long kb = getDecodedKb(width, height, subsampling);
+      if (kb > budgetKb) {
+        // skip more pixels, the derivatives come out smaller than their boxes.
+        while (kb > budgetKb) {
+          kb = getDecodedKb(width, height, ++subsampling);
+        }
+        LOGGER.info("Decoding {} ({}x{}) at 1/{} to fit the memory budget", new Object[] {
+            path, width, height, subsampling });
+      }
+      budget.acquire((int) kb);
+      try {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage img = reader.read(0, param);
+        if (img == null) {
+          return null;
+        }
+        // getScaledInstance draws custom and indexed types into a plain RGB(A) image.
+        Map<String, BufferedImage> derivatives = new HashMap<String, BufferedImage>();
+        for (Dimension size : sizes) {
+          Dimension fit = fit(img.getWidth(), img.getHeight(), size);
+          derivatives.put(getStreamId(size),
+              CropItProcessor.getScaledInstance(img, fit.width, fit.height));
+        }
+        return derivatives;
+      } finally {
+        budget.release((int) kb);
+      }
+    } catch (IllegalArgumentException e) {
+      LOGGER.info("Not generating derivatives of {}: {}", path, e.getMessage());
+      return null;
+    } finally {
+      if (reader != null) {
+        reader.dispose();
+      }
+      if (iis != null) {
+        iis.close();
+      }
+      in.close();
+    }
+  }
+
+  /**
+   * @return The KB needed for the decoded pixels and the first halving pass of the
+   *         scaling.
+   */
+  protected static long getDecodedKb(int width, int height, int subsampling) {
+    long pixels = (long) ((width + subsampling - 1) / subsampling)
+        * ((height + subsampling - 1) / subsampling);
+    return pixels * 4L * 2L / 1024L + 1;
+  }
+
+  /**
+   * @return The size of the image scaled down to fit in the box, keeping its aspect ratio.
+   */
+  protected static Dimension fit(int width, int height, Dimension box) {
+    double scale = Math.min(1.0,
+        Math.min((double) box.width / width, (double) box.height / height));
+    return new Dimension(Math.max(1, (int) Math.round(width * scale)),
+        Math.max(1, (int) Math.round(height * scale)));
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error(e.getLocalizedMessage(), e);
+      }
+    }
+  }
+}
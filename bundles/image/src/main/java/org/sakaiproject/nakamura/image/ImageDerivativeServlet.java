@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.doc.ServiceSelector;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the scaled copies of an image made by the {@link ImageDerivativeService}. Until
+ * the copy of the current body is ready a transparent placeholder is served, which is not
+ * cached by the client, and the image is queued in case its upload was not picked up.
+ */
+@SlingServlet(methods = { "GET" }, selectors = { "derivative" }, resourceTypes = { "sakai/pooled-content" })
+@ServiceDocumentation(name = "ImageDerivativeServlet", okForVersion = "1.2",
+  shortDescription = "Get a scaled copy of an image.",
+  description = "Gets a copy of a pooled image scaled to fit one of the configured sizes, or a transparent placeholder of that size while the copy is being generated.",
+  bindings = @ServiceBinding(type = BindingType.TYPE, bindings = "sakai/pooled-content",
+    selectors = @ServiceSelector(name = "derivative", description = "Followed by the size as a selector, eg /p/hESoXumAT.derivative.64x64.png")),
+  methods = {
+    @ServiceMethod(name = "GET", description = "Get a scaled copy of an image.",
+      response = {
+        @ServiceResponse(code = HttpServletResponse.SC_OK, description = "The scaled image, or a placeholder if it isn't ready yet."),
+        @ServiceResponse(code = HttpServletResponse.SC_NOT_MODIFIED, description = "The scaled image has not changed."),
+        @ServiceResponse(code = HttpServletResponse.SC_BAD_REQUEST, description = "The size is not one of the configured sizes."),
+        @ServiceResponse(code = HttpServletResponse.SC_NOT_FOUND, description = "The resource is not an image."),
+        @ServiceResponse(code = HttpServletResponse.SC_INTERNAL_SERVER_ERROR, description = "Unable to read the scaled image.")
+      })
+})
+public class ImageDerivativeServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = -2370913569405498732L;
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImageDerivativeServlet.class);
+
+  @Reference
+  protected ImageDerivativeService derivativeService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    Resource resource = request.getResource();
+    Content content = resource.adaptTo(Content.class);
+    if (content == null || !ImageDerivativeService.isImage(content)) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "Not an image");
+      return;
+    }
+
+    Dimension size = getSize(request.getRequestPathInfo().getSelectors());
+    if (size == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The size must be one of "
+          + derivativeService.getSizes());
+      return;
+    }
+
+    if (!derivativeService.isCurrent(content, size)) {
+      if (!derivativeService.hasFailed(content)) {
+        derivativeService.request(content.getPath());
+      }
+      byte[] placeholder = derivativeService.getPlaceholder(size);
+      response.setHeader("Cache-Control", "no-cache");
+      response.setContentType("image/png");
+      response.setContentLength(placeholder.length);
+      response.getOutputStream().write(placeholder);
+      return;
+    }
+
+    String streamId = ImageDerivativeService.getStreamId(size);
+    String etag = "\"" + ImageDerivativeService.getVersion(content) + "/" + streamId + "\"";
+    response.setHeader("ETag", etag);
+    if (etag.equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    InputStream in = null;
+    try {
+      in = resource.adaptTo(ContentManager.class).getInputStream(content.getPath(), streamId);
+      if (in == null) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Unable to read the scaled image");
+        return;
+      }
+      response.setContentType((String) content.getProperty(StorageClientUtils.getAltField(
+          Content.MIMETYPE_FIELD, streamId)));
+      IOUtils.copy(in, response.getOutputStream());
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (AccessDeniedException e) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage());
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  /**
+   * @return The configured size named by the selector after "derivative", the first
+   *         configured size if there is none, or null if it isn't configured.
+   */
+  private Dimension getSize(String[] selectors) {
+    for (int i = 0; i < selectors.length - 1; i++) {
+      if ("derivative".equals(selectors[i])) {
+        Dimension size = ImageDerivativeService.parseSize(selectors[i + 1]);
+        return derivativeService.getSizes().contains(size) ? size : null;
+      }
+    }
+    return derivativeService.getSizes().isEmpty() ? null : derivativeService.getSizes()
+        .get(0);
+  }
+}
@@ -42,6 +42,7 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -149,4 +150,22 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testReadImageSubsamplesRegion() throws IOException {
+    InputStream is = getClass().getResourceAsStream("people.png");
+    BufferedImage img = CropItProcessor.readImage(ImageIO.createImageInputStream(is),
+        new Rectangle(10, 10, 200, 200), 50, 50);
+    // 200 pixels to 50 only needs every fourth pixel.
+    assertEquals(50, img.getWidth());
+    assertEquals(50, img.getHeight());
+  }
+
+  @Test
+  public void testGetSubsampling() {
+    assertEquals(1, CropItProcessor.getSubsampling(100, 100, 100, 100));
+    assertEquals(1, CropItProcessor.getSubsampling(100, 100, 200, 200));
+    assertEquals(3, CropItProcessor.getSubsampling(400, 300, 128, 64));
+    assertEquals(1, CropItProcessor.getSubsampling(100, 100, 0, 0));
+  }
+
 }
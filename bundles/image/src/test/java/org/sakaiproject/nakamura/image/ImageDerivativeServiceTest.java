@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ *
+ */
+public class ImageDerivativeServiceTest {
+
+  private static final String PATH = "p/people";
+
+  private ImageDerivativeService service;
+  private ContentManager contentManager;
+
+  @Before
+  public void setUp() throws Exception {
+    BaseMemoryRepository baseMemoryRepository = new BaseMemoryRepository();
+    service = new ImageDerivativeService();
+    service.repository = baseMemoryRepository.getRepository();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ImageDerivativeService.SIZES, new String[] { "64x64", "100x50" });
+    service.activate(properties);
+
+    Session session = service.repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(PATH, ImmutableMap.of(Content.MIMETYPE_FIELD,
+        (Object) "image/png")));
+    contentManager.writeBody(PATH, getClass().getResourceAsStream("people.png"));
+  }
+
+  @Test
+  public void testGenerateStoresDerivativesOfCurrentBody() throws Exception {
+    Dimension small = new Dimension(64, 64);
+    Dimension wide = new Dimension(100, 50);
+    assertFalse(service.isCurrent(contentManager.get(PATH), small));
+
+    assertFalse(service.generate(PATH));
+
+    Content content = contentManager.get(PATH);
+    assertTrue(service.isCurrent(content, small));
+    assertTrue(service.isCurrent(content, wide));
+    assertFalse(service.needsDerivatives(content));
+    String streamId = ImageDerivativeService.getStreamId(small);
+    assertEquals("image/png", content.getProperty(StorageClientUtils.getAltField(
+        Content.MIMETYPE_FIELD, streamId)));
+    BufferedImage img = ImageIO.read(contentManager.getInputStream(PATH, streamId));
+    assertEquals(64, img.getWidth());
+    assertEquals(64, img.getHeight());
+    // the square image keeps its aspect ratio in a wide box.
+    img = ImageIO.read(contentManager.getInputStream(PATH,
+        ImageDerivativeService.getStreamId(wide)));
+    assertEquals(50, img.getWidth());
+    assertEquals(50, img.getHeight());
+
+    // a new upload makes the derivatives stale.
+    contentManager.writeBody(PATH, getClass().getResourceAsStream("people.png"));
+    assertTrue(service.needsDerivatives(contentManager.get(PATH)));
+  }
+
+  @Test
+  public void testNotAnImage() throws Exception {
+    contentManager.writeBody(PATH, new ByteArrayInputStream("not an image".getBytes("UTF-8")));
+
+    assertFalse(service.generate(PATH));
+
+    Content content = contentManager.get(PATH);
+    assertTrue(service.hasFailed(content));
+    assertFalse(service.needsDerivatives(content));
+  }
+
+  @Test
+  public void testPlaceholder() throws Exception {
+    byte[] placeholder = service.getPlaceholder(new Dimension(64, 32));
+    BufferedImage img = ImageIO.read(new ByteArrayInputStream(placeholder));
+    assertEquals(64, img.getWidth());
+    assertEquals(32, img.getHeight());
+  }
+
+  @Test
+  public void testFit() {
+    assertEquals(new Dimension(64, 32), ImageDerivativeService.fit(256, 128,
+        new Dimension(64, 64)));
+    assertEquals(new Dimension(20, 10), ImageDerivativeService.fit(20, 10,
+        new Dimension(64, 64)));
+  }
+
+  @Test
+  public void testHandleEventFiltersOnEventProperties() throws Exception {
+    final List<String> requested = new ArrayList<String>();
+    ImageDerivativeService filtering = new ImageDerivativeService() {
+      @Override
+      public void request(String path) {
+        requested.add(path);
+      }
+    };
+    filtering.activate(new HashMap<String, Object>());
+    String topic = "org/sakaiproject/nakamura/lite/content/UPDATED";
+
+    filtering.handleEvent(new Event(topic, ImmutableMap.of("path", "a",
+        "resourceType", "sakai/pooled-content")));
+    filtering.handleEvent(new Event(topic, ImmutableMap.of("path", "b",
+        "resourceType", "sakai/pooled-content", "mimeType", "text/plain")));
+    filtering.handleEvent(new Event(topic, ImmutableMap.of("path", "c",
+        "resourceType", "sakai/contact")));
+    filtering.handleEvent(new Event(topic, ImmutableMap.of("path", "d")));
+
+    assertEquals(1, requested.size());
+    assertEquals("a", requested.get(0));
+  }
+
+  @Test
+  public void testDecodedKb() {
+    // 4000x3000 decoded whole, then at a quarter in each direction.
+    assertEquals(93751, ImageDerivativeService.getDecodedKb(4000, 3000, 1));
+    assertEquals(5860, ImageDerivativeService.getDecodedKb(4000, 3000, 4));
+  }
+}
@@ -20,10 +20,13 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -31,16 +34,32 @@ import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to publish the locks.
+ *
+ * Locks taken on this node are held in a striped table. Threads waiting for a lock queue
+ * on it in order and the lock is handed to the first waiter as it is unlocked, rather
+ * than being polled for. A lock held by another node is only seen through the
+ * replicated cache, so waiters for it check the cache every remote poll interval.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
@@ -63,6 +82,17 @@ public class LockManagerImpl implements LockManager {
    * debug flag set at service creation.
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
+  /**
+   * The number of stripes in the lock table, a power of 2.
+   */
+  private static final int STRIPES = 64;
+
+  private static final LatencyHistogram WAIT_TIME = TelemetryCounter.histogram("locking",
+      "LockManager", "wait.ms");
+  private static final LatencyHistogram HOLD_TIME = TelemetryCounter.histogram("locking",
+      "LockManager", "hold.ms");
+  private static final StripedCounter TIMEOUTS = TelemetryCounter.counter("locking",
+      "LockManager", "timeouts");
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
@@ -70,6 +100,12 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(longValue = 30000L, label = "Lock Timeout", description = "Milliseconds a thread waits for a lock before giving up")
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
+  @Property(longValue = 100L, label = "Remote Poll Interval", description = "Milliseconds between checks of a lock held by another node")
+  static final String REMOTE_POLL = "lock.remote.poll";
+
   /**
    * Service dependency, the Cache Manager
    */
@@ -101,7 +137,12 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * The locks held on this node, by stripe.
+   */
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private volatile long lockTimeout = 30000L;
+  private volatile long remotePoll = 100L;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -111,6 +152,16 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    lockTimeout = PropertiesUtil.toLong(properties.get(LOCK_TIMEOUT), 30000L);
+    remotePoll = PropertiesUtil.toLong(properties.get(REMOTE_POLL), 100L);
   }
 
   public Lock getLock(String id) {
@@ -122,19 +173,30 @@ public class LockManagerImpl implements LockManager {
    * @return
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
+    Stripe stripe = getStripe(id);
+    LockImpl lock;
+    boolean granted = false;
+    stripe.lock.lock();
+    try {
+      LockEntry entry = stripe.entries.get(id);
+      lock = entry == null ? null : entry.lock;
+      if (lock == null) {
+        lock = getRemoteLock(id);
+      }
+      if (create && lock == null) {
+        if (entry != null && !entry.waiters.isEmpty()) {
+          // don't jump the queue.
+          lock = handOff(stripe, id, entry);
+        } else {
+          lock = grant(stripe, id, threadId.get(), Thread.currentThread().getName());
+          granted = true;
         }
       }
+    } finally {
+      stripe.lock.unlock();
+    }
+    if (granted) {
+      getRequestLocks().put(id, lock);
     }
     if (lock != null) {
       lock.bind(this);
@@ -150,7 +212,8 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
-   * Unlock only if the current thread is the owner.
+   * Unlock only if the current thread is the owner, handing the lock to the first
+   * thread waiting for it.
    *
    * @param lock
    */
@@ -160,8 +223,26 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      String id = lock.getLocked();
+      Stripe stripe = getStripe(id);
+      stripe.lock.lock();
+      try {
+        LockEntry entry = stripe.entries.get(id);
+        if (entry != null && entry.lock != null
+            && entry.lock.getLockId() == lock.getLockId()) {
+          HOLD_TIME.record(System.currentTimeMillis() - entry.since);
+          entry.lock = null;
+          if (entry.waiters.isEmpty()) {
+            stripe.entries.remove(id);
+            lockMap.remove(id);
+          } else {
+            handOff(stripe, id, entry);
+          }
+        } else {
+          lockMap.remove(id);
+        }
+      } finally {
+        stripe.lock.unlock();
       }
     }
   }
@@ -186,36 +267,70 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
+    long start = System.currentTimeMillis();
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+    Lock lock = getLock(id);
+    if (lock != null && lock.isOwner()) {
+      WAIT_TIME.record(0);
+      return lock;
+    }
+    Stripe stripe = getStripe(id);
+    Waiter waiter = new Waiter(threadId.get(), Thread.currentThread().getName(),
+        stripe.lock.newCondition());
+    long deadline = start + lockTimeout;
+    stripe.lock.lock();
+    try {
+      LockEntry entry = stripe.entries.get(id);
+      if (entry == null) {
+        entry = new LockEntry();
+        stripe.entries.put(id, entry);
       }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+      entry.waiters.add(waiter);
+      while (waiter.granted == null) {
+        boolean remote = entry.lock == null;
+        if (remote && entry.waiters.getFirst() == waiter && getRemoteLock(id) == null) {
+          // released by the other node, or before this thread queued.
+          handOff(stripe, id, entry);
+          break;
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          entry.waiters.remove(waiter);
+          if (entry.lock == null && entry.waiters.isEmpty()) {
+            stripe.entries.remove(id);
+          }
+          TIMEOUTS.increment();
+          String message = describeTimeout(id, entry, start);
+          LOGGER.warn(message);
+          throw new LockTimeoutException(message);
+        }
+        try {
+          waiter.condition.await(remote ? Math.min(remaining, remotePoll) : remaining,
+              TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          if (waiter.granted == null) {
+            entry.waiters.remove(waiter);
+            if (entry.lock == null && entry.waiters.isEmpty()) {
+              stripe.entries.remove(id);
+            }
+            throw new LockTimeoutException("Interrupted waiting for lock on " + id);
+          }
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
       }
+    } finally {
+      stripe.lock.unlock();
+    }
+    LockImpl granted = waiter.granted;
+    getRequestLocks().put(id, granted);
+    granted.bind(this);
+    WAIT_TIME.record(System.currentTimeMillis() - start);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + granted.getLocked());
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
+    return granted;
   }
 
   /**
@@ -229,7 +344,83 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
- 
+  /**
+   * Called with the stripe locked.
+   */
+  private LockImpl grant(Stripe stripe, String id, long ownerId, String ownerName) {
+    LockEntry entry = stripe.entries.get(id);
+    if (entry == null) {
+      entry = new LockEntry();
+      stripe.entries.put(id, entry);
+    }
+    LockImpl lock = new LockImpl(id, random.nextLong(), ownerId, instanceId);
+    entry.lock = lock;
+    entry.owner = ownerName;
+    entry.since = System.currentTimeMillis();
+    lockMap.put(id, lock);
+    return lock;
+  }
+
+  /**
+   * Give the lock to the first waiter and wake it. Called with the stripe locked.
+   */
+  private LockImpl handOff(Stripe stripe, String id, LockEntry entry) {
+    Waiter next = entry.waiters.removeFirst();
+    next.granted = grant(stripe, id, next.threadId, next.name);
+    next.condition.signal();
+    return next.granted;
+  }
+
+  /**
+   * @return the lock if another node holds it.
+   */
+  private LockImpl getRemoteLock(String id) {
+    LockImpl lock = lockMap.get(id);
+    if (lock != null) {
+      lock.bind(this);
+      if (lock.isLocked() && !lock.isLocal()) {
+        return lock;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Called with the stripe locked.
+   */
+  private String describeTimeout(String id, LockEntry entry, long start) {
+    StringBuilder sb = new StringBuilder("Failed to lock node ").append(id)
+        .append(" after ").append(System.currentTimeMillis() - start).append(" ms");
+    if (entry.lock != null) {
+      sb.append(", held by ").append(entry.owner).append(" for ")
+          .append(System.currentTimeMillis() - entry.since).append(" ms");
+    } else {
+      LockImpl remote = getRemoteLock(id);
+      if (remote != null) {
+        sb.append(", held by another node ");
+      }
+    }
+    sb.append(", ").append(entry.waiters.size()).append(" other waiters");
+    // a thread that waits while holding other locks may be part of a deadlock.
+    List<String> held = new ArrayList<String>();
+    for (LockImpl lock : getRequestLocks().list()) {
+      if (lock.isLocked()) {
+        held.add(lock.getLocked());
+      }
+    }
+    if (!held.isEmpty()) {
+      sb.append(", ").append(Thread.currentThread().getName()).append(" holds ")
+          .append(held);
+    }
+    return sb.toString();
+  }
+
+  private Stripe getStripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    return stripes[h & (STRIPES - 1)];
+  }
+
   /**
    * @param cacheManagerService
    */
@@ -244,6 +435,35 @@ public class LockManagerImpl implements LockManager {
     this.cacheManagerService = null;
     lockMap = null;
   }
- 
- 
+
+  /**
+   * A stripe of the lock table.
+   */
+  private static final class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, LockEntry> entries = new HashMap<String, LockEntry>();
+  }
+
+  /**
+   * The holder and waiters of a lock held on this node.
+   */
+  private static final class LockEntry {
+    private LockImpl lock;
+    private String owner;
+    private long since;
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+  }
+
+  private static final class Waiter {
+    private final long threadId;
+    private final String name;
+    private final Condition condition;
+    private LockImpl granted;
+
+    private Waiter(long threadId, String name, Condition condition) {
+      this.threadId = threadId;
+      this.name = name;
+      this.condition = condition;
+    }
+  }
 }
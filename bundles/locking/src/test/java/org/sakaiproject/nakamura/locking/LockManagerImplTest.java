@@ -22,17 +22,26 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  *
  */
@@ -99,4 +108,54 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testHandOff() throws Exception {
+    Lock held = lockManager.waitForLock("bar");
+    final AtomicReference<Lock> granted = new AtomicReference<Lock>();
+    final AtomicBoolean owner = new AtomicBoolean();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock lock = lockManager.waitForLock("bar");
+          owner.set(lock.isOwner());
+          granted.set(lock);
+        } catch (LockTimeoutException e) {
+          // granted stays null
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(100);
+    assertNull(granted.get());
+    held.unlock();
+    waiter.join(5000);
+    assertNotNull(granted.get());
+    assertEquals("bar", granted.get().getLocked());
+    assertTrue(owner.get());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_TIMEOUT, 200L);
+    lockManager.modified(properties);
+    lockManager.waitForLock("baz");
+    final AtomicReference<String> message = new AtomicReference<String>();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("baz");
+        } catch (LockTimeoutException e) {
+          message.set(e.getMessage());
+        }
+      }
+    };
+    waiter.start();
+    waiter.join(5000);
+    assertNotNull(message.get());
+    assertTrue(message.get().contains("held by " + Thread.currentThread().getName()));
+  }
+
 }
@@ -70,13 +70,23 @@ public interface Cache<V> {
   void remove(String key);
 
   /**
-   * Remove the key and any child keys from the cache, this is an expensive
-   * operation.
+   * Remove the key and any child keys from the cache. Child keys are those that start
+   * with key + "/". The cost is proportional to the number of keys removed, not the
+   * size of the cache.
    *
    * @param key
    */
   void removeChildren(String key);
 
+  /**
+   * List the payloads of the key and any child keys in the cache. Child keys are those
+   * that start with key + "/".
+   *
+   * @param key
+   * @return the payloads found, the key itself first if present.
+   */
+  List<V> listChildren(String key);
+
   /**
    * @return
    */
@@ -21,9 +21,12 @@ import com.google.common.collect.Sets;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.event.RegisteredEventListeners;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,11 +46,14 @@ import java.util.Set;
 public class CacheImpl<V> implements Cache<V> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheImpl.class);
+  private static final StripedCounter HITS = TelemetryCounter.counter("memory", "Cache", "hits");
+  private static final StripedCounter MISSES = TelemetryCounter.counter("memory", "Cache", "misses");
   private String cacheName;
   private net.sf.ehcache.Cache cache;
   private CacheScope scope;
   private boolean checkPayloadClasses;
   private Set<String> loadedClasses = Sets.newHashSet();
+  private CacheKeyIndex keyIndex;
 
   /**
    * @param cacheManager
@@ -71,6 +77,7 @@ public class CacheImpl<V> implements Cache<V> {
         }
       }
     }
+    keyIndex = bindKeyIndex(cache);
     checkPayloadClasses = false;
     CacheConfiguration cacheConfiguration = cache.getCacheConfiguration();
     if (CacheScope.CLUSTERREPLICATED.equals(scope) || cacheConfiguration.isDiskPersistent() || cacheConfiguration.isEternal() || cacheConfiguration.isOverflowToDisk()) {
@@ -80,6 +87,31 @@ public class CacheImpl<V> implements Cache<V> {
     // a way of finding that out from the Cache Configuration object.
   }
 
+  /**
+   * Find the key index listening to the Ehcache, or create and register one. The
+   * Ehcache may be shared by more than one CacheImpl, and they must share the index.
+   *
+   * @param cache
+   * @return the key index for the cache.
+   */
+  private static CacheKeyIndex bindKeyIndex(net.sf.ehcache.Cache cache) {
+    RegisteredEventListeners listeners = cache.getCacheEventNotificationService();
+    synchronized (listeners) {
+      for (CacheEventListener listener : listeners.getCacheEventListeners()) {
+        if (listener instanceof CacheKeyIndex) {
+          return (CacheKeyIndex) listener;
+        }
+      }
+      CacheKeyIndex index = new CacheKeyIndex();
+      listeners.registerListener(index);
+      // pick up anything already in the cache, eg from disk or a bootstrap.
+      for (Object k : cache.getKeys()) {
+        index.add(k);
+      }
+      return index;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -114,9 +146,9 @@ public class CacheImpl<V> implements Cache<V> {
   @SuppressWarnings("unchecked")
   private V stats(Object objectValue) {
     if (objectValue == null) {
-      TelemetryCounter.incrementValue("memory", "Cache", "misses");
+      MISSES.increment();
     } else {
-      TelemetryCounter.incrementValue("memory", "Cache", "hits");
+      HITS.increment();
     }
     return (V) objectValue;
   }
@@ -191,15 +223,30 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void removeChildren(String key) {
     cache.remove(key);
-    if (!key.endsWith("/")) {
-      key = key + "/";
+    for (String k : keyIndex.getChildKeys(key)) {
+      cache.remove(k);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> listChildren(String key) {
+    List<V> values = new ArrayList<V>();
+    Element e = cache.get(key);
+    if (e != null) {
+      values.add((V) e.getObjectValue());
     }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
+    for (String k : keyIndex.getChildKeys(key)) {
+      e = cache.get(k);
+      if (e != null) {
+        values.add((V) e.getObjectValue());
       }
     }
+    return values;
   }
 
   /**
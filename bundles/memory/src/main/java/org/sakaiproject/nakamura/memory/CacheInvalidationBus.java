@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Carries cache operations for the cluster scoped caches between app nodes over a JMS
+ * topic. Operations are queued, coalesced per key and sent in batches by a single
+ * flusher thread, so a burst of invalidations of the same key costs one message
+ * entry. Messages from this node are ignored when they come back from the topic.
+ *
+ * Until {@link #start(ConnectionFactory)} is called, or after {@link #stop()},
+ * operations are dropped and the caches behave as instance caches.
+ */
+public class CacheInvalidationBus implements MessageListener {
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/cluster";
+  public static final String NODE_PROPERTY = "node";
+  public static final long DEFAULT_FLUSH_INTERVAL = 100L;
+  public static final int DEFAULT_MAX_BATCH = 500;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheInvalidationBus.class);
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final Map<String, ClusterCacheImpl<?>> caches = new ConcurrentHashMap<String, ClusterCacheImpl<?>>();
+  private final LinkedHashMap<String, CacheOperation> pending = new LinkedHashMap<String, CacheOperation>();
+  private final AtomicLong sentMessages = new AtomicLong();
+  private final AtomicLong sentOperations = new AtomicLong();
+  private final AtomicLong receivedOperations = new AtomicLong();
+
+  private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+  private volatile int maxBatch = DEFAULT_MAX_BATCH;
+  private volatile boolean running;
+  private Connection connection;
+  private Thread flusher;
+
+  public void setFlushInterval(long flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  public void setMaxBatch(int maxBatch) {
+    this.maxBatch = maxBatch;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public long getSentMessages() {
+    return sentMessages.get();
+  }
+
+  public long getSentOperations() {
+    return sentOperations.get();
+  }
+
+  public long getReceivedOperations() {
+    return receivedOperations.get();
+  }
+
+  /**
+   * Register a cache to receive operations from other nodes.
+   *
+   * @param name
+   * @param cache
+   */
+  public void register(String name, ClusterCacheImpl<?> cache) {
+    caches.put(name, cache);
+  }
+
+  /**
+   * Connect to the broker and start sending and receiving.
+   *
+   * @param connectionFactory
+   * @throws JMSException
+   */
+  public synchronized void start(ConnectionFactory connectionFactory) throws JMSException {
+    if (running) {
+      stop();
+    }
+    connection = connectionFactory.createConnection();
+    try {
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = consumerSession.createTopic(TOPIC);
+      MessageConsumer consumer = consumerSession.createConsumer(topic);
+      consumer.setMessageListener(this);
+      final Session producerSession = connection.createSession(false,
+          Session.AUTO_ACKNOWLEDGE);
+      final MessageProducer producer = producerSession.createProducer(producerSession
+          .createTopic(TOPIC));
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+      running = true;
+      flusher = new Thread("Cache Invalidation Bus " + nodeId) {
+        @Override
+        public void run() {
+          flushLoop(producerSession, producer);
+        }
+      };
+      flusher.setDaemon(true);
+      flusher.start();
+      LOGGER.info("Cluster cache bus started as node {} ", nodeId);
+    } catch (JMSException e) {
+      closeConnection();
+      throw e;
+    }
+  }
+
+  /**
+   * Stop sending and receiving, anything queued is sent first.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    synchronized (pending) {
+      pending.notifyAll();
+    }
+    try {
+      flusher.join(flushInterval * 10);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    closeConnection();
+    LOGGER.info("Cluster cache bus stopped, sent {} operations in {} messages ",
+        sentOperations.get(), sentMessages.get());
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
+    }
+  }
+
+  /**
+   * Queue an operation for the other nodes. A later operation on the same key replaces
+   * an earlier one that has not been sent yet, and a clear replaces everything queued
+   * for the cache.
+   *
+   * @param operation
+   */
+  public void publish(CacheOperation operation) {
+    if (!running) {
+      return;
+    }
+    synchronized (pending) {
+      if (CacheOperation.Type.CLEAR.equals(operation.getType())) {
+        for (Iterator<CacheOperation> i = pending.values().iterator(); i.hasNext();) {
+          if (i.next().getCacheName().equals(operation.getCacheName())) {
+            i.remove();
+          }
+        }
+      }
+      String coalesceKey = operation.getCoalesceKey();
+      // remove first so that the replacement moves to the end of the queue.
+      pending.remove(coalesceKey);
+      pending.put(coalesceKey, operation);
+      if (pending.size() >= maxBatch) {
+        pending.notifyAll();
+      }
+    }
+  }
+
+  private void flushLoop(Session session, MessageProducer producer) {
+    boolean more = true;
+    while (more) {
+      List<CacheOperation> batch;
+      synchronized (pending) {
+        if (running && pending.size() < maxBatch) {
+          try {
+            pending.wait(flushInterval);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        more = running;
+        batch = new ArrayList<CacheOperation>(pending.values());
+        pending.clear();
+      }
+      int offset = 0;
+      while (offset < batch.size()) {
+        int end = Math.min(batch.size(), offset + maxBatch);
+        send(session, producer, batch.subList(offset, end));
+        offset = end;
+      }
+    }
+  }
+
+  private void send(Session session, MessageProducer producer, List<CacheOperation> batch) {
+    try {
+      BytesMessage message = session.createBytesMessage();
+      message.setStringProperty(NODE_PROPERTY, nodeId);
+      message.writeInt(batch.size());
+      for (CacheOperation operation : batch) {
+        operation.writeTo(message);
+      }
+      producer.send(message);
+      sentMessages.incrementAndGet();
+      sentOperations.addAndGet(batch.size());
+    } catch (JMSException e) {
+      // the other nodes will serve stale entries until they expire, make this visible.
+      LOGGER.error("Failed to send " + batch.size() + " cache operations to the cluster "
+          + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      if (nodeId.equals(message.getStringProperty(NODE_PROPERTY))
+          || !(message instanceof BytesMessage)) {
+        return;
+      }
+      BytesMessage bytesMessage = (BytesMessage) message;
+      int n = bytesMessage.readInt();
+      for (int i = 0; i < n; i++) {
+        CacheOperation operation = CacheOperation.readFrom(bytesMessage);
+        ClusterCacheImpl<?> cache = caches.get(operation.getCacheName());
+        if (cache != null) {
+          cache.apply(operation);
+        }
+        receivedOperations.incrementAndGet();
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of the keys held in an Ehcache, maintained from the cache events so
+ * that puts and removals made by Ehcache itself (eviction, expiry, replication) are
+ * also seen. Finding all the keys below a path costs O(log n + subtree) rather than a
+ * scan of every key in the cache.
+ *
+ * The index may hold a few keys that are no longer in the cache, but every key in the
+ * cache is in the index, so a subtree invalidation never misses an entry.
+ */
+public class CacheKeyIndex implements CacheEventListener {
+
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+  /**
+   * @param key
+   *          the parent key.
+   * @return the keys strictly below the parent key, ie starting with key + "/".
+   */
+  public List<String> getChildKeys(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    List<String> children = new ArrayList<String>();
+    for (String k : keys.tailSet(prefix)) {
+      if (!k.startsWith(prefix)) {
+        break;
+      }
+      children.add(k);
+    }
+    return children;
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  public void add(Object key) {
+    if (key instanceof String) {
+      keys.add((String) key);
+    }
+  }
+
+  private void remove(Ehcache cache, Object key) {
+    if (key instanceof String) {
+      keys.remove(key);
+      // a concurrent put of the same key may have notified us before this removal, if
+      // so the key must stay in the index.
+      if (cache.isKeyInCache(key)) {
+        keys.add((String) key);
+      }
+    }
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    add(element.getObjectKey());
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    add(element.getObjectKey());
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    remove(cache, element.getObjectKey());
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(cache, element.getObjectKey());
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(cache, element.getObjectKey());
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+    keys.clear();
+    for (Object k : cache.getKeys()) {
+      add(k);
+    }
+  }
+
+  public void dispose() {
+    keys.clear();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("The key index is bound to a single cache");
+  }
+
+}
@@ -24,9 +24,14 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -46,6 +51,7 @@ import java.util.Scanner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.jms.JMSException;
 import javax.management.MBeanServer;
 
 /**
@@ -68,6 +74,16 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property( value = DEFAULT_CACHE_STORE)
   public static final String CACHE_STORE = "cache-store";
 
+  @Property(longValue = CacheInvalidationBus.DEFAULT_FLUSH_INTERVAL)
+  public static final String CLUSTER_FLUSH_INTERVAL = "cluster-flush-interval";
+
+  @Property(intValue = CacheInvalidationBus.DEFAULT_MAX_BATCH)
+  public static final String CLUSTER_MAX_BATCH = "cluster-max-batch";
+
+  public static final int DEFAULT_MAX_REPLICATED_SIZE = 4096;
+  @Property(intValue = DEFAULT_MAX_REPLICATED_SIZE)
+  public static final String CLUSTER_MAX_REPLICATED_SIZE = "cluster-max-replicated-size";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
@@ -80,6 +96,11 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private CacheInvalidationBus invalidationBus = new CacheInvalidationBus();
+  private int maxReplicatedSize = DEFAULT_MAX_REPLICATED_SIZE;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindConnectionFactoryService", unbind = "unbindConnectionFactoryService")
+  protected ConnectionFactoryService connectionFactoryService;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -122,6 +143,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
    @Activate
    protected void activate(Map<String, Object> properties) throws FileNotFoundException, IOException {
+	  invalidationBus.setFlushInterval(PropertiesUtil.toLong(properties.get(CLUSTER_FLUSH_INTERVAL), CacheInvalidationBus.DEFAULT_FLUSH_INTERVAL));
+	  invalidationBus.setMaxBatch(PropertiesUtil.toInteger(properties.get(CLUSTER_MAX_BATCH), CacheInvalidationBus.DEFAULT_MAX_BATCH));
+	  maxReplicatedSize = PropertiesUtil.toInteger(properties.get(CLUSTER_MAX_REPLICATED_SIZE), DEFAULT_MAX_REPLICATED_SIZE);
 	  String config = PropertiesUtil.toString(properties.get(CACHE_CONFIG), DEFAULT_CACHE_CONFIG);
 	  File configFile = new File(config);
 	  ClassLoader cl = Thread.currentThread().getContextClassLoader();
@@ -179,10 +203,40 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
   }
 
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    invalidationBus.stop();
+  }
+
+  protected void bindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+    try {
+      invalidationBus.start(connectionFactoryService.getDefaultConnectionFactory());
+    } catch (JMSException e) {
+      LOGGER.error("Unable to start the cluster cache bus, cluster scoped caches will only be local "
+          + e.getMessage(), e);
+    }
+  }
+
+  protected void unbindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    if (this.connectionFactoryService == connectionFactoryService) {
+      invalidationBus.stop();
+      this.connectionFactoryService = null;
+    }
+  }
+
+  /**
+   * @return the bus carrying cluster cache operations between nodes.
+   */
+  protected CacheInvalidationBus getInvalidationBus() {
+    return invalidationBus;
+  }
+
   /**
    * perform a shutdown
    */
   public void stop() {
+    invalidationBus.stop();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -197,9 +251,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name, scope);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name, scope);
+      return getClusterCache(name, scope);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name, scope);
+      return getClusterCache(name, scope);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -248,7 +302,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @return
    */
   @SuppressWarnings("unchecked")
-  private <V> Cache<V> getInstanceCache(String name, CacheScope scope) {
+  private synchronized <V> Cache<V> getInstanceCache(String name, CacheScope scope) {
     if (name == null) {
       return new CacheImpl<V>(cacheManager, null, scope);
     } else {
@@ -261,6 +315,30 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * Generate a local cache that sends its changes to the other nodes in the cluster.
+   *
+   * @param name
+   * @param scope
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized <V> Cache<V> getClusterCache(String name, CacheScope scope) {
+    if (name == null) {
+      // unnamed caches can't be matched up between nodes.
+      return getInstanceCache(name, scope);
+    }
+    Cache<V> c = (Cache<V>) caches.get(name);
+    if (c == null) {
+      ClusterCacheImpl<V> clusterCache = new ClusterCacheImpl<V>(name, scope,
+          new CacheImpl<V>(cacheManager, name, scope), invalidationBus, maxReplicatedSize);
+      invalidationBus.register(name, clusterCache);
+      caches.put(name, clusterCache);
+      c = clusterCache;
+    }
+    return c;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * A single cache operation sent between cluster nodes by the
+ * {@link CacheInvalidationBus}.
+ */
+public class CacheOperation {
+
+  public enum Type {
+    /**
+     * Remove a single key.
+     */
+    REMOVE,
+    /**
+     * Remove a key and all its children.
+     */
+    REMOVE_CHILDREN,
+    /**
+     * Remove everything in the cache.
+     */
+    CLEAR,
+    /**
+     * Replace the value of a key with the serialized value.
+     */
+    PUT;
+  }
+
+  private final String cacheName;
+  private final Type type;
+  private final String key;
+  private final byte[] value;
+
+  public CacheOperation(String cacheName, Type type, String key, byte[] value) {
+    this.cacheName = cacheName;
+    this.type = type;
+    this.key = key == null ? "" : key;
+    this.value = value;
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  /**
+   * @return the key under which later operations replace this one when batching.
+   */
+  public String getCoalesceKey() {
+    switch (type) {
+    case CLEAR:
+      return "c:" + cacheName;
+    case REMOVE_CHILDREN:
+      return "r:" + cacheName + ":" + key;
+    default:
+      return "k:" + cacheName + ":" + key;
+    }
+  }
+
+  /**
+   * Write the operation to a message, using the message rather than object
+   * serialization keeps the message free of classes that the broker cannot load.
+   *
+   * @param message
+   * @throws JMSException
+   */
+  public void writeTo(BytesMessage message) throws JMSException {
+    message.writeUTF(cacheName);
+    message.writeByte((byte) type.ordinal());
+    message.writeUTF(key);
+    if (value == null) {
+      message.writeInt(-1);
+    } else {
+      message.writeInt(value.length);
+      message.writeBytes(value);
+    }
+  }
+
+  public static CacheOperation readFrom(BytesMessage message) throws JMSException {
+    String cacheName = message.readUTF();
+    Type type = Type.values()[message.readByte()];
+    String key = message.readUTF();
+    int length = message.readInt();
+    byte[] value = null;
+    if (length >= 0) {
+      value = new byte[length];
+      message.readBytes(value);
+    }
+    return new CacheOperation(cacheName, type, key, value);
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + cacheName + ":" + key;
+  }
+}
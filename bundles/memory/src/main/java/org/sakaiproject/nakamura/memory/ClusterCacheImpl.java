@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A cluster scoped cache. Values are held in a local {@link CacheImpl}, changes are
+ * sent to the other nodes through the {@link CacheInvalidationBus}.
+ *
+ * For {@link CacheScope#CLUSTERINVALIDATED} removes, child removes and clears are sent
+ * as invalidations. A put is treated as a read through load and stays local, so nodes
+ * loading the same hot entry do not keep evicting each other's copy. Writers must
+ * remove the entries they change, which drops them on every node.
+ *
+ * For {@link CacheScope#CLUSTERREPLICATED} puts are also sent, with the serialized
+ * value when it is no bigger than the replication limit and as an invalidation
+ * otherwise.
+ */
+public class ClusterCacheImpl<V> implements Cache<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheImpl.class);
+  private final String name;
+  private final CacheScope scope;
+  private final CacheImpl<V> local;
+  private final CacheInvalidationBus bus;
+  private final int maxReplicatedSize;
+
+  public ClusterCacheImpl(String name, CacheScope scope, CacheImpl<V> local,
+      CacheInvalidationBus bus, int maxReplicatedSize) {
+    this.name = name;
+    this.scope = scope;
+    this.local = local;
+    this.bus = bus;
+    this.maxReplicatedSize = maxReplicatedSize;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    if (CacheScope.CLUSTERREPLICATED.equals(scope)) {
+      byte[] value = serialize(payload);
+      if (value != null) {
+        bus.publish(new CacheOperation(name, CacheOperation.Type.PUT, key, value));
+      } else {
+        bus.publish(new CacheOperation(name, CacheOperation.Type.REMOVE, key, null));
+      }
+    }
+    return previous;
+  }
+
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  public void clear() {
+    local.clear();
+    bus.publish(new CacheOperation(name, CacheOperation.Type.CLEAR, null, null));
+  }
+
+  public void remove(String key) {
+    local.remove(key);
+    bus.publish(new CacheOperation(name, CacheOperation.Type.REMOVE, key, null));
+  }
+
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    bus.publish(new CacheOperation(name, CacheOperation.Type.REMOVE_CHILDREN, key, null));
+  }
+
+  public List<V> listChildren(String key) {
+    return local.listChildren(key);
+  }
+
+  public List<V> list() {
+    return local.list();
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    local.checkCompatableScope(scope);
+  }
+
+  /**
+   * Apply an operation from another node to the local cache only.
+   *
+   * @param operation
+   */
+  @SuppressWarnings("unchecked")
+  protected void apply(CacheOperation operation) {
+    switch (operation.getType()) {
+    case REMOVE:
+      local.remove(operation.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      local.removeChildren(operation.getKey());
+      break;
+    case CLEAR:
+      local.clear();
+      break;
+    case PUT:
+      try {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+            operation.getValue()));
+        local.put(operation.getKey(), (V) in.readObject());
+      } catch (IOException e) {
+        discard(operation, e);
+      } catch (ClassNotFoundException e) {
+        discard(operation, e);
+      }
+      break;
+    }
+  }
+
+  private void discard(CacheOperation operation, Exception e) {
+    // can't use the value, but must not keep the old one.
+    LOGGER.warn("Unable to apply replicated value for {} {} ", operation, e.getMessage());
+    local.remove(operation.getKey());
+  }
+
+  private byte[] serialize(V payload) {
+    if (!(payload instanceof Serializable)) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(payload);
+      oos.flush();
+      if (baos.size() > maxReplicatedSize) {
+        return null;
+      }
+      return baos.toByteArray();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to serialize {} for replication {} ", payload, e.getMessage());
+      return null;
+    }
+  }
+}
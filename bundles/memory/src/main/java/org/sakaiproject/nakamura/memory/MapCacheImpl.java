@@ -24,7 +24,6 @@ import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
 
 /**
  *
@@ -93,15 +92,42 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   public void removeChildren(String key) {
     super.remove(key);
+    for ( String k : childKeys(key) ) {
+      super.remove(k);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<V> listChildren(String key) {
+    List<V> values = new ArrayList<V>();
+    if ( super.containsKey(key) ) {
+      values.add(super.get(key));
+    }
+    for ( String k : childKeys(key) ) {
+      values.add(super.get(k));
+    }
+    return values;
+  }
+
+  /**
+   * Request and thread caches are small, so a scan is fine here.
+   * @param key
+   * @return a copy of the keys starting with key + "/"
+   */
+  private List<String> childKeys(String key) {
     if ( !key.endsWith("/") ) {
       key = key + "/";
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    List<String> children = new ArrayList<String>();
+    for ( String k : super.keySet() ) {
+      if ( k.startsWith(key) ) {
+        children.add(k);
       }
     }
+    return children;
   }
 
   /**
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CacheKeyIndexTest {
+
+  private CacheManager cacheManager;
+  private List<String> cacheNames = new ArrayList<String>();
+
+  @Before
+  public void before() {
+    cacheManager = CacheManager.create();
+  }
+
+  @After
+  public void after() {
+    for (String name : cacheNames) {
+      cacheManager.removeCache(name);
+    }
+  }
+
+  @Test
+  public void testChildKeys() {
+    Ehcache cache = createNiceMock(Ehcache.class);
+    replay(cache);
+    CacheKeyIndex index = new CacheKeyIndex();
+    index.notifyElementPut(cache, new Element("a", "1"));
+    index.notifyElementPut(cache, new Element("a/b", "2"));
+    index.notifyElementPut(cache, new Element("a/b/c", "3"));
+    index.notifyElementPut(cache, new Element("ab", "4"));
+    index.notifyElementPut(cache, new Element("a.b", "5"));
+    List<String> children = index.getChildKeys("a");
+    assertEquals(2, children.size());
+    assertTrue(children.contains("a/b"));
+    assertTrue(children.contains("a/b/c"));
+    assertEquals(children, index.getChildKeys("a/"));
+    index.notifyElementEvicted(cache, new Element("a/b/c", "3"));
+    assertEquals(1, index.getChildKeys("a").size());
+    index.notifyElementRemoved(cache, new Element("a/b", null));
+    assertEquals(0, index.getChildKeys("a").size());
+    assertEquals(3, index.size());
+  }
+
+  @Test
+  public void testIndexConsistentUnderConcurrentChanges() throws InterruptedException {
+    Ehcache ehcache = addCache("concurrent", 100000, 0);
+    final CacheImpl<String> cache = new CacheImpl<String>(cacheManager, "concurrent",
+        CacheScope.INSTANCE);
+    CacheKeyIndex index = getKeyIndex(ehcache);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            cache.put("/p" + (i % 10) + "/c" + (i % 50) + "/" + thread, "v" + i);
+            if (i % 7 == 0) {
+              cache.remove("/p" + ((i + 3) % 10) + "/c" + ((i + 3) % 50) + "/"
+                  + ((thread + 1) % 8));
+            }
+            if (i % 50 == 0) {
+              cache.removeChildren("/p" + ((i / 50) % 10));
+            }
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    // every key in the cache can be found through the index.
+    Set<String> indexed = new HashSet<String>(index.getChildKeys("/"));
+    assertFalse(ehcache.getKeys().isEmpty());
+    assertTrue(indexed.containsAll(ehcache.getKeys()));
+    // so removing a subtree leaves nothing of it behind.
+    cache.removeChildren("/p1");
+    assertTrue(cache.listChildren("/p1").isEmpty());
+    for (Object k : ehcache.getKeys()) {
+      assertFalse(String.valueOf(k).startsWith("/p1/"));
+    }
+  }
+
+  @Test
+  public void testEvictedAndExpiredKeysLeaveTheIndex() throws InterruptedException {
+    Ehcache ehcache = addCache("evicting", 2, 1);
+    CacheImpl<String> cache = new CacheImpl<String>(cacheManager, "evicting",
+        CacheScope.INSTANCE);
+    CacheKeyIndex index = getKeyIndex(ehcache);
+    cache.put("/a/1", "1");
+    cache.put("/a/2", "2");
+    cache.put("/a/3", "3");
+    assertEquals(2, ehcache.getSize());
+    assertEquals(2, index.size());
+    assertTrue(ehcache.getKeys().containsAll(index.getChildKeys("/a")));
+
+    Thread.sleep(1500);
+    // expired entries are removed when they are next looked at.
+    for (String k : index.getChildKeys("/a")) {
+      assertNull(cache.get(k));
+    }
+    assertEquals(0, index.size());
+  }
+
+  private Ehcache addCache(String name, int maxElementsInMemory, long timeToLiveSeconds) {
+    CacheConfiguration configuration = new CacheConfiguration(name, maxElementsInMemory);
+    if (timeToLiveSeconds > 0) {
+      configuration.setTimeToLiveSeconds(timeToLiveSeconds);
+    }
+    Ehcache ehcache = new Cache(configuration);
+    cacheManager.addCache(ehcache);
+    cacheNames.add(name);
+    return ehcache;
+  }
+
+  private CacheKeyIndex getKeyIndex(Ehcache ehcache) {
+    for (Object listener : ehcache.getCacheEventNotificationService()
+        .getCacheEventListeners()) {
+      if (listener instanceof CacheKeyIndex) {
+        return (CacheKeyIndex) listener;
+      }
+    }
+    throw new AssertionError("No key index registered on " + ehcache.getName());
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Two cache managers in one JVM, talking through an embedded broker.
+ */
+public class ClusterCacheTest {
+
+  private CacheManagerServiceImpl node1;
+  private CacheManagerServiceImpl node2;
+
+  @Before
+  public void setUp() throws IOException {
+    ConnectionFactoryService connectionFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(
+        new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false"))
+        .anyTimes();
+    replay(connectionFactoryService);
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(CacheManagerServiceImpl.CLUSTER_FLUSH_INTERVAL, 10L);
+    node1 = new CacheManagerServiceImpl();
+    node1.activate(properties);
+    node1.bindConnectionFactoryService(connectionFactoryService);
+    node2 = new CacheManagerServiceImpl();
+    node2.activate(properties);
+    node2.bindConnectionFactoryService(connectionFactoryService);
+  }
+
+  @After
+  public void tearDown() {
+    node1.stop();
+    node2.stop();
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    Cache<String> cache1 = node1.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cache2 = node2.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    cache2.put("a", "1");
+    cache2.put("a/b", "2");
+    cache2.put("c", "3");
+    // a read through put on one node must not evict the other node's copy.
+    cache1.put("a", "1");
+    cache1.put("a/b", "2");
+    cache1.put("c", "5");
+    Thread.sleep(200);
+    assertEquals("1", cache1.get("a"));
+    assertEquals("1", cache2.get("a"));
+    assertEquals("2", cache2.get("a/b"));
+    assertEquals("3", cache2.get("c"));
+
+    cache1.removeChildren("a");
+    waitForNull(cache2, "a/b");
+    assertNull(cache2.get("a"));
+    assertEquals("3", cache2.get("c"));
+
+    // a writer removes the entry it changes.
+    cache1.remove("c");
+    cache1.put("c", "4");
+    waitForNull(cache2, "c");
+    assertEquals("4", cache1.get("c"));
+  }
+
+  @Test
+  public void testReplication() throws Exception {
+    Cache<String> cache1 = node1.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cache2 = node2.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    cache1.put("a", "value");
+    for (int i = 0; i < 100 && cache2.get("a") == null; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals("value", cache2.get("a"));
+    cache2.remove("a");
+    waitForNull(cache1, "a");
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    Cache<String> cache1 = node1.getCache("coalesced", CacheScope.CLUSTERINVALIDATED);
+    CacheInvalidationBus bus = node1.getInvalidationBus();
+    long sent = bus.getSentOperations();
+    for (int i = 0; i < 1000; i++) {
+      cache1.remove("same");
+    }
+    Thread.sleep(200);
+    long coalesced = bus.getSentOperations() - sent;
+    assertEquals(true, coalesced < 100);
+
+    // puts are local and send nothing.
+    sent = bus.getSentOperations();
+    for (int i = 0; i < 1000; i++) {
+      cache1.put("same", "value");
+    }
+    Thread.sleep(200);
+    assertEquals(0, bus.getSentOperations() - sent);
+  }
+
+  private void waitForNull(Cache<String> cache, String key) throws InterruptedException {
+    for (int i = 0; i < 100 && cache.get(key) != null; i++) {
+      Thread.sleep(50);
+    }
+    assertNull(cache.get(key));
+  }
+}
@@ -93,6 +93,26 @@ public class TestCache {
     }
   }
 
+  @Test
+  public void testListChildren() {
+    for (CacheScope scope : CacheScope.values()) {
+      String cacheName = "ListTestCache"+scope.toString();
+      Cache<String> cache = cacheManagerService.getCache(cacheName, scope);
+      cache.put("fish", "cat");
+      cache.put("fish/child", "childcat");
+      cache.put("fish/child/child", "childcatchild");
+      cache.put("fisherman", "notachild");
+      assertEquals(3, cache.listChildren("fish").size());
+      assertEquals(2, cache.listChildren("fish/child").size());
+      assertEquals(0, cache.listChildren("dog").size());
+      cache.removeChildren("fish");
+      assertEquals(0, cache.listChildren("fish").size());
+      assertEquals("notachild", cache.get("fisherman"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
@@ -35,6 +35,7 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
@@ -67,6 +68,7 @@ import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,7 +76,10 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Joiner;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -157,6 +162,9 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   private static final Logger LOG = LoggerFactory.getLogger(LiteMeServlet.class);
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
+  private static final String[] FRAGMENTS = { MeSnapshotCache.USER,
+      MeSnapshotCache.PROFILE, MeSnapshotCache.MESSAGES, MeSnapshotCache.CONTACTS,
+      MeSnapshotCache.GROUPS };
 
   @Reference
   protected transient LiteMessagingService messagingService;
@@ -173,6 +181,9 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Reference
   protected BasicUserInfoService basicUserInfoService;
 
+  @Reference
+  protected MeSnapshotCache meSnapshotCache;
+
   private String defaultLanguage;
   private String defaultCountry;
 
@@ -214,18 +225,61 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
         return;
       }
-      PrintWriter w = response.getWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
-      writer.object();
+      // only the user's own feed is cached, the counts depend on who is asking.
+      boolean cacheable = userId.equals(session.getUserId())
+          && !UserConstants.ANON_USERID.equals(userId);
+      Map<String, String> fragments = new HashMap<String, String>();
+      Set<String> subjects = null;
+      StringBuilder tag = new StringBuilder();
+      for (String fragment : FRAGMENTS) {
+        String json = null;
+        String key = fragment;
+        if (MeSnapshotCache.USER.equals(fragment)) {
+          // the user fragment carries the current GMT offset, which moves with daylight
+          // saving, so it is held per offset.
+          key = fragment + "/" + getOffset(getTimeZone(au.getProperty(TIMEZONE_FIELD)));
+        }
+        if (cacheable) {
+          json = meSnapshotCache.getFragment(userId, key);
+        }
+        if (json == null) {
+          json = writeFragment(fragment, session, au, request);
+          if (cacheable) {
+            Set<String> groups = Collections.emptySet();
+            if (MeSnapshotCache.USER.equals(fragment)
+                || MeSnapshotCache.GROUPS.equals(fragment)) {
+              if (subjects == null) {
+                subjects = getSubjects(au, um);
+              }
+              groups = subjects;
+            }
+            meSnapshotCache.putFragment(userId, key, json, groups);
+          }
+        }
+        fragments.put(fragment, json);
+        tag.append(json);
+      }
+
+      // the event bus url is not part of the tag, its tokens do not expire so a client
+      // can keep using the one it has.
+      String etag = getETag(tag.toString());
+      if (etag != null) {
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+        response.setHeader("ETag", etag);
+      }
+
+      StringBuilder document = new StringBuilder(tag.length() + 256);
       // User info
-      writer.key("user");
-      writeUserJSON(writer, session, au, request);
+      document.append("{\"user\":").append(fragments.get(MeSnapshotCache.USER));
 
       try {
-        String messageBucketUrl = messageBucketService.getBucketUrl(request, "default");
+        String messageBucketUrl = messageBucketService.getBucketUrl(request,
+            MessageBucketService.DEFAULT_CONTEXT);
         if ( messageBucketUrl != null) {
-          writer.key("eventbus");
-          writer.value(messageBucketUrl);
+          document.append(",\"eventbus\":").append(JSONObject.quote(messageBucketUrl));
         }
       } catch ( MessageBucketException e) {
         LOG.warn("Failed to create message bucket URL {} "+e.getMessage());
@@ -233,24 +287,16 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
       }
 
-      // Dump this user his info
-      writer.key("profile");
-      ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-      writer.valueMap(profile);
-
-      // Dump this user his number of unread messages.
-      writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
-
-      // Dump this user his number of contacts.
-      writer.key("contacts");
-      writeContactCounts(writer, au, request);
-
-      // Dump the groups for this user.
-      writer.key("groups");
-      writeGroups(writer, session, au);
-
-      writer.endObject();
+      // Dump this user his info, number of unread messages, number of contacts and
+      // groups.
+      for (String fragment : FRAGMENTS) {
+        if (!MeSnapshotCache.USER.equals(fragment)) {
+          document.append(",\"").append(fragment).append("\":").append(
+              fragments.get(fragment));
+        }
+      }
+      document.append("}");
+      response.getWriter().write(document.toString());
     } catch (JSONException e) {
       LOG.error("Failed to create proper JSON response in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -275,6 +321,44 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
   }
 
+  /**
+   * Serialize one part of the feed.
+   *
+   * @param fragment
+   *          the name of the part, as used in the feed.
+   * @return the JSON for the part.
+   */
+  protected String writeFragment(String fragment, Session session, Authorizable au,
+      SlingHttpServletRequest request) throws JSONException, StorageClientException,
+      AccessDeniedException, MessagingException, SolrSearchException {
+    StringWriter w = new StringWriter();
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+    if (MeSnapshotCache.USER.equals(fragment)) {
+      writeUserJSON(writer, session, au, request);
+    } else if (MeSnapshotCache.PROFILE.equals(fragment)) {
+      ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+      writer.valueMap(profile);
+    } else if (MeSnapshotCache.MESSAGES.equals(fragment)) {
+      writeMessageCounts(writer, session, au, request);
+    } else if (MeSnapshotCache.CONTACTS.equals(fragment)) {
+      writeContactCounts(writer, au, request);
+    } else {
+      writeGroups(writer, session, au);
+    }
+    return w.toString();
+  }
+
+  private String getETag(String content) {
+    try {
+      return "\"" + StringUtils.sha1Hash(content) + "\"";
+    } catch (UnsupportedEncodingException e) {
+      LOG.debug("Unable to tag /system/me {} ", e.getMessage());
+    } catch (NoSuchAlgorithmException e) {
+      LOG.debug("Unable to tag /system/me {} ", e.getMessage());
+    }
+    return null;
+  }
+
   /**
    * @param writer
    * @param session
@@ -472,13 +556,8 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
     Locale locale = getLocale(properties);
 
     /* Get the correct time zone */
-    TimeZone tz = TimeZone.getDefault();
-    if (properties.containsKey(TIMEZONE_FIELD)) {
-      String timezone = String.valueOf(properties.get(TIMEZONE_FIELD));
-      tz = TimeZone.getTimeZone(timezone);
-    }
-    int daylightSavingsOffset = tz.inDaylightTime(new Date()) ? tz.getDSTSavings() : 0;
-    int offset = tz.getRawOffset() + daylightSavingsOffset;
+    TimeZone tz = getTimeZone(properties.get(TIMEZONE_FIELD));
+    int offset = getOffset(tz);
 
     /* Add the locale information into the output */
     write.key("locale");
@@ -524,6 +603,27 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
     write.endObject();
   }
 
+  /**
+   * @param timezone
+   *          the timezone setting of the user, may be null.
+   * @return the time zone of the user, or the server's if there is no setting.
+   */
+  protected TimeZone getTimeZone(Object timezone) {
+    if (timezone == null) {
+      return TimeZone.getDefault();
+    }
+    return TimeZone.getTimeZone(String.valueOf(timezone));
+  }
+
+  /**
+   * @param tz
+   * @return the offset from GMT right now, including daylight saving.
+   */
+  protected int getOffset(TimeZone tz) {
+    int daylightSavingsOffset = tz.inDaylightTime(new Date()) ? tz.getDSTSavings() : 0;
+    return tz.getRawOffset() + daylightSavingsOffset;
+  }
+
   /**
    * Get a valid {@link Locale}. Checks <code>properties</code> for a locale setting.
    * Defaults to the server configured language and country code.
@@ -0,0 +1,299 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.sakaiproject.nakamura.api.lite.StoreListener.ADDED_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.UPDATED_TOPIC;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the serialized JSON fragments that make up a user's /system/me feed, so a page
+ * load does not have to query Solr for message and contact counts or walk the group
+ * memberships every time.
+ *
+ * Fragments are dropped individually as the things they are built from change: a
+ * change under the user's message store drops the message counts, under the contact
+ * store the contact counts, to the user's profile the user and profile fragments and to
+ * the user's authorizable everything. The fragment cache is cluster invalidated, so
+ * removes made here are seen by the other app nodes.
+ *
+ * The counts come from Solr, which does not see a change until the index is committed.
+ * A change to the counts therefore leaves a pending marker and, until the next commit
+ * event, counts are built on every read but not cached.
+ *
+ * A fragment built from group memberships records a token for each group it used. The
+ * tokens live in a cluster replicated cache and a change to a group drops its token, so
+ * every node treats the fragments that used the group as missing on the next read.
+ * Nothing is kept per group outside the caches.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { MeSnapshotCache.class, EventHandler.class })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    TOPIC_BASE + "authorizables/" + UPDATED_TOPIC,
+    TOPIC_BASE + "authorizables/" + DELETE_TOPIC,
+    TOPIC_BASE + "content/" + ADDED_TOPIC,
+    TOPIC_BASE + "content/" + UPDATED_TOPIC,
+    TOPIC_BASE + "content/" + DELETE_TOPIC,
+    MeSnapshotCache.COMMIT_TOPIC,
+    MeSnapshotCache.SOFT_COMMIT_TOPIC }, propertyPrivate = true) })
+public class MeSnapshotCache implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MeSnapshotCache.class);
+
+  static final String CACHE_NAME = "org.sakaiproject.nakamura.meservice.MeSnapshotCache";
+  static final String STATE_CACHE_NAME = CACHE_NAME + ".state";
+  static final String COMMIT_TOPIC = "org/sakaiproject/nakamura/solr/COMMIT";
+  static final String SOFT_COMMIT_TOPIC = "org/sakaiproject/nakamura/solr/SOFT_COMMIT";
+
+  public static final String USER = "user";
+  public static final String PROFILE = "profile";
+  public static final String MESSAGES = "messages";
+  public static final String CONTACTS = "contacts";
+  public static final String GROUPS = "groups";
+
+  private static final String GROUP_KEY = "group/";
+  private static final String PENDING_KEY = "pending";
+
+  private static final StripedCounter HITS = TelemetryCounter.counter("meservice",
+      "MeSnapshotCache", "hits");
+  private static final StripedCounter MISSES = TelemetryCounter.counter("meservice",
+      "MeSnapshotCache", "misses");
+
+  /**
+   * How long a pending marker holds off caching when no commit event is seen.
+   */
+  @Property(longValue = 60000L)
+  static final String PENDING_MAX_AGE = "pending.maxAge";
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  private long pendingMaxAge = 60000L;
+
+  private final AtomicLong tokens = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * A cached fragment and the group tokens it was built with.
+   */
+  static class Snapshot implements Serializable {
+    private static final long serialVersionUID = 3086742127466370163L;
+    private final String json;
+    private final Map<String, String> groups;
+
+    Snapshot(String json, Map<String, String> groups) {
+      this.json = json;
+      this.groups = groups;
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    pendingMaxAge = PropertiesUtil.toLong(properties.get(PENDING_MAX_AGE), 60000L);
+  }
+
+  private Cache<Snapshot> getCache() {
+    return cacheManagerService.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<Object> getStateCache() {
+    return cacheManagerService.getCache(STATE_CACHE_NAME, CacheScope.CLUSTERREPLICATED);
+  }
+
+  private String getKey(String userId, String fragment) {
+    return userId + "/" + fragment;
+  }
+
+  private String getPendingKey(String userId, String fragment) {
+    return PENDING_KEY + "/" + userId + "/" + fragment;
+  }
+
+  /**
+   * @param userId
+   * @param fragment
+   *          one of {@link #USER}, {@link #PROFILE}, {@link #MESSAGES},
+   *          {@link #CONTACTS} or {@link #GROUPS}, optionally followed by a / and a
+   *          variant of the fragment.
+   * @return the serialized fragment, or null if it needs building.
+   */
+  public String getFragment(String userId, String fragment) {
+    Snapshot snapshot = getCache().get(getKey(userId, fragment));
+    if (snapshot != null && !snapshot.groups.isEmpty()) {
+      Cache<Object> state = getStateCache();
+      for (Entry<String, String> group : snapshot.groups.entrySet()) {
+        if (!group.getValue().equals(state.get(GROUP_KEY + group.getKey()))) {
+          // the group changed since the fragment was built.
+          snapshot = null;
+          break;
+        }
+      }
+    }
+    if (snapshot == null) {
+      MISSES.increment();
+      return null;
+    }
+    HITS.increment();
+    return snapshot.json;
+  }
+
+  /**
+   * Store a fragment, unless it may have been built from an index that does not yet
+   * reflect a change to it.
+   *
+   * @param userId
+   * @param fragment
+   * @param json
+   * @param groups
+   *          the groups the fragment was built from, a change to any of them drops it.
+   */
+  public void putFragment(String userId, String fragment, String json,
+      Collection<String> groups) {
+    Cache<Object> state = getStateCache();
+    Object pending = state.get(getPendingKey(userId, fragment));
+    if (pending instanceof Long
+        && System.currentTimeMillis() - (Long) pending < pendingMaxAge) {
+      LOGGER.debug("Not caching {} for {} until the index is committed ", fragment,
+          userId);
+      return;
+    }
+    Map<String, String> groupTokens = new HashMap<String, String>();
+    for (String group : groups) {
+      String key = GROUP_KEY + group;
+      Object token = state.get(key);
+      if (token == null) {
+        token = Long.toString(tokens.incrementAndGet(), 36);
+        state.put(key, token);
+      }
+      groupTokens.put(group, String.valueOf(token));
+    }
+    getCache().put(getKey(userId, fragment), new Snapshot(json, groupTokens));
+  }
+
+  /**
+   * Drop fragments of the user, and any variants of them.
+   *
+   * @param userId
+   * @param fragments
+   */
+  public void invalidate(String userId, String... fragments) {
+    Cache<Snapshot> cache = getCache();
+    for (String fragment : fragments) {
+      cache.removeChildren(getKey(userId, fragment));
+    }
+  }
+
+  /**
+   * Drop fragments built from the search index and hold off caching them again until
+   * the index has been committed.
+   *
+   * @param userId
+   * @param fragments
+   */
+  public void invalidateUntilCommit(String userId, String... fragments) {
+    Cache<Object> state = getStateCache();
+    Long now = System.currentTimeMillis();
+    for (String fragment : fragments) {
+      state.put(getPendingKey(userId, fragment), now);
+    }
+    invalidate(userId, fragments);
+  }
+
+  /**
+   * Drop every fragment held for the user.
+   *
+   * @param userId
+   */
+  public void invalidate(String userId) {
+    getCache().removeChildren(userId);
+  }
+
+  /**
+   * Drop every fragment built from the group's membership, on all nodes.
+   *
+   * @param groupId
+   */
+  public void invalidateGroup(String groupId) {
+    getStateCache().remove(GROUP_KEY + groupId);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (COMMIT_TOPIC.equals(topic) || SOFT_COMMIT_TOPIC.equals(topic)) {
+      getStateCache().removeChildren(PENDING_KEY);
+      return;
+    }
+    Object pathProperty = event.getProperty("path");
+    if (pathProperty == null) {
+      return;
+    }
+    String path = String.valueOf(pathProperty);
+    if (topic.indexOf("/authorizables/") > 0) {
+      invalidate(path);
+      invalidateGroup(path);
+    } else if (path.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)) {
+      int slash = path.indexOf('/');
+      if (slash < 0) {
+        return;
+      }
+      String userId = path.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length(), slash);
+      String rest = path.substring(slash + 1);
+      if (rest.startsWith(MessageConstants.FOLDER_MESSAGES)) {
+        invalidateUntilCommit(userId, MESSAGES);
+      } else if (rest.startsWith(ConnectionConstants.CONTACT_STORE_NAME)) {
+        invalidateUntilCommit(userId, CONTACTS);
+      } else if (path.startsWith(LitePersonalUtils.getProfilePath(userId))) {
+        invalidate(userId, USER, PROFILE);
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MeSnapshotCacheTest {
+
+  @Mock
+  CacheManagerService cacheManagerService;
+
+  MeSnapshotCache cache;
+
+  @Before
+  public void setUp() {
+    when(cacheManagerService.getCache(MeSnapshotCache.CACHE_NAME,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(
+        new MapCacheImpl<Object>(MeSnapshotCache.CACHE_NAME, CacheScope.CLUSTERINVALIDATED));
+    when(cacheManagerService.getCache(MeSnapshotCache.STATE_CACHE_NAME,
+        CacheScope.CLUSTERREPLICATED)).thenReturn(
+        new MapCacheImpl<Object>(MeSnapshotCache.STATE_CACHE_NAME,
+            CacheScope.CLUSTERREPLICATED));
+    cache = new MeSnapshotCache();
+    cache.cacheManagerService = cacheManagerService;
+    cache.activate(ImmutableMap.<String, Object> of());
+    for (String fragment : new String[] { MeSnapshotCache.USER, MeSnapshotCache.PROFILE,
+        MeSnapshotCache.MESSAGES, MeSnapshotCache.CONTACTS, MeSnapshotCache.GROUPS }) {
+      boolean fromGroups = MeSnapshotCache.USER.equals(fragment)
+          || MeSnapshotCache.GROUPS.equals(fragment);
+      cache.putFragment("alice", fragment, "{}", fromGroups ? ImmutableList.of("group1")
+          : ImmutableList.<String> of());
+    }
+  }
+
+  private void post(String topic, String path) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    if (path != null) {
+      properties.put("path", path);
+    }
+    cache.handleEvent(new Event(topic, properties));
+  }
+
+  @Test
+  public void testMessageDropsOnlyCounts() {
+    post("org/sakaiproject/nakamura/lite/content/ADDED", "a:alice/message/inbox/1");
+    assertNull(cache.getFragment("alice", MeSnapshotCache.MESSAGES));
+    assertEquals("{}", cache.getFragment("alice", MeSnapshotCache.CONTACTS));
+    assertEquals("{}", cache.getFragment("alice", MeSnapshotCache.GROUPS));
+
+    post("org/sakaiproject/nakamura/lite/content/UPDATED", "a:alice/contacts/bob");
+    assertNull(cache.getFragment("alice", MeSnapshotCache.CONTACTS));
+    assertEquals("{}", cache.getFragment("alice", MeSnapshotCache.PROFILE));
+
+    post("org/sakaiproject/nakamura/lite/content/UPDATED", "a:bob/message/inbox/1");
+    assertEquals("{}", cache.getFragment("alice", MeSnapshotCache.USER));
+  }
+
+  @Test
+  public void testGroupChangeDropsMembership() {
+    post("org/sakaiproject/nakamura/lite/authorizables/UPDATED", "group1");
+    assertNull(cache.getFragment("alice", MeSnapshotCache.GROUPS));
+    assertNull(cache.getFragment("alice", MeSnapshotCache.USER));
+    assertEquals("{}", cache.getFragment("alice", MeSnapshotCache.MESSAGES));
+  }
+
+  @Test
+  public void testUserChangeDropsEverything() {
+    post("org/sakaiproject/nakamura/lite/authorizables/UPDATED", "alice");
+    assertNull(cache.getFragment("alice", MeSnapshotCache.PROFILE));
+    assertNull(cache.getFragment("alice", MeSnapshotCache.MESSAGES));
+    cache.putFragment("alice", MeSnapshotCache.MESSAGES, "{}",
+        Collections.<String> emptyList());
+    assertEquals("{}", cache.getFragment("alice", MeSnapshotCache.MESSAGES));
+  }
+
+  @Test
+  public void testCountsNotCachedUntilCommit() {
+    post("org/sakaiproject/nakamura/lite/content/ADDED", "a:alice/message/inbox/1");
+    // built before the index saw the message, so not kept.
+    cache.putFragment("alice", MeSnapshotCache.MESSAGES, "{\"unread\":0}",
+        Collections.<String> emptyList());
+    assertNull(cache.getFragment("alice", MeSnapshotCache.MESSAGES));
+
+    post(MeSnapshotCache.SOFT_COMMIT_TOPIC, null);
+    cache.putFragment("alice", MeSnapshotCache.MESSAGES, "{\"unread\":1}",
+        Collections.<String> emptyList());
+    assertEquals("{\"unread\":1}", cache.getFragment("alice", MeSnapshotCache.MESSAGES));
+  }
+
+  @Test
+  public void testPendingExpires() {
+    cache.activate(ImmutableMap.<String, Object> of(MeSnapshotCache.PENDING_MAX_AGE, -1L));
+    post("org/sakaiproject/nakamura/lite/content/ADDED", "a:alice/contacts/bob");
+    cache.putFragment("alice", MeSnapshotCache.CONTACTS, "{}",
+        Collections.<String> emptyList());
+    assertEquals("{}", cache.getFragment("alice", MeSnapshotCache.CONTACTS));
+  }
+
+  @Test
+  public void testGroupChangeFromOtherNode() {
+    // another node dropping the group token drops the fragments built from it here.
+    cacheManagerService.getCache(MeSnapshotCache.STATE_CACHE_NAME,
+        CacheScope.CLUSTERREPLICATED).remove("group/group1");
+    assertNull(cache.getFragment("alice", MeSnapshotCache.GROUPS));
+    cache.putFragment("alice", MeSnapshotCache.GROUPS, "[]", ImmutableList.of("group1"));
+    assertEquals("[]", cache.getFragment("alice", MeSnapshotCache.GROUPS));
+  }
+
+  @Test
+  public void testUserVariantsDropped() {
+    cache.putFragment("alice", MeSnapshotCache.USER + "/3600000", "{}",
+        ImmutableList.of("group1"));
+    post("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:alice/public/authprofile");
+    assertNull(cache.getFragment("alice", MeSnapshotCache.USER + "/3600000"));
+  }
+}
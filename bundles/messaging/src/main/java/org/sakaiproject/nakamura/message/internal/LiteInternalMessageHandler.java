@@ -23,6 +23,8 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
@@ -49,6 +51,8 @@ import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageRoute;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
 import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
@@ -89,6 +93,9 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected transient MessageBucketService messageBucketService;
+
   /**
    * Default constructor
    */
@@ -194,6 +201,7 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
             message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
             message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
             contentManager.update(message);
+            notifyRecipient(recipient, message);
           } else {
             LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
           }
@@ -211,6 +219,25 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
+  /**
+   * Tell the recipient's open pages about the new message through their message bucket,
+   * so they don't have to poll the inbox.
+   */
+  private void notifyRecipient(String recipient, Content message) {
+    MessageBucketService bucketService = messageBucketService;
+    if (bucketService == null) {
+      return;
+    }
+    try {
+      bucketService.publish(recipient, MessageBucketService.DEFAULT_CONTEXT, ImmutableMap
+          .of("type", (Object) "message", "messagebox", MessageConstants.BOX_INBOX,
+              "path", message.getPath()));
+    } catch (MessageBucketException e) {
+      LOG.warn("Unable to notify {} of message {}: {}",
+          new Object[] { recipient, message.getPath(), e.getMessage() });
+    }
+  }
+
   private boolean hasEveryoneOrPublicPermission(String path, ContentManager contentManager) throws StorageClientException, AccessDeniedException {
     if ("/".equals(path)) {
       return false;
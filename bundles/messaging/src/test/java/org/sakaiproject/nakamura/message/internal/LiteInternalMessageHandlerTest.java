@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.message.internal;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -37,6 +38,7 @@ import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.message.listener.LiteMessageRoutesImpl;
 
 import com.google.common.collect.ImmutableMap;
@@ -51,6 +53,7 @@ public class LiteInternalMessageHandlerTest {
   private LiteInternalMessageHandler handler;
   private LiteMessagingService messagingService;
   private LockManager lockManager;
+  private MessageBucketService messageBucketService;
   private Repository repository;
   private Session session;
   private ContentManager cm;
@@ -65,6 +68,8 @@ public class LiteInternalMessageHandlerTest {
     handler.messagingService = messagingService;
     handler.slingRepository = repository;
     handler.lockManager = lockManager;
+    messageBucketService = mock(MessageBucketService.class);
+    handler.messageBucketService = messageBucketService;
     session = mock(Session.class);
     cm = mock(ContentManager.class);
     when(session.getContentManager()).thenReturn(cm);
@@ -131,6 +136,9 @@ public class LiteInternalMessageHandlerTest {
         MessageConstants.PROP_SAKAI_MESSAGEBOX));
     assertEquals(MessageConstants.STATE_NOTIFIED, newNode.getProperty(
         MessageConstants.PROP_SAKAI_SENDSTATE));
+    verify(messageBucketService).publish("admin", MessageBucketService.DEFAULT_CONTEXT,
+        ImmutableMap.of("type", (Object) "message", "messagebox",
+            MessageConstants.BOX_INBOX, "path", newPath));
   }
 
   private void registerAuthorizable(Authorizable authorizable, AuthorizableManager am, String name)
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.messagebucket;
 
+import java.util.Map;
 
 
 import javax.servlet.http.HttpServletRequest;
@@ -24,6 +25,10 @@ import javax.servlet.http.HttpServletRequest;
 
 public interface MessageBucketService {
 
+  /**
+   * The context of the bucket the UI polls for the current user, see /system/me.
+   */
+  String DEFAULT_CONTEXT = "default";
 
   /**
    * Get the bucket identified by the token.
@@ -45,4 +50,17 @@ public interface MessageBucketService {
   String getBucketUrl(HttpServletRequest request, String context)
       throws MessageBucketException;
 
+  /**
+   * Queue an event in the bucket of the user for the context, on whichever app node the
+   * bucket is served from. Events for users without a bucket are dropped.
+   *
+   * @param userId
+   * @param context
+   * @param event
+   *          the event, sent to the client as a JSON object.
+   * @throws MessageBucketException
+   */
+  void publish(String userId, String context, Map<String, Object> event)
+      throws MessageBucketException;
+
 }
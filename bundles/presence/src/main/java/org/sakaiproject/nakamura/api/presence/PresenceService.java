@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.presence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -91,6 +92,13 @@ public interface PresenceService {
    */
   Map<String, String> online(List<String> connections);
 
+  /**
+   * @param uuids
+   *          the user ids to look up.
+   * @return a map of userid to online status, offline for users that are not present.
+   */
+  Map<String, String> online(Collection<String> uuids);
+
   /**
    * @param location
    *          the location where the users might be online.
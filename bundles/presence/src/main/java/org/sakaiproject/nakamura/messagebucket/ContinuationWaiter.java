@@ -35,4 +35,16 @@ public class ContinuationWaiter implements Waiter {
     continuation.resume();    
   }
 
+  // a retried request gets the same continuation, and must replace its old waiter.
+  @Override
+  public int hashCode() {
+    return continuation.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof ContinuationWaiter
+        && ((ContinuationWaiter) obj).continuation == continuation;
+  }
+
 }
@@ -20,27 +20,43 @@ package org.sakaiproject.nakamura.messagebucket;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 
-import org.apache.sling.commons.json.JSONException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.Waiter;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * A bucket of events for one client. Events are held as rendered JSON in a bounded ring,
+ * when the ring is full the oldest event is dropped. A send delivers everything that
+ * has been queued as one batch, with the number of events dropped since the last send
+ * so the client knows to refresh.
+ */
 public class MessageBucketImpl implements MessageBucket {
 
-  private Map<Waiter, Waiter> waiters = Maps.newConcurrentMap();
-  private Map<String, HttpServletRequest> bound = Maps.newConcurrentMap();
-  private boolean ready = false;
-  private Map<String, Object> messagePayload;
+  private final Map<Waiter, Waiter> waiters = Maps.newConcurrentMap();
+  private final Map<String, HttpServletRequest> bound = Maps.newConcurrentMap();
+  private final String[] ring;
+  private int head;
+  private int count;
+  private int dropped;
+  private volatile long lastUsed = System.currentTimeMillis();
 
-  public boolean isReady() {
-    return ready;
+  /**
+   * @param capacity
+   *          the number of events the bucket holds before it drops the oldest.
+   */
+  public MessageBucketImpl(int capacity) {
+    ring = new String[Math.max(1, capacity)];
+  }
+
+  public synchronized boolean isReady() {
+    return count > 0;
   }
 
   public void addWaiter(Waiter waiter) {
@@ -52,34 +68,81 @@ public class MessageBucketImpl implements MessageBucket {
   }
 
   public void send(HttpServletResponse response) throws MessageBucketException {
-    try {
-      if (ready) {
-        ExtendedJSONWriter e = new ExtendedJSONWriter(response.getWriter());
-        e.valueMap(messagePayload);
-      } else {
+    String[] events;
+    int lost;
+    synchronized (this) {
+      if (count == 0) {
         throw new MessageBucketException("Message not ready");
       }
+      events = new String[count];
+      for (int i = 0; i < count; i++) {
+        events[i] = ring[(head + i) % ring.length];
+        ring[(head + i) % ring.length] = null;
+      }
+      lost = dropped;
+      head = 0;
+      count = 0;
+      dropped = 0;
+    }
+    lastUsed = System.currentTimeMillis();
+    try {
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      Writer w = response.getWriter();
+      w.write("{\"dropped\":");
+      w.write(String.valueOf(lost));
+      w.write(",\"events\":[");
+      for (int i = 0; i < events.length; i++) {
+        if (i > 0) {
+          w.write(',');
+        }
+        w.write(events[i]);
+      }
+      w.write("]}");
     } catch (IOException e) {
       throw new MessageBucketException(e.getMessage(), e);
-    } catch (JSONException e) {
-      throw new MessageBucketException(e.getMessage(), e);
     }
   }
 
   public void unbind(String token, HttpServletRequest request) {
-    bound.put(token, request);
+    bound.remove(token);
+    lastUsed = System.currentTimeMillis();
   }
 
   public void bind(String token, HttpServletRequest request) {
-    bound.remove(token);
+    bound.put(token, request);
+    lastUsed = System.currentTimeMillis();
   }
 
-  public void markReady(Map<String, Object> messagePayload) {
-    this.messagePayload = messagePayload;
-    ready = true;
+  /**
+   * Queue an event and wake anything waiting on the bucket.
+   *
+   * @param event
+   *          the event rendered as a JSON value.
+   */
+  public void add(String event) {
+    synchronized (this) {
+      if (count == ring.length) {
+        ring[head] = event;
+        head = (head + 1) % ring.length;
+        dropped++;
+      } else {
+        ring[(head + count) % ring.length] = event;
+        count++;
+      }
+    }
     for (Waiter w : ImmutableSet.copyOf(waiters.keySet())) {
       w.resume();
     }
   }
 
+  /**
+   * @param cutoff
+   * @return true if nothing has used the bucket since the cutoff and nothing is waiting
+   *         on it.
+   */
+  public boolean isIdle(long cutoff) {
+    return lastUsed < cutoff && waiters.isEmpty() && bound.isEmpty();
+  }
+
 }
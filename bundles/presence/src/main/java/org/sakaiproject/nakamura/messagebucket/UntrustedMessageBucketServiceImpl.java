@@ -21,45 +21,159 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.cluster.ClusterUser;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucket;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.Signature;
+import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
 import java.text.MessageFormat;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
 import javax.servlet.http.HttpServletRequest;
 
 /**
  * Buckets from this service are not greatly trusted, and we wont trust them to push data
  * into the server, only receive data from the server.
+ *
+ * A bucket lives on the app node its client polls, recorded in a replicated cache when
+ * the client polls. Events published on another node are sent to the bucket's node over
+ * a JMS topic for that node. Buckets that have not been polled for the idle TTL are
+ * evicted, and no more than the configured number of buckets are held.
  */
 @Component(immediate = true, metatype = true)
 @Service(value=MessageBucketService.class)
-public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
+public class UntrustedMessageBucketServiceImpl implements MessageBucketService, MessageListener {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(UntrustedMessageBucketServiceImpl.class);
   private static final String DEFAULT_URL_PATTERN = "http://localhost:8080/system/uievent/default?token={3}&server={6}&user={7}";
+  @Property(value = DEFAULT_URL_PATTERN)
   private static final String BUCKETURLPATTERN_CONFIG = "bucketurlpattern";
+  @Property(longValue = 300000L, label = "Idle TTL", description = "Milliseconds a bucket is kept without being polled")
+  private static final String BUCKET_TTL_CONFIG = "bucket.ttl";
+  @Property(intValue = 100, label = "Queue Size", description = "Number of events a bucket holds before the oldest are dropped")
+  private static final String BUCKET_QUEUE_CONFIG = "bucket.queue.size";
+  @Property(intValue = 20000, label = "Maximum Buckets", description = "Number of buckets held on this app node")
+  private static final String MAX_BUCKETS_CONFIG = "bucket.max";
+
+  public static final String DELIVER_TOPIC = "org/sakaiproject/nakamura/messagebucket/deliver";
+  private static final String BUCKET_PROPERTY = "bucket";
+  private static final String HOME_CACHE = "messagebucket.home";
+
   private String sharedSecret;
-  private Map<String, MessageBucket> messageBuckets = new ConcurrentHashMap<String, MessageBucket>();
+  private ConcurrentHashMap<String, MessageBucketImpl> messageBuckets = new ConcurrentHashMap<String, MessageBucketImpl>();
   private String urlPattern;
-  
+  private long ttl;
+  private int queueSize;
+  private int maxBuckets;
+  private String serverId;
+  private Cache<String> homes;
+  private Connection connection;
+  private Session producerSession;
+  private MessageProducer producer;
+  private volatile boolean running;
+  private Thread sweeper;
+
   @Reference
   private ClusterTrackingService clusterService;
-  
+
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  @Reference
+  private ConnectionFactoryService connectionFactoryService;
+
   @Activate
   public void activate(Map<String, Object> properties) {
     sharedSecret = String.valueOf(System.currentTimeMillis()); // not that secure !
     urlPattern = PropertiesUtil.toString(properties.get(BUCKETURLPATTERN_CONFIG), DEFAULT_URL_PATTERN);
+    ttl = PropertiesUtil.toLong(properties.get(BUCKET_TTL_CONFIG), 300000L);
+    queueSize = PropertiesUtil.toInteger(properties.get(BUCKET_QUEUE_CONFIG), 100);
+    maxBuckets = PropertiesUtil.toInteger(properties.get(MAX_BUCKETS_CONFIG), 20000);
+    serverId = clusterService.getCurrentServerId();
+    homes = cacheManagerService.getCache(HOME_CACHE, CacheScope.CLUSTERREPLICATED);
+    startDelivery();
+    running = true;
+    sweeper = new Thread("Message Bucket Expiry") {
+      @Override
+      public void run() {
+        sweepLoop();
+      }
+    };
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  @Deactivate
+  public void deactivate(Map<String, Object> properties) {
+    running = false;
+    if (sweeper != null) {
+      sweeper.interrupt();
+      sweeper = null;
+    }
+    closeConnection();
+    messageBuckets.clear();
+  }
+
+  private void startDelivery() {
+    try {
+      connection = connectionFactoryService.getDefaultConnectionFactory().createConnection();
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = consumerSession.createConsumer(consumerSession
+          .createTopic(getDeliverTopic(serverId)));
+      consumer.setMessageListener(this);
+      producerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = producerSession.createProducer(null);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+    } catch (JMSException e) {
+      // buckets still work for events published on this node.
+      LOGGER.error("Unable to receive message bucket events from other nodes " + e.getMessage(), e);
+      closeConnection();
+    }
+  }
+
+  private synchronized void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
+      producer = null;
+      producerSession = null;
+    }
   }
 
   public MessageBucket getBucket(String token) throws MessageBucketException {
@@ -67,14 +181,112 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
     if (key == null) {
       throw new MessageBucketException("Invalid Token " + token);
     }
-    MessageBucket mb = messageBuckets.get(key);
+    MessageBucketImpl mb = messageBuckets.get(key);
     if (mb == null) {
-      mb = new MessageBucketImpl();
-      messageBuckets.put(key, mb);
+      if (messageBuckets.size() >= maxBuckets) {
+        throw new MessageBucketException("Too many message buckets on this server");
+      }
+      mb = new MessageBucketImpl(queueSize);
+      MessageBucketImpl existing = messageBuckets.putIfAbsent(key, mb);
+      if (existing != null) {
+        mb = existing;
+      }
+    }
+    // the client may have moved here from another node.
+    if (homes != null && !serverId.equals(homes.get(key))) {
+      homes.put(key, serverId);
     }
     return mb;
   }
 
+  public void publish(String userId, String context, Map<String, Object> event)
+      throws MessageBucketException {
+    String key = userId + "-" + context;
+    String json;
+    try {
+      StringWriter sw = new StringWriter();
+      new ExtendedJSONWriter(sw).valueMap(event);
+      json = sw.toString();
+    } catch (JSONException e) {
+      throw new MessageBucketException(e.getMessage(), e);
+    }
+    String home = homes == null ? null : homes.get(key);
+    if (home == null || serverId.equals(home)) {
+      deliver(key, json);
+    } else {
+      send(home, key, json);
+    }
+  }
+
+  private synchronized void send(String home, String key, String json)
+      throws MessageBucketException {
+    if (producer == null) {
+      throw new MessageBucketException("No connection to deliver events to server " + home);
+    }
+    try {
+      TextMessage message = producerSession.createTextMessage(json);
+      message.setStringProperty(BUCKET_PROPERTY, key);
+      producer.send(producerSession.createTopic(getDeliverTopic(home)), message);
+    } catch (JMSException e) {
+      throw new MessageBucketException(e.getMessage(), e);
+    }
+  }
+
+  private void deliver(String key, String json) {
+    MessageBucketImpl mb = messageBuckets.get(key);
+    if (mb != null) {
+      mb.add(json);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      if (message instanceof TextMessage) {
+        deliver(message.getStringProperty(BUCKET_PROPERTY), ((TextMessage) message).getText());
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  private String getDeliverTopic(String server) {
+    return DELIVER_TOPIC + "/" + EventUtils.safeTopicElement(server);
+  }
+
+  /**
+   * Evict the buckets that have been idle since the cutoff.
+   *
+   * @param cutoff
+   */
+  protected void evict(long cutoff) {
+    for (Iterator<Entry<String, MessageBucketImpl>> i = messageBuckets.entrySet().iterator(); i
+        .hasNext();) {
+      Entry<String, MessageBucketImpl> e = i.next();
+      if (e.getValue().isIdle(cutoff)) {
+        i.remove();
+        if (homes != null && serverId.equals(homes.get(e.getKey()))) {
+          homes.remove(e.getKey());
+        }
+      }
+    }
+  }
+
+  private void sweepLoop() {
+    while (running) {
+      try {
+        Thread.sleep(Math.max(1000L, ttl / 4));
+      } catch (InterruptedException e) {
+        return;
+      }
+      evict(System.currentTimeMillis() - ttl);
+    }
+  }
+
   public String getToken(String userId, String context) throws MessageBucketException {
     try {
       String timeStamp = Long.toHexString(System.currentTimeMillis());
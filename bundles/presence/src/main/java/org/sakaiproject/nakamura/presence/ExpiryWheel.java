@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A timer wheel of user ids. An id is put in the slot of the tick at which it may
+ * expire, and a slot is emptied as the wheel turns past it. Scheduling an id again does
+ * not take it out of its old slot, so the caller must check that an id handed back has
+ * really expired.
+ */
+public class ExpiryWheel {
+
+  private final long tickMs;
+  private final Set<String>[] slots;
+  private long current;
+
+  /**
+   * @param tickMs
+   *          the time covered by one slot.
+   * @param horizonMs
+   *          the longest time ahead an id may be scheduled.
+   * @param now
+   *          the current time.
+   */
+  @SuppressWarnings("unchecked")
+  public ExpiryWheel(long tickMs, long horizonMs, long now) {
+    this.tickMs = tickMs;
+    slots = new Set[(int) (horizonMs / tickMs) + 2];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+    current = now / tickMs;
+  }
+
+  /**
+   * Schedule an id to be handed back once the wheel has turned past expiresAt.
+   */
+  public void schedule(String id, long expiresAt) {
+    long tick = expiresAt / tickMs + 1;
+    slots[(int) (tick % slots.length)].add(id);
+  }
+
+  /**
+   * Turn the wheel to now.
+   *
+   * @return the ids in the slots passed.
+   */
+  public synchronized List<String> advance(long now) {
+    List<String> due = new ArrayList<String>();
+    long tick = now / tickMs;
+    // never more than one turn, the slots don't hold anything older.
+    for (long t = Math.max(current + 1, tick - slots.length + 1); t <= tick; t++) {
+      Set<String> slot = slots[(int) (t % slots.length)];
+      for (Iterator<String> i = slot.iterator(); i.hasNext();) {
+        due.add(i.next());
+        i.remove();
+      }
+    }
+    current = Math.max(current, tick);
+    return due;
+  }
+}
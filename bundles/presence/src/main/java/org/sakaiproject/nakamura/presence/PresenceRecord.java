@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.Serializable;
+
+/**
+ * The presence of a user as held in the replicated status cache. Records are immutable,
+ * an update replaces the record. Locations and statuses are interned, so the thousands of
+ * records of users at the same location or with the same status share the strings.
+ */
+public final class PresenceRecord implements Serializable {
+
+  private static final long serialVersionUID = 3205817465418208436L;
+  private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+  private final String uuid;
+  private final long timestamp;
+  private final String location;
+  private final String status;
+
+  /**
+   * @param uuid
+   *          the user.
+   * @param timestamp
+   *          when the user was last seen (ms).
+   * @param location
+   * @param status
+   */
+  public PresenceRecord(String uuid, long timestamp, String location, String status) {
+    this.uuid = uuid;
+    this.timestamp = timestamp;
+    this.location = NAMES.intern(location);
+    this.status = NAMES.intern(status);
+  }
+
+  public String getUuid() {
+    return uuid;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getLocation() {
+    return location;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  /**
+   * @return true if the user was seen after the cutoff.
+   */
+  public boolean isLive(long cutoff) {
+    return timestamp > cutoff;
+  }
+
+  /**
+   * @return true if the record says the same as this one, apart from the time.
+   */
+  public boolean sameAs(String location, String status) {
+    return this.location.equals(location) && this.status.equals(status);
+  }
+
+  /**
+   * Intern the strings of records received from other nodes.
+   */
+  private Object readResolve() {
+    return new PresenceRecord(uuid, timestamp, location, status);
+  }
+
+  @Override
+  public String toString() {
+    return uuid + ":" + timestamp + ":" + location + ":" + status;
+  }
+}
@@ -21,7 +21,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -34,11 +36,24 @@ import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Holds a {@link PresenceRecord} per user in a replicated cache, and indexes the users at
+ * each location as location/user keys in a second replicated cache. A ping only replaces
+ * the record when the location or status changes, or when the record is about to age,
+ * so steady heartbeats cost nothing in the cluster and the changes that are made are sent
+ * as per key deltas that the cache bus coalesces and batches. Records that are past the
+ * TTL read as offline and are removed by the node that reads them. The records this
+ * node wrote are removed in the background by sweeping an {@link ExpiryWheel}, and every
+ * node checks all the records once a TTL, so the records of a node that went away are
+ * removed too.
+ *
+ * The caches have different names from those that held the older string and map values,
+ * so nodes of both versions in one cluster never read each other's values.
+ */
 @Component(immediate = true,label = "Sakai Presence Service", description = "Service for getting info about the presence status and locations of current users", name = "org.sakaiproject.nakamura.api.presence.PresenceService")
 @Service(value = PresenceService.class)
 @Properties(value = {
@@ -48,17 +63,23 @@ public class PresenceServiceImpl implements PresenceService {
 
   private Logger LOGGER = LoggerFactory.getLogger(PresenceServiceImpl.class);
 
-  private static final String LOCATION_CACHE = "presence.location";
-  private static final String USER_STATUS_CACHE = "presence.status";
+  static final String LOCATION_CACHE = "presence.location.index";
+  static final String USER_STATUS_CACHE = "presence.status.record";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  /**
+   * How old a record may get before a ping that changes nothing replaces it.
+   */
+  private static final long PRESENCE_REFRESH = 60L * 1000L;
+  private static final long SWEEP_INTERVAL = 20L * 1000L;
+  private static final String NONE = "none";
 
-  private Cache<String> userStatusCache;
-  private Cache<Map<String, String>> locationCache;
+  private Cache<PresenceRecord> userStatusCache;
+  private Cache<String> locationCache;
+  private final ExpiryWheel expiryWheel = new ExpiryWheel(SWEEP_INTERVAL, PRESENCE_TTL,
+      System.currentTimeMillis());
+  private volatile boolean running;
+  private Thread sweeper;
+  private long lastFullSweep = System.currentTimeMillis();
 
   @Reference
   protected transient CacheManagerService cacheManagerService;
@@ -81,13 +102,35 @@ public class PresenceServiceImpl implements PresenceService {
     }
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    running = true;
+    sweeper = new Thread("Presence Expiry") {
+      @Override
+      public void run() {
+        sweepLoop();
+      }
+    };
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    running = false;
+    if (sweeper != null) {
+      sweeper.interrupt();
+      sweeper = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#setStatus(java.lang.String,
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    update(uuid, null, status);
   }
 
   /**
@@ -95,29 +138,11 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
-    // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
+    Cache<PresenceRecord> statusCache = userStatusCache;
+    if (statusCache != null) {
+      PresenceRecord record = statusCache.get(uuid);
+      if (record != null) {
+        remove(uuid, record);
       }
     }
   }
@@ -128,16 +153,8 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
-    }
-    return result;
+    PresenceRecord record = getLiveRecord(uuid);
+    return record == null ? PresenceStatus.offline.name() : record.getStatus();
   }
 
   /**
@@ -145,187 +162,235 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-    }
-    return location;
+    PresenceRecord record = getLiveRecord(uuid);
+    return record == null ? NONE : record.getLocation();
   }
-  
 
   public String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+    PresenceRecord record = getLiveRecord(uuid);
+    if (record == null) {
+      return null;
     }
-    return result;
+    return new String[] { uuid, String.valueOf(record.getTimestamp()),
+        record.getLocation(), record.getStatus() };
   }
 
   /**
    * {@inheritDoc}
-   * 
-   * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String,
-   *      java.util.List)
+   *
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.util.List)
    */
   public Map<String, String> online(List<String> connections) {
-    Map<String, String> online = Maps.newHashMap();
-    for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+    return online((Collection<String>) connections);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.util.Collection)
+   */
+  public Map<String, String> online(Collection<String> uuids) {
+    Map<String, String> online = Maps.newHashMapWithExpectedSize(uuids.size());
+    Cache<PresenceRecord> statusCache = userStatusCache;
+    if (statusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+    }
+    long cutoff = System.currentTimeMillis() - PRESENCE_TTL;
+    for (String uuid : uuids) {
+      PresenceRecord record = statusCache == null ? null : statusCache.get(uuid);
+      if (record != null && record.isLive(cutoff)) {
+        online.put(uuid, record.getStatus());
+      } else {
+        if (record != null) {
+          remove(uuid, record);
+        }
+        online.put(uuid, PresenceStatus.offline.name());
+      }
     }
     return online;
   }
 
   /**
    * {@inheritDoc}
-   * 
+   *
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String)
    */
   public Map<String, String> online(String location) {
-    if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
-        Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
-          }
-        }
-        return onlineMap;
-      }
-    } else {
+    Cache<PresenceRecord> statusCache = userStatusCache;
+    Cache<String> members = locationCache;
+    if (statusCache == null || members == null) {
       LOGGER.warn("Location cache is null, check the cacheManager");
+      return ImmutableMap.of();
+    }
+    long cutoff = System.currentTimeMillis() - PRESENCE_TTL;
+    Map<String, String> onlineMap = Maps.newHashMap();
+    for (String uuid : members.listChildren(location)) {
+      PresenceRecord record = statusCache.get(uuid);
+      // the index may lag behind a move, the record says where the user is.
+      if (record == null || !location.equals(record.getLocation())) {
+        members.remove(getLocationKey(uuid, location));
+      } else if (record.isLive(cutoff)) {
+        onlineMap.put(uuid, record.getStatus());
+      } else {
+        remove(uuid, record);
+      }
     }
-    return ImmutableMap.of();
+    return onlineMap;
   }
 
   /**
    * {@inheritDoc}
-   * 
+   *
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#ping(java.lang.String,
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = NONE;
     }
     if (StringUtils.isEmpty(uuid)) {
-      uuid = "none";
-    }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
-
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
-        }
-      }
+      uuid = NONE;
     }
+    update(uuid, location, null);
   }
 
-  /**
-   * @return
-   */
-  private long getTimeStamp() {
-    long now = System.currentTimeMillis();
-    // make now slow changing, 20s resolution
-    return now / 20000;
+  private PresenceRecord getLiveRecord(String uuid) {
+    Cache<PresenceRecord> statusCache = userStatusCache;
+    if (statusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return null;
+    }
+    PresenceRecord record = statusCache.get(uuid);
+    if (record != null && record.isLive(System.currentTimeMillis() - PRESENCE_TTL)) {
+      return record;
+    }
+    if (record != null) {
+      remove(uuid, record);
+    }
+    return null;
   }
 
   /**
-   * Update the users location cache.
-   * 
+   * Update the record of a user, if anything has changed or the record is getting old.
+   *
    * @param uuid
    *          the user id
-   * @param now
-   *          the timestamp
    * @param location
    *          the location, null if not provided in this update
    * @param status
    *          the status, null if not provided in this update
-   * @return true if an update was performed.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
+  private void update(String uuid, String location, String status) {
+    Cache<PresenceRecord> statusCache = userStatusCache;
+    if (statusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return;
+    }
+    long now = System.currentTimeMillis();
+    PresenceRecord current = statusCache.get(uuid);
+    if (current != null && !current.isLive(now - PRESENCE_TTL)) {
+      current = null;
+    }
+    String oldLocation = current == null ? null : current.getLocation();
+    if (location == null) {
+      location = current == null ? NONE : oldLocation;
+    }
+    if (status == null) {
+      status = current == null ? PresenceStatus.online.name() : current.getStatus();
+    }
+    if (current != null && current.sameAs(location, status)
+        && current.isLive(now - PRESENCE_REFRESH)) {
+      return;
+    }
+    statusCache.put(uuid, new PresenceRecord(uuid, now, location, status));
+    expiryWheel.schedule(uuid, now + PRESENCE_TTL);
+    if (!location.equals(oldLocation)) {
+      Cache<String> members = locationCache;
+      if (members != null) {
+        if (oldLocation != null && !NONE.equals(oldLocation)) {
+          members.remove(getLocationKey(uuid, oldLocation));
+        }
+        if (!NONE.equals(location)) {
+          members.put(getLocationKey(uuid, location), uuid);
+        }
       }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
+    }
+  }
+
+  private void remove(String uuid, PresenceRecord record) {
+    Cache<PresenceRecord> statusCache = userStatusCache;
+    if (statusCache == null) {
+      return;
+    }
+    statusCache.remove(uuid);
+    Cache<String> members = locationCache;
+    if (members != null && !NONE.equals(record.getLocation())) {
+      members.remove(getLocationKey(uuid, record.getLocation()));
+    }
+  }
 
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
+  /**
+   * Remove the records that have expired since the last sweep.
+   *
+   * @param now
+   */
+  protected void sweep(long now) {
+    Cache<PresenceRecord> statusCache = userStatusCache;
+    if (statusCache == null) {
+      return;
+    }
+    long cutoff = now - PRESENCE_TTL;
+    int removed = 0;
+    for (String uuid : expiryWheel.advance(now)) {
+      PresenceRecord record = statusCache.get(uuid);
+      if (record == null) {
+        continue;
+      }
+      if (record.isLive(cutoff)) {
+        // pinged again since it was scheduled, or updated by another node.
+        expiryWheel.schedule(uuid, record.getTimestamp() + PRESENCE_TTL);
+      } else {
+        remove(uuid, record);
+        removed++;
+      }
+    }
+    if (now - lastFullSweep >= PRESENCE_TTL) {
+      lastFullSweep = now;
+      // records written by other nodes, which may have gone away.
+      for (PresenceRecord record : statusCache.list()) {
+        if (record != null && !record.isLive(cutoff)) {
+          remove(record.getUuid(), record);
+          removed++;
         }
       }
+    }
+    if (removed > 0) {
+      LOGGER.debug("Expired presence of {} users ", removed);
+    }
+  }
 
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
-        }
+  private void sweepLoop() {
+    while (running) {
+      try {
+        Thread.sleep(SWEEP_INTERVAL);
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        sweep(System.currentTimeMillis());
+      } catch (RuntimeException e) {
+        LOGGER.warn("Presence expiry sweep failed " + e.getMessage(), e);
       }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
     }
-    return update;
   }
 
   /**
    * @param uuid
    * @param location
-   * @return
+   * @return the key of the user in the location index.
    */
   private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
+    return location + "/" + uuid;
   }
 
 }
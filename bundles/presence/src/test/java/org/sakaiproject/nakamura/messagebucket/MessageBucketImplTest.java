@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.messagebucket;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class MessageBucketImplTest {
+
+  @Test
+  public void testBatchAndDrop() throws IOException, MessageBucketException {
+    MessageBucketImpl mb = new MessageBucketImpl(3);
+    assertFalse(mb.isReady());
+    for (int i = 0; i < 5; i++) {
+      mb.add("{\"n\":" + i + "}");
+    }
+    assertTrue(mb.isReady());
+    assertEquals("{\"dropped\":2,\"events\":[{\"n\":2},{\"n\":3},{\"n\":4}]}", send(mb));
+    assertFalse(mb.isReady());
+
+    mb.add("{\"n\":5}");
+    assertEquals("{\"dropped\":0,\"events\":[{\"n\":5}]}", send(mb));
+  }
+
+  @Test
+  public void testIdle() {
+    MessageBucketImpl mb = new MessageBucketImpl(3);
+    long later = System.currentTimeMillis() + 1000L;
+    assertTrue(mb.isIdle(later));
+    mb.bind("token", null);
+    assertFalse(mb.isIdle(later));
+    mb.unbind("token", null);
+    assertTrue(mb.isIdle(later));
+  }
+
+  private String send(MessageBucketImpl mb) throws IOException, MessageBucketException {
+    StringWriter sw = new StringWriter();
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(new PrintWriter(sw));
+    replay(response);
+    mb.send(response);
+    verify(response);
+    return sw.toString();
+  }
+}
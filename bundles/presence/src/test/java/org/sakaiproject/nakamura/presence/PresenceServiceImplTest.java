@@ -24,6 +24,7 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import junit.framework.Assert;
 
@@ -61,11 +62,11 @@ public class PresenceServiceImplTest {
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
-        cacheManagerService.getCache("presence.location",
+        cacheManagerService.getCache(PresenceServiceImpl.LOCATION_CACHE,
             CacheScope.CLUSTERREPLICATED)).andReturn(presenceLocationCache)
         .anyTimes();
     expect(
-        cacheManagerService.getCache("presence.status",
+        cacheManagerService.getCache(PresenceServiceImpl.USER_STATUS_CACHE,
             CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
         .anyTimes();
     replay(cacheManagerService);
@@ -168,6 +169,54 @@ public class PresenceServiceImplTest {
     }
   }
   
+  @Test
+  public void testExpirySweep() {
+    presenceService.ping("jack", "locationA");
+    presenceService.ping("jill", "locationA");
+    presenceService.setStatus("jill", "busy");
+    // a heartbeat that changes nothing does not replace the record.
+    Object record = presenceStatusCache.get("jack");
+    presenceService.ping("jack", "locationA");
+    Assert.assertSame(record, presenceStatusCache.get("jack"));
+
+    Map<String, String> online = presenceService.online(Sets.newHashSet("jack", "jill", "joe"));
+    assertEquals("online", online.get("jack"));
+    assertEquals("busy", online.get("jill"));
+    assertEquals("offline", online.get("joe"));
+    assertEquals(2, presenceService.online("locationA").size());
+
+    presenceService.sweep(System.currentTimeMillis());
+    Assert.assertNotNull(presenceStatusCache.get("jack"));
+
+    presenceService.sweep(System.currentTimeMillis() + 6L * 60L * 1000L);
+    Assert.assertNull(presenceStatusCache.get("jack"));
+    Assert.assertNull(presenceStatusCache.get("jill"));
+    Assert.assertNull(presenceLocationCache.get("locationA/jack"));
+    assertEquals(0, presenceService.online("locationA").size());
+  }
+
+  @Test
+  public void testOtherNodeRecordsExpire() {
+    // records written by a node that went away, this node never scheduled them.
+    long stale = System.currentTimeMillis() - 6L * 60L * 1000L;
+    presenceStatusCache.put("jack", new PresenceRecord("jack", stale, "locationA", "online"));
+    presenceLocationCache.put("locationA/jack", "jack");
+    presenceStatusCache.put("jill", new PresenceRecord("jill", stale, "locationB", "online"));
+    presenceLocationCache.put("locationB/jill", "jill");
+
+    // read as offline, and removed by the read.
+    assertEquals("offline", presenceService.getStatus("jack"));
+    Assert.assertNull(presenceStatusCache.get("jack"));
+    Assert.assertNull(presenceLocationCache.get("locationA/jack"));
+
+    // removed by the sweep of every record once a TTL, without being read.
+    presenceService.sweep(System.currentTimeMillis());
+    Assert.assertNotNull(presenceStatusCache.get("jill"));
+    presenceService.sweep(System.currentTimeMillis() + 6L * 60L * 1000L);
+    Assert.assertNull(presenceStatusCache.get("jill"));
+    Assert.assertNull(presenceLocationCache.get("locationB/jill"));
+  }
+
   public PresenceService getPresenceService() {
     return this.presenceService;
   }
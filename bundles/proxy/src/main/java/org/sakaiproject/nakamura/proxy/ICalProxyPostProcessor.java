@@ -19,11 +19,20 @@ package org.sakaiproject.nakamura.proxy;
 
 import static com.google.common.base.Preconditions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -38,7 +47,9 @@ import net.fortuna.ical4j.model.ValidationException;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.property.DateProperty;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -51,6 +62,7 @@ import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.sakaiproject.nakamura.util.DateUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,13 +82,21 @@ import com.google.common.collect.ImmutableSet;
     @Property(name = ICalProxyPostProcessor.MAX_RESPONSE_BYTES_PROP, 
               longValue=ICalProxyPostProcessor.DEFAULT_MAX_RESPONSE_BYTES,
               description="The maximum size (in bytes) that a response from a remote "
-              + "server can be.")})
+              + "server can be."),
+    @Property(name = ICalProxyPostProcessor.CACHE_SIZE_PROP,
+              longValue=ICalProxyPostProcessor.DEFAULT_CACHE_SIZE,
+              description="The number of characters of converted calendars to keep, so "
+              + "that an unchanged feed is only validated and converted once.")})
 public class ICalProxyPostProcessor implements ProxyPostProcessor {
 
   private static final Logger LOG = LoggerFactory.getLogger(ICalProxyPostProcessor.class);
   
   /*package*/ static final long DEFAULT_MAX_RESPONSE_BYTES = 10 * 1024 * 1024;
   /*package*/ static final String MAX_RESPONSE_BYTES_PROP = "sakai.proxy.ical.maxlength";
+  /*package*/ static final long DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;
+  /*package*/ static final String CACHE_SIZE_PROP = "sakai.proxy.ical.cachesize";
+  /** Feeds larger than this many bytes are spooled to a temporary file. */
+  /*package*/ static final int SPOOL_THRESHOLD = 256 * 1024;
   
   /** The mime/content types we'll permit as responses from the remote server. */
   /*package*/ static final Set<String> ICAL_MIME_TYPES = ImmutableSet.of(
@@ -124,10 +144,27 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
   /** The size in bytes of the longest response we'll proxy. */
   private long maxResponseLength = -1;
   
+  /** The maximum number of characters held in {@link #converted}. */
+  private long maxCacheSize;
+  
+  /** 
+   * Converted calendars keyed on the output method, validation and a digest of the feed, 
+   * in access order. Guarded by itself.
+   */
+  private final LinkedHashMap<String, String> converted = 
+      new LinkedHashMap<String, String>(16, 0.75f, true);
+  private long cacheSize;
+  
   @Activate
   protected void activate(Map<?,?> properties) {
     maxResponseLength = PropertiesUtil.toLong(properties.get(MAX_RESPONSE_BYTES_PROP), 
         DEFAULT_MAX_RESPONSE_BYTES);
+    maxCacheSize = PropertiesUtil.toLong(properties.get(CACHE_SIZE_PROP), 
+        DEFAULT_CACHE_SIZE);
+    synchronized (converted) {
+      converted.clear();
+      cacheSize = 0;
+    }
   }
   
   /**
@@ -157,14 +194,34 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
     try {
       validateResponseHeaders(proxyResponse);
       CalendarDumper dumper = getOutputMethod(castParams(templateParams));
-      Calendar calendar = loadCalendar(proxyResponse);
+      boolean validate = isValidationRequested(castParams(templateParams)) 
+          || dumper.requiresValidCalendar();
       
-      if(isValidationRequested(castParams(templateParams)) 
-          || dumper.requiresValidCalendar()) {
-        validateCalendar(calendar);
+      // A popular feed is fetched by many viewers but changes rarely, so the output is 
+      // cached against a digest of the feed, taken as it is spooled, and the feed is only 
+      // parsed, validated and converted when it changes.
+      MessageDigest digest = newDigest();
+      DeferredFileOutputStream feed = spoolFeed(proxyResponse, digest);
+      try {
+        String key = dumper.getName() + ":" + validate + ":" 
+            + StringUtils.byteToHex(digest.digest());
+        String output = getConverted(key);
+        if(output == null) {
+          Calendar calendar = loadCalendar(feed);
+          if(validate) {
+            validateCalendar(calendar);
+          }
+          output = dumper.dump(calendar);
+          putConverted(key, output);
+        }
+        
+        dumper.setupResponse(response);
+        response.getWriter().write(output);
+        response.flushBuffer();
+      }
+      finally {
+        deleteSpool(feed);
       }
-      
-      dumper.dump(calendar, response);
     }
     catch(ResponseFailedException e) {
       LOG.info(e.getMessage());
@@ -259,20 +316,27 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
   }
   
   /** 
-   * Parse the response as an iCalendar feed, throwing an IOException if the response
-   * is too long.
-   * @throws ResponseFailedException 
-   * */
-  private Calendar loadCalendar(ProxyResponse response) throws IOException, 
-      ParserException, ResponseFailedException {
+   * Copy the response to memory, or to a temporary file once it is larger than 
+   * {@link #SPOOL_THRESHOLD}, throwing a ResponseFailedException if the response is too 
+   * long.
+   * @param digest Updated with the bytes of the feed as they are copied.
+   */
+  private DeferredFileOutputStream spoolFeed(ProxyResponse response, MessageDigest digest) 
+      throws IOException, ResponseFailedException {
     
     // We won't bother checking the Content-Length header directly as it may not be 
     // present, we'll just count the number of bytes read from the input stream.
-    LengthLimitingInputStream input = new LengthLimitingInputStream(
-        response.getResponseBodyAsInputStream(), this.maxResponseLength);
-    
+    InputStream input = new DigestInputStream(new LengthLimitingInputStream(
+        response.getResponseBodyAsInputStream(), this.maxResponseLength), digest);
+    // the file is only created if the threshold is passed.
+    DeferredFileOutputStream spool = new DeferredFileOutputStream(SPOOL_THRESHOLD, 
+        new File(System.getProperty("java.io.tmpdir"), "ical-" + UUID.randomUUID() 
+            + ".ics"));
+    boolean spooled = false;
     try {
-      return new CalendarBuilder().build(input);
+      IOUtils.copy(input, spool);
+      spooled = true;
+      return spool;
     }
     // The LengthLimitingInputStream throws a StreamLengthException when a read() pushes
     // the number of read bytes over the limit
@@ -281,6 +345,67 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
           HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, 
           "The remote server's response was too long: " + e.getMessage());
     }
+    finally {
+      spool.close();
+      if(!spooled) {
+        deleteSpool(spool);
+      }
+    }
+  }
+  
+  /** Parse a spooled feed as an iCalendar feed. */
+  private Calendar loadCalendar(DeferredFileOutputStream feed) 
+      throws IOException, ParserException {
+    InputStream input = feed.isInMemory() ? new ByteArrayInputStream(feed.getData()) 
+        : new FileInputStream(feed.getFile());
+    try {
+      return newCalendarBuilder().build(input);
+    }
+    finally {
+      IOUtils.closeQuietly(input);
+    }
+  }
+  
+  /*package*/ CalendarBuilder newCalendarBuilder() {
+    return new CalendarBuilder();
+  }
+  
+  private static void deleteSpool(DeferredFileOutputStream spool) {
+    if(!spool.isInMemory() && spool.getFile().exists() && !spool.getFile().delete()) {
+      LOG.warn("Failed to delete {}", spool.getFile());
+    }
+  }
+  
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private String getConverted(String key) {
+    synchronized (converted) {
+      return converted.get(key);
+    }
+  }
+  
+  private void putConverted(String key, String output) {
+    if(output.length() > maxCacheSize) {
+      return;
+    }
+    synchronized (converted) {
+      String old = converted.put(key, output);
+      if(old != null) {
+        cacheSize -= old.length();
+      }
+      cacheSize += output.length();
+      Iterator<String> i = converted.values().iterator();
+      while(cacheSize > maxCacheSize && i.hasNext()) {
+        cacheSize -= i.next().length();
+        i.remove();
+      }
+    }
   }
   
   private void validateCalendar(Calendar calendar) throws ResponseFailedException {
@@ -304,12 +429,20 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
   
   /** Represents a means of outputting a {@link Calendar} as an HTTP response. */
   private interface CalendarDumper {
+    /** @return the name of this output method. */
+    String getName();
+    
     /**
-     * Outputs a representation of the calendar to the destination HTTP response object.
+     * Sets the content type and encoding of the HTTP response.
+     * @param destination The HTTP response that will be written to.
+     */
+    void setupResponse(SlingHttpServletResponse destination);
+    
+    /**
+     * Renders a representation of the calendar to be written to an HTTP response.
      * @param calendar The calendar to output.
-     * @param destination The HTTP response to write to.
      */
-    void dump(Calendar calendar, SlingHttpServletResponse destination) throws IOException;
+    String dump(Calendar calendar) throws IOException;
 
     boolean requiresValidCalendar();
   }
@@ -327,15 +460,16 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
     
     private JsonCalendarDumper() {}
     
-    private void setupResponse(SlingHttpServletResponse response) {
+    public String getName() {
+      return NAME;
+    }
+    
+    public void setupResponse(SlingHttpServletResponse response) {
       response.setCharacterEncoding(Charsets.UTF_8.name());
       response.setContentType("application/json");
     }
     
-    public void dump(Calendar calendar, SlingHttpServletResponse response)
-        throws IOException {
-      
-      setupResponse(response);
+    public String dump(Calendar calendar) throws IOException {
       
       // Build JSON response in memory to allow an error to be sent if something goes 
       // wrong.
@@ -349,7 +483,7 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
         throw new RuntimeException("Error converting calendar to JSON.", e);
       }
       
-      response.getWriter().write(writer.toString());
+      return writer.toString();
     }
     
     private static void handleCalendar(JSONWriter json, Calendar calendar) 
@@ -402,14 +536,21 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
     
     private ICalCalendarDumper() {}
     
-    @Override
-    public void dump(Calendar calendar, SlingHttpServletResponse response)
-        throws IOException {
+    public String getName() {
+      return NAME;
+    }
+    
+    public void setupResponse(SlingHttpServletResponse response) {
       response.setCharacterEncoding(Charsets.UTF_8.name());
       response.setContentType("text/calendar");
+    }
+    
+    @Override
+    public String dump(Calendar calendar) throws IOException {
       try {
-        new CalendarOutputter().output(calendar, response.getWriter());
-        response.flushBuffer();
+        StringWriter writer = new StringWriter();
+        new CalendarOutputter().output(calendar, writer);
+        return writer.toString();
       } catch (ValidationException e) {
         // This should never happen because the calendar will already have been validated.
         LOG.error(ERR_ICAL_OUTPUT_FAILED, e);
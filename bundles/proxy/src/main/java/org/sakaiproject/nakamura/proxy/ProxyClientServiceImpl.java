@@ -45,6 +45,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -80,6 +81,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -116,6 +118,18 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "iCal", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  @Property(longValue = 16L * 1024L * 1024L)
+  static final String CACHE_MAX_SIZE = "proxy.cache.maxSize";
+
+  @Property(intValue = 256 * 1024)
+  static final String CACHE_MAX_ENTRY_SIZE = "proxy.cache.maxEntrySize";
+
+  @Property(longValue = 0)
+  static final String CACHE_DEFAULT_TTL = "proxy.cache.defaultTtlSeconds";
+
+  @Property(longValue = 300)
+  static final String CACHE_STALE_IF_ERROR = "proxy.cache.staleIfErrorSeconds";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -150,6 +164,23 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private boolean externalAuthenticatingProxy;
 
+  /**
+   * Shared cache of GET responses, null if caching is disabled.
+   */
+  private ProxyResponseCache responseCache;
+
+  private final ProxyResponseCache.MethodExecutor methodExecutor = new ProxyResponseCache.MethodExecutor() {
+    public int execute(HttpMethod method) throws IOException {
+      int result = httpClient.executeMethod(method);
+      if (externalAuthenticatingProxy && result == 407) {
+        method.releaseConnection();
+        method.setDoAuthentication(true);
+        result = httpClient.executeMethod(method);
+      }
+      return result;
+    }
+  };
+
   /**
    * Create resources used by this component.
    *
@@ -177,6 +208,17 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     } else {
       configProperties = new HashMap<String, Object>();
     }
+    long cacheMaxSize = PropertiesUtil.toLong(configProperties.get(CACHE_MAX_SIZE),
+        16L * 1024L * 1024L);
+    if (cacheMaxSize > 0) {
+      responseCache = new ProxyResponseCache(cacheMaxSize, PropertiesUtil.toInteger(
+          configProperties.get(CACHE_MAX_ENTRY_SIZE), 256 * 1024),
+          PropertiesUtil.toLong(configProperties.get(CACHE_DEFAULT_TTL), 0) * 1000L,
+          PropertiesUtil.toLong(configProperties.get(CACHE_STALE_IF_ERROR), 300) * 1000L);
+    } else {
+      responseCache = null;
+    }
+
     velocityEngine = new VelocityEngine();
     velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
@@ -227,6 +269,9 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
     httpClientConnectionManager.shutdown();
+    if (responseCache != null) {
+      responseCache.clear();
+    }
   }
 
   /**
@@ -460,12 +505,11 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
-        int result = httpClient.executeMethod(method);
-        if (externalAuthenticatingProxy && result == 407) {
-          method.releaseConnection();
-          method.setDoAuthentication(true);
-          result = httpClient.executeMethod(method);
+        if (responseCache != null && method instanceof GetMethod) {
+          return responseCache.execute(getCacheKey(method), method, methodExecutor);
         }
+
+        int result = methodExecutor.execute(method);
         if (result == 302 && method instanceof EntityEnclosingMethod) {
           // handle redirects on post and put
           String url = method.getResponseHeader("Location").getValue();
@@ -495,6 +539,22 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         + " does not contain a valid endpoint specification ");
   }
 
+  /**
+   * The cache key of a GET covers everything that goes into the request, the rendered URL
+   * and all the request headers, including any credentials.
+   */
+  private String getCacheKey(HttpMethod method) throws IOException {
+    StringBuilder key = new StringBuilder(method.getURI().toString());
+    Set<String> requestHeaders = new TreeSet<String>();
+    for (Header header : method.getRequestHeaders()) {
+      requestHeaders.add(header.getName().toLowerCase() + ":" + header.getValue());
+    }
+    for (String header : requestHeaders) {
+      key.append('\n').append(header);
+    }
+    return key.toString();
+  }
+
   private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
     if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
       String postProcessorName = node.getProperty(
@@ -0,0 +1,507 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.commons.io.IOUtils;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A shared cache of upstream GET responses, keyed on the rendered request. Freshness
+ * follows the upstream <code>Cache-Control</code> and <code>Expires</code> headers, stale
+ * entries with a validator are revalidated with a conditional request, and concurrent
+ * misses for the same key are coalesced into one upstream request. If the upstream fails
+ * or answers with a server error, a stale entry is served for a limited time instead.
+ */
+public class ProxyResponseCache {
+
+  /**
+   * Executes an upstream request, returning the status code.
+   */
+  public interface MethodExecutor {
+    int execute(HttpMethod method) throws IOException;
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+  private final int maxEntrySize;
+  private final long maxSize;
+  private final long defaultTtl;
+  private final long staleIfError;
+
+  /**
+   * Entries in access order, guarded by this.
+   */
+  private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(
+      16, 0.75f, true);
+  private long size;
+
+  private final ConcurrentMap<String, FutureTask<Outcome>> inflight = new ConcurrentHashMap<String, FutureTask<Outcome>>();
+
+  /**
+   * @param maxSize
+   *          the total number of body bytes held in the cache.
+   * @param maxEntrySize
+   *          the largest body that will be cached.
+   * @param defaultTtl
+   *          the freshness, in ms, of responses that carry no expiry information.
+   * @param staleIfError
+   *          how long, in ms, past expiry an entry may be served when the upstream fails,
+   *          unless the response specifies its own <code>stale-if-error</code>.
+   */
+  public ProxyResponseCache(long maxSize, int maxEntrySize, long defaultTtl,
+      long staleIfError) {
+    this.maxSize = maxSize;
+    this.maxEntrySize = maxEntrySize;
+    this.defaultTtl = defaultTtl;
+    this.staleIfError = staleIfError;
+  }
+
+  /**
+   * Get a response for the request, from the cache if it is fresh, otherwise by executing
+   * the supplied method. The method must not have been executed; it is only executed if
+   * this caller performs the upstream request.
+   *
+   * @param key
+   *          the key of the rendered request, including everything that can change the
+   *          response.
+   * @param method
+   *          the GET method for the request.
+   * @param executor
+   *          used to execute the method.
+   * @return the response, which must be closed.
+   * @throws IOException
+   */
+  public ProxyResponse execute(final String key, final HttpMethod method,
+      final MethodExecutor executor) throws IOException {
+    final CachedResponse cached = get(key);
+    long now = System.currentTimeMillis();
+    if (cached != null && cached.isFresh(now)) {
+      LOGGER.debug("Proxy cache hit {} ", key);
+      return cached.toResponse();
+    }
+
+    FutureTask<Outcome> task = new FutureTask<Outcome>(new Callable<Outcome>() {
+      public Outcome call() throws Exception {
+        return fetch(key, cached, method, executor);
+      }
+    });
+    FutureTask<Outcome> leader = inflight.putIfAbsent(key, task);
+    if (leader == null) {
+      try {
+        task.run();
+      } finally {
+        inflight.remove(key, task);
+      }
+      leader = task;
+    }
+    Outcome outcome;
+    try {
+      outcome = leader.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for " + key);
+    } catch (ExecutionException e) {
+      if (leader != task) {
+        // let this caller try for itself.
+        return live(executor.execute(method), method);
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      IOException ioe = new IOException("Proxy request failed for " + key);
+      ioe.initCause(e.getCause());
+      throw ioe;
+    }
+    if (outcome.cached != null) {
+      return outcome.cached.toResponse();
+    }
+    if (leader == task) {
+      return outcome.response;
+    }
+    // the response the leader got could not be shared, fetch our own.
+    return live(executor.execute(method), method);
+  }
+
+  /**
+   * Remove all entries.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  /**
+   * @return the number of cached entries.
+   */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  private Outcome fetch(String key, CachedResponse cached, HttpMethod method,
+      MethodExecutor executor) throws IOException {
+    if (cached != null) {
+      if (cached.etag != null) {
+        method.setRequestHeader("If-None-Match", cached.etag);
+      }
+      if (cached.lastModified != null) {
+        method.setRequestHeader("If-Modified-Since", cached.lastModified);
+      }
+    }
+    int status;
+    try {
+      status = executor.execute(method);
+    } catch (IOException e) {
+      method.releaseConnection();
+      if (cached != null && cached.isUsableOnError(System.currentTimeMillis())) {
+        LOGGER.warn("Serving stale {} after upstream failure {} ", key, e.getMessage());
+        return new Outcome(cached, null);
+      }
+      throw e;
+    }
+    long now = System.currentTimeMillis();
+    if (cached != null) {
+      if (status == 304) {
+        CachedResponse refreshed = new CachedResponse(cached.status,
+            cached.mergeHeaders(headers(status, method)), cached.body, now, defaultTtl,
+            staleIfError);
+        method.releaseConnection();
+        put(key, refreshed);
+        LOGGER.debug("Proxy cache revalidated {} ", key);
+        return new Outcome(refreshed, null);
+      }
+      if (status >= 500 && cached.isUsableOnError(now)) {
+        method.releaseConnection();
+        LOGGER.warn("Serving stale {} after upstream status {} ", key, status);
+        return new Outcome(cached, null);
+      }
+    }
+
+    Map<String, String[]> headers = headers(status, method);
+    if (status != 200 || !isCacheable(headers)) {
+      remove(key);
+      return new Outcome(null, live(status, method));
+    }
+    Header contentLength = method.getResponseHeader("Content-Length");
+    if (contentLength != null && parseLong(contentLength.getValue(), 0) > maxEntrySize) {
+      return new Outcome(null, live(status, method));
+    }
+    InputStream in = method.getResponseBodyAsStream();
+    if (in == null) {
+      in = new ByteArrayInputStream(new byte[0]);
+    }
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] b = new byte[4096];
+    int n;
+    while ((n = in.read(b)) >= 0) {
+      buffer.write(b, 0, n);
+      if (buffer.size() > maxEntrySize) {
+        // too large to cache, hand back what has been read followed by the rest.
+        return new Outcome(null, new BufferedResponse(status, headers, new SequenceInputStream(
+            new ByteArrayInputStream(buffer.toByteArray()), in), method));
+      }
+    }
+    method.releaseConnection();
+    CachedResponse response = new CachedResponse(status, headers, buffer.toByteArray(),
+        now, defaultTtl, staleIfError);
+    put(key, response);
+    return new Outcome(response, null);
+  }
+
+  private ProxyResponse live(int status, HttpMethod method) {
+    return new ProxyResponseImpl(status, method);
+  }
+
+  private Map<String, String[]> headers(int status, HttpMethod method) {
+    return new ProxyResponseImpl(status, method).getResponseHeaders();
+  }
+
+  private boolean isCacheable(Map<String, String[]> headers) {
+    if (header(headers, "Set-Cookie") != null) {
+      return false;
+    }
+    String vary = header(headers, "Vary");
+    if (vary != null && vary.trim().equals("*")) {
+      return false;
+    }
+    String cacheControl = header(headers, "Cache-Control");
+    if (cacheControl != null) {
+      String cc = cacheControl.toLowerCase();
+      if (cc.contains("no-store") || cc.contains("private")) {
+        return false;
+      }
+    }
+    String pragma = header(headers, "Pragma");
+    if (cacheControl == null && pragma != null
+        && pragma.toLowerCase().contains("no-cache")) {
+      return false;
+    }
+    return defaultTtl > 0 || cacheControl != null
+        || header(headers, "Expires") != null || header(headers, "ETag") != null
+        || header(headers, "Last-Modified") != null;
+  }
+
+  private synchronized CachedResponse get(String key) {
+    return entries.get(key);
+  }
+
+  private synchronized void put(String key, CachedResponse response) {
+    CachedResponse old = entries.put(key, response);
+    if (old != null) {
+      size -= old.body.length;
+    }
+    size += response.body.length;
+    Iterator<CachedResponse> i = entries.values().iterator();
+    while (size > maxSize && i.hasNext()) {
+      CachedResponse eldest = i.next();
+      i.remove();
+      size -= eldest.body.length;
+    }
+  }
+
+  private synchronized void remove(String key) {
+    CachedResponse old = entries.remove(key);
+    if (old != null) {
+      size -= old.body.length;
+    }
+  }
+
+  static String header(Map<String, String[]> headers, String name) {
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (e.getKey().equalsIgnoreCase(name) && e.getValue().length > 0) {
+        return e.getValue()[0];
+      }
+    }
+    return null;
+  }
+
+  static long parseLong(String value, long defaultValue) {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private static long parseDate(String value, long defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return DateUtil.parseDate(value).getTime();
+    } catch (DateParseException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * The result of an upstream fetch, either a shareable cached response or a live one
+   * that only the caller that fetched it can read.
+   */
+  private static class Outcome {
+    private final CachedResponse cached;
+    private final ProxyResponse response;
+
+    Outcome(CachedResponse cached, ProxyResponse response) {
+      this.cached = cached;
+      this.response = response;
+    }
+  }
+
+  /**
+   * An immutable cached response.
+   */
+  static class CachedResponse {
+    private final int status;
+    private final Map<String, String[]> headers;
+    private final byte[] body;
+    private final String etag;
+    private final String lastModified;
+    private final long expires;
+    private final long staleUntil;
+
+    CachedResponse(int status, Map<String, String[]> headers, byte[] body, long now,
+        long defaultTtl, long defaultStaleIfError) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.etag = header(headers, "ETag");
+      this.lastModified = header(headers, "Last-Modified");
+
+      boolean noCache = false;
+      boolean mustRevalidate = false;
+      long sMaxAge = -1;
+      long maxAge = -1;
+      long staleIfError = -1;
+      String cacheControl = header(headers, "Cache-Control");
+      if (cacheControl != null) {
+        for (String directive : cacheControl.toLowerCase().split(",")) {
+          directive = directive.trim();
+          if (directive.equals("no-cache")) {
+            noCache = true;
+          } else if (directive.equals("must-revalidate")
+              || directive.equals("proxy-revalidate")) {
+            mustRevalidate = true;
+          } else if (directive.startsWith("s-maxage=")) {
+            sMaxAge = parseLong(directive.substring(9), 0) * 1000L;
+          } else if (directive.startsWith("max-age=")) {
+            maxAge = parseLong(directive.substring(8), 0) * 1000L;
+          } else if (directive.startsWith("stale-if-error=")) {
+            staleIfError = parseLong(directive.substring(15), 0) * 1000L;
+          }
+        }
+      }
+
+      long ttl;
+      String expiresHeader = header(headers, "Expires");
+      if (noCache) {
+        ttl = 0;
+      } else if (sMaxAge >= 0) {
+        ttl = sMaxAge;
+      } else if (maxAge >= 0) {
+        ttl = maxAge;
+      } else if (expiresHeader != null) {
+        // an invalid Expires means already expired.
+        long date = parseDate(header(headers, "Date"), now);
+        ttl = Math.max(0, parseDate(expiresHeader, date) - date);
+      } else {
+        ttl = defaultTtl;
+      }
+
+      long stale;
+      if (mustRevalidate) {
+        stale = 0;
+      } else if (staleIfError >= 0) {
+        stale = staleIfError;
+      } else {
+        stale = defaultStaleIfError;
+      }
+      this.expires = now + ttl;
+      this.staleUntil = expires + stale;
+    }
+
+    boolean isFresh(long now) {
+      return now < expires;
+    }
+
+    boolean isUsableOnError(long now) {
+      return now < staleUntil;
+    }
+
+    /**
+     * @return the headers of this response updated with those of a 304 response.
+     */
+    Map<String, String[]> mergeHeaders(Map<String, String[]> notModifiedHeaders) {
+      Map<String, String[]> merged = new HashMap<String, String[]>(headers);
+      for (Entry<String, String[]> e : notModifiedHeaders.entrySet()) {
+        String name = e.getKey();
+        if (name.equalsIgnoreCase("Content-Length")
+            || name.equalsIgnoreCase("Transfer-Encoding")) {
+          // these describe the (empty) 304 body, not the cached one.
+          continue;
+        }
+        for (Iterator<String> i = merged.keySet().iterator(); i.hasNext();) {
+          if (i.next().equalsIgnoreCase(name)) {
+            i.remove();
+          }
+        }
+        merged.put(name, e.getValue());
+      }
+      return merged;
+    }
+
+    ProxyResponse toResponse() {
+      return new BufferedResponse(status, headers, new ByteArrayInputStream(body), null);
+    }
+  }
+
+  /**
+   * A response whose body is read from a stream rather than the method, releasing the
+   * method, if any, on close.
+   */
+  static class BufferedResponse implements ProxyResponse {
+    private final int status;
+    private final Map<String, String[]> headers;
+    private final InputStream body;
+    private HttpMethod method;
+
+    BufferedResponse(int status, Map<String, String[]> headers, InputStream body,
+        HttpMethod method) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.method = method;
+    }
+
+    public int getResultCode() {
+      return status;
+    }
+
+    public Map<String, String[]> getResponseHeaders() {
+      return headers;
+    }
+
+    public byte[] getResponseBody() throws IOException {
+      return IOUtils.toByteArray(body);
+    }
+
+    public InputStream getResponseBodyAsInputStream() throws IOException {
+      return body;
+    }
+
+    public String getResponseBodyAsString() throws IOException {
+      String charset = "ISO-8859-1";
+      String contentType = header(headers, "Content-Type");
+      if (contentType != null) {
+        int i = contentType.toLowerCase().indexOf("charset=");
+        if (i >= 0) {
+          charset = contentType.substring(i + 8).replace("\"", "").trim();
+        }
+      }
+      return new String(getResponseBody(), charset);
+    }
+
+    public void close() {
+      if (method != null) {
+        method.releaseConnection();
+        method = null;
+      }
+    }
+  }
+}
@@ -18,8 +18,8 @@
 package org.sakaiproject.nakamura.proxy;
 
 import com.ctc.wstx.stax.WstxInputFactory;
-import com.ctc.wstx.stax.WstxOutputFactory;
 
+import org.apache.commons.io.input.ProxyInputStream;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,15 +48,10 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Will check if the response we get from an RSS file is valid. It will do basic checks
@@ -67,19 +63,27 @@ import javax.xml.stream.events.XMLEvent;
     @Property(name = "service.vendor", value = "The Sakai foundation"),
     @Property(name = "service.description", value = "Post processor who checks if requests are valid RSS requests."),
     @Property(name = RSSProxyPostProcessor.EVENTS_THRESHOLD, intValue = RSSProxyPostProcessor.DEFAULT_EVENTS_THRESHOLD),
-    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH)
+    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH),
+    @Property(name = RSSProxyPostProcessor.HOLD_BACK_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_HOLD_BACK_LENGTH)
 })
 public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
   public static final int DEFAULT_MAX_LENGTH = 10000000;
   public static final int DEFAULT_EVENTS_THRESHOLD = 100;
+  public static final int DEFAULT_HOLD_BACK_LENGTH = 256 * 1024;
 
   static final String EVENTS_THRESHOLD = "sakai.rss.elements.threshold";
   static final String MAX_LENGTH = "sakai.rss.length.max";
+  /**
+   * The number of bytes of a valid feed held back before streaming it to the client;
+   * feeds no longer than this are checked to be well formed before anything is sent.
+   */
+  static final String HOLD_BACK_LENGTH = "sakai.rss.holdback.max";
 
   private XMLInputFactory xmlInputFactory;
   private int eventsThreshold;
   private int maxLength;
+  private int holdBackLength;
 
   // Maximum size is 10 megabyte.
   public static final Logger logger = LoggerFactory
@@ -94,6 +98,8 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     eventsThreshold = PropertiesUtil.toInteger(props.get(EVENTS_THRESHOLD),
         DEFAULT_EVENTS_THRESHOLD);
     maxLength = PropertiesUtil.toInteger(props.get(MAX_LENGTH), DEFAULT_MAX_LENGTH);
+    holdBackLength = PropertiesUtil.toInteger(props.get(HOLD_BACK_LENGTH),
+        DEFAULT_HOLD_BACK_LENGTH);
 
     xmlInputFactory = new WstxInputFactory();
     xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
@@ -191,40 +197,32 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
       }
     }
 
-    boolean isValid = false;
-    InputStream in = proxyResponse.getResponseBodyAsInputStream();
+    TeeInputStream in = new TeeInputStream(proxyResponse.getResponseBodyAsInputStream());
     InputStreamReader reader = new InputStreamReader(in);
+    XMLStreamReader xmlReader = null;
 
-    // XMLStreamWriter writer = null;
-    XMLEventWriter writer = null;
-    ByteArrayOutputStream out = null;
-
+    // The feed is parsed once. The bytes read are held back until the feed has been
+    // validated, then streamed straight through; only a feed that is still being held
+    // back when an error is found can be rejected with an error status.
+    boolean isValid = false;
+    boolean committed = false;
     int i = 0;
     try {
-      XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(reader);
-      // Create a temporary outputstream where we can write to.
-      out = new ByteArrayOutputStream();
-
+      xmlReader = xmlInputFactory.createXMLStreamReader(reader);
       Set<String> checkedElements = null;
 
-      XMLOutputFactory outputFactory = new WstxOutputFactory();
-      writer = outputFactory.createXMLEventWriter(out);
-
-      while (eventReader.hasNext()) {
-        XMLEvent e = eventReader.nextEvent();
-        // Stream it to an output stream.
-        writer.add(e);
+      while (xmlReader.hasNext()) {
+        int eventType = xmlReader.next();
 
         if (!isValid) {
-          if (e.getEventType() == XMLEvent.START_ELEMENT) {
-            StartElement el = e.asStartElement();
-            String name = el.getName().getLocalPart().toLowerCase();
+          if (eventType == XMLStreamConstants.START_ELEMENT) {
+            String name = xmlReader.getLocalName().toLowerCase();
             if (checkedElements == null) {
               // get the right format to validate against
               String formatKey = name;
-              Attribute attr = el.getAttributeByName(new QName("version"));
-              if (attr != null) {
-                formatKey += "-" + attr.getValue();
+              String version = xmlReader.getAttributeValue(null, "version");
+              if (version != null) {
+                formatKey += "-" + version;
               }
               Set<String> format = formats.get(formatKey);
               if (format != null) {
@@ -246,6 +244,22 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
           }
           i++;
         }
+
+        // Check if we are not streaming a gigantic file..
+        if (in.getCount() > maxLength) {
+          if (!committed) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                "This file is too big.");
+          } else {
+            logger.warn("RSS feed exceeded {} bytes, response truncated ", maxLength);
+          }
+          return;
+        }
+
+        if (isValid && !committed && in.getHeldCount() > holdBackLength) {
+          commit(response, proxyResponse, in, -1);
+          committed = true;
+        }
       }
 
       if (!isValid) {
@@ -254,38 +268,37 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
         return;
       }
 
-      // Check if we are not streaming a gigantic file..
-      if (out.size() > maxLength) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "This file is too big.");
+      // pass through anything after the end of the document.
+      in.drain();
+      if (in.getCount() > maxLength) {
+        if (!committed) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This file is too big.");
+        }
         return;
       }
-
-      for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
-        for (String v : h.getValue()) {
-          response.setHeader(h.getKey(), v);
-        }
+      if (!committed) {
+        commit(response, proxyResponse, in, in.getHeldCount());
+        committed = true;
       }
-      // We always return 200 when we get to this point.
-      response.setStatus(200);
-      response.setHeader("Content-Length", Integer.toString(out.size()));
-      // Write the cached stream to the output.
-      out.writeTo(response.getOutputStream());
 
     } catch (XMLStreamException e) {
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-          "This is not a valid XML file.");
+      if (committed) {
+        logger.warn("RSS feed became invalid after streaming started, response truncated: {}",
+            e.getMessage());
+      } else {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "This is not a valid XML file.");
+      }
     } catch (Exception e) {
       logger.warn("Exception reading RSS feed.", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "General exception caught.");
-    } finally {
-      if (out != null) {
-        out.close();
+      if (!committed) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "General exception caught.");
       }
+    } finally {
       reader.close();
       try {
-        if (writer != null) writer.close();
+        if (xmlReader != null) xmlReader.close();
       } catch (XMLStreamException e) {
         // Not much we can do?
         logger.info(e.getMessage());
@@ -293,4 +306,99 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     }
 
   }
+
+  /**
+   * Send the response headers and the bytes held back so far, and from then on stream the
+   * feed straight to the response.
+   *
+   * @param length
+   *          the length of the whole feed if it has all been read, or -1.
+   */
+  private void commit(SlingHttpServletResponse response, ProxyResponse proxyResponse,
+      TeeInputStream in, long length) throws IOException {
+    for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
+      for (String v : h.getValue()) {
+        response.setHeader(h.getKey(), v);
+      }
+    }
+    // We always return 200 when we get to this point.
+    response.setStatus(200);
+    if (length >= 0) {
+      response.setHeader("Content-Length", Long.toString(length));
+    }
+    in.release(response.getOutputStream());
+  }
+
+  /**
+   * An input stream that copies every byte read from it, first into a hold back buffer
+   * and, once released, to an output stream.
+   */
+  private static class TeeInputStream extends ProxyInputStream {
+    private ByteArrayOutputStream held = new ByteArrayOutputStream();
+    private OutputStream out = held;
+    private long count;
+
+    TeeInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        out.write(b);
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+      return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        out.write(b, off, n);
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] b = new byte[(int) Math.min(n, 4096)];
+      int r = read(b);
+      return r < 0 ? 0 : r;
+    }
+
+    /**
+     * Write the held back bytes to the destination, and send all further bytes to it.
+     */
+    void release(OutputStream destination) throws IOException {
+      held.writeTo(destination);
+      out = destination;
+      held = null;
+    }
+
+    /**
+     * Read the rest of the stream.
+     */
+    void drain() throws IOException {
+      byte[] b = new byte[4096];
+      while (read(b) >= 0) {
+        // written by read
+      }
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    long getHeldCount() {
+      return held == null ? 0 : held.size();
+    }
+  }
 }
@@ -31,6 +31,7 @@ import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.data.ParserException;
@@ -122,6 +123,53 @@ public class ICalProxyPostProcessorTest {
     stringContainsValidICalData(writer.toString());
   }
 
+  @Test
+  public void unchangedFeedGivesSameJson() throws IOException, JSONException {
+    // given
+    Map<String, Object> getParams = queryParamsSpecifyingResponseType("json");
+    proxyResponseHeadersContainValidContentType();
+    proxyResponseContainingValidICalFeed();
+    StringWriter first = responseUsingStringWriter();
+    proxyPostProcessor.activate(ImmutableMap.of());
+    proxyPostProcessor.process(getParams, response, proxyResponse);
+
+    // when
+    proxyResponseContainingValidICalFeed();
+    StringWriter second = responseUsingStringWriter();
+    proxyPostProcessor.process(getParams, response, proxyResponse);
+
+    // then
+    stringContainsValidJsonDocument(second.toString());
+    assertThat(second.toString(), equalTo(first.toString()));
+  }
+
+  @Test
+  public void unchangedFeedIsNotParsedAgain() throws IOException {
+    // given
+    final AtomicInteger builds = new AtomicInteger();
+    proxyPostProcessor = new ICalProxyPostProcessor() {
+      @Override
+      CalendarBuilder newCalendarBuilder() {
+        builds.incrementAndGet();
+        return super.newCalendarBuilder();
+      }
+    };
+    Map<String, Object> getParams = queryParamsSpecifyingResponseType("json");
+    proxyResponseHeadersContainValidContentType();
+    proxyResponseContainingValidICalFeed();
+    responseUsingStringWriter();
+    proxyPostProcessor.activate(ImmutableMap.of());
+    proxyPostProcessor.process(getParams, response, proxyResponse);
+
+    // when
+    proxyResponseContainingValidICalFeed();
+    responseUsingStringWriter();
+    proxyPostProcessor.process(getParams, response, proxyResponse);
+
+    // then
+    assertThat(builds.get(), equalTo(1));
+  }
+
   @Test
   public void rejectsStreamOfExcessiveLength() throws IOException {
     // given
@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests the proxy response cache against an embedded http server.
+ */
+public class ProxyResponseCacheTest {
+
+  private Server server;
+  private String url;
+  private MultiThreadedHttpConnectionManager connectionManager;
+  private ProxyResponseCache.MethodExecutor executor;
+  private ProxyResponseCache cache;
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile int status = 200;
+  private volatile String cacheControl = "max-age=60";
+  private volatile String etag = "\"v1\"";
+  private volatile long delay;
+  private volatile String ifNoneMatch;
+
+  @Before
+  public void before() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    server = new Server(port);
+    server.setHandler(new AbstractHandler() {
+      public void handle(String target, HttpServletRequest request,
+          HttpServletResponse response, int dispatch) throws IOException,
+          ServletException {
+        requests.incrementAndGet();
+        ifNoneMatch = request.getHeader("If-None-Match");
+        if (delay > 0) {
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (etag != null) {
+          response.setHeader("ETag", etag);
+        }
+        if (cacheControl != null) {
+          response.setHeader("Cache-Control", cacheControl);
+        }
+        if (status == 200 && etag != null && etag.equals(ifNoneMatch)) {
+          response.setStatus(304);
+        } else {
+          response.setStatus(status);
+          response.setContentType("text/plain");
+          response.getWriter().print("body " + etag);
+        }
+        ((Request) request).setHandled(true);
+      }
+    });
+    server.start();
+    url = "http://localhost:" + port + "/feed";
+
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    connectionManager.getParams().setDefaultMaxConnectionsPerHost(20);
+    final HttpClient client = new HttpClient(connectionManager);
+    executor = new ProxyResponseCache.MethodExecutor() {
+      public int execute(HttpMethod method) throws IOException {
+        return client.executeMethod(method);
+      }
+    };
+    cache = new ProxyResponseCache(1024 * 1024, 64 * 1024, 0, 300000);
+  }
+
+  @After
+  public void after() throws Exception {
+    connectionManager.shutdown();
+    server.stop();
+  }
+
+  private String get() throws IOException {
+    ProxyResponse response = cache.execute(url, new GetMethod(url), executor);
+    try {
+      return response.getResultCode() + " " + response.getResponseBodyAsString();
+    } finally {
+      response.close();
+    }
+  }
+
+  @Test
+  public void testFreshHit() throws Exception {
+    assertEquals("200 body \"v1\"", get());
+    assertEquals("200 body \"v1\"", get());
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void testRevalidate() throws Exception {
+    cacheControl = "max-age=0";
+    assertEquals("200 body \"v1\"", get());
+    assertNull(ifNoneMatch);
+    assertEquals("200 body \"v1\"", get());
+    assertEquals(2, requests.get());
+    assertEquals("\"v1\"", ifNoneMatch);
+
+    etag = "\"v2\"";
+    assertEquals("200 body \"v2\"", get());
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void testStaleIfError() throws Exception {
+    cacheControl = "max-age=0";
+    assertEquals("200 body \"v1\"", get());
+    status = 503;
+    etag = null;
+    assertEquals("200 body \"v1\"", get());
+    assertEquals(2, requests.get());
+
+    cacheControl = "max-age=0, must-revalidate";
+    status = 200;
+    etag = "\"v3\"";
+    assertEquals("200 body \"v3\"", get());
+    status = 503;
+    etag = null;
+    assertEquals("503 body null", get());
+  }
+
+  @Test
+  public void testNoStore() throws Exception {
+    cacheControl = "no-store";
+    assertEquals("200 body \"v1\"", get());
+    assertEquals("200 body \"v1\"", get());
+    assertEquals(2, requests.get());
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void testConcurrentMissesCoalesced() throws Exception {
+    delay = 500;
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<String> results = new ArrayList<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 10; i++) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            String result = get();
+            synchronized (results) {
+              results.add(result);
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(10, results.size());
+    for (String result : results) {
+      assertEquals("200 body \"v1\"", result);
+    }
+    assertEquals(1, requests.get());
+  }
+}
@@ -17,12 +17,16 @@
  */
 package org.sakaiproject.nakamura.proxy;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.junit.Before;
 import org.junit.Test;
@@ -31,6 +35,8 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -139,6 +145,34 @@ public class RSSProxyPostProcessorTest {
     verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
   }
 
+  @Test
+  public void streamsLargeRssUnchanged() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    proxyResponseHasSampleRss();
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        written.write(b);
+      }
+    });
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(RSSProxyPostProcessor.HOLD_BACK_LENGTH, 1024);
+
+    //when
+    proxyPostProcessor.activate(props);
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).setStatus(200);
+    verify(response, never()).sendError(anyInt(), anyString());
+    verify(response, never()).setHeader(eq("Content-Length"), anyString());
+    byte[] expected = IOUtils.toByteArray(this.getClass().getClassLoader()
+        .getResourceAsStream("sample-rss.xml"));
+    assertArrayEquals(expected, written.toByteArray());
+  }
+
   private void proxyResponseHeaderContainsUnsupportedContentType() {
     when(proxyResponseHeaders.get("Content-Type")).thenReturn(new String[]{"application/foo"});
   }
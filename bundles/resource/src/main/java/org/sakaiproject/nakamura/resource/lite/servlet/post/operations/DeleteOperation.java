@@ -39,6 +39,7 @@ import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -70,19 +71,18 @@ public class DeleteOperation extends AbstractSparsePostOperation {
       }
 
       if(resource.isResourceType("sakai/pooled-content")){
-        //notify to reset content count
+        // each manager and viewer loses one content item
         Content node = resource.adaptTo(Content.class);
         Map<String, Object> properties = node.getProperties();
         String[] managers = PropertiesUtil.toStringArray(properties.get("sakai:pooled-content-manager"));
-        String[] editors = PropertiesUtil.toStringArray(properties.get("sakai:pooled-content-editor"));
         String[] viewers = PropertiesUtil.toStringArray(properties.get("sakai:pooled-content-viewer"));
-        Set<String> managerSet = Sets.newHashSet(managers);
-        Set<String> editorSet = Sets.newHashSet(editors);
-        Set<String> viewerSet = Sets.newHashSet(viewers);
-        this.authorizableCountChanger.notify(UserConstants.CONTENT_ITEMS_PROP, managerSet, editorSet, viewerSet);
+        Set<String> memberSet = Sets.newHashSet(managers);
+        memberSet.addAll(Arrays.asList(viewers));
+        StorageClientUtils.deleteTree(contentManager, contentPath);
+        this.authorizableCountChanger.change(UserConstants.CONTENT_ITEMS_PROP, -1, memberSet);
+      } else {
+        StorageClientUtils.deleteTree(contentManager, contentPath);
       }
-
-      StorageClientUtils.deleteTree(contentManager, contentPath);
       changes.add(Modification.onDeleted(resource.getPath()));
 
     } else {
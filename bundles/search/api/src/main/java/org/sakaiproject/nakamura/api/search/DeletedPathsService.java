@@ -7,7 +7,15 @@ public interface DeletedPathsService {
   /**
    * Get a list of the paths that were deleted since the last Solr commit across all nodes
    * in the cluster. Escapes the paths to make sure they are safe for consumption in a
-   * query.
+   * query. Paths below another deleted path are not listed, and the list is sorted.
    */
   List<String> getDeletedPaths();
-}
\ No newline at end of file
+
+  /**
+   * Get a single filter query that excludes everything at or below the deleted paths.
+   * The same set of deleted paths always gives the same filter, so Solr can cache it.
+   *
+   * @return the filter query, or null if nothing has been deleted since the last commit.
+   */
+  String getDeletedPathsFilter();
+}
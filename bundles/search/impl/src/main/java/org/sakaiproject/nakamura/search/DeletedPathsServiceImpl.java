@@ -18,13 +18,27 @@
 package org.sakaiproject.nakamura.search;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.cluster.ClusterServer;
@@ -35,6 +49,9 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Manage a cache of deleted paths as signaled by content deletion events. The cache is
@@ -44,8 +61,19 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
  * overwriting a centrally managed but unsynchronized cache. Each machine should have only
  * one version of this service actively managing that machines cache so it should always
  * work with the authoritative state.
+ * <p>
+ * Each machine keeps its paths under <code>deleted/&lt;serverId&gt;/</code> in the cache
+ * and a local copy of its own set. The set is prefix collapsed, a path below a deleted
+ * path is not stored and deleting a parent drops its children, so a bulk delete of a
+ * tree costs one entry. When the set grows past <code>maxPaths</code> a soft commit is
+ * requested so the set is cleared by the commit event rather than growing the filter.
+ * <p>
+ * Each path is tagged with the commit generation it was deleted in. A commit event only
+ * clears the paths deleted before the previous commit event (or before a soft commit
+ * this service requested), as a delete that arrives while a commit is running may not be
+ * in the searcher that commit opens.
  */
-@Component
+@Component(metatype = true)
 @Service
 @Property(name = "event.topics", value = {
     "org/sakaiproject/nakamura/lite/content/DELETE",
@@ -55,12 +83,39 @@ import org.sakaiproject.nakamura.api.search.solr.Query;
 public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService {
   public static final String DELETED_PATH_CACHE = "deletedPathQueue";
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(DeletedPathsServiceImpl.class);
+
+  private static final String KEY_BASE = "deleted/";
+
+  @Property(intValue = 500)
+  static final String MAX_PATHS = "maxPaths";
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Reference
   private ClusterTrackingService clusterTrackingService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private SolrServerService solrServerService;
+
+  /**
+   * The paths this machine has stored in the cache, with the generation they were
+   * deleted in.
+   */
+  private final SortedMap<String, Long> localPaths = new TreeMap<String, Long>();
+
+  /**
+   * Advanced on every commit event and every soft commit requested from here.
+   */
+  private long generation;
+
+  private int maxPaths = 500;
+
+  private boolean commitRequested;
+
+  private ScheduledExecutorService commitExecutor;
+
   public DeletedPathsServiceImpl() {
   }
 
@@ -70,6 +125,26 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     this.clusterTrackingService = clusterTrackingService;
   }
 
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    maxPaths = PropertiesUtil.toInteger(props.get(MAX_PATHS), 500);
+    commitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Deleted paths soft commit");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (commitExecutor != null) {
+      commitExecutor.shutdownNow();
+      commitExecutor = null;
+    }
+  }
+
   /**
    * Get an instance of the cache used to track paths that have been marked as
    * deleted since the last Solr commit.  This cache is shared by all nodes in a
@@ -79,46 +154,93 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     return cacheManagerService.getCache(DELETED_PATH_CACHE, CacheScope.CLUSTERREPLICATED);
   }
 
+  private String getServerKey(String serverId) {
+    return KEY_BASE + serverId;
+  }
+
   /**
-   * Record a path as having been deleted, preventing it from appearing in search results.
+   * Record a path as having been deleted, preventing it and anything below it from
+   * appearing in search results.
    *
    * @param path the path that was deleted
    */
   private synchronized void storeDeletedPath(String path) {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    // add the new path to the last position
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    cache.put("path[" + pathCount + "]@" + myId,
-        SearchUtil.escapeString(path, Query.SOLR));
-    cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
-
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
+    // a deleted parent already covers this path, keep it until this delete is committed.
+    for (String parent = path; parent.length() > 0; parent = getParent(parent)) {
+      if (localPaths.containsKey(parent)) {
+        localPaths.put(parent, generation);
+        return;
       }
     }
+    Cache<String> cache = getDeletedPathCache();
+    String key = getServerKey(clusterTrackingService.getCurrentServerId()) + "/" + path;
+
+    // drop any paths below the one we're adding, they are covered by it now.
+    SortedMap<String, Long> children = localPaths.subMap(path + "/", path + "0");
+    if (!children.isEmpty()) {
+      children.clear();
+      cache.removeChildren(key);
+    }
+    localPaths.put(path, generation);
+    cache.put(key, path);
+
+    if (localPaths.size() > maxPaths && !commitRequested) {
+      commitRequested = true;
+      requestSoftCommit();
+    }
+  }
+
+  private String getParent(String path) {
+    int i = path.lastIndexOf('/');
+    return i < 0 ? "" : path.substring(0, i);
+  }
+
+  /**
+   * Ask Solr to make the deletes visible now, the commit event that follows clears the
+   * paths deleted so far. Done off the event thread as a commit can take a while.
+   */
+  private void requestSoftCommit() {
+    final SolrServerService server = solrServerService;
+    ScheduledExecutorService executor = commitExecutor;
+    if (server == null || executor == null) {
+      return;
+    }
+    LOGGER.info("{} deleted paths since the last commit, requesting a soft commit ",
+        localPaths.size());
+    // everything deleted up to now is in the commit about to start.
+    generation++;
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          UpdateRequest request = new UpdateRequest();
+          request.setAction(UpdateRequest.ACTION.COMMIT, false, false);
+          request.setParam("softCommit", "true");
+          request.process(server.getServer());
+        } catch (Exception e) {
+          LOGGER.warn("Soft commit failed, deleted paths will be filtered until the next "
+              + "commit " + e.getMessage(), e);
+        }
+      }
+    });
   }
 
   /**
-   * Clear the list of deleted nodes for this node.
+   * Clear the paths deleted before the current generation started, they are in the
+   * searcher the commit opened, and start a new generation.
    */
   private synchronized void clearDeletedPaths() {
     Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    for (int idx = 0; idx < pathCount; idx++) {
-      cache.remove("path[" + idx + "]@" + myId);
+    String serverKey = getServerKey(clusterTrackingService.getCurrentServerId());
+    for (Iterator<Map.Entry<String, Long>> i = localPaths.entrySet().iterator(); i
+        .hasNext();) {
+      Map.Entry<String, Long> e = i.next();
+      if (e.getValue() < generation) {
+        cache.remove(serverKey + "/" + e.getKey());
+        i.remove();
+      }
     }
-
-    cache.put("pathCount@" + myId, Integer.toString(0));
+    generation++;
+    commitRequested = false;
   }
 
   // ---------- DeletedPathsService interface ----------------------------------
@@ -129,25 +251,55 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    */
   @Override
   public List<String> getDeletedPaths() {
-    List<String> deletedPaths = new ArrayList<String>();
     Cache<String> cache = getDeletedPathCache();
 
+    // sorted so that the filter built from it is stable.
+    SortedSet<String> paths = new TreeSet<String>();
     for (ClusterServer server : clusterTrackingService.getAllServers()) {
-      String serverId = server.getServerId();
-      int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
-
-      for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
-
+      for (String path : cache.listChildren(getServerKey(server.getServerId()))) {
         if (path != null) {
-          deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
+          paths.add(path);
         }
       }
     }
 
+    List<String> deletedPaths = new ArrayList<String>(paths.size());
+    String last = null;
+    for (String path : paths) {
+      // another server may have deleted a parent of this path.
+      if (last != null && path.startsWith(last + "/")) {
+        continue;
+      }
+      last = path;
+      deletedPaths.add(SearchUtil.escapeString(path, Query.SOLR));
+    }
     return deletedPaths;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPathsFilter()
+   */
+  @Override
+  public String getDeletedPathsFilter() {
+    List<String> deletedPaths = getDeletedPaths();
+    if (deletedPaths.isEmpty()) {
+      return null;
+    }
+    StringBuilder filter = new StringBuilder("-path:(");
+    boolean first = true;
+    for (String path : deletedPaths) {
+      if (!first) {
+        filter.append(" OR ");
+      }
+      first = false;
+      // the path itself and anything below it.
+      filter.append(path).append(" OR ").append(path).append("\\/*");
+    }
+    return filter.append(")").toString();
+  }
+
   // ---------- EventHandler interface -----------------------------------------
   public void handleEvent(Event event) {
     String topic = event.getTopic();
@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.UPDATED_TOPIC;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
+import org.sakaiproject.nakamura.util.telemetry.StripedCounter;
+import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the expanded set of principals for recently active users, and the escaped Solr
+ * readers value built from it, so that each query does not have to walk the user's
+ * group memberships again. An entry is dropped when the user or any group in it is
+ * updated or deleted.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { ReaderPrincipalCache.class, EventHandler.class })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    TOPIC_BASE + "authorizables/" + UPDATED_TOPIC,
+    TOPIC_BASE + "authorizables/" + DELETE_TOPIC }, propertyPrivate = true) })
+public class ReaderPrincipalCache implements EventHandler {
+
+  @Property(intValue = 10000)
+  private static final String MAX_SIZE = "maxSize";
+
+  private static final StripedCounter HITS = TelemetryCounter.counter("search",
+      "ReaderPrincipalCache", "hits");
+  private static final StripedCounter MISSES = TelemetryCounter.counter("search",
+      "ReaderPrincipalCache", "misses");
+  private static final LatencyHistogram REBUILD_TIME = TelemetryCounter.histogram(
+      "search", "ReaderPrincipalCache", "rebuild.ms");
+
+  /**
+   * The principals a user reads as, and the same set escaped and joined for Solr.
+   */
+  public static class Readers {
+    private final Set<String> principals;
+    private final String solrReaders;
+
+    Readers(Set<String> principals, String solrReaders) {
+      this.principals = principals;
+      this.solrReaders = solrReaders;
+    }
+
+    public Set<String> getPrincipals() {
+      return principals;
+    }
+
+    public String getSolrReaders() {
+      return solrReaders;
+    }
+  }
+
+  private ReaderMap readers = new ReaderMap(10000);
+
+  /**
+   * Bumped on every invalidation, so that an entry built while an invalidation was
+   * happening is not stored.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    readers = new ReaderMap(PropertiesUtil.toInteger(props.get(MAX_SIZE), 10000));
+  }
+
+  /**
+   * LRU map of user to readers, with a reverse index from each group to the users whose
+   * entries include it, so that a group change only touches the entries of its members.
+   * Not thread safe, callers synchronize on the map.
+   */
+  private static class ReaderMap extends LinkedHashMap<String, Readers> {
+    private static final long serialVersionUID = 6128311380372262658L;
+    private final int maxSize;
+    private final Map<String, Set<String>> usersByGroup = new HashMap<String, Set<String>>();
+
+    ReaderMap(int maxSize) {
+      super(1024, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    void store(String userId, Readers r) {
+      drop(userId);
+      put(userId, r);
+      for (String principal : r.getPrincipals()) {
+        if (!principal.equals(userId)) {
+          Set<String> users = usersByGroup.get(principal);
+          if (users == null) {
+            users = new HashSet<String>();
+            usersByGroup.put(principal, users);
+          }
+          users.add(userId);
+        }
+      }
+    }
+
+    void drop(String userId) {
+      Readers r = remove(userId);
+      if (r != null) {
+        unindex(userId, r);
+      }
+    }
+
+    void invalidate(String authorizableId) {
+      drop(authorizableId);
+      Set<String> users = usersByGroup.remove(authorizableId);
+      if (users != null) {
+        for (String userId : users) {
+          drop(userId);
+        }
+      }
+    }
+
+    private void unindex(String userId, Readers r) {
+      for (String principal : r.getPrincipals()) {
+        Set<String> users = usersByGroup.get(principal);
+        if (users != null) {
+          users.remove(userId);
+          if (users.isEmpty()) {
+            usersByGroup.remove(principal);
+          }
+        }
+      }
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Readers> eldest) {
+      if (size() > maxSize) {
+        unindex(eldest.getKey(), eldest.getValue());
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * @param session
+   *          the session of the user.
+   * @return the readers for the session user, built if not already held.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Readers getReaders(Session session) throws StorageClientException,
+      AccessDeniedException {
+    String userId = session.getUserId();
+    ReaderMap cache = readers;
+    Readers r;
+    synchronized (cache) {
+      r = cache.get(userId);
+    }
+    if (r != null) {
+      HITS.increment();
+      return r;
+    }
+    MISSES.increment();
+    long start = System.currentTimeMillis();
+    long startGeneration = generation.get();
+    AuthorizableManager am = session.getAuthorizableManager();
+    Authorizable user = am.findAuthorizable(userId);
+    ImmutableSet.Builder<String> principals = ImmutableSet.builder();
+    ImmutableSet.Builder<String> escaped = ImmutableSet.builder();
+    if (user != null) {
+      for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+        String groupId = gi.next().getId();
+        principals.add(groupId);
+        escaped.add(SearchUtil.escapeString(groupId, Query.SOLR));
+      }
+    }
+    principals.add(userId);
+    escaped.add(SearchUtil.escapeString(userId, Query.SOLR));
+    r = new Readers(principals.build(), StringUtils.join(escaped.build(), ","));
+    synchronized (cache) {
+      if (startGeneration == generation.get()) {
+        cache.store(userId, r);
+      }
+    }
+    REBUILD_TIME.record(System.currentTimeMillis() - start);
+    return r;
+  }
+
+  /**
+   * Drop the entry for the authorizable, and every entry that includes it as a group.
+   *
+   * @param authorizableId
+   */
+  public void invalidate(String authorizableId) {
+    ReaderMap cache = readers;
+    synchronized (cache) {
+      generation.incrementAndGet();
+      cache.invalidate(authorizableId);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object id = event.getProperty(IndexingHandler.FIELD_PATH);
+    if (id != null) {
+      invalidate(String.valueOf(id));
+    }
+  }
+}
@@ -40,29 +40,24 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
-import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.ResultSetFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.util.telemetry.LatencyHistogram;
 import org.sakaiproject.nakamura.util.telemetry.TelemetryCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.List;
 
 /**
  *
@@ -86,6 +81,8 @@ public class SolrResultSetFactory implements ResultSetFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrResultSetFactory.class);
   private static final Logger SLOW_QUERY_LOGGER = LoggerFactory.getLogger(SlowQueryLogger.class);
+  private static final LatencyHistogram QUERY_TIME = TelemetryCounter.histogram("search",
+      "SolrResultSetFactory", "query.ms");
 
   @Reference
   private SolrServerService solrSearchService;
@@ -93,6 +90,9 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private DeletedPathsService deletedPathsService;
 
+  @Reference
+  private ReaderPrincipalCache readerPrincipalCache;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
@@ -155,14 +155,8 @@ public class SolrResultSetFactory implements ResultSetFactory {
       } else {
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
-          }
-          readers.add(SearchUtil.escapeString(session.getUserId(), Query.SOLR));
-          queryOptions.put("readers", StringUtils.join(readers,","));
+          queryOptions.put("readers", readerPrincipalCache.getReaders(session)
+              .getSolrReaders());
         }
       }
 
@@ -171,10 +165,9 @@ public class SolrResultSetFactory implements ResultSetFactory {
       filterQueries.add("-exclude:true");
 
       // filter out deleted items
-      List<String> deletedPaths = deletedPathsService.getDeletedPaths();
-      if (!deletedPaths.isEmpty()) {
-        // these are escaped as they are collected
-        filterQueries.add("-path:(" + StringUtils.join(deletedPaths, " OR ") + ")");
+      String deletedPathsFilter = deletedPathsService.getDeletedPathsFilter();
+      if (deletedPathsFilter != null) {
+        filterQueries.add(deletedPathsFilter);
       }
       // save filterQuery changes
       queryOptions.put(CommonParams.FQ, filterQueries);
@@ -191,6 +184,7 @@ public class SolrResultSetFactory implements ResultSetFactory {
       long tquery = System.currentTimeMillis();
       QueryResponse response = solrServer.query(solrQuery, queryMethod);
       tquery = System.currentTimeMillis() - tquery;
+      QUERY_TIME.record(tquery);
       try {
         if ( tquery > verySlowQueryThreshold ) {
           SLOW_QUERY_LOGGER.error("Very slow solr query {} ms {} ",tquery, URLDecoder.decode(solrQuery.toString(),"UTF-8"));
@@ -18,10 +18,12 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 
+import java.util.Collections;
 import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
@@ -98,11 +100,19 @@ public class DeletedPathsServiceImplTest {
           ImmutableMap.of("path", path)));
       List<String> deletedPaths = service.getDeletedPaths();
 
-      // make sure the lists are the same
-      assertEquals(addedPaths, deletedPaths);
+      // make sure the lists are the same, the service returns them sorted
+      List<String> expectedPaths = Lists.newArrayList(addedPaths);
+      Collections.sort(expectedPaths);
+      assertEquals(expectedPaths, deletedPaths);
     }
 
-    // clear out the paths
+    // the deletes may have arrived while the commit was running, so they are kept
+    service.handleEvent(new Event(eventTopic, ImmutableMap
+        .of()));
+    Collections.sort(addedPaths);
+    assertEquals(addedPaths, service.getDeletedPaths());
+
+    // the next commit started after them, clear out the paths
     service.handleEvent(new Event(eventTopic, ImmutableMap
         .of()));
     List<String> deletedPaths = service.getDeletedPaths();
@@ -110,6 +120,26 @@ public class DeletedPathsServiceImplTest {
     assertEquals(addedPaths, deletedPaths);
   }
 
+  @Test
+  public void testDeleteDuringCommitIsKept() throws Exception {
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/a")));
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/b")));
+    // a child of a deleted path renews its parent
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/a/child")));
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT", ImmutableMap
+        .of()));
+    assertEquals(Lists.newArrayList("/a", "/b"), service.getDeletedPaths());
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/SOFT_COMMIT",
+        ImmutableMap.of()));
+    assertEquals(Collections.emptyList(), service.getDeletedPaths());
+  }
+
   @Test
   public void testDeleteParent() throws Exception {
     List<String> throwAwayPaths = Lists.newArrayList("/first/second", "/first/third",
@@ -132,6 +162,27 @@ public class DeletedPathsServiceImplTest {
       service.handleEvent(event);
     }
 
+    Collections.sort(keeperPaths);
     assertEquals(keeperPaths, service.getDeletedPaths());
   }
+
+  @Test
+  public void testDeleteChildOfDeletedParent() throws Exception {
+    for (String path : new String[] { "/first", "/first/second", "/firstly" }) {
+      service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+          ImmutableMap.of("path", path)));
+    }
+    assertEquals(Lists.newArrayList("/first", "/firstly"), service.getDeletedPaths());
+  }
+
+  @Test
+  public void testFilter() throws Exception {
+    assertNull(service.getDeletedPathsFilter());
+    for (String path : new String[] { "/b", "a:1" }) {
+      service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+          ImmutableMap.of("path", path)));
+    }
+    assertEquals("-path:(/b OR /b\\/* OR a\\:1 OR a\\:1\\/*)",
+        service.getDeletedPathsFilter());
+  }
 }
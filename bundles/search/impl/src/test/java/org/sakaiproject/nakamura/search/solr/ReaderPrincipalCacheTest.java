@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+
+import java.util.Collections;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReaderPrincipalCacheTest {
+
+  @Mock
+  private Session session;
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private Authorizable user;
+  @Mock
+  private Group group;
+
+  private ReaderPrincipalCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    when(session.getUserId()).thenReturn("alice");
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(authorizableManager.findAuthorizable("alice")).thenReturn(user);
+    when(group.getId()).thenReturn("g:1");
+    when(user.memberOf(authorizableManager)).thenAnswer(
+        new Answer<Object>() {
+          public Object answer(InvocationOnMock invocation) {
+            return Iterators.singletonIterator(group);
+          }
+        });
+    cache = new ReaderPrincipalCache();
+    cache.activate(Collections.emptyMap());
+  }
+
+  @Test
+  public void testReadersAreCached() throws Exception {
+    ReaderPrincipalCache.Readers readers = cache.getReaders(session);
+    assertEquals(2, readers.getPrincipals().size());
+    assertTrue(readers.getPrincipals().contains("g:1"));
+    assertTrue(readers.getPrincipals().contains("alice"));
+    assertEquals("g\\:1,alice", readers.getSolrReaders());
+    assertSame(readers, cache.getReaders(session));
+    verify(user, times(1)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testGroupChangeInvalidates() throws Exception {
+    ReaderPrincipalCache.Readers readers = cache.getReaders(session);
+    cache.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        ImmutableMap.of(IndexingHandler.FIELD_PATH, "g:1")));
+    assertTrue(readers != cache.getReaders(session));
+    verify(user, times(2)).memberOf(authorizableManager);
+
+    readers = cache.getReaders(session);
+    cache.invalidate("someone-else");
+    assertSame(readers, cache.getReaders(session));
+  }
+
+  @Test
+  public void testGroupChangeOnlyDropsMembers() throws Exception {
+    Session bobSession = mock(Session.class);
+    Authorizable bob = mock(Authorizable.class);
+    when(bobSession.getUserId()).thenReturn("bob");
+    when(bobSession.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(authorizableManager.findAuthorizable("bob")).thenReturn(bob);
+    when(bob.memberOf(authorizableManager)).thenAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        return Iterators.emptyIterator();
+      }
+    });
+
+    ReaderPrincipalCache.Readers aliceReaders = cache.getReaders(session);
+    ReaderPrincipalCache.Readers bobReaders = cache.getReaders(bobSession);
+    cache.invalidate("g:1");
+    assertSame(bobReaders, cache.getReaders(bobSession));
+    assertTrue(aliceReaders != cache.getReaders(session));
+
+    // alice's entry was rebuilt and indexed again, so the group still reaches it.
+    aliceReaders = cache.getReaders(session);
+    cache.invalidate("g:1");
+    assertTrue(aliceReaders != cache.getReaders(session));
+    verify(user, times(3)).memberOf(authorizableManager);
+  }
+}
@@ -2,144 +2,203 @@ package org.apache.jackrabbit.core.security.principal;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A bounded, concurrent, approximate LRU map. The map is split into a number of
+ * segments selected by key hash, each segment is an access ordered
+ * {@link LinkedHashMap} guarded by its own monitor, so gets and puts only contend
+ * with other operations on the same segment and eviction of the eldest entry in a
+ * segment is O(1). The LRU ordering is exact within a segment and approximate across
+ * the whole map.
+ *
+ * Null keys are not supported, null values are.
+ *
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
+  private static final int DEFAULT_MAX_SIZE = 100;
+  private static final int MAX_SEGMENTS = 16;
 
-    protected long last;
-    protected V value;
-    private K key;
+  private static class Segment<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = -1553225398163383432L;
+    private final int capacity;
+    protected long hits;
+    protected long misses;
+    protected long evictions;
 
-    public Holder(K key, V value) {
-      this.key = key;
-      this.value = value;
-      this.last = System.currentTimeMillis();
-    }
-
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
+    public Segment(int capacity) {
+      super(Math.min(capacity, 1024), 0.75f, true);
+      this.capacity = capacity;
     }
 
     @Override
-    public boolean equals(Object obj) {
-      boolean eq = false;
-      if (obj != null) {
-        try {
-          @SuppressWarnings("unchecked")
-          Holder<T> t = (Holder<T>) obj;
-          eq = value.equals(t.value);
-        } catch (ClassCastException e) {
-          eq = false;
-        }
+    protected boolean removeEldestEntry(java.util.Map.Entry<K, V> eldest) {
+      if (size() > capacity) {
+        evictions++;
+        return true;
       }
-      return eq;
-    }
-
-    @Override
-    public int hashCode() {
-      return value.hashCode();
+      return false;
     }
-
   }
 
-  /**
-   * 
-   */
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private final Segment<K, V>[] segments;
+  private final int segmentMask;
+  private final int maxSize;
 
   public ConcurrentLRUMap() {
+    this(DEFAULT_MAX_SIZE);
   }
 
+  @SuppressWarnings("unchecked")
   public ConcurrentLRUMap(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Size must be at least 1, was " + size);
+    }
     maxSize = size;
+    // a power of 2 number of segments, with at least 8 entries in each segment.
+    int nsegments = 1;
+    while (nsegments < MAX_SEGMENTS && nsegments * 2 * 8 <= size) {
+      nsegments = nsegments * 2;
+    }
+    segmentMask = nsegments - 1;
+    segments = new Segment[nsegments];
+    // share the capacity out so that the segments add up to exactly size.
+    for (int i = 0; i < nsegments; i++) {
+      int capacity = size / nsegments + (i < size % nsegments ? 1 : 0);
+      segments[i] = new Segment<K, V>(capacity);
+    }
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    // spread the hash bits so that poor hashCodes still use all segments.
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & segmentMask];
   }
 
   public int size() {
-    return delegate.size();
+    int size = 0;
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        size += s.size();
+      }
+    }
+    return size;
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return size() == 0;
   }
 
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      return s.containsKey(key);
+    }
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        if (s.containsValue(value)) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
-
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
-        }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+  public V get(Object key) {
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      V v = s.get(key);
+      if (v == null && !s.containsKey(key)) {
+        s.misses++;
+      } else {
+        s.hits++;
       }
+      return v;
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+  }
+
+  public V put(K key, V value) {
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      return s.put(key, value);
     }
-    return v.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
-      return null;
+    Segment<K, V> s = segmentFor(key);
+    synchronized (s) {
+      return s.remove(key);
     }
-    return v.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
-    for ( java.util.Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
+    for (java.util.Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
       put(e.getKey(), e.getValue());
     }
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        s.clear();
+      }
+    }
   }
 
+  /**
+   * @return a snapshot of the keys in the map, changes to the map are not reflected in
+   *         the set.
+   */
   public Set<K> keySet() {
-    return delegate.keySet();
+    Set<K> keys = new HashSet<K>();
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        keys.addAll(s.keySet());
+      }
+    }
+    return keys;
   }
 
+  /**
+   * @return a snapshot of the values in the map, changes to the map are not reflected in
+   *         the collection.
+   */
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        values.addAll(s.values());
+      }
     }
     return values;
   }
 
+  /**
+   * @return a snapshot of the entries in the map, changes to the map are not reflected
+   *         in the set. {@link Entry#setValue(Object)} writes through to the map.
+   */
   public Set<Entry<K, V>> entrySet() {
+    Map<K, V> copy = new HashMap<K, V>();
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        copy.putAll(s);
+      }
+    }
     Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
+    for (final Entry<K, V> e : copy.entrySet()) {
       set.add(new Entry<K, V>() {
 
         public K getKey() {
@@ -147,27 +206,61 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
         }
 
         public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
+          return e.getValue();
         }
 
         public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
+          e.setValue(value);
+          return put(e.getKey(), value);
         }
       });
     }
     return set;
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
+  /**
+   * @return the maximum number of entries held by the map.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return the number of gets that found an entry.
+   */
+  public long getHitCount() {
+    long hits = 0;
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        hits += s.hits;
+      }
+    }
+    return hits;
+  }
+
+  /**
+   * @return the number of gets that did not find an entry.
+   */
+  public long getMissCount() {
+    long misses = 0;
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        misses += s.misses;
+      }
+    }
+    return misses;
+  }
+
+  /**
+   * @return the number of entries evicted to keep the map within its maximum size.
+   */
+  public long getEvictionCount() {
+    long evictions = 0;
+    for (Segment<K, V> s : segments) {
+      synchronized (s) {
+        evictions += s.evictions;
+      }
     }
-    v.last = System.currentTimeMillis();
-    return v.value;
+    return evictions;
   }
 }
@@ -259,6 +259,9 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    LOGGER.debug("Principal cache size {} of {}, hits {}, misses {}, evictions {} ",
+        new Object[] { cache.size(), cache.getMaxSize(), cache.getHitCount(),
+            cache.getMissCount(), cache.getEvictionCount() });
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -277,10 +280,11 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    // only non null principals are cached, so a single lookup is enough.
+    Principal principal = cache.get(principalName);
+    if (principal != null) {
+      return principal;
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
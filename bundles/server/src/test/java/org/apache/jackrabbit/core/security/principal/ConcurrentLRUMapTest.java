@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class ConcurrentLRUMapTest {
+
+  @Test
+  public void testBounded() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(1000);
+    for (int i = 0; i < 10000; i++) {
+      map.put("key" + i, "value" + i);
+    }
+    Assert.assertTrue(map.size() <= 1000);
+    Assert.assertTrue(map.size() > 900);
+    Assert.assertEquals(10000 - map.size(), map.getEvictionCount());
+    Assert.assertEquals("value9999", map.get("key9999"));
+  }
+
+  @Test
+  public void testRecentlyUsedRetained() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("keep", "kept");
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals("kept", map.get("keep"));
+      map.put("key" + i, "value" + i);
+    }
+    Assert.assertEquals("kept", map.get("keep"));
+    Assert.assertNull(map.get("key0"));
+    Assert.assertEquals(10, map.size());
+  }
+
+  @Test
+  public void testMapContract() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+    Assert.assertTrue(map.isEmpty());
+    Assert.assertNull(map.put("a", "1"));
+    Assert.assertEquals("1", map.put("a", "2"));
+    map.put("b", null);
+    Assert.assertTrue(map.containsKey("b"));
+    Assert.assertTrue(map.containsValue("2"));
+    Assert.assertEquals(2, map.keySet().size());
+    Assert.assertEquals(2, map.values().size());
+    Assert.assertEquals(2, map.entrySet().size());
+    Assert.assertEquals("2", map.remove("a"));
+    Assert.assertNull(map.get("a"));
+    Assert.assertNull(map.get("b"));
+    Assert.assertEquals(1, map.getHitCount());
+    Assert.assertEquals(1, map.getMissCount());
+    map.clear();
+    Assert.assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(
+        1000);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t * 100000;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 50000; i++) {
+            map.put(offset + i, i);
+            map.get(offset + (i / 2));
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertTrue(map.size() <= 1000);
+    Assert.assertEquals(400000, map.getHitCount() + map.getMissCount());
+  }
+
+  @Test
+  public void testConcurrentPutGetRemove() throws InterruptedException {
+    final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(
+        1000);
+    final AtomicInteger removed = new AtomicInteger();
+    final AtomicInteger wrongValues = new AtomicInteger();
+    final AtomicInteger oversize = new AtomicInteger();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t * 100000;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            map.put(offset + i, i);
+            Integer v = map.get(offset + i / 2);
+            if (v != null && v != i / 2) {
+              wrongValues.incrementAndGet();
+            }
+            if (i % 3 == 0 && map.remove(offset + i / 3) != null) {
+              removed.incrementAndGet();
+            }
+            if (i % 100 == 0 && map.size() > 1000) {
+              oversize.incrementAndGet();
+            }
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(0, oversize.get());
+    Assert.assertEquals(0, wrongValues.get());
+    Assert.assertTrue(map.size() <= 1000);
+    // every entry put is still there, was removed or was evicted, none went missing.
+    Assert.assertEquals(8 * 20000, map.size() + removed.get() + map.getEvictionCount());
+  }
+
+  @Test
+  public void testConcurrentPutsWithinCapacityAreKept() throws InterruptedException {
+    // room to spare, so that an unevenly filled segment does not evict.
+    final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(
+        160000);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t * 10000;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            map.put(offset + i, i);
+            map.get(offset + i / 2);
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(80000, map.size());
+    Assert.assertEquals(0, map.getEvictionCount());
+    for (int i = 0; i < 80000; i++) {
+      Assert.assertEquals(Integer.valueOf(i % 10000), map.get(i));
+    }
+  }
+
+  /**
+   * Compares the map with the timestamp map it replaced, run by hand. Nothing is
+   * asserted, the timings depend on the machine.
+   */
+  @Ignore
+  @Test
+  public void compareWithTimestampMap() throws InterruptedException {
+    for (int size : new int[] { 1000, 10000, 100000 }) {
+      long lru = time(new ConcurrentLRUMap<Integer, Integer>(size), size);
+      long timestamp = time(new TimestampLRUMap<Integer, Integer>(size), size);
+      System.out.println("size " + size + ": ConcurrentLRUMap " + lru
+          + " ms, timestamp map " + timestamp + " ms");
+    }
+  }
+
+  /**
+   * Fills the map, then has 4 threads put past the size and read back recent keys.
+   *
+   * @return the milliseconds taken once the map is full.
+   */
+  private long time(final Map<Integer, Integer> map, final int size)
+      throws InterruptedException {
+    for (int i = 0; i < size; i++) {
+      map.put(i, i);
+    }
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = size + t * 1000;
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 1000; i++) {
+            map.put(offset + i, i);
+            for (int j = 0; j < 10; j++) {
+              map.get(offset + i - j);
+            }
+          }
+        }
+      };
+    }
+    long start = System.currentTimeMillis();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    return System.currentTimeMillis() - start;
+  }
+
+  /**
+   * The map ConcurrentLRUMap replaced: a ConcurrentHashMap of values stamped on access,
+   * sorted by stamp to evict when a put finds it over size.
+   */
+  private static class TimestampLRUMap<K, V> extends AbstractMap<K, V> {
+
+    private static class Holder<K, V> {
+      private final K key;
+      private final V value;
+      private volatile long last = System.currentTimeMillis();
+
+      Holder(K key, V value) {
+        this.key = key;
+        this.value = value;
+      }
+    }
+
+    private final Map<K, Holder<K, V>> delegate = new ConcurrentHashMap<K, Holder<K, V>>();
+    private final int maxSize;
+
+    TimestampLRUMap(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public V put(K key, V value) {
+      if (delegate.size() > maxSize) {
+        List<Holder<K, V>> l = new ArrayList<Holder<K, V>>(delegate.values());
+        Collections.sort(l, new Comparator<Holder<K, V>>() {
+          public int compare(Holder<K, V> o1, Holder<K, V> o2) {
+            return (int) (o1.last - o2.last);
+          }
+        });
+        int i = 0;
+        while (delegate.size() > maxSize && i < l.size()) {
+          delegate.remove(l.get(i++).key);
+        }
+      }
+      Holder<K, V> v = delegate.put(key, new Holder<K, V>(key, value));
+      return v == null ? null : v.value;
+    }
+
+    @Override
+    public V get(Object key) {
+      Holder<K, V> v = delegate.get(key);
+      if (v == null) {
+        return null;
+      }
+      v.last = System.currentTimeMillis();
+      return v.value;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Handles a single SMTP transaction. Recipients are resolved as they arrive using one
+ * administrative session, and the message data is delivered once for all of them rather
+ * than once per recipient.
+ */
+public class SakaiMessageHandler implements MessageHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SakaiMessageHandler.class);
+
+  private final SakaiSmtpServer server;
+  private final Set<String> paths = new LinkedHashSet<String>();
+  private Session session;
+  private String from;
+
+  public SakaiMessageHandler(SakaiSmtpServer server) {
+    this.server = server;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.subethamail.smtp.MessageHandler#from(java.lang.String)
+   */
+  public void from(String from) throws RejectException {
+    this.from = from;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.subethamail.smtp.MessageHandler#recipient(java.lang.String)
+   */
+  public void recipient(String recipient) throws RejectException {
+    List<String> localPaths;
+    try {
+      localPaths = server.getLocalPath(getSession(), recipient);
+    } catch (Exception e) {
+      LOGGER.error("Unable to resolve recipient " + recipient, e);
+      throw new RejectException(451, "Unable to resolve <" + recipient + ">, try again later");
+    }
+    if (localPaths.isEmpty()) {
+      throw new RejectException(553, "<" + recipient + "> No such user here");
+    }
+    paths.addAll(localPaths);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.subethamail.smtp.MessageHandler#data(java.io.InputStream)
+   */
+  public void data(InputStream data) throws RejectException, TooMuchDataException,
+      IOException {
+    LOGGER.info("Got message FROM: {} for {} local stores ", from, paths.size());
+    try {
+      server.deliver(getSession(), from, new ArrayList<String>(paths), data);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      LOGGER.error("Unable to deliver message", e);
+      throw new RejectException(451, "Unable to deliver message, try again later");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.subethamail.smtp.MessageHandler#done()
+   */
+  public void done() {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error(e.getLocalizedMessage(), e);
+      }
+      session = null;
+    }
+  }
+
+  private Session getSession() throws ClientPoolException, StorageClientException,
+      AccessDeniedException {
+    if (session == null) {
+      session = server.contentRepository.loginAdministrative();
+    }
+    return session;
+  }
+}
@@ -27,7 +27,6 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -38,9 +37,9 @@ import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.subethamail.smtp.TooMuchDataException;
-import org.subethamail.smtp.helper.SimpleMessageListener;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.server.SMTPServer;
 
 import java.io.IOException;
@@ -61,7 +60,7 @@ import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMultipart;
 
 @Component(immediate = true, metatype = true)
-public class SakaiSmtpServer implements SimpleMessageListener {
+public class SakaiSmtpServer implements MessageHandlerFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
   private static final int MAX_PROPERTY_SIZE = 32 * 1024;
@@ -90,7 +89,7 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   protected void activate(ComponentContext context) throws Exception {
     Integer port = PropertiesUtil.toInteger(context.getProperties().get(SMTP_SERVER_PORT), 8025);
     LOGGER.info("Starting SMTP server on port {}", port);
-    server = new SMTPServer(new SimpleMessageListenerAdapter(this));
+    server = new SMTPServer(this);
     server.setPort(port);
     server.start();
     String localDomains = PropertiesUtil.toString(context.getProperties().get(LOCAL_DOMAINS), "localhost");
@@ -107,41 +106,23 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   }
 
   /**
-   *
    * {@inheritDoc}
    *
-   * @see org.subethamail.smtp.helper.SimpleMessageListener#accept(java.lang.String,
-   *      java.lang.String)
+   * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
    */
-  public boolean accept(String from, String recipient) {
-    Session session = null;
-    try {
-      session = contentRepository.loginAdministrative();
-      List<String> paths = getLocalPath(session, recipient);
-      return paths.size() > 0;
-    } catch (Exception e) {
-      LOGGER.error("Develier message with this handler ", e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          throw new RuntimeException("Failed to logout session.", e);
-        }
-      }
-    }
-    return false;
+  public MessageHandler create(MessageContext ctx) {
+    return new SakaiMessageHandler(this);
   }
 
   /**
    * @param recipient
    * @return
    */
-  private List<String> getLocalPath(Session session, String recipient) {
+  List<String> getLocalPath(Session session, String recipient) {
     // assume recipient is a fully qualified email address of the form xxx@foo.com
     String[] parts = StringUtils.split(recipient, '@');
     List<String> localPaths = new ArrayList<String>();
-    if (domains.contains(parts[1])) {
+    if (parts != null && parts.length == 2 && domains.contains(parts[1])) {
       List<String> recipients = messagingService.expandAliases(parts[0]);
       for (String localRecipient : recipients) {
         try {
@@ -157,53 +138,56 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     return localPaths;
   }
 
-  public void deliver(String from, String recipient, InputStream data)
-      throws TooMuchDataException, IOException {
-    LOGGER.info("Got message FROM: " + from + " TO: " + recipient);
-    Session session = null;
-    try {
-      session = contentRepository.loginAdministrative();
-
-      List<String> paths = getLocalPath(session, recipient);
-      if (paths.size() > 0) {
-        Map<String, Object> mapProperties = new HashMap<String, Object>();
-        mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-            MessageConstants.SAKAI_MESSAGE_RT);
-        mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
-        mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
-        mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-            MessageConstants.BOX_INBOX);
-        Content createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
-        if (createdMessage != null) {
-          String messagePath = createdMessage.getPath();
-          String messageId = (String) createdMessage.getProperty("message-id");
-          LOGGER.info("Created message {} at: {} ", messageId, messagePath);
-
-          // we might want alias expansion
-          for (int i = 1; i < paths.size(); i++) {
-            String targetPath = paths.get(i);
-            messagingService.copyMessageNode(createdMessage, targetPath, session);
-          }
-        }
+  /**
+   * Deliver one message to every local store in <code>paths</code>. The data is parsed and
+   * written once, into the first store, and copied from there into the others. Nothing
+   * is kept between transactions, a message sent again is stored again.
+   *
+   * @param session
+   *          an administrative session used for every store.
+   * @param from
+   *          the envelope sender.
+   * @param paths
+   *          the full paths to the message stores of the recipients.
+   * @param data
+   *          the message data.
+   * @throws IOException
+   */
+  void deliver(Session session, String from, List<String> paths, InputStream data)
+      throws StorageClientException, AccessDeniedException, IOException {
+    writeMessage(session, from, paths, data);
+  }
 
-      }
+  private Content writeMessage(Session session, String from, List<String> paths,
+      InputStream data) throws StorageClientException, AccessDeniedException, IOException {
+    if (paths.isEmpty()) {
+      return null;
+    }
+    Map<String, Object> mapProperties = new HashMap<String, Object>();
+    mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        MessageConstants.SAKAI_MESSAGE_RT);
+    mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
+    mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
+    mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    Content createdMessage;
+    try {
+      createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
     } catch (MessagingException e) {
       LOGGER.error("Unable to write message", e);
       throw new IOException("Message can not be written to repository");
-    } catch (StorageClientException e) {
-      LOGGER.error("Unable to write message", e);
-    } catch (AccessDeniedException e) {
-      LOGGER.error("Unable to write message", e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.error(e.getLocalizedMessage(), e);
-          throw new RuntimeException("Failed to logout session.", e);
-        }
+    }
+    if (createdMessage != null) {
+      String messagePath = createdMessage.getPath();
+      String messageId = (String) createdMessage.getProperty("message-id");
+      LOGGER.info("Created message {} at: {} ", messageId, messagePath);
+
+      // the other recipients get a copy of the stored message, it is not parsed again.
+      for (int i = 1; i < paths.size(); i++) {
+        String targetPath = paths.get(i);
+        messagingService.copyMessageNode(createdMessage, targetPath, session);
       }
     }
+    return createdMessage;
   }
 
   @SuppressWarnings("unchecked")
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -46,6 +47,7 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.RejectException;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -167,8 +169,11 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    sakaiSmtpServer.accept("bob@localhost", "alice@localhost");
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    SakaiMessageHandler handler = new SakaiMessageHandler(sakaiSmtpServer);
+    handler.from("bob@localhost");
+    handler.recipient("alice@localhost");
+    handler.data(dataStream);
+    handler.done();
 
     // call to messageService.create
     verify(messagingService).create(any(Session.class), mapProperties.capture());
@@ -279,8 +284,11 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    SakaiMessageHandler handler = new SakaiMessageHandler(sakaiSmtpServer);
+    handler.from("bob@localhost");
+    handler.recipient("alice@localhost");
+    handler.data(dataStream);
+    handler.done();
 
     // call to messageService.create
     verify(messagingService).create(any(Session.class), mapProperties.capture());
@@ -317,8 +325,11 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    sakaiSmtpServer.accept("bob@localhost", "alice@localhost");
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    SakaiMessageHandler handler = new SakaiMessageHandler(sakaiSmtpServer);
+    handler.from("bob@localhost");
+    handler.recipient("alice@localhost");
+    handler.data(dataStream);
+    handler.done();
 
 
     // call to messageService.create
@@ -354,8 +365,11 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    sakaiSmtpServer.accept("bob@localhost", "alice@localhost");
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    SakaiMessageHandler handler = new SakaiMessageHandler(sakaiSmtpServer);
+    handler.from("bob@localhost");
+    handler.recipient("alice@localhost");
+    handler.data(dataStream);
+    handler.done();
 
 
     // call to messageService.create
@@ -373,4 +387,61 @@ public class SakaiSmtpServerTest {
     sakaiSmtpServer.deactivate(componentContext);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testMultipleRecipientsParsedOnce() throws Exception {
+    when(messagingService.create(any(Session.class), any(Map.class))).thenReturn(
+        myMessageNode);
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    SakaiMessageHandler handler = new SakaiMessageHandler(sakaiSmtpServer);
+    handler.from("carol@remote");
+    handler.recipient("alice@localhost");
+    handler.recipient("bob@localhost");
+    handler.data(new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8")));
+    handler.done();
+
+    // one parse and store, one copy for the second recipient, one session.
+    verify(messagingService, times(1)).create(any(Session.class), any(Map.class));
+    verify(messagingService).copyMessageNode(myMessageNode, "a:bob/message", adminSession);
+    verify(slingRepository, times(1)).loginAdministrative();
+    verify(adminSession, times(1)).logout();
+
+    // the same message in a second transaction is stored on its own, nothing is
+    // copied from the first recipient's message.
+    handler = new SakaiMessageHandler(sakaiSmtpServer);
+    handler.from("carol@remote");
+    handler.recipient("alice@localhost");
+    handler.data(new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8")));
+    handler.done();
+
+    verify(messagingService, times(2)).create(any(Session.class), any(Map.class));
+    verify(messagingService, times(1)).copyMessageNode(any(Content.class), anyString(),
+        any(Session.class));
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @Test(expected = RejectException.class)
+  public void testUnknownRecipientRejected() throws Exception {
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+    SakaiMessageHandler handler = new SakaiMessageHandler(sakaiSmtpServer);
+    try {
+      handler.from("carol@remote");
+      handler.recipient("alice@elsewhere");
+    } finally {
+      handler.done();
+      sakaiSmtpServer.deactivate(componentContext);
+    }
+  }
+
 }
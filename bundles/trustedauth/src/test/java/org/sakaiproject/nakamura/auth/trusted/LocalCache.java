@@ -69,6 +69,39 @@ public class LocalCache<T>  implements Cache<Object> {
    */
   public void removeChildren(String key) {
     m.remove(key);
+    for (String k : childKeys(key)) {
+      m.remove(k);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<Object> listChildren(String key) {
+    List<Object> l = new ArrayList<Object>();
+    if (m.containsKey(key)) {
+      l.add(m.get(key));
+    }
+    for (String k : childKeys(key)) {
+      l.add(m.get(k));
+    }
+    return l;
+  }
+
+  /**
+   * @param key
+   * @return a copy of the keys starting with key + "/"
+   */
+  private List<String> childKeys(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    List<String> children = new ArrayList<String>();
+    for (String k : m.keySet()) {
+      if (k.startsWith(prefix)) {
+        children.add(k);
+      }
+    }
+    return children;
   }
 
   /**
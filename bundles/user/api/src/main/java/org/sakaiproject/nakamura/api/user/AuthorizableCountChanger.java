@@ -20,10 +20,31 @@ package org.sakaiproject.nakamura.api.user;
 
 import java.util.Collection;
 
+/**
+ * Keeps the count properties of authorizables up to date. Changes are queued and
+ * written in batches, so a count may lag the change that caused it by a short time.
+ */
 public interface AuthorizableCountChanger {
 
+  /**
+   * The count property has changed by an unknown amount, it will be recounted the next
+   * time it is needed.
+   */
   public void notify(String propertyName, String authorizableID);
 
   public void notify(String propertyName, Collection<String> ... authorizableIDs);
 
+  /**
+   * The count property has changed by a known amount. Changes to the same property are
+   * added together before they are stored, and a count that has not been calculated
+   * yet is left for the recount.
+   *
+   * @param propertyName
+   * @param delta the amount to add, negative to subtract.
+   * @param authorizableID
+   */
+  public void change(String propertyName, int delta, String authorizableID);
+
+  public void change(String propertyName, int delta, Collection<String> ... authorizableIDs);
+
 }
@@ -18,7 +18,9 @@
 package org.sakaiproject.nakamura.api.user;
 
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 
+import java.util.Collection;
 import java.util.Map;
 
 
@@ -26,6 +28,20 @@ public interface BasicUserInfoService {
 
   Map<String, Object> getProperties(Authorizable au);
 
+  /**
+   * Get the basic info for a number of authorizables in one go, for rendering a page of
+   * results. The info may come from a cache shared by all users.
+   *
+   * @param authorizableManager
+   *          the authorizable manager of the requesting user's session, used to check the
+   *          user may read each authorizable.
+   * @param authorizableIds
+   * @return the basic info keyed by authorizable id, ids that do not exist or can not be
+   *         read by the requesting user are left out. The maps must not be modified.
+   */
+  Map<String, Map<String, Object>> getProperties(AuthorizableManager authorizableManager,
+      Collection<String> authorizableIds);
+
   String[] getBasicProfileElements();
 
 }
@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.user;
 
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.TOPIC_BASE;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.UPDATED_TOPIC;
 import static org.sakaiproject.nakamura.api.user.UserConstants.AUTHZ_COUNTS_PROPS;
 import static org.sakaiproject.nakamura.api.user.UserConstants.COUNTS_PROP;
 import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_COUNTS_PROPS;
@@ -44,23 +47,34 @@ import static org.sakaiproject.nakamura.api.user.UserConstants.USER_TAGS;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.api.user.counts.CountProvider;
@@ -68,12 +82,18 @@ import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 @Component(immediate=true, metatype=true)
-@Service(value=BasicUserInfoService.class)
-public class BasicUserInfoServiceImpl implements BasicUserInfoService {
+@Service(value={BasicUserInfoService.class, EventHandler.class})
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    TOPIC_BASE + "authorizables/" + UPDATED_TOPIC,
+    TOPIC_BASE + "authorizables/" + DELETE_TOPIC }, propertyPrivate = true) })
+public class BasicUserInfoServiceImpl implements BasicUserInfoService, EventHandler {
 
 
 
@@ -95,6 +115,11 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
   @Reference
   protected Repository repository;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected CacheManagerService cacheManagerService;
+
+  static final String CACHE_NAME = "org.sakaiproject.nakamura.user.BasicUserInfoService";
+
   @Activate
   protected void activated(Map<String, Object> properties ) {
     modified(properties);
@@ -103,6 +128,10 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
   @Modified
   protected void modified(Map<String, Object> properties ) {
     basicUserInfoElements = PropertiesUtil.toStringArray(properties.get(BASIC_PROFILE_ELEMENTS), DEFAULT_BASIC_USER_INFO_ELEMENTS);
+    Cache<Map<String, Object>> cache = getCache();
+    if (cache != null) {
+      cache.clear();
+    }
   }
 
   
@@ -110,13 +139,131 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
   
   
   public Map<String, Object> getProperties(Authorizable authorizable) {
+    return getProperties(authorizable, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Each id is resolved with the requester's authorizable manager first, so nothing the
+   * requester can not read is returned whether it is cached or not. What is not cached
+   * is worked out with a single administrative session, which is only needed for the
+   * counts. Callers rendering a page should keep the returned map for the page rather
+   * than asking again per row.
+   *
+   * @see org.sakaiproject.nakamura.api.user.BasicUserInfoService#getProperties(org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager,
+   *      java.util.Collection)
+   */
+  public Map<String, Map<String, Object>> getProperties(
+      AuthorizableManager authorizableManager, Collection<String> authorizableIds) {
+    Map<String, Map<String, Object>> result = Maps.newHashMap();
+    Cache<Map<String, Object>> cache = getCache();
+    List<Authorizable> missing = Lists.newArrayList();
+    for (String authorizableId : authorizableIds) {
+      if (authorizableId == null || result.containsKey(authorizableId)) {
+        continue;
+      }
+      if (User.ANON_USER.equals(authorizableId)) {
+        result.put(authorizableId, Collections.unmodifiableMap(anonymousBasicInfo()));
+        continue;
+      }
+      Authorizable authorizable = findReadable(authorizableManager, authorizableId);
+      if (authorizable == null) {
+        continue;
+      }
+      Map<String, Object> basicUserInfo = null;
+      if (cache != null) {
+        basicUserInfo = cache.get(authorizableId);
+      }
+      if (basicUserInfo == null) {
+        missing.add(authorizable);
+      } else {
+        result.put(authorizableId, basicUserInfo);
+      }
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      for (Authorizable authorizable : missing) {
+        Map<String, Object> basicUserInfo = Collections.unmodifiableMap(getProperties(
+            authorizable, adminSession));
+        if (cache != null) {
+          cache.put(authorizable.getId(), basicUserInfo);
+        }
+        result.put(authorizable.getId(), basicUserInfo);
+      }
+    } catch (ClientPoolException e) {
+      LOGGER.error("Error getting basic info of authorizables", e);
+    } catch (StorageClientException e) {
+      LOGGER.error("Error getting basic info of authorizables", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Error getting basic info of authorizables", e);
+    } finally {
+      if ( adminSession != null ) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.error("Error logging out of admin session", e);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the authorizable if it exists and the owner of the authorizable manager may
+   *         read it, otherwise null.
+   */
+  private Authorizable findReadable(AuthorizableManager authorizableManager,
+      String authorizableId) {
+    try {
+      return authorizableManager.findAuthorizable(authorizableId);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug("Not allowed to read {} ", authorizableId);
+    } catch (StorageClientException e) {
+      LOGGER.error("Error finding authorizable " + authorizableId, e);
+    }
+    return null;
+  }
+
+  private Cache<Map<String, Object>> getCache() {
+    CacheManagerService cacheManager = cacheManagerService;
+    if (cacheManager == null) {
+      return null;
+    }
+    return cacheManager.getCache(CACHE_NAME, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object authorizableId = event.getProperty("path");
+    Cache<Map<String, Object>> cache = getCache();
+    if (authorizableId != null && cache != null) {
+      cache.remove(String.valueOf(authorizableId));
+    }
+  }
+
+  /**
+   * @param authorizable
+   * @param adminSession
+   *          an administrative session to work out counts with, or null to use a new one.
+   */
+  private Map<String, Object> getProperties(Authorizable authorizable, Session adminSession) {
     if (authorizable == null || User.ANON_USER.equals(authorizable.getId())) {
       return anonymousBasicInfo();
     }
     
     Map<String, Object> basicUserInfo = Maps.newHashMap();
     basicUserInfo.put(USER_BASIC, basicProfileMapForAuthorizable(authorizable));
-    basicUserInfo.put(COUNTS_PROP, countsMapforAuthorizable(authorizable));
+    basicUserInfo.put(COUNTS_PROP, countsMapforAuthorizable(authorizable, adminSession));
     basicUserInfo.put(USER_HOME_PATH, LitePersonalUtils.getHomeResourcePath(authorizable.getId()));
     if ( authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
       basicUserInfo.put(UserConstants.SAKAI_EXCLUDE, authorizable.getProperty(UserConstants.SAKAI_EXCLUDE));
@@ -134,17 +281,21 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
   
   
 
-  private Map<String, Object> countsMapforAuthorizable(Authorizable authorizable) {
+  private Map<String, Object> countsMapforAuthorizable(Authorizable authorizable,
+      Session session) {
     Builder<String, Object> propertyBuilder = ImmutableMap.builder();
     Session adminSession = null;
     try {
-      adminSession = this.repository.loginAdministrative();
-      buildCountsMap(AUTHZ_COUNTS_PROPS, authorizable, propertyBuilder, adminSession);
+      if (session == null) {
+        adminSession = this.repository.loginAdministrative();
+        session = adminSession;
+      }
+      buildCountsMap(AUTHZ_COUNTS_PROPS, authorizable, propertyBuilder, session);
       if (authorizable instanceof User) {
-        buildCountsMap(USER_COUNTS_PROPS, authorizable, propertyBuilder, adminSession);
+        buildCountsMap(USER_COUNTS_PROPS, authorizable, propertyBuilder, session);
       }
       if (authorizable instanceof Group) {
-        buildCountsMap(GROUP_COUNTS_PROPS, authorizable, propertyBuilder, adminSession);
+        buildCountsMap(GROUP_COUNTS_PROPS, authorizable, propertyBuilder, session);
       }
     } catch (AccessDeniedException e) {
       LOGGER.error("Error getting map of authorizable's counts", e);
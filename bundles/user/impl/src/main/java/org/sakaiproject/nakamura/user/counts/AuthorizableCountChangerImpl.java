@@ -18,9 +18,14 @@
 
 package org.sakaiproject.nakamura.user.counts;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -33,17 +38,47 @@ import org.sakaiproject.nakamura.api.user.counts.CountProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
+/**
+ * Queues count changes per authorizable and writes them in batches from a single
+ * flusher thread, so a burst of changes to the same authorizable costs one update.
+ * Known changes are added to the stored count, unknown changes remove the stored count
+ * so that it is recounted when next needed. The {@link CountsRefreshScheduler} corrects
+ * any drift in the background.
+ */
 @Component(metatype = true)
 @Service
 public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableCountChangerImpl.class);
 
+  @Property(longValue = 1000, label = "Flush Interval", description = "Milliseconds to collect count changes before they are written")
+  public static final String FLUSH_INTERVAL = "sakai.countChanger.flushInterval";
+
+  @Property(intValue = 500, label = "Maximum Batch Size", description = "Number of authorizables with queued changes that causes an immediate write")
+  public static final String MAX_BATCH = "sakai.countChanger.maxBatch";
+
+  /**
+   * Queued in place of a delta when the property has to be recounted.
+   */
+  protected static final int RECOUNT = Integer.MIN_VALUE;
+
   @Reference
-  private Repository repository;
+  protected Repository repository;
+
+  private final LinkedHashMap<String, Map<String, Integer>> pending = new LinkedHashMap<String, Map<String, Integer>>();
+  private volatile long flushInterval = 1000L;
+  private volatile int maxBatch = 500;
+  private volatile boolean running;
+  private Thread flusher;
 
   @SuppressWarnings("unchecked")
   @Override
@@ -53,31 +88,81 @@ public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
 
   @Override
   public void notify(String propertyName, Collection<String>... authorizableIDs) {
-    Session adminSession = null;
-    try {
-      adminSession = this.repository.loginAdministrative();
-      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    queue(propertyName, RECOUNT, authorizableIDs);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void change(String propertyName, int delta, String authorizableID) {
+    this.change(propertyName, delta, Arrays.asList(authorizableID));
+  }
+
+  @Override
+  public void change(String propertyName, int delta, Collection<String>... authorizableIDs) {
+    if (delta != 0 && delta != RECOUNT) {
+      queue(propertyName, delta, authorizableIDs);
+    }
+  }
+
+  private void queue(String propertyName, int delta, Collection<String>[] authorizableIDs) {
+    synchronized (pending) {
       for (Collection<String> list : authorizableIDs) {
         for (String id : list) {
-          Authorizable authz = authorizableManager.findAuthorizable(id);
-          if (authz == null || CountProvider.IGNORE_AUTHIDS.contains(authz.getId())) {
+          if (id == null || CountProvider.IGNORE_AUTHIDS.contains(id)) {
             continue; // skip the immutable system authzs
           }
-          if (authz.hasProperty(propertyName)) {
-            authz.removeProperty(propertyName);
-            authorizableManager.updateAuthorizable(authz, false);
-            if (LOGGER.isDebugEnabled()) {
-              LOGGER.debug("Removed {} prop from authorizable {}", new String[]{propertyName, id});
-            }
+          Map<String, Integer> changes = pending.get(id);
+          if (changes == null) {
+            changes = new HashMap<String, Integer>();
+            pending.put(id, changes);
           }
+          Integer queued = changes.get(propertyName);
+          if (delta == RECOUNT || queued == null) {
+            changes.put(propertyName, delta);
+          } else if (queued != RECOUNT) {
+            // a queued recount will see this change anyway.
+            changes.put(propertyName, queued + delta);
+          }
+        }
+      }
+      if (pending.size() >= maxBatch) {
+        pending.notifyAll();
+      }
+    }
+    if (!running) {
+      flush();
+    }
+  }
+
+  /**
+   * Write everything queued so far.
+   */
+  protected void flush() {
+    List<Entry<String, Map<String, Integer>>> batch;
+    synchronized (pending) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = new ArrayList<Entry<String, Map<String, Integer>>>(pending.entrySet());
+      pending.clear();
+    }
+    Session adminSession = null;
+    try {
+      adminSession = this.repository.loginAdministrative();
+      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+      for (Entry<String, Map<String, Integer>> e : batch) {
+        try {
+          apply(e.getKey(), e.getValue(), authorizableManager);
+        } catch (AccessDeniedException ex) {
+          LOGGER.error("Error changing counts of authorizable " + e.getKey(), ex);
+        } catch (StorageClientException ex) {
+          LOGGER.error("Error changing counts of authorizable " + e.getKey(), ex);
         }
       }
-    } catch (AccessDeniedException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
     } catch (ClientPoolException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
+      LOGGER.error("Error changing counts of " + batch.size() + " authorizables", e);
     } catch (StorageClientException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
+      LOGGER.error("Error changing counts of " + batch.size() + " authorizables", e);
     } finally {
       if (adminSession != null) {
         try {
@@ -88,4 +173,90 @@ public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
       }
     }
   }
+
+  private void apply(String id, Map<String, Integer> changes,
+      AuthorizableManager authorizableManager) throws AccessDeniedException,
+      StorageClientException {
+    Authorizable authz = authorizableManager.findAuthorizable(id);
+    if (authz == null) {
+      return;
+    }
+    boolean changed = false;
+    for (Entry<String, Integer> change : changes.entrySet()) {
+      String propertyName = change.getKey();
+      int delta = change.getValue();
+      if (!authz.hasProperty(propertyName) || delta == 0) {
+        // nothing stored yet, the recount will include this change.
+        continue;
+      }
+      if (delta == RECOUNT) {
+        authz.removeProperty(propertyName);
+      } else {
+        Object value = authz.getProperty(propertyName);
+        int count = (value instanceof Number ? ((Number) value).intValue() : 0) + delta;
+        authz.setProperty(propertyName, count < 0 ? 0 : count);
+      }
+      changed = true;
+    }
+    if (changed) {
+      authorizableManager.updateAuthorizable(authz, false);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Applied count changes {} to authorizable {}", changes, id);
+      }
+    }
+  }
+
+  private void flushLoop() {
+    boolean more = true;
+    while (more) {
+      synchronized (pending) {
+        if (running && pending.size() < maxBatch) {
+          try {
+            pending.wait(flushInterval);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        more = running;
+      }
+      flush();
+    }
+  }
+
+  // ---------- SCR integration ---------------------------------------------
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    modified(properties);
+    running = true;
+    flusher = new Thread("Authorizable Count Changer") {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    };
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    flushInterval = PropertiesUtil.toLong(properties.get(FLUSH_INTERVAL), 1000L);
+    maxBatch = PropertiesUtil.toInteger(properties.get(MAX_BATCH), 500);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    running = false;
+    synchronized (pending) {
+      pending.notifyAll();
+    }
+    try {
+      flusher.join(flushInterval * 10);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // anything queued while the flusher was stopping.
+    flush();
+  }
 }
@@ -53,7 +53,11 @@ public class CountProviderImpl implements CountProvider {
   @Reference
   protected Repository repository;
 
-  @Property(intValue = 30)
+  /**
+   * How old counts may get before the refresh job recounts them. Counts are changed as
+   * they happen, so this only bounds the drift.
+   */
+  @Property(intValue = 1440)
   public static final String UPDATE_INTERVAL_MINUTES = "sakai.countProvider.updateIntervalMinutes";
 
   private long updateIntervalMinutes;
@@ -174,7 +178,7 @@ public class CountProviderImpl implements CountProvider {
   @Modified
   public void modify(Map<String, Object> properties) throws StorageClientException,
       AccessDeniedException {
-    updateIntervalMinutes = PropertiesUtil.toLong(properties.get(UPDATE_INTERVAL_MINUTES), 30);
+    updateIntervalMinutes = PropertiesUtil.toLong(properties.get(UPDATE_INTERVAL_MINUTES), 1440);
   }
 
 
@@ -42,7 +42,9 @@ import java.util.Map;
 @Service(value = CountsRefreshScheduler.class)
 
 /**
- * run a periodic job (every poll interval seconds) that will update the batch size of authorizables' counts
+ * run a periodic job (every poll interval seconds) that will update the batch size of authorizables' counts.
+ * Counts are kept current by the {@link AuthorizableCountChangerImpl} as they change, this job only
+ * reconciles them in the background so it runs rarely and in small batches.
  */
 public class CountsRefreshScheduler {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountsRefreshScheduler.class);
@@ -59,11 +61,11 @@ public class CountsRefreshScheduler {
   @Reference
   protected CountProvider countProvider;
   
-  @Property(longValue = 300, label = "Refresh Interval Seconds",
+  @Property(longValue = 3600, label = "Refresh Interval Seconds",
           description = "How often to wake up and update a batch of authorizables")
   protected static final String PROP_POLL_INTERVAL_SECONDS = "refreshcounts.pollinterval";
   
-  @Property(intValue = 500, label = "Maximum Batch Size of Authorizables to Update in one Job",
+  @Property(intValue = 100, label = "Maximum Batch Size of Authorizables to Update in one Job",
       description = "Maximum Number of Authorizables to Update in one Job")
   public static final String PROP_UPDATE_BATCH_SIZE = "refreshcounts.batchsize";  
 
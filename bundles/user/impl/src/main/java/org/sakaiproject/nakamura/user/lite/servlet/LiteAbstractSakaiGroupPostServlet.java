@@ -109,13 +109,13 @@ public abstract class LiteAbstractSakaiGroupPostServlet extends
         ungetSession(adminSession);
       }
 
-      // the group's count of members changed
-      this.authorizableCountChanger.notify(UserConstants.GROUP_MEMBERS_PROP, group.getId());
-
-      // if this is a special contacts group, then change the contact count for the user it points at
-      if (group.getId().startsWith("g-contacts-")) {
-        String userId = group.getId().substring("g-contacts-".length());
-        this.authorizableCountChanger.notify(UserConstants.CONTACTS_PROP, userId);
+      // a special contacts group only holds users, so the change in its size is the change
+      // in its count of members and in the contact count of the user it points at
+      boolean contactsGroup = group.getId().startsWith("g-contacts-");
+      int membersBefore = group.getMembers().length;
+      if (!contactsGroup) {
+        // the group's count of members changed
+        this.authorizableCountChanger.notify(UserConstants.GROUP_MEMBERS_PROP, group.getId());
       }
 
       // first remove any members posted as ":member@Delete"
@@ -220,6 +220,13 @@ public abstract class LiteAbstractSakaiGroupPostServlet extends
 
       }
 
+      if (contactsGroup) {
+        int delta = group.getMembers().length - membersBefore;
+        String userId = group.getId().substring("g-contacts-".length());
+        this.authorizableCountChanger.change(UserConstants.GROUP_MEMBERS_PROP, delta, group.getId());
+        this.authorizableCountChanger.change(UserConstants.CONTACTS_PROP, delta, userId);
+      }
+
       if (changed) {
         // add an entry to the changes list to record the membership
         // change
@@ -160,12 +160,15 @@ public class LiteGroupJoinRequestServlet extends SlingAllMethodsServlet {
           break;
         case yes:
           // membership is automatically granted
+          boolean alreadyMember = Arrays.asList(targetGroup.getMembers()).contains(userId);
           targetGroup.addMember(userId);
           authorizableManager.updateAuthorizable(targetGroup);
           Dictionary<String, Object> eventProps = new Hashtable<String, Object>();
           eventAdmin.postEvent(new Event(GroupEvent.joinedSite.getTopic(), eventProps));
           ActivityUtils.postActivity(eventAdmin, userId, group.getPath(), "Content", "default", "pooled content", "JOINED_GROUP", null);
-          this.authorizableCountChanger.notify(UserConstants.GROUP_MEMBERS_PROP, targetGroup.getId());
+          if (!alreadyMember) {
+            this.authorizableCountChanger.change(UserConstants.GROUP_MEMBERS_PROP, 1, targetGroup.getId());
+          }
           this.authorizableCountChanger.notify(UserConstants.GROUP_MEMBERSHIPS_PROP, userId);
           break;
         case withauth:
@@ -46,6 +46,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -135,6 +136,7 @@ public class LiteGroupLeaveServlet extends LiteAbstractSakaiGroupPostServlet {
   private void removeAuth(Group groupToLeave, String authId, Map<String, Object> toSave) {
     // remove member permissions
     int count = groupToLeave.getMembersRemoved().length;
+    boolean wasMember = Arrays.asList(groupToLeave.getMembers()).contains(authId);
     groupToLeave.removeMember(authId);
     if (count < groupToLeave.getMembersRemoved().length) {
       toSave.put(groupToLeave.getId(), groupToLeave);
@@ -149,7 +151,9 @@ public class LiteGroupLeaveServlet extends LiteAbstractSakaiGroupPostServlet {
         new String[] { authId }, null, toSave);
 
     // notify the authz count updater of change
-    this.authorizableCountChanger.notify(UserConstants.GROUP_MEMBERS_PROP, groupToLeave.getId());
+    if (wasMember) {
+      this.authorizableCountChanger.change(UserConstants.GROUP_MEMBERS_PROP, -1, groupToLeave.getId());
+    }
     this.authorizableCountChanger.notify(UserConstants.GROUP_MEMBERSHIPS_PROP, authId);
 
   }
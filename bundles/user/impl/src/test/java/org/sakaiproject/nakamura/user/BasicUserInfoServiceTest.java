@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.user;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
@@ -33,19 +35,25 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.user.counts.CountProviderImpl;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -117,4 +125,38 @@ public class BasicUserInfoServiceTest {
     assertEquals("ieb@gmail.com", String.valueOf(emailProp.get("value")));
     return;
   }
+
+  @Test
+  public void testGetBulkUserInfo() throws Exception {
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(
+        cacheManagerService.getCache(Mockito.anyString(), Mockito.any(CacheScope.class)))
+        .thenReturn(new MapCacheImpl<Object>(BasicUserInfoServiceImpl.CACHE_NAME,
+            CacheScope.CLUSTERINVALIDATED));
+    basicUserInfoService.cacheManagerService = cacheManagerService;
+
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Map<String, Map<String, Object>> infos = basicUserInfoService.getProperties(
+        authorizableManager, Arrays.asList("ieb", "anonymous", "nosuchuser", "ieb"));
+    assertEquals(2, infos.size());
+    assertEquals("ieb", infos.get("ieb").get("userid"));
+    assertEquals("anonymous", infos.get("anonymous").get("rep:userId"));
+
+    // served from the cache until the authorizable changes.
+    Map<String, Object> cached = infos.get("ieb");
+    assertSame(cached, basicUserInfoService.getProperties(authorizableManager,
+        Arrays.asList("ieb")).get("ieb"));
+    basicUserInfoService.handleEvent(new Event(
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED", ImmutableMap.of("path",
+            "ieb")));
+    assertNotSame(cached, basicUserInfoService.getProperties(authorizableManager,
+        Arrays.asList("ieb")).get("ieb"));
+
+    // a cached entry is not handed to a requester who can not read the authorizable.
+    AuthorizableManager otherAuthorizableManager = Mockito.mock(AuthorizableManager.class);
+    Mockito.when(otherAuthorizableManager.findAuthorizable("ieb")).thenThrow(
+        new AccessDeniedException(Security.ZONE_AUTHORIZABLES, "ieb", "", "other"));
+    assertTrue(basicUserInfoService.getProperties(otherAuthorizableManager,
+        Arrays.asList("ieb")).isEmpty());
+  }
 }
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class AuthorizableCountChangerImplTest {
+
+  private Repository repository;
+  private AuthorizableCountChangerImpl countChanger;
+
+  @Before
+  public void before() throws Exception {
+    repository = (Repository) new BaseMemoryRepository().getRepository();
+    Session adminSession = repository.loginAdministrative();
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(UserConstants.CONTENT_ITEMS_PROP, 5);
+    props.put(UserConstants.CONTACTS_PROP, 2);
+    authorizableManager.createUser("alice", "alice", "password", props);
+    authorizableManager.createUser("bob", "bob", "password", null);
+    adminSession.logout();
+    countChanger = new AuthorizableCountChangerImpl();
+    countChanger.repository = repository;
+  }
+
+  @Test
+  public void testChangesAreCoalesced() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(AuthorizableCountChangerImpl.FLUSH_INTERVAL, 60000L);
+    countChanger.activate(properties);
+    try {
+      countChanger.change(UserConstants.CONTENT_ITEMS_PROP, 1, "alice");
+      countChanger.change(UserConstants.CONTENT_ITEMS_PROP, 1, "alice");
+      countChanger.change(UserConstants.CONTENT_ITEMS_PROP, -1, Arrays.asList("alice", "bob"));
+      countChanger.change(UserConstants.CONTACTS_PROP, 1, "alice");
+      countChanger.notify(UserConstants.CONTACTS_PROP, "alice");
+      countChanger.change(UserConstants.CONTACTS_PROP, 1, "alice");
+      // nothing is written until the flush.
+      assertEquals(5, get("alice").getProperty(UserConstants.CONTENT_ITEMS_PROP));
+      countChanger.flush();
+    } finally {
+      countChanger.deactivate(properties);
+    }
+    Authorizable alice = get("alice");
+    assertEquals(6, alice.getProperty(UserConstants.CONTENT_ITEMS_PROP));
+    // the recount wins over the changes around it.
+    assertFalse(alice.hasProperty(UserConstants.CONTACTS_PROP));
+    // counts that were never calculated are left for the recount.
+    assertFalse(get("bob").hasProperty(UserConstants.CONTENT_ITEMS_PROP));
+  }
+
+  @Test
+  public void testChangesWithoutFlusher() throws Exception {
+    countChanger.change(UserConstants.CONTENT_ITEMS_PROP, -10, "alice");
+    Authorizable alice = get("alice");
+    assertTrue(alice.hasProperty(UserConstants.CONTENT_ITEMS_PROP));
+    assertEquals(0, alice.getProperty(UserConstants.CONTENT_ITEMS_PROP));
+  }
+
+  private Authorizable get(String id) throws Exception {
+    Session adminSession = repository.loginAdministrative();
+    try {
+      return adminSession.getAuthorizableManager().findAuthorizable(id);
+    } finally {
+      adminSession.logout();
+    }
+  }
+}
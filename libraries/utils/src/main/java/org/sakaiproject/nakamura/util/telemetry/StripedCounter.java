@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its updates over a number of cells, selected by thread, so
+ * that threads incrementing the same counter do not contend on one memory location.
+ * Reading the value sums the cells. Get a handle once from
+ * {@link TelemetryCounter#counter(String, String, String)} and keep it, incrementing a
+ * handle does no lookups or allocation.
+ */
+public class StripedCounter {
+
+  /**
+   * Longs per cell, so that each cell sits on its own 64 byte cache line.
+   */
+  private static final int PADDING = 8;
+  private static final int STRIPES;
+  static {
+    int stripes = 1;
+    int cpus = Runtime.getRuntime().availableProcessors();
+    while (stripes < cpus && stripes < 64) {
+      stripes = stripes * 2;
+    }
+    STRIPES = stripes;
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void increment() {
+    add(1L);
+  }
+
+  public void add(long n) {
+    cells.getAndAdd(cell(), n);
+  }
+
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0L);
+    }
+  }
+
+  private static int cell() {
+    return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+  }
+}
@@ -19,33 +19,76 @@ package org.sakaiproject.nakamura.util.telemetry;
 
 import com.google.common.collect.Maps;
 
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.ConcurrentMap;
 
+/**
+ * The registry of telemetry metrics, grouped by module and service. Hot paths should
+ * get a {@link StripedCounter} or {@link LatencyHistogram} handle once, eg into a
+ * static field, and update the handle, which does no map lookups or allocation.
+ * {@link #incrementValue(String, String, String)} is kept for occasional use.
+ *
+ * Each module::service entry holds at most {@link TelemetryEntry#MAX_METRICS} metrics
+ * of each kind, so callers using unbounded names such as request paths can't grow the
+ * registry without limit.
+ */
 public class TelemetryCounter {
   protected static ConcurrentMap<String, TelemetryEntry> counters = Maps.newConcurrentMap();
 
+  /**
+   * Zero all the metrics.
+   */
   public static void clear() {
-    counters = Maps.newConcurrentMap();
+    for (TelemetryEntry entry : counters.values()) {
+      entry.reset();
+    }
   }
 
   public static void incrementValue(String moduleName, String serviceName, String metricName) {
+    counter(moduleName, serviceName, metricName).increment();
+  }
+
+  /**
+   * @return a counter handle, the same handle is returned for the same names.
+   */
+  public static StripedCounter counter(String moduleName, String serviceName,
+      String metricName) {
+    return getEntry(moduleName, serviceName).getCounter(metricName);
+  }
+
+  /**
+   * @return a histogram handle, the same handle is returned for the same names.
+   */
+  public static LatencyHistogram histogram(String moduleName, String serviceName,
+      String metricName) {
+    return getEntry(moduleName, serviceName).getHistogram(metricName);
+  }
+
+  /**
+   * @return a snapshot of all metrics keyed by module::service::metric.
+   */
+  public static SortedMap<String, Long> snapshot() {
+    SortedMap<String, Long> snapshot = Maps.newTreeMap();
+    for (Map.Entry<String, TelemetryEntry> e : counters.entrySet()) {
+      for (Map.Entry<String, TelemetryData> m : e.getValue().getMetrics().entrySet()) {
+        snapshot.put(e.getKey() + "::" + m.getKey(), Long.valueOf(m.getValue().value));
+      }
+    }
+    return snapshot;
+  }
+
+  private static TelemetryEntry getEntry(String moduleName, String serviceName) {
     String compositeKey = moduleName + "::" + serviceName;
     TelemetryEntry entry = counters.get(compositeKey);
-    Long value;
     if (entry == null) {
-      counters.put(compositeKey, new TelemetryEntry(moduleName, serviceName, Status.OK));
-      entry = counters.get(compositeKey);
-    }
-    TelemetryData telemetryData = entry.getMetric(metricName);
-    if (telemetryData == null) {
-      value = Long.valueOf(1);
-    } else {
-      if (!"L".equalsIgnoreCase(telemetryData.type)) {
-        throw new IllegalArgumentException("Attempting to increment a metric that isn't Long type.");
+      TelemetryEntry newEntry = new TelemetryEntry(moduleName, serviceName, Status.OK);
+      entry = counters.putIfAbsent(compositeKey, newEntry);
+      if (entry == null) {
+        entry = newEntry;
       }
-      value = Long.parseLong(telemetryData.value) + 1;
     }
-    entry.addMetric(metricName, new TelemetryData(value));
+    return entry;
   }
 
   public static enum Status {
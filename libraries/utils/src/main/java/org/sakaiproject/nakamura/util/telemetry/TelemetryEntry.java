@@ -19,34 +19,79 @@ package org.sakaiproject.nakamura.util.telemetry;
 
 import com.google.common.collect.Maps;
 
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.ConcurrentMap;
 
 class TelemetryEntry {
+  /**
+   * The most metrics of each kind an entry will hold, metrics named after this limit
+   * is reached are all counted under {@link #OVERFLOW_METRIC}.
+   */
+  static final int MAX_METRICS = 256;
+  static final String OVERFLOW_METRIC = "_other";
+
   private String module;
   private String service;
-  private long lastUpdate;
   private TelemetryCounter.Status status;
-  private ConcurrentMap<String, TelemetryData> metrics;
+  private ConcurrentMap<String, StripedCounter> counters;
+  private ConcurrentMap<String, LatencyHistogram> histograms;
+  /**
+   * Shared by every name past the limit, so that those names allocate nothing.
+   */
+  private final StripedCounter overflowCounter = new StripedCounter();
+  private final LatencyHistogram overflowHistogram = new LatencyHistogram();
 
   public TelemetryEntry(String module, String service, TelemetryCounter.Status status) {
     this.module = module;
     this.service = service;
     this.status = status;
-    lastUpdate = System.currentTimeMillis() / 1000;
-    metrics = Maps.newConcurrentMap();
+    counters = Maps.newConcurrentMap();
+    histograms = Maps.newConcurrentMap();
+  }
+
+  public StripedCounter getCounter(String name) {
+    StripedCounter counter = counters.get(name);
+    if (counter == null) {
+      if (counters.size() >= MAX_METRICS) {
+        counter = counters.putIfAbsent(OVERFLOW_METRIC, overflowCounter);
+        return counter == null ? overflowCounter : counter;
+      }
+      StripedCounter newCounter = new StripedCounter();
+      counter = counters.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
   }
 
-  public void addMetric(String name, TelemetryData d) {
-    lastUpdate = System.currentTimeMillis() / 1000;
-    metrics.putIfAbsent(name, d);
-    TelemetryData oldVal;
-    do {
-      oldVal = metrics.get(name);
-    } while (!metrics.replace(name, oldVal, d));
+  public LatencyHistogram getHistogram(String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      if (histograms.size() >= MAX_METRICS) {
+        histogram = histograms.putIfAbsent(OVERFLOW_METRIC, overflowHistogram);
+        return histogram == null ? overflowHistogram : histogram;
+      }
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
   }
 
-  public TelemetryData getMetric(String metricName) {
-    return metrics.get(metricName);
+  /**
+   * Zero all the metrics, handles already given out stay registered.
+   */
+  public void reset() {
+    for (StripedCounter counter : counters.values()) {
+      counter.reset();
+    }
+    for (LatencyHistogram histogram : histograms.values()) {
+      histogram.reset();
+    }
   }
 
   public String getModule() {
@@ -57,15 +102,34 @@ class TelemetryEntry {
     return service;
   }
 
+  /**
+   * @return the time the values were read, in seconds, the values are live.
+   */
   public long getLastUpdate() {
-    return lastUpdate;
+    return System.currentTimeMillis() / 1000;
   }
 
   public TelemetryCounter.Status getStatus() {
     return status;
   }
 
-  public ConcurrentMap<String, TelemetryData> getMetrics() {
+  /**
+   * @return a snapshot of the metrics, histograms are reported as name.count,
+   *         name.p50, name.p95, name.p99 and name.max.
+   */
+  public SortedMap<String, TelemetryData> getMetrics() {
+    SortedMap<String, TelemetryData> metrics = Maps.newTreeMap();
+    for (Map.Entry<String, StripedCounter> e : counters.entrySet()) {
+      metrics.put(e.getKey(), new TelemetryData(e.getValue().get()));
+    }
+    for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+      LatencyHistogram h = e.getValue();
+      metrics.put(e.getKey() + ".count", new TelemetryData(h.getCount()));
+      metrics.put(e.getKey() + ".p50", new TelemetryData(h.getPercentile(50)));
+      metrics.put(e.getKey() + ".p95", new TelemetryData(h.getPercentile(95)));
+      metrics.put(e.getKey() + ".p99", new TelemetryData(h.getPercentile(99)));
+      metrics.put(e.getKey() + ".max", new TelemetryData(h.getMax()));
+    }
     return metrics;
   }
 }
@@ -17,10 +17,14 @@
  */
 package org.sakaiproject.nakamura.util.telemetry;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
@@ -32,10 +36,44 @@ import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 @SlingServlet(paths = "/system/telemetry", generateComponent = true, generateService = true, methods = { "GET" })
 public class TelemetryReportServlet extends SlingSafeMethodsServlet {
-  
+
+  private static final long serialVersionUID = -2178469407395462312L;
+  private static final Logger LOGGER = LoggerFactory.getLogger(TelemetryReportServlet.class);
+
+  @Activate
+  protected void activate() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(TelemetryMXBean.OBJECT_NAME);
+      if (!mBeanServer.isRegistered(name)) {
+        mBeanServer.registerMBean(new Telemetry(), name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register telemetry with JMX " + e.getMessage(), e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(TelemetryMXBean.OBJECT_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to unregister telemetry from JMX " + e.getMessage(), e);
+    }
+  }
+
   @Override
   public void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
     response.setContentType("application/xml");
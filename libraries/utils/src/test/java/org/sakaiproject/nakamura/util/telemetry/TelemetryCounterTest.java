@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util.telemetry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class TelemetryCounterTest {
+
+  @Test
+  public void testCounterHandles() throws InterruptedException {
+    final StripedCounter counter = TelemetryCounter.counter("test", "Counter", "hits");
+    assertSame(counter, TelemetryCounter.counter("test", "Counter", "hits"));
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    TelemetryCounter.incrementValue("test", "Counter", "hits");
+    assertEquals(80001L, counter.get());
+    Map<String, Long> snapshot = TelemetryCounter.snapshot();
+    assertEquals(Long.valueOf(80001L), snapshot.get("test::Counter::hits"));
+  }
+
+  @Test
+  public void testCardinalityLimit() {
+    for (int i = 0; i < TelemetryEntry.MAX_METRICS * 2; i++) {
+      TelemetryCounter.incrementValue("test", "Paths", "/path/" + i);
+    }
+    Map<String, Long> snapshot = TelemetryCounter.snapshot();
+    int paths = 0;
+    for (String key : snapshot.keySet()) {
+      if (key.startsWith("test::Paths::")) {
+        paths++;
+      }
+    }
+    assertEquals(TelemetryEntry.MAX_METRICS + 1, paths);
+    assertEquals(Long.valueOf(TelemetryEntry.MAX_METRICS),
+        snapshot.get("test::Paths::" + TelemetryEntry.OVERFLOW_METRIC));
+    // names past the limit share one handle rather than getting a new one each time.
+    assertSame(TelemetryCounter.counter("test", "Paths", "/another/path"),
+        TelemetryCounter.counter("test", "Paths", "/yet/another/path"));
+  }
+
+  @Test
+  public void testHistogram() {
+    LatencyHistogram histogram = TelemetryCounter.histogram("test", "Histogram", "time.ms");
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000L, histogram.getCount());
+    assertEquals(1000L, histogram.getMax());
+    assertPercentile(500, histogram.getPercentile(50));
+    assertPercentile(950, histogram.getPercentile(95));
+    assertPercentile(990, histogram.getPercentile(99));
+    Map<String, Long> snapshot = TelemetryCounter.snapshot();
+    assertEquals(Long.valueOf(1000L), snapshot.get("test::Histogram::time.ms.count"));
+    histogram.reset();
+    assertEquals(0L, histogram.getCount());
+    assertEquals(0L, histogram.getPercentile(99));
+  }
+
+  @Test
+  public void testBuckets() {
+    for (long v = 0; v < 100000; v++) {
+      int bucket = LatencyHistogram.bucket(v);
+      assertTrue(LatencyHistogram.lowerBound(bucket) <= v);
+      assertTrue(LatencyHistogram.lowerBound(bucket + 1) > v);
+    }
+    assertEquals(959, LatencyHistogram.bucket(Long.MAX_VALUE));
+  }
+
+  private void assertPercentile(long expected, long actual) {
+    // within the resolution of the histogram.
+    assertTrue("Expected about " + expected + " got " + actual,
+        Math.abs(expected - actual) <= expected / 16 + 1);
+  }
+}